@@ -0,0 +1,409 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * {@link Beta} <br/>
+ * Batch of HTTP requests sent in a single {@code multipart/mixed} HTTP request, where each part is
+ * an {@code application/http} serialized HTTP request.
+ *
+ * <p>
+ * Each part of the {@code multipart/mixed} response is dispatched, in the order the requests were
+ * queued, to the callback of its request. Unsuccessful responses are first given to the
+ * {@link HttpRequest#getUnsuccessfulResponseHandler() unsuccessful response handler} of their
+ * request, and if it handles them, the request is retried individually in a following batch, up
+ * to its {@link HttpRequest#getNumberOfRetries() number of retries}. Otherwise the callback is
+ * notified of a failure with an {@link HttpResponseException} if
+ * {@link HttpRequest#getThrowExceptionOnExecuteError()}, or of the response otherwise.
+ * </p>
+ *
+ * <p>
+ * The batch response is read with a {@link MultipartReader}, so the content of a response is only
+ * available until its callback returns.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  BatchRequest batch = requestFactory.buildBatchRequest(batchUrl);
+  batch.queue(requestFactory.buildGetRequest(url1), callback1);
+  batch.queue(requestFactory.buildGetRequest(url2), callback2);
+  batch.execute();
+ * </pre>
+ *
+ * <p>
+ * The execute interceptor of each request is run before it is serialized, but the requests are
+ * otherwise not executed, so their content encoding and timeouts are ignored. The timeouts and
+ * retry handling of the batch itself are those of the request factory.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class BatchRequest {
+
+  /** Request factory of the batch request. */
+  private final HttpRequestFactory requestFactory;
+
+  /** URL of the batch endpoint. */
+  private GenericUrl batchUrl;
+
+  /** Queued requests. */
+  private List<RequestInfo> requestInfos = new ArrayList<RequestInfo>();
+
+  /**
+   * @param requestFactory request factory of the batch request
+   * @param batchUrl URL of the batch endpoint
+   */
+  BatchRequest(HttpRequestFactory requestFactory, GenericUrl batchUrl) {
+    this.requestFactory = requestFactory;
+    this.batchUrl = Preconditions.checkNotNull(batchUrl);
+  }
+
+  /** Returns the URL of the batch endpoint. */
+  public GenericUrl getBatchUrl() {
+    return batchUrl;
+  }
+
+  /** Sets the URL of the batch endpoint. */
+  public BatchRequest setBatchUrl(GenericUrl batchUrl) {
+    this.batchUrl = Preconditions.checkNotNull(batchUrl);
+    return this;
+  }
+
+  /**
+   * Queues a request to be sent with the next call to {@link #execute()}.
+   *
+   * @param request HTTP request
+   * @param callback callback notified with the response of the request
+   * @return this batch request
+   */
+  public BatchRequest queue(HttpRequest request, HttpResponseCallback callback) {
+    Preconditions.checkNotNull(request);
+    Preconditions.checkNotNull(callback);
+    requestInfos.add(new RequestInfo(request, callback));
+    return this;
+  }
+
+  /** Returns the number of queued requests. */
+  public int size() {
+    return requestInfos.size();
+  }
+
+  /**
+   * Sends the queued requests in batches until no request needs to be retried, notifying their
+   * callbacks, and then empties the queue.
+   *
+   * @throws IOException if a batch request failed, in which case the callbacks of the requests of
+   *         that batch are not notified
+   */
+  public void execute() throws IOException {
+    Preconditions.checkState(!requestInfos.isEmpty(), "no request queued");
+    List<RequestInfo> pending = requestInfos;
+    requestInfos = new ArrayList<RequestInfo>();
+    while (!pending.isEmpty()) {
+      MultipartContent content = new MultipartContent()
+          .setMediaType(new HttpMediaType("multipart/mixed"))
+          .setBoundary("batch_" + UUID.randomUUID());
+      int contentId = 1;
+      for (RequestInfo requestInfo : pending) {
+        HttpRequest request = requestInfo.request;
+        HttpExecuteInterceptor interceptor = request.getInterceptor();
+        if (interceptor != null) {
+          interceptor.intercept(request);
+        }
+        content.addPart(new MultipartContent.Part(
+            new HttpHeaders().setAcceptEncoding(null).set("Content-ID", contentId++),
+            new HttpRequestContent(request)));
+      }
+      HttpRequest batchRequest = requestFactory.buildPostRequest(batchUrl, content);
+      HttpResponse batchResponse = batchRequest.execute();
+      try {
+        pending = dispatch(batchResponse, pending);
+      } finally {
+        batchResponse.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Dispatches the parts of the batch response to the callbacks of the requests and returns the
+   * requests to retry.
+   */
+  private List<RequestInfo> dispatch(HttpResponse batchResponse, List<RequestInfo> requestInfos)
+      throws IOException {
+    HttpMediaType mediaType = batchResponse.getMediaType();
+    if (mediaType == null || mediaType.getParameter("boundary") == null) {
+      throw new IOException("batch response is not multipart: " + batchResponse.getContentType());
+    }
+    MultipartReader reader = new MultipartReader(batchResponse);
+    List<RequestInfo> retries = new ArrayList<RequestInfo>();
+    for (RequestInfo requestInfo : requestInfos) {
+      MultipartReader.Part part = reader.nextPart();
+      PartResponse partResponse = part == null ? null : PartResponse.parse(part.getContent());
+      if (partResponse == null) {
+        requestInfo.callback.onFailure(new IOException("missing response in batch response"));
+        continue;
+      }
+      HttpRequest request = requestInfo.request;
+      HttpResponse response = new HttpResponse(request, partResponse);
+      if (!response.isSuccessStatusCode()) {
+        HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+        boolean retrySupported =
+            requestInfo.retriesRemaining > 0 && (request.getContent() == null
+                || request.getContent().retrySupported());
+        if (handler != null && handler.handleResponse(request, response, retrySupported)
+            && retrySupported) {
+          requestInfo.retriesRemaining--;
+          retries.add(requestInfo);
+          continue;
+        }
+      }
+      HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+      if (responseInterceptor != null) {
+        responseInterceptor.interceptResponse(response);
+      }
+      if (request.getThrowExceptionOnExecuteError() && !response.isSuccessStatusCode()) {
+        requestInfo.callback.onFailure(new HttpResponseException(response));
+      } else {
+        requestInfo.callback.onResponse(response);
+      }
+    }
+    return retries;
+  }
+
+  /** Queued request with its callback. */
+  private static final class RequestInfo {
+
+    /** HTTP request. */
+    final HttpRequest request;
+
+    /** Callback. */
+    final HttpResponseCallback callback;
+
+    /** Number of retries remaining. */
+    int retriesRemaining;
+
+    RequestInfo(HttpRequest request, HttpResponseCallback callback) {
+      this.request = request;
+      this.callback = callback;
+      retriesRemaining = request.getNumberOfRetries();
+    }
+  }
+
+  /**
+   * Serializes an HTTP request as {@code application/http} content, as specified in <a
+   * href="http://tools.ietf.org/html/rfc2616#section-19.1">RFC 2616 section 19.1</a>.
+   */
+  static final class HttpRequestContent extends AbstractHttpContent {
+
+    /** HTTP request. */
+    private final HttpRequest request;
+
+    HttpRequestContent(HttpRequest request) {
+      super("application/http");
+      this.request = request;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      Writer writer = new OutputStreamWriter(out, getCharset());
+      // request line
+      writer.write(request.getRequestMethod());
+      writer.write(" ");
+      writer.write(request.getUrl().build());
+      writer.write(" HTTP/1.1");
+      writer.write(MultipartContent.NEWLINE);
+      // headers
+      HttpHeaders headers = new HttpHeaders();
+      headers.fromHttpHeaders(request.getHeaders());
+      headers.setAcceptEncoding(null)
+          .setUserAgent(null)
+          .setContentEncoding(null)
+          .setContentType(null)
+          .setContentLength(null);
+      HttpContent content = request.getContent();
+      if (content != null) {
+        headers.setContentType(content.getType());
+        long contentLength = content.getLength();
+        if (contentLength == -1 && content.retrySupported()) {
+          contentLength = AbstractHttpContent.computeLength(content);
+        }
+        if (contentLength != -1) {
+          headers.setContentLength(contentLength);
+        }
+      }
+      HttpHeaders.serializeHeadersForMultipartRequests(headers, null, null, writer);
+      writer.write(MultipartContent.NEWLINE);
+      writer.flush();
+      // content
+      if (content != null) {
+        content.writeTo(out);
+      }
+    }
+
+    @Override
+    public boolean retrySupported() {
+      HttpContent content = request.getContent();
+      return content == null || content.retrySupported();
+    }
+  }
+
+  /** Low-level HTTP response of a part of a batch response. */
+  static final class PartResponse extends LowLevelHttpResponse {
+
+    private final String statusLine;
+    private final int statusCode;
+    private final String reasonPhrase;
+    private final List<String> headerNames;
+    private final List<String> headerValues;
+    private final InputStream content;
+
+    PartResponse(String statusLine, List<String> headerNames, List<String> headerValues,
+        InputStream content) throws IOException {
+      this.statusLine = statusLine;
+      this.headerNames = headerNames;
+      this.headerValues = headerValues;
+      this.content = content;
+      String[] tokens = statusLine.split(" ", 3);
+      try {
+        statusCode = Integer.parseInt(tokens[1]);
+      } catch (RuntimeException e) {
+        throw new IOException("invalid status line in batch response: " + statusLine);
+      }
+      reasonPhrase = tokens.length == 3 ? tokens[2] : null;
+    }
+
+    /**
+     * Parses the {@code application/http} content of a part, leaving the given input stream
+     * positioned at the start of the HTTP response content, or returns {@code null} if it is
+     * empty.
+     */
+    static PartResponse parse(InputStream in) throws IOException {
+      // status line, possibly after blank lines
+      String statusLine;
+      do {
+        statusLine = readLine(in);
+      } while (statusLine != null && statusLine.length() == 0);
+      if (statusLine == null) {
+        return null;
+      }
+      List<String> headerNames = new ArrayList<String>();
+      List<String> headerValues = new ArrayList<String>();
+      String line;
+      while ((line = readLine(in)) != null && line.length() != 0) {
+        int colon = line.indexOf(':');
+        if (colon > 0) {
+          headerNames.add(line.substring(0, colon).trim());
+          headerValues.add(line.substring(colon + 1).trim());
+        }
+      }
+      return new PartResponse(statusLine, headerNames, headerValues, in);
+    }
+
+    /** Reads a line without its terminator or returns {@code null} at the end of the stream. */
+    private static String readLine(InputStream in) throws IOException {
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = in.read()) != -1 && b != '\n') {
+        line.write(b);
+      }
+      if (b == -1 && line.size() == 0) {
+        return null;
+      }
+      String result = StringUtils.newStringUtf8(line.toByteArray());
+      return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return content;
+    }
+
+    @Override
+    public String getContentEncoding() {
+      return findHeaderValue("Content-Encoding");
+    }
+
+    @Override
+    public long getContentLength() {
+      String contentLength = findHeaderValue("Content-Length");
+      return contentLength == null ? -1 : Long.parseLong(contentLength);
+    }
+
+    @Override
+    public String getContentType() {
+      return findHeaderValue("Content-Type");
+    }
+
+    @Override
+    public String getStatusLine() {
+      return statusLine;
+    }
+
+    @Override
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    @Override
+    public String getReasonPhrase() {
+      return reasonPhrase;
+    }
+
+    @Override
+    public int getHeaderCount() {
+      return headerNames.size();
+    }
+
+    @Override
+    public String getHeaderName(int index) {
+      return headerNames.get(index);
+    }
+
+    @Override
+    public String getHeaderValue(int index) {
+      return headerValues.get(index);
+    }
+
+    private String findHeaderValue(String name) {
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (headerNames.get(i).equalsIgnoreCase(name)) {
+          return headerValues.get(i);
+        }
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Low-level HTTP response whose content is buffered in memory, so that it may be served any number
+ * of times.
+ *
+ * <p>
+ * Implementation is immutable and thread-safe, and each call to {@link #getContent()} returns a
+ * new stream over the whole content.
+ * </p>
+ */
+final class BufferedLowLevelHttpResponse extends LowLevelHttpResponse {
+
+  private final int statusCode;
+  private final String reasonPhrase;
+  private final String statusLine;
+  private final String contentType;
+  private final String contentEncoding;
+  private final List<String> headerNames;
+  private final List<String> headerValues;
+  private final byte[] content;
+
+  BufferedLowLevelHttpResponse(int statusCode, String reasonPhrase, String statusLine,
+      String contentType, String contentEncoding, List<String> headerNames,
+      List<String> headerValues, byte[] content) {
+    this.statusCode = statusCode;
+    this.reasonPhrase = reasonPhrase;
+    this.statusLine = statusLine;
+    this.contentType = contentType;
+    this.contentEncoding = contentEncoding;
+    this.headerNames = headerNames;
+    this.headerValues = headerValues;
+    this.content = content;
+  }
+
+  /**
+   * Reads the whole content of the given response, closes its content stream, and returns the
+   * buffered response.
+   */
+  static BufferedLowLevelHttpResponse read(LowLevelHttpResponse response) throws IOException {
+    byte[] content;
+    InputStream stream = response.getContent();
+    if (stream == null) {
+      content = new byte[0];
+    } else {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+      IOUtils.copy(stream, buffer);
+      content = buffer.toByteArray();
+    }
+    List<String> headerNames = new ArrayList<String>();
+    List<String> headerValues = new ArrayList<String>();
+    int headerCount = response.getHeaderCount();
+    for (int i = 0; i < headerCount; i++) {
+      headerNames.add(response.getHeaderName(i));
+      headerValues.add(response.getHeaderValue(i));
+    }
+    return new BufferedLowLevelHttpResponse(response.getStatusCode(), response.getReasonPhrase(),
+        response.getStatusLine(), response.getContentType(), response.getContentEncoding(),
+        headerNames, headerValues, content);
+  }
+
+  @Override
+  public InputStream getContent() {
+    return new ByteArrayInputStream(content);
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  @Override
+  public long getContentLength() {
+    return content.length;
+  }
+
+  @Override
+  public String getContentType() {
+    return contentType;
+  }
+
+  @Override
+  public String getStatusLine() {
+    return statusLine;
+  }
+
+  @Override
+  public int getStatusCode() {
+    return statusCode;
+  }
+
+  @Override
+  public String getReasonPhrase() {
+    return reasonPhrase;
+  }
+
+  @Override
+  public int getHeaderCount() {
+    return headerNames.size();
+  }
+
+  @Override
+  public String getHeaderName(int index) {
+    return headerNames.get(index);
+  }
+
+  @Override
+  public String getHeaderValue(int index) {
+    return headerValues.get(index);
+  }
+}
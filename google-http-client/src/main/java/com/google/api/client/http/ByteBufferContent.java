@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link Beta} <br/>
+ * HTTP content of the remaining bytes of a list of byte buffers, which may be direct buffers, sent
+ * one after the other.
+ *
+ * <p>
+ * The positions of the given buffers are never changed, so that the content may be written any
+ * number of times and supports retries, but their content must not be modified while the request
+ * is executed. The bytes of heap buffers are written directly from their backing arrays, while the
+ * bytes of direct buffers are copied through a small array when written to an output stream.
+ * Transports may send the {@link #getBuffers() buffers} themselves, for example with a gathering
+ * write, or use {@link #writeTo(WritableByteChannel)}.
+ * </p>
+ *
+ * <p>
+ * Sample use:
+ * </p>
+ *
+ * <pre>
+  static void setContent(HttpRequest request, ByteBuffer header, ByteBuffer body) {
+    request.setContent(new ByteBufferContent("application/octet-stream", header, body));
+  }
+ * </pre>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class ByteBufferContent extends AbstractHttpContent {
+
+  /** Duplicates of the buffers, whose positions are never changed. */
+  private final List<ByteBuffer> buffers;
+
+  /** Number of remaining bytes of the buffers. */
+  private final long length;
+
+  /**
+   * @param type content type or {@code null} for none
+   * @param buffers byte buffers whose remaining bytes are the content
+   */
+  public ByteBufferContent(String type, ByteBuffer... buffers) {
+    this(type, Arrays.asList(buffers));
+  }
+
+  /**
+   * @param type content type or {@code null} for none
+   * @param buffers byte buffers whose remaining bytes are the content
+   */
+  public ByteBufferContent(String type, List<ByteBuffer> buffers) {
+    super(type);
+    List<ByteBuffer> views = new ArrayList<ByteBuffer>(buffers.size());
+    long total = 0;
+    for (ByteBuffer buffer : buffers) {
+      views.add(Preconditions.checkNotNull(buffer).duplicate());
+      total += buffer.remaining();
+    }
+    this.buffers = Collections.unmodifiableList(views);
+    length = total;
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Returns new duplicates of the buffers, whose remaining bytes are the content, and which may be
+   * consumed by the caller.
+   */
+  public ByteBuffer[] getBuffers() {
+    ByteBuffer[] result = new ByteBuffer[buffers.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = buffers.get(i).duplicate();
+    }
+    return result;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    // direct buffers are copied through a pooled array
+    byte[] copyBuffer = null;
+    try {
+      for (ByteBuffer buffer : buffers) {
+        if (buffer.hasArray()) {
+          out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+          continue;
+        }
+        ByteBuffer view = buffer.duplicate();
+        if (copyBuffer == null && view.hasRemaining()) {
+          copyBuffer = BufferPool.getDefault().acquire();
+        }
+        while (view.hasRemaining()) {
+          int count = Math.min(copyBuffer.length, view.remaining());
+          view.get(copyBuffer, 0, count);
+          out.write(copyBuffer, 0, count);
+        }
+      }
+    } finally {
+      BufferPool.getDefault().release(copyBuffer);
+    }
+    out.flush();
+  }
+
+  /**
+   * Writes the content to the given channel, blocking until all of it has been written, without
+   * copying the bytes of the buffers.
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    for (ByteBuffer buffer : getBuffers()) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    }
+  }
+
+  @Override
+  public ByteBufferContent setMediaType(HttpMediaType mediaType) {
+    return (ByteBufferContent) super.setMediaType(mediaType);
+  }
+}
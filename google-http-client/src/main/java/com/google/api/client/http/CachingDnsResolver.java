@@ -0,0 +1,646 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Beta} <br/>
+ * DNS resolver with a time bounded cache of the resolved addresses, refreshed in the background
+ * before they expire, which spreads new connections across all the addresses of a host.
+ *
+ * <p>
+ * Unlike the JVM-global cache of {@link InetAddress}, the time to live of the cached addresses is
+ * set per resolver with {@link Builder#setTimeToLive}. A cached host that is looked up within
+ * {@link Builder#setRefreshAheadTime} of its expiry is resolved again on the
+ * {@link Builder#setExecutor executor}, so that hosts in regular use are never resolved on the
+ * thread making the request.
+ * </p>
+ *
+ * <p>
+ * {@link #connect} opens a socket to one of the addresses of the host chosen by the
+ * {@link SpreadingPolicy}, falling back to the other addresses if the connection fails. It is used
+ * by {@link com.google.api.client.http.javanet.NetHttpTransport} and
+ * {@link com.google.api.client.http.apache.ApacheHttpTransport} when a resolver is set on their
+ * builders, while other {@link DnsResolver} implementations are connected to with
+ * {@link #connect(DnsResolver, String, int, int)}. Statistics of the cache are available with
+ * {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  CachingDnsResolver dnsResolver = new CachingDnsResolver.Builder()
+      .setTimeToLive(30000)
+      .setSpreadingPolicy(CachingDnsResolver.SpreadingPolicy.LEAST_CONNECTIONS)
+      .build();
+  NetHttpTransport transport = new NetHttpTransport.Builder().setDnsResolver(dnsResolver).build();
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class CachingDnsResolver implements DnsResolver {
+
+  private static final Logger LOGGER = Logger.getLogger(CachingDnsResolver.class.getName());
+
+  /**
+   * {@link Beta} <br/>
+   * Policy choosing the address of a host that a new connection is opened to.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public enum SpreadingPolicy {
+
+    /** Each new connection to a host goes to the next of its addresses in turn. */
+    ROUND_ROBIN,
+
+    /**
+     * Each new connection to a host goes to the address with the fewest connections opened by this
+     * resolver that are still open, ties being broken in round robin order.
+     */
+    LEAST_CONNECTIONS
+  }
+
+  /** Cached addresses of a host. */
+  private static final class Entry {
+
+    /** Resolved addresses. */
+    final InetAddress[] addresses;
+
+    /** Time in nanoseconds after which the addresses are resolved again before being returned. */
+    final long expiresNanos;
+
+    /** Time in nanoseconds after which the addresses are refreshed in the background. */
+    final long refreshNanos;
+
+    /** Round robin counter, carried over to the refreshed entries of the same host. */
+    final AtomicInteger next;
+
+    /** Whether a background refresh has been started. */
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(InetAddress[] addresses, long expiresNanos, long refreshNanos, AtomicInteger next) {
+      this.addresses = addresses;
+      this.expiresNanos = expiresNanos;
+      this.refreshNanos = refreshNanos;
+      this.next = next;
+    }
+  }
+
+  /** Underlying DNS resolver. */
+  private final DnsResolver delegate;
+
+  /** Time to live in nanoseconds of the cached addresses. */
+  private final long timeToLiveNanos;
+
+  /** Time in nanoseconds before the expiry of cached addresses when they are refreshed. */
+  private final long refreshAheadNanos;
+
+  /** Spreading policy. */
+  private final SpreadingPolicy spreadingPolicy;
+
+  /** Executor of the background refreshes. */
+  private final Executor executor;
+
+  /** Nano clock. */
+  private final NanoClock nanoClock;
+
+  /** Cached entries by lower case host name. */
+  private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+  /** Sockets opened by {@link #connect} by address, guarded by itself. */
+  private final Map<InetAddress, List<WeakReference<Socket>>> sockets =
+      new HashMap<InetAddress, List<WeakReference<Socket>>>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong refreshCount = new AtomicLong();
+  private final AtomicLong failureCount = new AtomicLong();
+  private final AtomicLong resolutionCount = new AtomicLong();
+  private final AtomicLong totalResolutionNanos = new AtomicLong();
+  private final AtomicLong maxResolutionNanos = new AtomicLong();
+
+  /** Constructor with the default behavior. */
+  public CachingDnsResolver() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  CachingDnsResolver(Builder builder) {
+    delegate = builder.delegate;
+    timeToLiveNanos = builder.timeToLive * 1000000L;
+    refreshAheadNanos = Math.min(builder.refreshAheadTime * 1000000L, timeToLiveNanos / 2);
+    spreadingPolicy = builder.spreadingPolicy;
+    executor = builder.executor == null ? DefaultExecutorHolder.EXECUTOR : builder.executor;
+    nanoClock = builder.nanoClock;
+  }
+
+  /** Returns the underlying DNS resolver. */
+  public DnsResolver getDelegate() {
+    return delegate;
+  }
+
+  /** Returns the time to live in milliseconds of the cached addresses. */
+  public long getTimeToLive() {
+    return timeToLiveNanos / 1000000L;
+  }
+
+  /** Returns the spreading policy. */
+  public SpreadingPolicy getSpreadingPolicy() {
+    return spreadingPolicy;
+  }
+
+  /**
+   * Returns the cached addresses of the host, resolving them with the underlying DNS resolver if
+   * they are not cached or expired.
+   */
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    return getEntry(host).addresses.clone();
+  }
+
+  /**
+   * Opens a socket to one of the addresses of the host chosen by the spreading policy, trying the
+   * other addresses in turn if the connection fails.
+   *
+   * @param host host name
+   * @param port port
+   * @param connectTimeout timeout in milliseconds to establish each connection or {@code 0} for an
+   *        infinite timeout
+   * @return connected socket
+   * @throws IOException if no connection could be established to any address of the host
+   */
+  public Socket connect(String host, int port, int connectTimeout) throws IOException {
+    Socket socket = connect(order(getEntry(host)), port, connectTimeout);
+    if (spreadingPolicy == SpreadingPolicy.LEAST_CONNECTIONS) {
+      // only the least connections policy needs the open sockets
+      InetAddress address = socket.getInetAddress();
+      synchronized (sockets) {
+        List<WeakReference<Socket>> addressSockets = sockets.get(address);
+        if (addressSockets == null) {
+          addressSockets = new ArrayList<WeakReference<Socket>>();
+          sockets.put(address, addressSockets);
+        } else {
+          countOpenConnections(address);
+        }
+        addressSockets.add(new WeakReference<Socket>(socket));
+      }
+    }
+    return socket;
+  }
+
+  /**
+   * Opens a socket to one of the addresses of the host returned by the given DNS resolver, using
+   * {@link #connect(String, int, int)} if it is a {@link CachingDnsResolver} and otherwise trying
+   * the addresses in the order they are returned.
+   *
+   * @param dnsResolver DNS resolver
+   * @param host host name
+   * @param port port
+   * @param connectTimeout timeout in milliseconds to establish each connection or {@code 0} for an
+   *        infinite timeout
+   * @return connected socket
+   * @throws IOException if no connection could be established to any address of the host
+   */
+  public static Socket connect(DnsResolver dnsResolver, String host, int port, int connectTimeout)
+      throws IOException {
+    if (dnsResolver instanceof CachingDnsResolver) {
+      return ((CachingDnsResolver) dnsResolver).connect(host, port, connectTimeout);
+    }
+    return connect(Arrays.asList(dnsResolver.resolve(host)), port, connectTimeout);
+  }
+
+  /**
+   * Opens a socket to the first of the given addresses a connection can be established to.
+   */
+  private static Socket connect(List<InetAddress> addresses, int port, int connectTimeout)
+      throws IOException {
+    IOException failure = null;
+    for (InetAddress address : addresses) {
+      Socket socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(address, port), connectTimeout);
+        return socket;
+      } catch (IOException e) {
+        try {
+          socket.close();
+        } catch (IOException closeException) {
+          // ignore
+        }
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  /** Removes all the cached addresses. */
+  public void clear() {
+    cache.clear();
+  }
+
+  /** Returns a snapshot of the statistics of the resolver. */
+  public Stats getStats() {
+    Map<String, Integer> openConnectionsByAddress = new HashMap<String, Integer>();
+    synchronized (sockets) {
+      for (Iterator<InetAddress> addresses = sockets.keySet().iterator(); addresses.hasNext();) {
+        InetAddress address = addresses.next();
+        int count = countOpenConnections(address);
+        if (count == 0) {
+          addresses.remove();
+        } else {
+          openConnectionsByAddress.put(address.getHostAddress(), count);
+        }
+      }
+    }
+    return new Stats(hitCount.get(), missCount.get(), refreshCount.get(), failureCount.get(),
+        resolutionCount.get(), totalResolutionNanos.get(), maxResolutionNanos.get(), cache.size(),
+        Collections.unmodifiableMap(openConnectionsByAddress));
+  }
+
+  /** Returns the unexpired entry of the host, starting a refresh if it is about to expire. */
+  private Entry getEntry(final String host) throws UnknownHostException {
+    final String key = host.toLowerCase(Locale.US);
+    final Entry entry = cache.get(key);
+    long now = nanoClock.nanoTime();
+    if (entry != null && now - entry.expiresNanos < 0) {
+      hitCount.incrementAndGet();
+      if (refreshAheadNanos > 0 && now - entry.refreshNanos >= 0
+          && entry.refreshing.compareAndSet(false, true)) {
+        try {
+          executor.execute(new Runnable() {
+            public void run() {
+              try {
+                store(key, lookup(host), entry.next);
+                refreshCount.incrementAndGet();
+              } catch (UnknownHostException e) {
+                // keep the cached addresses until they expire, and try again on the next hit
+                LOGGER.log(Level.FINE, "exception thrown while refreshing " + host, e);
+                entry.refreshing.set(false);
+              }
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          entry.refreshing.set(false);
+        }
+      }
+      return entry;
+    }
+    missCount.incrementAndGet();
+    return store(key, lookup(host), entry == null ? new AtomicInteger() : entry.next);
+  }
+
+  /** Caches the addresses of a host and returns the new entry. */
+  private Entry store(String key, InetAddress[] addresses, AtomicInteger next) {
+    long now = nanoClock.nanoTime();
+    long expiresNanos = now + timeToLiveNanos;
+    Entry entry = new Entry(addresses, expiresNanos, expiresNanos - refreshAheadNanos, next);
+    cache.put(key, entry);
+    return entry;
+  }
+
+  /** Resolves the host with the underlying DNS resolver, recording the resolution time. */
+  private InetAddress[] lookup(String host) throws UnknownHostException {
+    long start = nanoClock.nanoTime();
+    InetAddress[] addresses;
+    try {
+      addresses = delegate.resolve(host);
+      if (addresses == null || addresses.length == 0) {
+        throw new UnknownHostException(host);
+      }
+    } catch (UnknownHostException e) {
+      failureCount.incrementAndGet();
+      throw e;
+    } finally {
+      long elapsed = nanoClock.nanoTime() - start;
+      resolutionCount.incrementAndGet();
+      totalResolutionNanos.addAndGet(elapsed);
+      long max;
+      do {
+        max = maxResolutionNanos.get();
+      } while (elapsed > max && !maxResolutionNanos.compareAndSet(max, elapsed));
+    }
+    return addresses.clone();
+  }
+
+  /** Returns the addresses of the entry in the order connections should be attempted. */
+  private List<InetAddress> order(Entry entry) {
+    InetAddress[] addresses = entry.addresses;
+    int size = addresses.length;
+    int first = (entry.next.getAndIncrement() & Integer.MAX_VALUE) % size;
+    List<InetAddress> result = new ArrayList<InetAddress>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(addresses[(first + i) % size]);
+    }
+    if (spreadingPolicy == SpreadingPolicy.LEAST_CONNECTIONS && size > 1) {
+      final Map<InetAddress, Integer> counts = new HashMap<InetAddress, Integer>();
+      synchronized (sockets) {
+        for (InetAddress address : addresses) {
+          counts.put(address, countOpenConnections(address));
+        }
+      }
+      // stable sort, so that ties keep the round robin order
+      Collections.sort(result, new Comparator<InetAddress>() {
+        public int compare(InetAddress a, InetAddress b) {
+          return counts.get(a) - counts.get(b);
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of open sockets to the address, forgetting the closed ones. Must be called
+   * while holding the lock on {@link #sockets}.
+   */
+  private int countOpenConnections(InetAddress address) {
+    List<WeakReference<Socket>> addressSockets = sockets.get(address);
+    if (addressSockets == null) {
+      return 0;
+    }
+    for (Iterator<WeakReference<Socket>> iterator = addressSockets.iterator();
+        iterator.hasNext();) {
+      Socket socket = iterator.next().get();
+      if (socket == null || socket.isClosed()) {
+        iterator.remove();
+      }
+    }
+    return addressSockets.size();
+  }
+
+  /** Lazy holder of the default executor of the background refreshes. */
+  private static final class DefaultExecutorHolder {
+
+    static final Executor EXECUTOR = newDefaultExecutor();
+
+    private static Executor newDefaultExecutor() {
+      final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+      final AtomicInteger threadCount = new AtomicInteger();
+      return new ThreadPoolExecutor(0, 4, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+          new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+              Thread thread = threadFactory.newThread(runnable);
+              thread.setName("google-http-client-dns-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link CachingDnsResolver}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long refreshCount;
+    private final long failureCount;
+    private final long resolutionCount;
+    private final long totalResolutionNanos;
+    private final long maxResolutionNanos;
+    private final int cachedHostCount;
+    private final Map<String, Integer> openConnectionsByAddress;
+
+    Stats(long hitCount, long missCount, long refreshCount, long failureCount,
+        long resolutionCount, long totalResolutionNanos, long maxResolutionNanos,
+        int cachedHostCount, Map<String, Integer> openConnectionsByAddress) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.refreshCount = refreshCount;
+      this.failureCount = failureCount;
+      this.resolutionCount = resolutionCount;
+      this.totalResolutionNanos = totalResolutionNanos;
+      this.maxResolutionNanos = maxResolutionNanos;
+      this.cachedHostCount = cachedHostCount;
+      this.openConnectionsByAddress = openConnectionsByAddress;
+    }
+
+    /** Returns the number of lookups served from unexpired cached addresses. */
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of lookups that had to wait for the underlying DNS resolver. */
+    public long getMissCount() {
+      return missCount;
+    }
+
+    /** Returns the number of successful background refreshes. */
+    public long getRefreshCount() {
+      return refreshCount;
+    }
+
+    /** Returns the number of resolutions by the underlying DNS resolver that failed. */
+    public long getFailureCount() {
+      return failureCount;
+    }
+
+    /** Returns the number of resolutions by the underlying DNS resolver, including refreshes. */
+    public long getResolutionCount() {
+      return resolutionCount;
+    }
+
+    /** Returns the total time in nanoseconds spent in the underlying DNS resolver. */
+    public long getTotalResolutionNanos() {
+      return totalResolutionNanos;
+    }
+
+    /** Returns the average time in nanoseconds of a resolution or {@code 0} if none. */
+    public long getAverageResolutionNanos() {
+      return resolutionCount == 0 ? 0 : totalResolutionNanos / resolutionCount;
+    }
+
+    /** Returns the maximum time in nanoseconds of a resolution. */
+    public long getMaxResolutionNanos() {
+      return maxResolutionNanos;
+    }
+
+    /** Returns the number of cached hosts, including expired ones not yet looked up again. */
+    public int getCachedHostCount() {
+      return cachedHostCount;
+    }
+
+    /**
+     * Returns the number of open connections opened by the resolver by IP address, which are only
+     * tracked with the {@link SpreadingPolicy#LEAST_CONNECTIONS} policy.
+     */
+    public Map<String, Integer> getOpenConnectionsByAddress() {
+      return openConnectionsByAddress;
+    }
+
+    @Override
+    public String toString() {
+      return "[hits: " + hitCount + "; misses: " + missCount + "; refreshes: " + refreshCount
+          + "; failures: " + failureCount + "; average resolution ms: "
+          + getAverageResolutionNanos() / 1000000L + "; cached hosts: " + cachedHostCount + "]";
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link CachingDnsResolver}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Underlying DNS resolver. */
+    DnsResolver delegate = DnsResolver.SYSTEM;
+
+    /** Time to live in milliseconds of the cached addresses. */
+    long timeToLive = 60000;
+
+    /** Time in milliseconds before the expiry of cached addresses when they are refreshed. */
+    long refreshAheadTime = 10000;
+
+    /** Spreading policy. */
+    SpreadingPolicy spreadingPolicy = SpreadingPolicy.ROUND_ROBIN;
+
+    /** Executor of the background refreshes or {@code null} for the default. */
+    Executor executor;
+
+    /** Nano clock. */
+    NanoClock nanoClock = NanoClock.SYSTEM;
+
+    /**
+     * Sets the underlying DNS resolver.
+     *
+     * <p>
+     * Default value is {@link DnsResolver#SYSTEM}, whose results are also cached by the JVM
+     * according to the {@code networkaddress.cache.ttl} security property.
+     * </p>
+     */
+    public Builder setDelegate(DnsResolver delegate) {
+      this.delegate = Preconditions.checkNotNull(delegate);
+      return this;
+    }
+
+    /**
+     * Sets the time to live in milliseconds of the cached addresses.
+     *
+     * <p>
+     * Default value is {@code 60000}.
+     * </p>
+     */
+    public Builder setTimeToLive(long timeToLive) {
+      Preconditions.checkArgument(timeToLive > 0);
+      this.timeToLive = timeToLive;
+      return this;
+    }
+
+    /**
+     * Sets the time in milliseconds before the expiry of cached addresses when a lookup refreshes
+     * them in the background or {@code 0} to never refresh in the background.
+     *
+     * <p>
+     * Default value is {@code 10000}. It is capped to half the time to live.
+     * </p>
+     */
+    public Builder setRefreshAheadTime(long refreshAheadTime) {
+      Preconditions.checkArgument(refreshAheadTime >= 0);
+      this.refreshAheadTime = refreshAheadTime;
+      return this;
+    }
+
+    /**
+     * Sets the spreading policy.
+     *
+     * <p>
+     * Default value is {@link SpreadingPolicy#ROUND_ROBIN}.
+     * </p>
+     */
+    public Builder setSpreadingPolicy(SpreadingPolicy spreadingPolicy) {
+      this.spreadingPolicy = Preconditions.checkNotNull(spreadingPolicy);
+      return this;
+    }
+
+    /**
+     * Sets the executor of the background refreshes or {@code null} for the default executor
+     * shared by all resolvers, which has up to {@code 4} daemon threads.
+     */
+    public Builder setExecutor(Executor executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Sets the nano clock, which may be used for testing.
+     *
+     * <p>
+     * Default value is {@link NanoClock#SYSTEM}.
+     * </p>
+     */
+    public Builder setNanoClock(NanoClock nanoClock) {
+      this.nanoClock = Preconditions.checkNotNull(nanoClock);
+      return this;
+    }
+
+    /** Returns a new instance of {@link CachingDnsResolver} based on the options. */
+    public CachingDnsResolver build() {
+      return new CachingDnsResolver(this);
+    }
+  }
+}
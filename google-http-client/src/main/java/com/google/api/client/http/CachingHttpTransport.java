@@ -0,0 +1,1013 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.Clock;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * {@link Beta} <br/>
+ * HTTP transport which caches the responses of another transport as a private cache, following
+ * <a href="https://tools.ietf.org/html/rfc7234">RFC 7234</a>.
+ *
+ * <p>
+ * Responses to {@code GET} requests are cached when their status code is cacheable by default and
+ * they have either an explicit freshness lifetime ({@code "Cache-Control: max-age"} or
+ * {@code "Expires"}) or a validator ({@code "ETag"} or {@code "Last-Modified"}), unless they are
+ * marked {@code "no-store"}. Since a transport is typically shared by several principals, the
+ * response to a request with an {@code "Authorization"} header is only cached if it explicitly
+ * allows shared caching with {@code "public"}, {@code "s-maxage"} or {@code "must-revalidate"}
+ * (RFC 7234 section 3.2). A fresh response is served without any network I/O. A stale response
+ * is revalidated with {@code "If-None-Match"} or {@code "If-Modified-Since"}, and served again if
+ * the server answers {@code 304 Not Modified}. A successful request with an unsafe method such as
+ * {@code POST} invalidates the response cached for its URL.
+ * </p>
+ *
+ * <p>
+ * Responses are kept in memory in least recently used order, up to
+ * {@link Builder#setMaxMemoryBytes a maximum number of bytes}, and are optionally also persisted in
+ * a {@link DataStore} of {@link Builder#setDataStoreFactory a data store factory}, also in least
+ * recently used order up to {@link Builder#setMaxStoredBytes a maximum number of bytes}. A single
+ * response is cached per
+ * URL, which only matches the requests with the same values for the headers listed in its
+ * {@code "Vary"} header. Requests with a {@code "Cache-Control: no-store"} header, a
+ * {@code "Range"} header or their own conditional headers bypass the cache, while requests with a
+ * {@code "Cache-Control: no-cache"} header are always revalidated.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  CachingHttpTransport transport = new CachingHttpTransport.Builder(new NetHttpTransport())
+      .setDataStoreFactory(new FileDataStoreFactory(cacheDirectory))
+      .build();
+  HttpRequestFactory requestFactory = transport.createRequestFactory();
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class CachingHttpTransport extends HttpTransport {
+
+  /** ID of the data store of the persisted responses. */
+  public static final String DATA_STORE_ID = "HttpResponseCache";
+
+  /** Status codes of the responses which are cacheable by default (RFC 7231 section 6.1). */
+  private static final Set<Integer> CACHEABLE_STATUS_CODES = new HashSet<Integer>(
+      Arrays.asList(200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+  /** Maximum freshness lifetime in milliseconds computed heuristically from Last-Modified. */
+  private static final long MAX_HEURISTIC_LIFETIME_MILLIS = 24 * 60 * 60 * 1000L;
+
+  /** Cached transport. */
+  private final HttpTransport transport;
+
+  /** Maximum number of bytes of the responses kept in memory. */
+  private final long maxMemoryBytes;
+
+  /** Maximum number of bytes of the content of a cached response. */
+  private final long maxEntryBytes;
+
+  /** Data store of the persisted responses or {@code null} for none. */
+  private final DataStore<CacheEntry> dataStore;
+
+  /** Maximum number of bytes of the persisted responses. */
+  private final long maxStoredBytes;
+
+  /** Sizes of the persisted responses by URL in access order, guarded by {@code this}. */
+  private final LinkedHashMap<String, Long> storedSizes =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+  /** Number of bytes of the persisted responses, guarded by {@code this}. */
+  private long storedBytes;
+
+  /** Clock. */
+  private final Clock clock;
+
+  /** Responses kept in memory by URL in access order, guarded by {@code this}. */
+  private final LinkedHashMap<String, CacheEntry> memoryEntries =
+      new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+
+  /** Number of bytes of the responses kept in memory, guarded by {@code this}. */
+  private long memoryBytes;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong revalidationCount = new AtomicLong();
+
+  /**
+   * @param builder builder
+   */
+  CachingHttpTransport(Builder builder) throws IOException {
+    transport = builder.transport;
+    maxMemoryBytes = builder.maxMemoryBytes;
+    maxEntryBytes = builder.maxEntryBytes;
+    dataStore = builder.dataStoreFactory == null
+        ? null : builder.dataStoreFactory.<CacheEntry>getDataStore(DATA_STORE_ID);
+    maxStoredBytes = builder.maxStoredBytes;
+    clock = builder.clock;
+    if (dataStore != null) {
+      // index the responses persisted by a previous instance, evicting them if over the maximum
+      for (String url : dataStore.keySet()) {
+        CacheEntry entry = dataStore.get(url);
+        if (entry != null) {
+          storedSizes.put(url, entry.getSize());
+          storedBytes += entry.getSize();
+        }
+      }
+      for (String url : evictStored()) {
+        dataStore.delete(url);
+      }
+    }
+  }
+
+  /** Returns the cached transport. */
+  public HttpTransport getTransport() {
+    return transport;
+  }
+
+  @Override
+  public boolean supportsMethod(String method) throws IOException {
+    return transport.supportsMethod(method);
+  }
+
+  @Override
+  protected LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+    return new CachingRequest(method, url, transport.buildRequest(method, url));
+  }
+
+  @Override
+  public Executor getAsyncExecutor() {
+    return transport.getAsyncExecutor();
+  }
+
+  @Override
+  public ScheduledExecutorService getRetryScheduler() {
+    return transport.getRetryScheduler();
+  }
+
+  @Override
+  public void shutdown() throws IOException {
+    transport.shutdown();
+  }
+
+  /** Returns a snapshot of the statistics. */
+  public Stats getStats() {
+    int entryCount;
+    long bytes;
+    synchronized (this) {
+      entryCount = memoryEntries.size();
+      bytes = memoryBytes;
+    }
+    return new Stats(
+        hitCount.get(), missCount.get(), revalidationCount.get(), entryCount, bytes);
+  }
+
+  /** Returns the response cached for the given URL or {@code null} for none. */
+  private CacheEntry get(String url) {
+    synchronized (this) {
+      CacheEntry entry = memoryEntries.get(url);
+      if (entry != null || dataStore == null) {
+        return entry;
+      }
+    }
+    try {
+      CacheEntry entry = dataStore.get(url);
+      if (entry != null) {
+        putInMemory(url, entry);
+        synchronized (this) {
+          // access order
+          storedSizes.get(url);
+        }
+      }
+      return entry;
+    } catch (IOException e) {
+      HttpTransport.LOGGER.log(Level.WARNING, "exception thrown while reading cached response", e);
+      return null;
+    }
+  }
+
+  /** Caches the given response for the given URL. */
+  private void put(String url, CacheEntry entry) {
+    putInMemory(url, entry);
+    if (dataStore != null) {
+      boolean stored = entry.getSize() <= maxStoredBytes;
+      List<String> evicted;
+      synchronized (this) {
+        Long previous = storedSizes.remove(url);
+        if (previous != null) {
+          storedBytes -= previous;
+        }
+        if (stored) {
+          storedSizes.put(url, entry.getSize());
+          storedBytes += entry.getSize();
+        }
+        evicted = evictStored();
+      }
+      try {
+        if (stored) {
+          dataStore.set(url, entry);
+        } else {
+          dataStore.delete(url);
+        }
+        for (String evictedUrl : evicted) {
+          dataStore.delete(evictedUrl);
+        }
+      } catch (IOException e) {
+        HttpTransport.LOGGER.log(Level.WARNING, "exception thrown while caching response", e);
+      }
+    }
+  }
+
+  /**
+   * Evicts the least recently used persisted responses from the index until their size is within
+   * the maximum, and returns their URLs to delete from the data store.
+   */
+  private synchronized List<String> evictStored() {
+    List<String> evicted = new ArrayList<String>();
+    Iterator<Map.Entry<String, Long>> iterator = storedSizes.entrySet().iterator();
+    while (storedBytes > maxStoredBytes) {
+      Map.Entry<String, Long> eldest = iterator.next();
+      storedBytes -= eldest.getValue();
+      evicted.add(eldest.getKey());
+      iterator.remove();
+    }
+    return evicted;
+  }
+
+  /** Keeps the given response in memory, evicting the least recently used responses if needed. */
+  private synchronized void putInMemory(String url, CacheEntry entry) {
+    CacheEntry previous = memoryEntries.remove(url);
+    if (previous != null) {
+      memoryBytes -= previous.getSize();
+    }
+    if (entry.getSize() > maxMemoryBytes) {
+      return;
+    }
+    memoryEntries.put(url, entry);
+    memoryBytes += entry.getSize();
+    Iterator<CacheEntry> iterator = memoryEntries.values().iterator();
+    while (memoryBytes > maxMemoryBytes) {
+      memoryBytes -= iterator.next().getSize();
+      iterator.remove();
+    }
+  }
+
+  /** Removes the response cached for the given URL if any. */
+  private void remove(String url) {
+    synchronized (this) {
+      CacheEntry previous = memoryEntries.remove(url);
+      if (previous != null) {
+        memoryBytes -= previous.getSize();
+      }
+      Long previousSize = storedSizes.remove(url);
+      if (previousSize != null) {
+        storedBytes -= previousSize;
+      }
+    }
+    if (dataStore != null) {
+      try {
+        dataStore.delete(url);
+      } catch (IOException e) {
+        HttpTransport.LOGGER.log(Level.WARNING, "exception thrown while removing response", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the new cache entry for the given response and content, or {@code null} if the
+   * response is not cacheable.
+   *
+   * @param authorized whether the request has an {@code "Authorization"} header, in which case the
+   *        response must explicitly allow shared caching
+   */
+  static CacheEntry newEntry(LowLevelHttpResponse response, String contentType,
+      String contentEncoding, byte[] content, HashMap<String, String> varyHeaders,
+      boolean authorized, long requestTimeMillis, long responseTimeMillis) throws IOException {
+    HttpHeaders headers = new HttpHeaders();
+    headers.fromHttpResponse(response, null);
+    int statusCode = response.getStatusCode();
+    Map<String, String> directives = parseCacheControl(headers.getCacheControl());
+    String vary = headers.getFirstHeaderStringValue("Vary");
+    if (!CACHEABLE_STATUS_CODES.contains(statusCode) || directives.containsKey("no-store")
+        || vary != null && vary.trim().equals("*")) {
+      return null;
+    }
+    if (authorized && !directives.containsKey("public") && !directives.containsKey("s-maxage")
+        && !directives.containsKey("must-revalidate")) {
+      // may be specific to the principal (RFC 7234 section 3.2)
+      return null;
+    }
+    Date date = HttpHeaders.parseHttpDate(headers.getDate());
+    long dateMillis = date == null ? responseTimeMillis : date.getTime();
+    // freshness lifetime (RFC 7234 section 4.2.1)
+    long freshnessLifetimeMillis = 0;
+    Long maxAge = parseSeconds(directives.get("max-age"));
+    if (directives.containsKey("no-cache")) {
+      freshnessLifetimeMillis = 0;
+    } else if (maxAge != null) {
+      freshnessLifetimeMillis = maxAge * 1000;
+    } else if (headers.getExpires() != null) {
+      Date expires = HttpHeaders.parseHttpDate(headers.getExpires());
+      freshnessLifetimeMillis = expires == null ? 0 : expires.getTime() - dateMillis;
+    } else if (headers.getLastModified() != null) {
+      Date lastModified = HttpHeaders.parseHttpDate(headers.getLastModified());
+      if (lastModified != null) {
+        freshnessLifetimeMillis = Math.min(
+            MAX_HEURISTIC_LIFETIME_MILLIS, (dateMillis - lastModified.getTime()) / 10);
+      }
+    }
+    if (freshnessLifetimeMillis <= 0 && headers.getETag() == null
+        && headers.getLastModified() == null) {
+      // neither fresh nor revalidatable
+      return null;
+    }
+    // initial age (RFC 7234 section 4.2.3)
+    long apparentAgeMillis = Math.max(0, responseTimeMillis - dateMillis);
+    Long age = headers.getAge();
+    long correctedAgeMillis =
+        (age == null ? 0 : age * 1000) + (responseTimeMillis - requestTimeMillis);
+    ArrayList<String> headerNames = new ArrayList<String>();
+    ArrayList<String> headerValues = new ArrayList<String>();
+    int headerCount = response.getHeaderCount();
+    for (int i = 0; i < headerCount; i++) {
+      headerNames.add(response.getHeaderName(i));
+      headerValues.add(response.getHeaderValue(i));
+    }
+    return new CacheEntry(statusCode, response.getReasonPhrase(), response.getStatusLine(),
+        contentType, contentEncoding, headerNames, headerValues, content, varyHeaders,
+        responseTimeMillis, Math.max(apparentAgeMillis, correctedAgeMillis),
+        Math.max(0, freshnessLifetimeMillis), headers.getETag(), headers.getLastModified());
+  }
+
+  /**
+   * Parses the directives of the given {@code "Cache-Control"} header by lower-case name, with a
+   * {@code null} value for the directives without argument.
+   */
+  static Map<String, String> parseCacheControl(String cacheControl) {
+    Map<String, String> directives = new HashMap<String, String>();
+    if (cacheControl != null) {
+      for (String directive : cacheControl.split(",")) {
+        int equals = directive.indexOf('=');
+        String name = (equals == -1 ? directive : directive.substring(0, equals)).trim();
+        String value = null;
+        if (equals != -1) {
+          value = directive.substring(equals + 1).trim();
+          if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+          }
+        }
+        if (name.length() != 0) {
+          directives.put(name.toLowerCase(Locale.US), value);
+        }
+      }
+    }
+    return directives;
+  }
+
+  /** Parses the given number of seconds or returns {@code null} for none or if invalid. */
+  private static Long parseSeconds(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Response as cached, which is serializable to be persisted in a {@link DataStore}.
+   */
+  static final class CacheEntry implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    final int statusCode;
+    final String reasonPhrase;
+    final String statusLine;
+    final String contentType;
+    final String contentEncoding;
+    final ArrayList<String> headerNames;
+    final ArrayList<String> headerValues;
+    final byte[] content;
+
+    /** Values of the request headers listed in the {@code "Vary"} header by lower-case name. */
+    final HashMap<String, String> varyHeaders;
+
+    /** Time in milliseconds the response was received. */
+    final long responseTimeMillis;
+
+    /** Age in milliseconds of the response when it was received. */
+    final long initialAgeMillis;
+
+    /** Freshness lifetime in milliseconds. */
+    final long freshnessLifetimeMillis;
+
+    final String eTag;
+    final String lastModified;
+
+    CacheEntry(int statusCode, String reasonPhrase, String statusLine, String contentType,
+        String contentEncoding, ArrayList<String> headerNames, ArrayList<String> headerValues,
+        byte[] content, HashMap<String, String> varyHeaders, long responseTimeMillis,
+        long initialAgeMillis, long freshnessLifetimeMillis, String eTag, String lastModified) {
+      this.statusCode = statusCode;
+      this.reasonPhrase = reasonPhrase;
+      this.statusLine = statusLine;
+      this.contentType = contentType;
+      this.contentEncoding = contentEncoding;
+      this.headerNames = headerNames;
+      this.headerValues = headerValues;
+      this.content = content;
+      this.varyHeaders = varyHeaders;
+      this.responseTimeMillis = responseTimeMillis;
+      this.initialAgeMillis = initialAgeMillis;
+      this.freshnessLifetimeMillis = freshnessLifetimeMillis;
+      this.eTag = eTag;
+      this.lastModified = lastModified;
+    }
+
+    /** Returns the approximate number of bytes of memory of the entry. */
+    long getSize() {
+      long size = content.length;
+      for (int i = 0; i < headerNames.size(); i++) {
+        size += 2 * (headerNames.get(i).length() + headerValues.get(i).length());
+      }
+      return size;
+    }
+
+    /** Returns the current age in milliseconds of the response. */
+    long getAgeMillis(long nowMillis) {
+      return initialAgeMillis + Math.max(0, nowMillis - responseTimeMillis);
+    }
+
+    /** Returns the cached response with its current age. */
+    LowLevelHttpResponse toResponse(long nowMillis) {
+      ArrayList<String> names = new ArrayList<String>();
+      ArrayList<String> values = new ArrayList<String>();
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (!"Age".equalsIgnoreCase(headerNames.get(i))) {
+          names.add(headerNames.get(i));
+          values.add(headerValues.get(i));
+        }
+      }
+      names.add("Age");
+      values.add(String.valueOf(getAgeMillis(nowMillis) / 1000));
+      return new BufferedLowLevelHttpResponse(statusCode, reasonPhrase, statusLine, contentType,
+          contentEncoding, names, values, content);
+    }
+
+    /**
+     * Returns the response updated with the headers of the given {@code 304 Not Modified}
+     * response, except for the content headers.
+     */
+    LowLevelHttpResponse update(LowLevelHttpResponse notModified) throws IOException {
+      Set<String> updatedNames = new HashSet<String>();
+      ArrayList<String> names = new ArrayList<String>();
+      ArrayList<String> values = new ArrayList<String>();
+      int headerCount = notModified.getHeaderCount();
+      for (int i = 0; i < headerCount; i++) {
+        String name = notModified.getHeaderName(i);
+        if (name != null && !"Content-Length".equalsIgnoreCase(name)) {
+          updatedNames.add(name.toLowerCase(Locale.US));
+          names.add(name);
+          values.add(notModified.getHeaderValue(i));
+        }
+      }
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (!updatedNames.contains(headerNames.get(i).toLowerCase(Locale.US))) {
+          names.add(headerNames.get(i));
+          values.add(headerValues.get(i));
+        }
+      }
+      return new BufferedLowLevelHttpResponse(statusCode, reasonPhrase, statusLine, contentType,
+          contentEncoding, names, values, content);
+    }
+  }
+
+  /**
+   * Low-level HTTP response of the network whose content was partially read while trying to cache
+   * it.
+   */
+  private static final class UncachedResponse extends LowLevelHttpResponse {
+
+    private final LowLevelHttpResponse response;
+    private final InputStream content;
+
+    UncachedResponse(LowLevelHttpResponse response, InputStream content) {
+      this.response = response;
+      this.content = content;
+    }
+
+    @Override
+    public InputStream getContent() {
+      return content;
+    }
+
+    @Override
+    public String getContentEncoding() throws IOException {
+      return response.getContentEncoding();
+    }
+
+    @Override
+    public long getContentLength() throws IOException {
+      return response.getContentLength();
+    }
+
+    @Override
+    public String getContentType() throws IOException {
+      return response.getContentType();
+    }
+
+    @Override
+    public String getStatusLine() throws IOException {
+      return response.getStatusLine();
+    }
+
+    @Override
+    public int getStatusCode() throws IOException {
+      return response.getStatusCode();
+    }
+
+    @Override
+    public String getReasonPhrase() throws IOException {
+      return response.getReasonPhrase();
+    }
+
+    @Override
+    public int getHeaderCount() throws IOException {
+      return response.getHeaderCount();
+    }
+
+    @Override
+    public String getHeaderName(int index) throws IOException {
+      return response.getHeaderName(index);
+    }
+
+    @Override
+    public String getHeaderValue(int index) throws IOException {
+      return response.getHeaderValue(index);
+    }
+
+    @Override
+    public void disconnect() throws IOException {
+      response.disconnect();
+    }
+  }
+
+  /** Low-level HTTP request served from the cache or from the cached transport. */
+  private final class CachingRequest extends LowLevelHttpRequest {
+
+    private final String method;
+    private final String url;
+
+    /** Low-level HTTP request of the cached transport. */
+    private final LowLevelHttpRequest request;
+
+    private final List<String> headerNames = new ArrayList<String>();
+    private final List<String> headerValues = new ArrayList<String>();
+
+    /** Whether the response may be served from or stored in the cache. */
+    private boolean cacheable;
+
+    /** Cached response being revalidated or {@code null} for none. */
+    private CacheEntry revalidatedEntry;
+
+    /** Time in milliseconds the request was sent. */
+    private long requestTimeMillis;
+
+    CachingRequest(String method, String url, LowLevelHttpRequest request) {
+      this.method = method;
+      this.url = url;
+      this.request = request;
+    }
+
+    @Override
+    public void addHeader(String name, String value) throws IOException {
+      headerNames.add(name);
+      headerValues.add(value);
+      request.addHeader(name, value);
+    }
+
+    @Override
+    public void setTimeout(int connectTimeout, int readTimeout) throws IOException {
+      request.setTimeout(connectTimeout, readTimeout);
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() throws IOException {
+      LowLevelHttpResponse cachedResponse = prepare();
+      if (cachedResponse != null) {
+        return cachedResponse;
+      }
+      return complete(request.execute());
+    }
+
+    @Override
+    public void executeAsync(final LowLevelHttpResponseCallback callback) {
+      LowLevelHttpResponse cachedResponse;
+      try {
+        cachedResponse = prepare();
+      } catch (IOException e) {
+        callback.onFailure(e);
+        return;
+      }
+      if (cachedResponse != null) {
+        callback.onResponse(cachedResponse);
+        return;
+      }
+      request.executeAsync(new LowLevelHttpResponseCallback() {
+
+        public void onResponse(LowLevelHttpResponse response) {
+          LowLevelHttpResponse result;
+          try {
+            result = complete(response);
+          } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+          }
+          callback.onResponse(result);
+        }
+
+        public void onFailure(IOException exception) {
+          callback.onFailure(exception);
+        }
+      });
+    }
+
+    /** Returns the value of the given request header or {@code null} for none. */
+    private String getHeader(String name) {
+      StringBuilder value = null;
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (name.equalsIgnoreCase(headerNames.get(i))) {
+          if (value == null) {
+            value = new StringBuilder(headerValues.get(i));
+          } else {
+            value.append(", ").append(headerValues.get(i));
+          }
+        }
+      }
+      return value == null ? null : value.toString();
+    }
+
+    /**
+     * Returns the fresh response served from the cache, or prepares the low-level HTTP request of
+     * the cached transport and returns {@code null}.
+     */
+    private LowLevelHttpResponse prepare() throws IOException {
+      request.setContentType(getContentType());
+      request.setContentEncoding(getContentEncoding());
+      request.setContentLength(getContentLength());
+      request.setStreamingContent(getStreamingContent());
+      requestTimeMillis = clock.currentTimeMillis();
+      Map<String, String> directives = parseCacheControl(getHeader("Cache-Control"));
+      if (!HttpMethods.GET.equals(method) || directives.containsKey("no-store")
+          || getHeader("Range") != null || getHeader("If-None-Match") != null
+          || getHeader("If-Modified-Since") != null) {
+        return null;
+      }
+      cacheable = true;
+      CacheEntry entry = get(url);
+      if (entry == null || !matchesVaryHeaders(entry)) {
+        return null;
+      }
+      long ageMillis = entry.getAgeMillis(requestTimeMillis);
+      long freshnessLifetimeMillis = entry.freshnessLifetimeMillis;
+      Long maxAge = parseSeconds(directives.get("max-age"));
+      if (maxAge != null) {
+        freshnessLifetimeMillis = Math.min(freshnessLifetimeMillis, maxAge * 1000);
+      }
+      String pragma = getHeader("Pragma");
+      boolean noCache = directives.containsKey("no-cache")
+          || pragma != null && pragma.toLowerCase(Locale.US).contains("no-cache");
+      if (!noCache && ageMillis < freshnessLifetimeMillis) {
+        hitCount.incrementAndGet();
+        return entry.toResponse(requestTimeMillis);
+      }
+      if (entry.eTag != null) {
+        request.addHeader("If-None-Match", entry.eTag);
+      }
+      if (entry.lastModified != null) {
+        request.addHeader("If-Modified-Since", entry.lastModified);
+      }
+      if (entry.eTag != null || entry.lastModified != null) {
+        revalidatedEntry = entry;
+      }
+      return null;
+    }
+
+    /** Returns whether the request has the values of the headers the cached response varies on. */
+    private boolean matchesVaryHeaders(CacheEntry entry) {
+      for (Map.Entry<String, String> varyHeader : entry.varyHeaders.entrySet()) {
+        String value = getHeader(varyHeader.getKey());
+        if (value == null ? varyHeader.getValue() != null : !value.equals(varyHeader.getValue())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** Returns whether the request has an {@code "Authorization"} header. */
+    private boolean isAuthorized() {
+      return getHeader("Authorization") != null;
+    }
+
+    /** Processes the given response of the cached transport and returns the response to serve. */
+    private LowLevelHttpResponse complete(LowLevelHttpResponse response) throws IOException {
+      int statusCode = response.getStatusCode();
+      if (!cacheable) {
+        if (statusCode < 400 && !HttpMethods.GET.equals(method)
+            && !HttpMethods.HEAD.equals(method) && !HttpMethods.OPTIONS.equals(method)
+            && !HttpMethods.TRACE.equals(method)) {
+          // invalidated by an unsafe method (RFC 7234 section 4.4)
+          remove(url);
+        }
+        return response;
+      }
+      long responseTimeMillis = clock.currentTimeMillis();
+      if (statusCode == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED && revalidatedEntry != null) {
+        revalidationCount.incrementAndGet();
+        InputStream content = response.getContent();
+        if (content != null) {
+          content.close();
+        }
+        CacheEntry entry = newEntry(revalidatedEntry.update(response),
+            revalidatedEntry.contentType, revalidatedEntry.contentEncoding,
+            revalidatedEntry.content, revalidatedEntry.varyHeaders, isAuthorized(),
+            requestTimeMillis, responseTimeMillis);
+        if (entry == null) {
+          remove(url);
+          return revalidatedEntry.update(response);
+        }
+        put(url, entry);
+        return entry.toResponse(responseTimeMillis);
+      }
+      missCount.incrementAndGet();
+      if (response.getContentLength() > maxEntryBytes) {
+        remove(url);
+        return response;
+      }
+      // buffer the content, up to the maximum size of a cached response
+      byte[] bytes;
+      InputStream content = response.getContent();
+      if (content == null) {
+        bytes = new byte[0];
+      } else {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] tmp = BufferPool.getDefault().acquire();
+        try {
+          int read;
+          while (buffer.size() <= maxEntryBytes && (read = content.read(tmp)) != -1) {
+            buffer.write(tmp, 0, read);
+          }
+        } finally {
+          BufferPool.getDefault().release(tmp);
+        }
+        if (buffer.size() > maxEntryBytes) {
+          remove(url);
+          return new UncachedResponse(response,
+              new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), content));
+        }
+        content.close();
+        bytes = buffer.toByteArray();
+      }
+      HashMap<String, String> varyHeaders = new HashMap<String, String>();
+      int headerCount = response.getHeaderCount();
+      for (int i = 0; i < headerCount; i++) {
+        if ("Vary".equalsIgnoreCase(response.getHeaderName(i))) {
+          for (String name : response.getHeaderValue(i).split(",")) {
+            name = name.trim().toLowerCase(Locale.US);
+            if (name.length() != 0) {
+              varyHeaders.put(name, getHeader(name));
+            }
+          }
+        }
+      }
+      CacheEntry entry = newEntry(response, response.getContentType(),
+          response.getContentEncoding(), bytes, varyHeaders, isAuthorized(), requestTimeMillis,
+          responseTimeMillis);
+      if (entry == null) {
+        remove(url);
+        return new UncachedResponse(response, new ByteArrayInputStream(bytes));
+      }
+      put(url, entry);
+      return entry.toResponse(responseTimeMillis);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link CachingHttpTransport}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Cached transport. */
+    final HttpTransport transport;
+
+    /** Maximum number of bytes of the responses kept in memory. */
+    long maxMemoryBytes = 10 * 1024 * 1024;
+
+    /** Maximum number of bytes of the content of a cached response. */
+    long maxEntryBytes = 1024 * 1024;
+
+    /** Data store factory of the persisted responses or {@code null} for none. */
+    DataStoreFactory dataStoreFactory;
+
+    /** Maximum number of bytes of the persisted responses. */
+    long maxStoredBytes = 10 * 1024 * 1024;
+
+    /** Clock. */
+    Clock clock = Clock.SYSTEM;
+
+    /**
+     * @param transport transport whose responses are cached
+     */
+    public Builder(HttpTransport transport) {
+      this.transport = Preconditions.checkNotNull(transport);
+    }
+
+    /**
+     * Sets the maximum number of bytes of the responses kept in memory.
+     *
+     * <p>
+     * Default value is {@code 10} MiB.
+     * </p>
+     */
+    public Builder setMaxMemoryBytes(long maxMemoryBytes) {
+      Preconditions.checkArgument(maxMemoryBytes >= 0);
+      this.maxMemoryBytes = maxMemoryBytes;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes of the content of a cached response. Larger responses are
+     * not cached.
+     *
+     * <p>
+     * Default value is {@code 1} MiB.
+     * </p>
+     */
+    public Builder setMaxEntryBytes(long maxEntryBytes) {
+      Preconditions.checkArgument(maxEntryBytes >= 0);
+      this.maxEntryBytes = maxEntryBytes;
+      return this;
+    }
+
+    /**
+     * Sets the data store factory of the persisted responses or {@code null} to only keep the
+     * responses in memory.
+     *
+     * <p>
+     * The responses are persisted in its data store of ID
+     * {@link CachingHttpTransport#DATA_STORE_ID}, up to the
+     * {@link #setMaxStoredBytes maximum number of bytes of the persisted responses}. Note that
+     * {@link com.google.api.client.util.store.FileDataStoreFactory} keeps all of the values of a
+     * data store in memory and rewrites its whole file on every change. Default value is
+     * {@code null}.
+     * </p>
+     */
+    public Builder setDataStoreFactory(DataStoreFactory dataStoreFactory) {
+      this.dataStoreFactory = dataStoreFactory;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of bytes of the responses persisted in the data store, beyond which
+     * the least recently used responses are deleted from it.
+     *
+     * <p>
+     * Default value is {@code 10} MiB.
+     * </p>
+     */
+    public Builder setMaxStoredBytes(long maxStoredBytes) {
+      Preconditions.checkArgument(maxStoredBytes >= 0);
+      this.maxStoredBytes = maxStoredBytes;
+      return this;
+    }
+
+    /**
+     * Sets the clock.
+     *
+     * <p>
+     * Default value is {@link Clock#SYSTEM}.
+     * </p>
+     */
+    public Builder setClock(Clock clock) {
+      this.clock = Preconditions.checkNotNull(clock);
+      return this;
+    }
+
+    /** Returns a new instance of {@link CachingHttpTransport} based on the options. */
+    public CachingHttpTransport build() throws IOException {
+      return new CachingHttpTransport(this);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link CachingHttpTransport}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long revalidationCount;
+    private final int entryCount;
+    private final long memoryBytes;
+
+    Stats(long hitCount, long missCount, long revalidationCount, int entryCount,
+        long memoryBytes) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.revalidationCount = revalidationCount;
+      this.entryCount = entryCount;
+      this.memoryBytes = memoryBytes;
+    }
+
+    /** Returns the number of fresh responses served without network I/O. */
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    /** Returns the number of cacheable requests whose response came from the network. */
+    public long getMissCount() {
+      return missCount;
+    }
+
+    /** Returns the number of stale responses served again after a {@code 304 Not Modified}. */
+    public long getRevalidationCount() {
+      return revalidationCount;
+    }
+
+    /** Returns the number of responses kept in memory. */
+    public int getEntryCount() {
+      return entryCount;
+    }
+
+    /** Returns the approximate number of bytes of the responses kept in memory. */
+    public long getMemoryBytes() {
+      return memoryBytes;
+    }
+
+    @Override
+    public String toString() {
+      return "[hits: " + hitCount + "; misses: " + missCount + "; revalidations: "
+          + revalidationCount + "; entries: " + entryCount + "; bytes: " + memoryBytes + "]";
+    }
+  }
+}
@@ -0,0 +1,602 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Beta} <br/>
+ * Circuit breaker per host, which makes requests to a host that keeps failing fail immediately
+ * with a {@link CircuitBreakerOpenException} instead of waiting for every attempt and its back-off.
+ *
+ * <p>
+ * The circuit breaker is set with {@link HttpRequest#setCircuitBreaker} and is consulted before
+ * each attempt of a request is sent. The circuit of a host starts {@link State#CLOSED closed}: the
+ * outcomes of the last {@link Builder#setWindowSize window size} attempts are recorded, an attempt
+ * failing if it throws an {@link IOException} or receives a {@code 5xx} response, and being slow
+ * if it takes at least {@link Builder#setSlowCallDuration the slow call duration}. Once at least
+ * {@link Builder#setMinimumCalls the minimum number} of attempts have been recorded, the circuit
+ * {@link State#OPEN opens} if the rate of failed attempts reaches
+ * {@link Builder#setFailureRateThreshold the failure rate threshold} or the rate of slow attempts
+ * reaches {@link Builder#setSlowCallRateThreshold the slow call rate threshold}.
+ * </p>
+ *
+ * <p>
+ * An open circuit rejects all attempts for {@link Builder#setOpenDuration the open duration}, after
+ * which it becomes {@link State#HALF_OPEN half open} and lets
+ * {@link Builder#setHalfOpenCalls a number of trial attempts} through. The circuit closes once all
+ * of them succeeded, and opens again as soon as one of them fails or is slow. State transitions are
+ * notified to the {@link Builder#setListener listener} and the states are available with
+ * {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  final CircuitBreaker circuitBreaker = new CircuitBreaker.Builder()
+      .setFailureRateThreshold(0.5)
+      .setOpenDuration(10000)
+      .build();
+  HttpRequestFactory requestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
+    public void initialize(HttpRequest request) {
+      request.setCircuitBreaker(circuitBreaker);
+    }
+  });
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class CircuitBreaker {
+
+  private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+  /**
+   * {@link Beta} <br/>
+   * State of the circuit of a host.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public enum State {
+
+    /** Attempts are sent and their outcomes recorded. */
+    CLOSED,
+
+    /** Attempts are rejected. */
+    OPEN,
+
+    /** A limited number of trial attempts are sent. */
+    HALF_OPEN
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Listener notified of the state transitions of the circuits.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public interface Listener {
+
+    /**
+     * Called after the circuit of a host changed state, on the thread of the attempt that caused
+     * the transition.
+     *
+     * @param host lower case host name
+     * @param from previous state
+     * @param to new state
+     */
+    void onStateChange(String host, State from, State to);
+  }
+
+  /** Circuit of a host, guarded by itself. */
+  static final class HostCircuit {
+
+    /** Lower case host name. */
+    final String host;
+
+    /** State. */
+    State state = State.CLOSED;
+
+    /** Ring buffer of whether the recorded attempts failed. */
+    final boolean[] failures;
+
+    /** Ring buffer of whether the recorded attempts were slow. */
+    final boolean[] slowCalls;
+
+    /** Number of recorded attempts, up to the window size. */
+    int count;
+
+    /** Index in the ring buffers of the next recorded attempt. */
+    int next;
+
+    /** Number of failed attempts in the window. */
+    int failureCount;
+
+    /** Number of slow attempts in the window. */
+    int slowCount;
+
+    /** Time in nanoseconds when the circuit opened. */
+    long openedNanos;
+
+    /** Number of trial attempts in flight. */
+    int trialsInFlight;
+
+    /** Number of successful trial attempts since the circuit became half open. */
+    int trialSuccesses;
+
+    HostCircuit(String host, int windowSize) {
+      this.host = host;
+      failures = new boolean[windowSize];
+      slowCalls = new boolean[windowSize];
+    }
+
+    void record(boolean failure, boolean slow) {
+      if (count == failures.length) {
+        failureCount -= failures[next] ? 1 : 0;
+        slowCount -= slowCalls[next] ? 1 : 0;
+      } else {
+        count++;
+      }
+      failures[next] = failure;
+      slowCalls[next] = slow;
+      failureCount += failure ? 1 : 0;
+      slowCount += slow ? 1 : 0;
+      next = (next + 1) % failures.length;
+    }
+
+    void reset() {
+      count = 0;
+      next = 0;
+      failureCount = 0;
+      slowCount = 0;
+    }
+  }
+
+  /** Attempt let through by a circuit. */
+  final class Call {
+
+    /** Circuit of the host. */
+    private final HostCircuit circuit;
+
+    /** Whether this is a trial attempt of a half open circuit. */
+    private final boolean trial;
+
+    /** Time in nanoseconds when the attempt started. */
+    private final long startNanos = nanoClock.nanoTime();
+
+    /** Whether the outcome has been recorded. */
+    private boolean done;
+
+    Call(HostCircuit circuit, boolean trial) {
+      this.circuit = circuit;
+      this.trial = trial;
+    }
+
+    /**
+     * Records the outcome of the attempt, unless already recorded.
+     *
+     * @param statusCode status code of the response or {@code -1} if none was received
+     * @param exception I/O exception of the attempt or {@code null} for none
+     */
+    void record(int statusCode, IOException exception) {
+      if (done) {
+        return;
+      }
+      done = true;
+      boolean failure = exception != null || statusCode < 0 || statusCode >= 500;
+      boolean slow = nanoClock.nanoTime() - startNanos >= slowCallDurationNanos;
+      State from;
+      State to;
+      synchronized (circuit) {
+        from = circuit.state;
+        if (trial) {
+          circuit.trialsInFlight--;
+          if (circuit.state == State.HALF_OPEN) {
+            if (failure || slow) {
+              open(circuit);
+            } else if (++circuit.trialSuccesses >= halfOpenCalls) {
+              circuit.state = State.CLOSED;
+              circuit.reset();
+            }
+          }
+        } else if (circuit.state == State.CLOSED) {
+          circuit.record(failure, slow);
+          if (circuit.count >= minimumCalls
+              && (circuit.failureCount >= failureRateThreshold * circuit.count
+                  || circuit.slowCount >= slowCallRateThreshold * circuit.count)) {
+            open(circuit);
+          }
+        }
+        to = circuit.state;
+      }
+      notifyTransition(circuit.host, from, to);
+    }
+
+    /** Releases the attempt without recording an outcome, for an attempt that was not sent. */
+    void cancel() {
+      if (done) {
+        return;
+      }
+      done = true;
+      if (trial) {
+        synchronized (circuit) {
+          circuit.trialsInFlight--;
+        }
+      }
+    }
+  }
+
+  /** Number of recorded attempts per host. */
+  private final int windowSize;
+
+  /** Minimum number of recorded attempts before the circuit may open. */
+  private final int minimumCalls;
+
+  /** Rate of failed attempts that opens the circuit. */
+  private final double failureRateThreshold;
+
+  /** Rate of slow attempts that opens the circuit. */
+  private final double slowCallRateThreshold;
+
+  /** Duration in nanoseconds from which an attempt is slow. */
+  private final long slowCallDurationNanos;
+
+  /** Duration in nanoseconds a circuit stays open. */
+  private final long openDurationNanos;
+
+  /** Number of trial attempts of a half open circuit. */
+  private final int halfOpenCalls;
+
+  /** Listener or {@code null} for none. */
+  private final Listener listener;
+
+  /** Nano clock. */
+  private final NanoClock nanoClock;
+
+  /** Circuits by lower case host name. */
+  private final ConcurrentHashMap<String, HostCircuit> circuits =
+      new ConcurrentHashMap<String, HostCircuit>();
+
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong openedCount = new AtomicLong();
+
+  /** Constructor with the default behavior. */
+  public CircuitBreaker() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  CircuitBreaker(Builder builder) {
+    windowSize = builder.windowSize;
+    minimumCalls = Math.min(builder.minimumCalls, windowSize);
+    failureRateThreshold = builder.failureRateThreshold;
+    slowCallRateThreshold = builder.slowCallRateThreshold;
+    slowCallDurationNanos = builder.slowCallDuration * 1000000L;
+    openDurationNanos = builder.openDuration * 1000000L;
+    halfOpenCalls = builder.halfOpenCalls;
+    listener = builder.listener;
+    nanoClock = builder.nanoClock;
+  }
+
+  /** Returns the state of the circuit of the given host. */
+  public State getState(String host) {
+    HostCircuit circuit = getCircuit(host);
+    synchronized (circuit) {
+      return circuit.state;
+    }
+  }
+
+  /** Returns a snapshot of the statistics. */
+  public Stats getStats() {
+    Map<String, State> stateByHost = new HashMap<String, State>();
+    for (HostCircuit circuit : circuits.values()) {
+      synchronized (circuit) {
+        stateByHost.put(circuit.host, circuit.state);
+      }
+    }
+    return new Stats(rejectedCount.get(), openedCount.get(),
+        Collections.unmodifiableMap(stateByHost));
+  }
+
+  /**
+   * Lets an attempt to the given host through if its circuit allows it.
+   *
+   * @throws CircuitBreakerOpenException if the circuit rejects the attempt
+   */
+  Call acquire(String host) throws CircuitBreakerOpenException {
+    HostCircuit circuit = getCircuit(host);
+    boolean halfOpened = false;
+    Call call;
+    synchronized (circuit) {
+      if (circuit.state == State.OPEN) {
+        long remaining = openDurationNanos - (nanoClock.nanoTime() - circuit.openedNanos);
+        if (remaining > 0) {
+          rejectedCount.incrementAndGet();
+          throw new CircuitBreakerOpenException(circuit.host, (remaining + 999999) / 1000000L);
+        }
+        circuit.state = State.HALF_OPEN;
+        circuit.trialSuccesses = 0;
+        halfOpened = true;
+      }
+      if (circuit.state == State.HALF_OPEN) {
+        if (circuit.trialsInFlight + circuit.trialSuccesses >= halfOpenCalls) {
+          rejectedCount.incrementAndGet();
+          throw new CircuitBreakerOpenException(circuit.host, 0);
+        }
+        circuit.trialsInFlight++;
+        call = new Call(circuit, true);
+      } else {
+        call = new Call(circuit, false);
+      }
+    }
+    if (halfOpened) {
+      notifyTransition(circuit.host, State.OPEN, State.HALF_OPEN);
+    }
+    return call;
+  }
+
+  /** Opens the given circuit, while holding its lock. */
+  private void open(HostCircuit circuit) {
+    circuit.state = State.OPEN;
+    circuit.openedNanos = nanoClock.nanoTime();
+    circuit.reset();
+    openedCount.incrementAndGet();
+  }
+
+  private void notifyTransition(String host, State from, State to) {
+    if (from == to) {
+      return;
+    }
+    LOGGER.log(to == State.OPEN ? Level.WARNING : Level.INFO,
+        "circuit breaker of host " + host + " changed from " + from + " to " + to);
+    if (listener != null) {
+      listener.onStateChange(host, from, to);
+    }
+  }
+
+  private HostCircuit getCircuit(String host) {
+    String key = host.toLowerCase(Locale.US);
+    HostCircuit circuit = circuits.get(key);
+    if (circuit == null) {
+      HostCircuit newCircuit = new HostCircuit(key, windowSize);
+      circuit = circuits.putIfAbsent(key, newCircuit);
+      if (circuit == null) {
+        circuit = newCircuit;
+      }
+    }
+    return circuit;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link CircuitBreaker}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Number of recorded attempts per host. */
+    int windowSize = 100;
+
+    /** Minimum number of recorded attempts before the circuit may open. */
+    int minimumCalls = 20;
+
+    /** Rate of failed attempts that opens the circuit. */
+    double failureRateThreshold = 0.5;
+
+    /** Rate of slow attempts that opens the circuit. */
+    double slowCallRateThreshold = 1;
+
+    /** Duration in milliseconds from which an attempt is slow. */
+    long slowCallDuration = 60000;
+
+    /** Duration in milliseconds a circuit stays open. */
+    long openDuration = 30000;
+
+    /** Number of trial attempts of a half open circuit. */
+    int halfOpenCalls = 5;
+
+    /** Listener or {@code null} for none. */
+    Listener listener;
+
+    /** Nano clock. */
+    NanoClock nanoClock = NanoClock.SYSTEM;
+
+    /**
+     * Sets the number of most recent attempts to a host whose outcomes are recorded.
+     *
+     * <p>
+     * Default value is {@code 100}.
+     * </p>
+     */
+    public Builder setWindowSize(int windowSize) {
+      Preconditions.checkArgument(windowSize > 0);
+      this.windowSize = windowSize;
+      return this;
+    }
+
+    /**
+     * Sets the minimum number of recorded attempts to a host before its circuit may open, capped
+     * to the window size.
+     *
+     * <p>
+     * Default value is {@code 20}.
+     * </p>
+     */
+    public Builder setMinimumCalls(int minimumCalls) {
+      Preconditions.checkArgument(minimumCalls > 0);
+      this.minimumCalls = minimumCalls;
+      return this;
+    }
+
+    /**
+     * Sets the rate of failed attempts in the window, between {@code 0} exclusive and {@code 1}
+     * inclusive, that opens the circuit.
+     *
+     * <p>
+     * Default value is {@code 0.5}.
+     * </p>
+     */
+    public Builder setFailureRateThreshold(double failureRateThreshold) {
+      Preconditions.checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 1);
+      this.failureRateThreshold = failureRateThreshold;
+      return this;
+    }
+
+    /**
+     * Sets the rate of slow attempts in the window, between {@code 0} exclusive and {@code 1}
+     * inclusive, that opens the circuit.
+     *
+     * <p>
+     * Default value is {@code 1}.
+     * </p>
+     */
+    public Builder setSlowCallRateThreshold(double slowCallRateThreshold) {
+      Preconditions.checkArgument(slowCallRateThreshold > 0 && slowCallRateThreshold <= 1);
+      this.slowCallRateThreshold = slowCallRateThreshold;
+      return this;
+    }
+
+    /**
+     * Sets the duration in milliseconds from which an attempt is slow.
+     *
+     * <p>
+     * Default value is {@code 60000}.
+     * </p>
+     */
+    public Builder setSlowCallDuration(long slowCallDuration) {
+      Preconditions.checkArgument(slowCallDuration > 0);
+      this.slowCallDuration = slowCallDuration;
+      return this;
+    }
+
+    /**
+     * Sets the duration in milliseconds a circuit stays open before letting trial attempts through.
+     *
+     * <p>
+     * Default value is {@code 30000}.
+     * </p>
+     */
+    public Builder setOpenDuration(long openDuration) {
+      Preconditions.checkArgument(openDuration >= 0);
+      this.openDuration = openDuration;
+      return this;
+    }
+
+    /**
+     * Sets the number of trial attempts of a half open circuit that must succeed to close it.
+     *
+     * <p>
+     * Default value is {@code 5}.
+     * </p>
+     */
+    public Builder setHalfOpenCalls(int halfOpenCalls) {
+      Preconditions.checkArgument(halfOpenCalls > 0);
+      this.halfOpenCalls = halfOpenCalls;
+      return this;
+    }
+
+    /** Sets the listener notified of the state transitions or {@code null} for none. */
+    public Builder setListener(Listener listener) {
+      this.listener = listener;
+      return this;
+    }
+
+    /**
+     * Sets the nano clock.
+     *
+     * <p>
+     * Default value is {@link NanoClock#SYSTEM}.
+     * </p>
+     */
+    public Builder setNanoClock(NanoClock nanoClock) {
+      this.nanoClock = Preconditions.checkNotNull(nanoClock);
+      return this;
+    }
+
+    /** Returns a new instance of {@link CircuitBreaker} based on the options. */
+    public CircuitBreaker build() {
+      return new CircuitBreaker(this);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link CircuitBreaker}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long rejectedCount;
+    private final long openedCount;
+    private final Map<String, State> stateByHost;
+
+    Stats(long rejectedCount, long openedCount, Map<String, State> stateByHost) {
+      this.rejectedCount = rejectedCount;
+      this.openedCount = openedCount;
+      this.stateByHost = stateByHost;
+    }
+
+    /** Returns the number of attempts rejected with a {@link CircuitBreakerOpenException}. */
+    public long getRejectedCount() {
+      return rejectedCount;
+    }
+
+    /** Returns the number of times a circuit opened. */
+    public long getOpenedCount() {
+      return openedCount;
+    }
+
+    /** Returns an unmodifiable map of the state of the circuit by lower case host name. */
+    public Map<String, State> getStateByHost() {
+      return stateByHost;
+    }
+
+    @Override
+    public String toString() {
+      return "[rejected: " + rejectedCount + "; opened: " + openedCount + "; states: "
+          + stateByHost + "]";
+    }
+  }
+}
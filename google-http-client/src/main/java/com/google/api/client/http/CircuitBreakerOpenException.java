@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.io.IOException;
+
+/**
+ * {@link Beta} <br/>
+ * Exception thrown by {@link HttpRequest#execute()} when a request is not sent because the
+ * {@link CircuitBreaker} of its host is open.
+ *
+ * @since 1.23
+ */
+@Beta
+public class CircuitBreakerOpenException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Host of the rejected request. */
+  private final String host;
+
+  /** Time in milliseconds until the circuit lets a trial request through. */
+  private final long retryAfterMillis;
+
+  /**
+   * @param host host of the rejected request
+   * @param retryAfterMillis time in milliseconds until the circuit lets a trial request through
+   */
+  public CircuitBreakerOpenException(String host, long retryAfterMillis) {
+    super("circuit breaker open for host " + host);
+    this.host = host;
+    this.retryAfterMillis = retryAfterMillis;
+  }
+
+  /** Returns the host of the rejected request. */
+  public final String getHost() {
+    return host;
+  }
+
+  /**
+   * Returns the time in milliseconds until the circuit lets a trial request through, or {@code 0}
+   * if it already does but all trial requests are in flight.
+   */
+  public final long getRetryAfterMillis() {
+    return retryAfterMillis;
+  }
+}
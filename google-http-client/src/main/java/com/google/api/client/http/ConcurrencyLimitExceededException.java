@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.io.IOException;
+
+/**
+ * {@link Beta} <br/>
+ * Exception thrown by {@link HttpRequest#execute()} when a request is rejected by its
+ * {@link ConcurrencyLimiter} without being sent, because the limit of concurrent requests to the
+ * host has been reached and no slot became available in time.
+ *
+ * @since 1.23
+ */
+@Beta
+public class ConcurrencyLimitExceededException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Host of the rejected request. */
+  private final String host;
+
+  /** Concurrency limit of the host when the request was rejected. */
+  private final int limit;
+
+  /**
+   * @param host host of the rejected request
+   * @param limit concurrency limit of the host when the request was rejected
+   */
+  public ConcurrencyLimitExceededException(String host, int limit) {
+    super("concurrency limit of " + limit + " exceeded for host " + host);
+    this.host = host;
+    this.limit = limit;
+  }
+
+  /** Returns the host of the rejected request. */
+  public final String getHost() {
+    return host;
+  }
+
+  /** Returns the concurrency limit of the host when the request was rejected. */
+  public final int getLimit() {
+    return limit;
+  }
+}
@@ -0,0 +1,533 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Beta} <br/>
+ * Adaptive limit of the number of concurrent requests to each host, which adjusts to the observed
+ * latencies and overload responses so that callers back off when a server saturates instead of
+ * piling more requests into its queues.
+ *
+ * <p>
+ * The limiter is installed with {@link HttpRequestFactory#withConcurrencyLimiter} or
+ * {@link HttpRequest#setConcurrencyLimiter}. Each attempt of a request takes a slot of the host
+ * before it is sent and gives it back once the response status is received. When all slots of the
+ * host are taken, the request waits in a queue of {@link Builder#setMaxQueueSize bounded size} for
+ * up to {@link Builder#setMaxQueueTime a maximum time}, and otherwise fails with a
+ * {@link ConcurrencyLimitExceededException}. A maximum queue size of {@code 0} makes requests
+ * fail fast. Attempts of {@link HttpRequest#executeAsync(HttpResponseCallback) asynchronous}
+ * requests always fail fast, since they would otherwise block a thread of the shared executor or
+ * of the transport.
+ * </p>
+ *
+ * <p>
+ * The limit of each host starts at {@link Builder#setInitialLimit} and is adjusted after each
+ * response by the {@link Algorithm}. A {@code 429} or {@code 503} response or a socket timeout is
+ * an overload signal that multiplies the limit by {@link Builder#setBackoffRatio}. The limit is
+ * only increased while at least half of the slots are in use. The current limit and the number of
+ * requests in flight of each host are available with {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class ConcurrencyLimiter {
+
+  /**
+   * {@link Beta} <br/>
+   * Algorithm adjusting the limit of a host after each response.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public enum Algorithm {
+
+    /**
+     * Additive increase, multiplicative decrease: the limit grows by one after each response
+     * without overload signal and shrinks by the backoff ratio after each overload signal.
+     */
+    AIMD,
+
+    /**
+     * Gradient of the latency, similar to TCP Vegas: the limit shrinks as the latency of the
+     * responses grows beyond the long term average latency of the host, before the server starts
+     * rejecting requests, and grows by the square root of the limit while the latency is stable.
+     */
+    GRADIENT
+  }
+
+  /** Tolerated ratio of the latency of a response to the long term average latency. */
+  private static final double GRADIENT_TOLERANCE = 1.5;
+
+  /** Weight of a new latency in the long term average latency. */
+  private static final double LONG_RTT_WEIGHT = 0.01;
+
+  /** Weight of a new limit computed by the gradient algorithm in the limit. */
+  private static final double GRADIENT_SMOOTHING = 0.2;
+
+  /** Concurrency state of a host, guarded by itself. */
+  static final class HostLimit {
+
+    /** Lower case host name. */
+    final String host;
+
+    /** Current limit, whose integer part is the number of slots. */
+    double limit;
+
+    /** Number of requests in flight. */
+    int inFlight;
+
+    /** Number of requests waiting for a slot. */
+    int queued;
+
+    /** Long term average latency in nanoseconds or {@code 0} for none yet. */
+    double longRttNanos;
+
+    HostLimit(String host, double limit) {
+      this.host = host;
+      this.limit = limit;
+    }
+
+    int getSlots() {
+      return (int) limit;
+    }
+  }
+
+  /** Slot taken by a request in flight. */
+  final class Permit {
+
+    /** Host of the request. */
+    private final HostLimit hostLimit;
+
+    /** Time in nanoseconds when the slot was taken. */
+    private final long startNanos = System.nanoTime();
+
+    /** Whether the slot has been given back. */
+    private boolean released;
+
+    Permit(HostLimit hostLimit) {
+      this.hostLimit = hostLimit;
+    }
+
+    /**
+     * Gives back the slot, adjusting the limit of the host to the response if any, unless it has
+     * already been given back.
+     *
+     * @param statusCode status code of the response or {@code -1} if none was received
+     * @param exception I/O exception of the request or {@code null} for none
+     */
+    void release(int statusCode, IOException exception) {
+      if (released) {
+        return;
+      }
+      released = true;
+      boolean dropped = statusCode == HttpStatusCodes.STATUS_CODE_TOO_MANY_REQUESTS
+          || statusCode == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE
+          || exception instanceof SocketTimeoutException;
+      synchronized (hostLimit) {
+        if (statusCode >= 0 || dropped) {
+          update(hostLimit, System.nanoTime() - startNanos, dropped);
+        }
+        hostLimit.inFlight--;
+        hostLimit.notifyAll();
+      }
+    }
+  }
+
+  /** Algorithm adjusting the limits. */
+  private final Algorithm algorithm;
+
+  /** Initial limit of a host. */
+  private final int initialLimit;
+
+  /** Minimum limit of a host. */
+  private final int minLimit;
+
+  /** Maximum limit of a host. */
+  private final int maxLimit;
+
+  /** Ratio the limit of a host is multiplied by on an overload signal. */
+  private final double backoffRatio;
+
+  /** Maximum number of requests waiting for a slot of a host. */
+  private final int maxQueueSize;
+
+  /** Maximum time in nanoseconds a request waits for a slot. */
+  private final long maxQueueTimeNanos;
+
+  /** Concurrency state by lower case host name. */
+  private final ConcurrentHashMap<String, HostLimit> hostLimits =
+      new ConcurrentHashMap<String, HostLimit>();
+
+  private final AtomicLong queuedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /** Constructor with the default behavior. */
+  public ConcurrencyLimiter() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  ConcurrencyLimiter(Builder builder) {
+    algorithm = builder.algorithm;
+    minLimit = builder.minLimit;
+    maxLimit = Math.max(builder.maxLimit, minLimit);
+    initialLimit = Math.min(Math.max(builder.initialLimit, minLimit), maxLimit);
+    backoffRatio = builder.backoffRatio;
+    maxQueueSize = builder.maxQueueSize;
+    maxQueueTimeNanos = builder.maxQueueTime * 1000000L;
+  }
+
+  /** Returns the algorithm adjusting the limits. */
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  /** Returns the current limit of concurrent requests to the given host. */
+  public int getLimit(String host) {
+    HostLimit hostLimit = getHostLimit(host);
+    synchronized (hostLimit) {
+      return hostLimit.getSlots();
+    }
+  }
+
+  /** Returns the number of requests in flight to the given host. */
+  public int getInFlight(String host) {
+    HostLimit hostLimit = getHostLimit(host);
+    synchronized (hostLimit) {
+      return hostLimit.inFlight;
+    }
+  }
+
+  /** Returns a snapshot of the statistics. */
+  public Stats getStats() {
+    Map<String, Integer> limitByHost = new HashMap<String, Integer>();
+    Map<String, Integer> inFlightByHost = new HashMap<String, Integer>();
+    for (HostLimit hostLimit : hostLimits.values()) {
+      synchronized (hostLimit) {
+        limitByHost.put(hostLimit.host, hostLimit.getSlots());
+        inFlightByHost.put(hostLimit.host, hostLimit.inFlight);
+      }
+    }
+    return new Stats(queuedCount.get(), rejectedCount.get(), droppedCount.get(),
+        Collections.unmodifiableMap(limitByHost), Collections.unmodifiableMap(inFlightByHost));
+  }
+
+  /**
+   * Takes a slot of the given host, waiting for one if required.
+   *
+   * @throws ConcurrencyLimitExceededException if no slot became available
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  Permit acquire(String host) throws IOException {
+    return acquire(host, true);
+  }
+
+  /**
+   * Takes a slot of the given host, optionally waiting for one if required.
+   *
+   * @param host host
+   * @param wait whether to wait in the queue of the host if all of its slots are taken, or to fail
+   *        immediately
+   * @throws ConcurrencyLimitExceededException if no slot became available
+   * @throws InterruptedIOException if interrupted while waiting
+   */
+  Permit acquire(String host, boolean wait) throws IOException {
+    HostLimit hostLimit = getHostLimit(host);
+    synchronized (hostLimit) {
+      if (hostLimit.inFlight >= hostLimit.getSlots()) {
+        if (!wait || hostLimit.queued >= maxQueueSize) {
+          throw reject(hostLimit);
+        }
+        queuedCount.incrementAndGet();
+        hostLimit.queued++;
+        try {
+          long deadline = System.nanoTime() + maxQueueTimeNanos;
+          while (hostLimit.inFlight >= hostLimit.getSlots()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+              throw reject(hostLimit);
+            }
+            TimeUnit.NANOSECONDS.timedWait(hostLimit, remaining);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while waiting for a slot of " + host);
+        } finally {
+          hostLimit.queued--;
+        }
+      }
+      hostLimit.inFlight++;
+    }
+    return new Permit(hostLimit);
+  }
+
+  private ConcurrencyLimitExceededException reject(HostLimit hostLimit) {
+    rejectedCount.incrementAndGet();
+    return new ConcurrencyLimitExceededException(hostLimit.host, hostLimit.getSlots());
+  }
+
+  /**
+   * Adjusts the limit of a host after a response, while holding its lock.
+   *
+   * @param hostLimit concurrency state of the host
+   * @param rttNanos latency in nanoseconds of the response
+   * @param dropped whether the response is an overload signal
+   */
+  void update(HostLimit hostLimit, long rttNanos, boolean dropped) {
+    double limit = hostLimit.limit;
+    boolean saturated = 2 * hostLimit.inFlight >= limit;
+    if (dropped) {
+      droppedCount.incrementAndGet();
+      limit *= backoffRatio;
+    } else if (algorithm == Algorithm.AIMD) {
+      if (saturated) {
+        limit += 1;
+      }
+    } else {
+      double longRtt = hostLimit.longRttNanos == 0
+          ? rttNanos : hostLimit.longRttNanos * (1 - LONG_RTT_WEIGHT) + rttNanos * LONG_RTT_WEIGHT;
+      hostLimit.longRttNanos = longRtt;
+      double gradient =
+          Math.max(0.5, Math.min(1.0, GRADIENT_TOLERANCE * longRtt / Math.max(1, rttNanos)));
+      double newLimit = limit * gradient + Math.sqrt(limit);
+      if (newLimit < limit || saturated) {
+        limit = limit * (1 - GRADIENT_SMOOTHING) + newLimit * GRADIENT_SMOOTHING;
+      }
+    }
+    hostLimit.limit = Math.min(maxLimit, Math.max(minLimit, limit));
+  }
+
+  HostLimit getHostLimit(String host) {
+    String key = host.toLowerCase(Locale.US);
+    HostLimit hostLimit = hostLimits.get(key);
+    if (hostLimit == null) {
+      HostLimit newHostLimit = new HostLimit(key, initialLimit);
+      hostLimit = hostLimits.putIfAbsent(key, newHostLimit);
+      if (hostLimit == null) {
+        hostLimit = newHostLimit;
+      }
+    }
+    return hostLimit;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link ConcurrencyLimiter}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Algorithm adjusting the limits. */
+    Algorithm algorithm = Algorithm.AIMD;
+
+    /** Initial limit of a host. */
+    int initialLimit = 20;
+
+    /** Minimum limit of a host. */
+    int minLimit = 1;
+
+    /** Maximum limit of a host. */
+    int maxLimit = 200;
+
+    /** Ratio the limit of a host is multiplied by on an overload signal. */
+    double backoffRatio = 0.9;
+
+    /** Maximum number of requests waiting for a slot of a host. */
+    int maxQueueSize = 100;
+
+    /** Maximum time in milliseconds a request waits for a slot. */
+    long maxQueueTime = 5000;
+
+    /**
+     * Sets the algorithm adjusting the limits.
+     *
+     * <p>
+     * Default value is {@link Algorithm#AIMD}.
+     * </p>
+     */
+    public Builder setAlgorithm(Algorithm algorithm) {
+      this.algorithm = Preconditions.checkNotNull(algorithm);
+      return this;
+    }
+
+    /**
+     * Sets the initial limit of concurrent requests to a host.
+     *
+     * <p>
+     * Default value is {@code 20}.
+     * </p>
+     */
+    public Builder setInitialLimit(int initialLimit) {
+      Preconditions.checkArgument(initialLimit > 0);
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /**
+     * Sets the minimum limit of concurrent requests to a host.
+     *
+     * <p>
+     * Default value is {@code 1}.
+     * </p>
+     */
+    public Builder setMinLimit(int minLimit) {
+      Preconditions.checkArgument(minLimit > 0);
+      this.minLimit = minLimit;
+      return this;
+    }
+
+    /**
+     * Sets the maximum limit of concurrent requests to a host.
+     *
+     * <p>
+     * Default value is {@code 200}.
+     * </p>
+     */
+    public Builder setMaxLimit(int maxLimit) {
+      Preconditions.checkArgument(maxLimit > 0);
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /**
+     * Sets the ratio, between {@code 0} and {@code 1} exclusive, the limit of a host is multiplied
+     * by on an overload signal.
+     *
+     * <p>
+     * Default value is {@code 0.9}.
+     * </p>
+     */
+    public Builder setBackoffRatio(double backoffRatio) {
+      Preconditions.checkArgument(backoffRatio > 0 && backoffRatio < 1);
+      this.backoffRatio = backoffRatio;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of requests waiting for a slot of a host or {@code 0} to fail fast.
+     *
+     * <p>
+     * Default value is {@code 100}.
+     * </p>
+     */
+    public Builder setMaxQueueSize(int maxQueueSize) {
+      Preconditions.checkArgument(maxQueueSize >= 0);
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum time in milliseconds a request waits for a slot of a host.
+     *
+     * <p>
+     * Default value is {@code 5000}.
+     * </p>
+     */
+    public Builder setMaxQueueTime(long maxQueueTime) {
+      Preconditions.checkArgument(maxQueueTime >= 0);
+      this.maxQueueTime = maxQueueTime;
+      return this;
+    }
+
+    /** Returns a new instance of {@link ConcurrencyLimiter} based on the options. */
+    public ConcurrencyLimiter build() {
+      return new ConcurrencyLimiter(this);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link ConcurrencyLimiter}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long queuedCount;
+    private final long rejectedCount;
+    private final long droppedCount;
+    private final Map<String, Integer> limitByHost;
+    private final Map<String, Integer> inFlightByHost;
+
+    Stats(long queuedCount, long rejectedCount, long droppedCount,
+        Map<String, Integer> limitByHost, Map<String, Integer> inFlightByHost) {
+      this.queuedCount = queuedCount;
+      this.rejectedCount = rejectedCount;
+      this.droppedCount = droppedCount;
+      this.limitByHost = limitByHost;
+      this.inFlightByHost = inFlightByHost;
+    }
+
+    /** Returns the number of requests that waited for a slot. */
+    public long getQueuedCount() {
+      return queuedCount;
+    }
+
+    /** Returns the number of requests rejected with a {@link ConcurrencyLimitExceededException}. */
+    public long getRejectedCount() {
+      return rejectedCount;
+    }
+
+    /** Returns the number of overload signals that decreased a limit. */
+    public long getDroppedCount() {
+      return droppedCount;
+    }
+
+    /** Returns an unmodifiable map of the current limit by lower case host name. */
+    public Map<String, Integer> getLimitByHost() {
+      return limitByHost;
+    }
+
+    /** Returns an unmodifiable map of the number of requests in flight by lower case host name. */
+    public Map<String, Integer> getInFlightByHost() {
+      return inFlightByHost;
+    }
+
+    @Override
+    public String toString() {
+      return "[queued: " + queuedCount + "; rejected: " + rejectedCount + "; dropped: "
+          + droppedCount + "; limits: " + limitByHost + "; in flight: " + inFlightByHost + "]";
+    }
+  }
+}
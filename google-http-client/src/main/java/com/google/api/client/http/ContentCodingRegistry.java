@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link Beta} <br/>
+ * Registry of the HTTP content codings, shared between request encoding and response decoding.
+ *
+ * <p>
+ * The registry of a request, which defaults to {@link #getDefault()}, decodes the content of the
+ * response according to its {@code "Content-Encoding"} header, and unless the
+ * {@code "Accept-Encoding"} header of the request has been changed from its default value, it is
+ * replaced by the names of all of the registered decodings, so that servers may compress any
+ * response the client is able to decode. The default registry has {@link GZipEncoding} and
+ * {@link DeflateEncoding}, and further codings may be registered, for example:
+ * </p>
+ *
+ * <pre>
+  ContentCodingRegistry.getDefault().registerDecoding(new BrotliDecoding());
+ * </pre>
+ *
+ * <p>
+ * Coding names are case-insensitive, and {@code "x-gzip"} is considered equivalent to
+ * {@code "gzip"} as required by RFC 7230.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe. The registered encodings and decodings are shared by all of the
+ * requests, and so must be thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class ContentCodingRegistry {
+
+  /** Default registry. */
+  private static final ContentCodingRegistry DEFAULT = new ContentCodingRegistry();
+
+  static {
+    GZipEncoding gzip = new GZipEncoding();
+    DeflateEncoding deflate = new DeflateEncoding();
+    DEFAULT.registerEncoding(gzip).registerDecoding(gzip);
+    DEFAULT.registerEncoding(deflate).registerDecoding(deflate);
+  }
+
+  /** Encodings by lower-case name, guarded by {@code this}. */
+  private final Map<String, HttpEncoding> encodings = new LinkedHashMap<String, HttpEncoding>();
+
+  /** Decodings by lower-case name in registration order, guarded by {@code this}. */
+  private final Map<String, HttpDecoding> decodings = new LinkedHashMap<String, HttpDecoding>();
+
+  /** {@code "Accept-Encoding"} header value or {@code null} if not computed yet. */
+  private volatile String acceptEncoding;
+
+  /** Returns the default registry, which is shared by all of the requests by default. */
+  public static ContentCodingRegistry getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Registers the given encoding, replacing any encoding registered with the same name.
+   *
+   * @return this registry
+   */
+  public ContentCodingRegistry registerEncoding(HttpEncoding encoding) {
+    String name = normalize(Preconditions.checkNotNull(encoding.getName()));
+    synchronized (this) {
+      encodings.put(name, encoding);
+    }
+    return this;
+  }
+
+  /**
+   * Registers the given decoding, replacing any decoding registered with the same name.
+   *
+   * @return this registry
+   */
+  public ContentCodingRegistry registerDecoding(HttpDecoding decoding) {
+    String name = normalize(Preconditions.checkNotNull(decoding.getName()));
+    synchronized (this) {
+      decodings.put(name, decoding);
+      acceptEncoding = null;
+    }
+    return this;
+  }
+
+  /** Returns the encoding registered with the given name or {@code null} for none. */
+  public synchronized HttpEncoding getEncoding(String name) {
+    return encodings.get(normalize(name));
+  }
+
+  /** Returns the decoding registered with the given name or {@code null} for none. */
+  public synchronized HttpDecoding getDecoding(String name) {
+    return decodings.get(normalize(name));
+  }
+
+  /**
+   * Returns the {@code "Accept-Encoding"} header value listing all of the registered decodings, or
+   * {@code "identity"} if there are none.
+   */
+  public String getAcceptEncoding() {
+    String result = acceptEncoding;
+    if (result == null) {
+      synchronized (this) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : decodings.keySet()) {
+          if (builder.length() != 0) {
+            builder.append(", ");
+          }
+          builder.append(name);
+        }
+        result = builder.length() == 0 ? "identity" : builder.toString();
+        acceptEncoding = result;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns an input stream which decodes the given content according to the given
+   * {@code "Content-Encoding"} header value.
+   *
+   * <p>
+   * Codings are listed in the order in which they were applied, and so are decoded in reverse
+   * order. Decoding stops at the first coding which is not registered, in which case the content
+   * is returned as decoded so far.
+   * </p>
+   */
+  InputStream decode(String contentEncoding, InputStream content) throws IOException {
+    if (contentEncoding == null) {
+      return content;
+    }
+    String[] codings = contentEncoding.split(",");
+    for (int i = codings.length - 1; i >= 0; i--) {
+      String name = codings[i].trim();
+      if (name.length() == 0 || name.equalsIgnoreCase("identity")) {
+        continue;
+      }
+      HttpDecoding decoding = getDecoding(name);
+      if (decoding == null) {
+        break;
+      }
+      content = decoding.decode(content);
+    }
+    return content;
+  }
+
+  /** Returns the normalized name of the given coding. */
+  private static String normalize(String name) {
+    String result = name.trim().toLowerCase(Locale.US);
+    if (result.equals("x-gzip")) {
+      return "gzip";
+    }
+    if (result.equals("x-compress")) {
+      return "compress";
+    }
+    return result;
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * {@link Beta} <br/>
+ * Deflate HTTP content coding, that is the zlib format of RFC 1950.
+ *
+ * <p>
+ * Some servers send raw deflate data without the zlib wrapper for this coding, so
+ * {@link #decode(InputStream)} accepts both formats.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public class DeflateEncoding implements HttpEncoding, HttpDecoding {
+
+  public String getName() {
+    return "deflate";
+  }
+
+  public void encode(StreamingContent content, OutputStream out) throws IOException {
+    // must not close the underlying output stream
+    OutputStream out2 = new BufferedOutputStream(out) {
+      @Override
+      public void close() throws IOException {
+        try {
+          flush();
+        } catch (IOException ignored) {
+        }
+      }
+    };
+    DeflaterOutputStream deflater = new DeflaterOutputStream(out2);
+    content.writeTo(deflater);
+    // close rather than finish in order to release the native memory of the deflater
+    deflater.close();
+  }
+
+  public InputStream decode(InputStream content) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(content, 2);
+    int first = pushback.read();
+    if (first == -1) {
+      return pushback;
+    }
+    int second = pushback.read();
+    if (second != -1) {
+      pushback.unread(second);
+    }
+    pushback.unread(first);
+    final Inflater inflater = new Inflater(!isZlibHeader(first, second));
+    return new InflaterInputStream(pushback, inflater) {
+      @Override
+      public void close() throws IOException {
+        // the stream only releases the native memory of inflaters it created itself
+        try {
+          super.close();
+        } finally {
+          inflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Returns whether the given first two bytes of the content are a zlib header, whose compression
+   * method is deflate and whose check bits make the header a multiple of 31.
+   */
+  static boolean isZlibHeader(int first, int second) {
+    return second != -1 && (first & 0x0f) == 8 && ((first << 8) | second) % 31 == 0;
+  }
+}
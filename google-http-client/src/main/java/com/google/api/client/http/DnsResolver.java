@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * {@link Beta} <br/>
+ * Resolves host names to IP addresses.
+ *
+ * <p>
+ * The default system implementation can be accessed at {@link #SYSTEM}. Alternative implementations
+ * may be used for testing or to query a specific name service. {@link CachingDnsResolver} adds a
+ * time bounded cache over any implementation.
+ * </p>
+ *
+ * <p>
+ * Implementations should normally be thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public interface DnsResolver {
+
+  /**
+   * Returns all the IP addresses of the given host name, in the order they should be preferred.
+   *
+   * @param host host name
+   * @return non-empty array of IP addresses
+   * @throws UnknownHostException if no IP address of the host could be found
+   */
+  InetAddress[] resolve(String host) throws UnknownHostException;
+
+  /**
+   * Provides the default System implementation of a DNS resolver by using
+   * {@link InetAddress#getAllByName(String)}.
+   */
+  DnsResolver SYSTEM = new DnsResolver() {
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      return InetAddress.getAllByName(host);
+    }
+  };
+}
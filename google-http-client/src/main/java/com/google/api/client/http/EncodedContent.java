@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.StreamingContent;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Content encoded once with an {@link HttpEncoding} into a buffer, which supplies both the
+ * content length and the content of every attempt of a request.
+ *
+ * <p>
+ * The encoded content is kept in memory in chunks drawn from a shared pool, unless it is larger
+ * than {@link #MAX_MEMORY_BYTES}, in which case it spills to a temporary file. {@link #release()}
+ * must be called once the content is no longer needed, to return the chunks to the pool and to
+ * delete the temporary file.
+ * </p>
+ *
+ * <p>
+ * {@link HttpRequest} only uses it for content which supports retries while content logging is
+ * disabled or {@link java.util.logging.Level#CONFIG} isn't loggable, since the logged content is
+ * captured as the content is written to the transport.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+final class EncodedContent implements StreamingContent {
+
+  /** Size of the pooled chunks in bytes. */
+  static final int CHUNK_SIZE = 8192;
+
+  /** Maximum number of bytes of encoded content to keep in memory before spilling to disk. */
+  static final int MAX_MEMORY_BYTES = 1 << 20;
+
+  /** Pool of chunks. */
+  private static final BufferPool CHUNK_POOL = new BufferPool(CHUNK_SIZE, 64);
+
+  /** Chunks of the encoded content in memory, empty if spilled to disk. */
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+  /** Temporary file of the encoded content or {@code null} if kept in memory. */
+  private File file;
+
+  /** Number of bytes of encoded content. */
+  private long length;
+
+  private EncodedContent() {
+  }
+
+  /**
+   * Encodes the given content with the given encoding into a new buffer.
+   *
+   * @param content streaming content
+   * @param encoding HTTP encoding
+   */
+  static EncodedContent encode(StreamingContent content, HttpEncoding encoding)
+      throws IOException {
+    EncodedContent result = new EncodedContent();
+    boolean encoded = false;
+    try {
+      OutputStream out = result.new BufferOutputStream();
+      try {
+        encoding.encode(content, out);
+      } finally {
+        out.close();
+      }
+      encoded = true;
+    } finally {
+      if (!encoded) {
+        result.release();
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of bytes of encoded content. */
+  long getLength() {
+    return length;
+  }
+
+  /** Returns whether the encoded content spilled to a temporary file. */
+  boolean isOnDisk() {
+    return file != null;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    if (file != null) {
+      InputStream in = new FileInputStream(file);
+      try {
+        IOUtils.copy(in, out);
+      } finally {
+        in.close();
+      }
+      return;
+    }
+    long remaining = length;
+    for (byte[] chunk : chunks) {
+      int count = (int) Math.min(chunk.length, remaining);
+      out.write(chunk, 0, count);
+      remaining -= count;
+    }
+    out.flush();
+  }
+
+  /** Returns the chunks to the pool and deletes the temporary file. */
+  void release() {
+    releaseChunks();
+    if (file != null) {
+      file.delete();
+      file = null;
+    }
+    length = 0;
+  }
+
+  /** Returns the chunks to the pool. */
+  private void releaseChunks() {
+    for (byte[] chunk : chunks) {
+      CHUNK_POOL.release(chunk);
+    }
+    chunks.clear();
+  }
+
+  /** Output stream which appends to the buffer, spilling to disk when it grows too large. */
+  private final class BufferOutputStream extends OutputStream {
+
+    /** Output stream of the temporary file or {@code null} while in memory. */
+    private OutputStream fileOut;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (fileOut == null && length + len > MAX_MEMORY_BYTES) {
+        spill();
+      }
+      if (fileOut != null) {
+        fileOut.write(b, off, len);
+        length += len;
+        return;
+      }
+      while (len > 0) {
+        int position = (int) (length % CHUNK_SIZE);
+        if (position == 0) {
+          chunks.add(CHUNK_POOL.acquire());
+        }
+        int count = Math.min(len, CHUNK_SIZE - position);
+        System.arraycopy(b, off, chunks.get(chunks.size() - 1), position, count);
+        off += count;
+        len -= count;
+        length += count;
+      }
+    }
+
+    /** Moves the chunks written so far to a new temporary file. */
+    private void spill() throws IOException {
+      file = File.createTempFile("google-http-client", ".tmp");
+      fileOut = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+      long remaining = length;
+      for (byte[] chunk : chunks) {
+        int count = (int) Math.min(chunk.length, remaining);
+        fileOut.write(chunk, 0, count);
+        remaining -= count;
+      }
+      releaseChunks();
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (fileOut != null) {
+        fileOut.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (fileOut != null) {
+        fileOut.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link Beta} <br/>
+ * HTTP content whose bytes are the first {@link #getLength()} bytes of a file, which a transport
+ * that owns the socket channel may send with {@link FileChannel#transferTo} instead of
+ * {@link #writeTo}, avoiding the copy of every byte through the Java heap.
+ *
+ * <p>
+ * Transports which cannot send the file directly, for example because the connection is secured
+ * with TLS, use {@link #writeTo} as for any other content. The content is only sent directly if it
+ * is neither encoded nor logged by the {@link HttpRequest}.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public interface FileChannelContent extends HttpContent {
+
+  /**
+   * Opens a new file channel over the content, which the caller must close.
+   *
+   * <p>
+   * The channel is positioned at the beginning of the content, which extends for
+   * {@link #getLength()} bytes from there.
+   * </p>
+   */
+  FileChannel openChannel() throws IOException;
+}
@@ -20,6 +20,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * Concrete implementation of {@link AbstractInputStreamContent} that generates repeatable input
@@ -38,13 +39,19 @@ import java.io.InputStream;
  * </pre>
  *
  * <p>
+ * Since 1.23, it is a {@link FileChannelContent}, which transports may send without copying the
+ * bytes of the file through the Java heap.
+ * </p>
+ *
+ * <p>
  * Implementation is not thread-safe.
  * </p>
  *
  * @since 1.4
  * @author moshenko@google.com (Jacob Moshenko)
  */
-public final class FileContent extends AbstractInputStreamContent {
+public final class FileContent extends AbstractInputStreamContent
+    implements FileChannelContent {
 
   private final File file;
 
@@ -71,6 +78,15 @@ public final class FileContent extends AbstractInputStreamContent {
     return new FileInputStream(file);
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @since 1.23
+   */
+  public FileChannel openChannel() throws FileNotFoundException {
+    return new FileInputStream(file).getChannel();
+  }
+
   /**
    * Returns the file.
    *
@@ -14,20 +14,98 @@
 
 package com.google.api.client.http;
 
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.StreamingContent;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /**
  * GZip HTTP content encoding.
  *
+ * <p>
+ * Since 1.23 it is also an {@link HttpDecoding} and a {@link MinimumLengthEncoding}.
+ * </p>
+ *
  * @since 1.14
  * @author Yaniv Inbar
  */
-public class GZipEncoding implements HttpEncoding {
+public class GZipEncoding implements MinimumLengthEncoding, HttpDecoding {
+
+  /** Compression level. */
+  private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+  /** Minimum content length in bytes for the content to be encoded. */
+  private long minimumLength;
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the compression level from {@code 0} to {@code 9}, or
+   * {@link Deflater#DEFAULT_COMPRESSION} for the default.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public final int getCompressionLevel() {
+    return compressionLevel;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the compression level from {@code 0} to {@code 9}, or
+   * {@link Deflater#DEFAULT_COMPRESSION} for the default.
+   *
+   * <p>
+   * Lower levels trade a larger content for less CPU time.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public GZipEncoding setCompressionLevel(int compressionLevel) {
+    Preconditions.checkArgument(compressionLevel == Deflater.DEFAULT_COMPRESSION
+        || compressionLevel >= Deflater.NO_COMPRESSION
+        && compressionLevel <= Deflater.BEST_COMPRESSION);
+    this.compressionLevel = compressionLevel;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the minimum content length in bytes for {@link HttpRequest} to encode the content,
+   * which defaults to {@code 0}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public final long getMinimumLength() {
+    return minimumLength;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the minimum content length in bytes for {@link HttpRequest} to encode the content, which
+   * defaults to {@code 0}.
+   *
+   * <p>
+   * Content whose {@link HttpContent#getLength() length} is known and less than the minimum is
+   * sent without encoding, since the compression of small content costs more than it saves.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public GZipEncoding setMinimumLength(long minimumLength) {
+    Preconditions.checkArgument(minimumLength >= 0);
+    this.minimumLength = minimumLength;
+    return this;
+  }
 
   public String getName() {
     return "gzip";
@@ -45,9 +123,23 @@ public class GZipEncoding implements HttpEncoding {
         }
       }
     };
-    GZIPOutputStream zipper = new GZIPOutputStream(out2);
+    final int level = compressionLevel;
+    GZIPOutputStream zipper = new GZIPOutputStream(out2) {
+      {
+        def.setLevel(level);
+      }
+    };
     content.writeTo(zipper);
     // cannot call just zipper.finish() because that would cause a severe memory leak
     zipper.close();
   }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @since 1.23
+   */
+  public InputStream decode(InputStream content) throws IOException {
+    return new GZIPInputStream(content);
+  }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.ArrayMap;
+import com.google.api.client.util.ClassInfo;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.FieldInfo;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.Types;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.WeakHashMap;
+
+/**
+ * Precompiled plan for serializing the headers of an {@link HttpHeaders} class into a
+ * {@link LowLevelHttpRequest}.
+ *
+ * <p>
+ * The plan is an array of the header fields in the order of {@link ClassInfo#getNames()}, with
+ * their display names and a kind computed from the declared field type, so that {@link #write}
+ * adds the headers without going through the generic data map and its iterators. {@link String},
+ * {@link List} and {@link Long} values are added directly; other values fall back to the same
+ * conversion as {@link HttpHeaders#serializeHeaders}. Unknown keys are added after the fields, as
+ * for the generic data map.
+ * </p>
+ *
+ * <p>
+ * Implementation is immutable and thread-safe.
+ * </p>
+ */
+final class HeaderWriter {
+
+  /** Field of any other type. */
+  private static final int KIND_OTHER = 0;
+
+  /** {@link String} field. */
+  private static final int KIND_STRING = 1;
+
+  /** {@link List} field. */
+  private static final int KIND_LIST = 2;
+
+  /** {@link Long} field. */
+  private static final int KIND_LONG = 3;
+
+  /** Writer of {@link HttpHeaders} itself, which is by far the most common class. */
+  private static final HeaderWriter HTTP_HEADERS = new HeaderWriter(HttpHeaders.class);
+
+  /** Writers of subclasses of {@link HttpHeaders}. */
+  private static final Map<Class<?>, HeaderWriter> CACHE =
+      new WeakHashMap<Class<?>, HeaderWriter>();
+
+  /** Header fields in serialization order. */
+  private final FieldInfo[] fields;
+
+  /** Display names of the header fields. */
+  private final String[] names;
+
+  /** Kinds of the header fields. */
+  private final int[] kinds;
+
+  private HeaderWriter(Class<?> headersClass) {
+    ClassInfo classInfo = ClassInfo.of(headersClass, true);
+    Collection<String> fieldNames = classInfo.getNames();
+    int size = fieldNames.size();
+    fields = new FieldInfo[size];
+    names = new String[size];
+    kinds = new int[size];
+    HashSet<String> headerNames = new HashSet<String>();
+    int i = 0;
+    for (String fieldName : fieldNames) {
+      FieldInfo fieldInfo = classInfo.getFieldInfo(fieldName);
+      fields[i] = fieldInfo;
+      names[i] = fieldInfo.getName();
+      Preconditions.checkArgument(headerNames.add(names[i].toLowerCase(Locale.US)),
+          "multiple headers of the same name (headers are case insensitive): %s", names[i]);
+      Class<?> type = fieldInfo.getType();
+      kinds[i] = type == String.class ? KIND_STRING
+          : List.class.isAssignableFrom(type) ? KIND_LIST
+          : type == Long.class ? KIND_LONG : KIND_OTHER;
+      i++;
+    }
+  }
+
+  /** Returns the writer for the class of the given headers. */
+  static HeaderWriter of(HttpHeaders headers) {
+    Class<?> headersClass = headers.getClass();
+    if (headersClass == HttpHeaders.class) {
+      return HTTP_HEADERS;
+    }
+    synchronized (CACHE) {
+      HeaderWriter writer = CACHE.get(headersClass);
+      if (writer == null) {
+        writer = new HeaderWriter(headersClass);
+        CACHE.put(headersClass, writer);
+      }
+      return writer;
+    }
+  }
+
+  /** Adds the non-null headers of the given headers to the given low-level HTTP request. */
+  void write(HttpHeaders headers, LowLevelHttpRequest request) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      Object value = fields[i].getValue(headers);
+      if (value == null) {
+        continue;
+      }
+      String name = names[i];
+      switch (kinds[i]) {
+        case KIND_STRING:
+          if (!Data.isNull(value)) {
+            request.addHeader(name, (String) value);
+          }
+          break;
+        case KIND_LIST:
+          List<?> values = (List<?>) value;
+          if (values instanceof RandomAccess) {
+            int count = values.size();
+            for (int j = 0; j < count; j++) {
+              addValue(request, name, values.get(j));
+            }
+          } else {
+            writeValue(request, name, value);
+          }
+          break;
+        case KIND_LONG:
+          if (!Data.isNull(value)) {
+            request.addHeader(name, value.toString());
+          }
+          break;
+        default:
+          writeValue(request, name, value);
+      }
+    }
+    Map<String, Object> unknownKeys = headers.getUnknownKeys();
+    if (unknownKeys instanceof ArrayMap<?, ?>) {
+      @SuppressWarnings("unchecked")
+      ArrayMap<String, Object> arrayMap = (ArrayMap<String, Object>) unknownKeys;
+      int count = arrayMap.size();
+      for (int i = 0; i < count; i++) {
+        Object value = arrayMap.getValue(i);
+        if (value != null) {
+          writeValue(request, arrayMap.getKey(i), value);
+        }
+      }
+    } else {
+      for (Map.Entry<String, Object> entry : unknownKeys.entrySet()) {
+        Object value = entry.getValue();
+        if (value != null) {
+          writeValue(request, entry.getKey(), value);
+        }
+      }
+    }
+  }
+
+  /** Adds the given non-null header value, which may be repeated. */
+  private static void writeValue(LowLevelHttpRequest request, String name, Object value)
+      throws IOException {
+    if (value instanceof Iterable<?> || value.getClass().isArray()) {
+      for (Object repeatedValue : Types.iterableOf(value)) {
+        addValue(request, name, repeatedValue);
+      }
+    } else {
+      addValue(request, name, value);
+    }
+  }
+
+  /** Adds the given single header value, ignoring nulls. */
+  private static void addValue(LowLevelHttpRequest request, String name, Object value)
+      throws IOException {
+    if (value == null || Data.isNull(value)) {
+      return;
+    }
+    request.addHeader(
+        name, value instanceof String ? (String) value : HttpHeaders.toStringValue(value));
+  }
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * {@link Beta} <br/>
+ * Policy of hedged requests, which sends a duplicate of an idempotent request that has not
+ * received a response within a delay and uses whichever response arrives first, to cut the tail
+ * latency caused by an occasionally slow server.
+ *
+ * <p>
+ * The policy is set with {@link HttpRequest#setHedgingPolicy} and applies to {@link
+ * HttpRequest#execute()} of {@code GET} and {@code HEAD} requests, and of {@code PUT} requests
+ * marked with {@link HttpRequest#setIdempotent}, whose content if any supports retries. The request
+ * is executed on the executor of {@link HttpRequest#getExecutor()} or of
+ * {@link HttpTransport#getAsyncExecutor()}. If no response arrives within the hedging delay, a
+ * single duplicate request without retries is executed on the same executor. The first successful
+ * response is returned. The other request makes no further back-off or retry, and its response is
+ * disconnected once it arrives.
+ * </p>
+ *
+ * <p>
+ * The hedging delay is the {@link Builder#setPercentile percentile} of the latency of the recent
+ * success responses from the same host, or the {@link Builder#setDelay fixed delay} until enough
+ * responses have been observed. The latency of a request is that of the attempt which received
+ * the winning response, excluding back-off periods and responses which lost the race. Hedged
+ * requests are limited by a budget shared by all the requests using this policy: each request
+ * earns a {@link Builder#setBudgetRatio fraction} of a hedge, up to a
+ * {@link Builder#setMaxBudget maximum}, so that hedging only increases the load by that fraction.
+ * Statistics are available with {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  final HedgingPolicy hedgingPolicy = new HedgingPolicy.Builder().setBudgetRatio(0.02).build();
+  HttpRequestFactory requestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
+    public void initialize(HttpRequest request) {
+      request.setHedgingPolicy(hedgingPolicy);
+    }
+  });
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class HedgingPolicy {
+
+  /** Number of recent response latencies kept per host. */
+  static final int LATENCY_SAMPLE_SIZE = 128;
+
+  /** Latencies of the recent responses from a host. */
+  private static final class HostLatency {
+
+    /** Ring buffer of latencies in nanoseconds. */
+    private final long[] samples = new long[LATENCY_SAMPLE_SIZE];
+
+    /** Total number of recorded latencies. */
+    private long count;
+
+    synchronized void record(long nanos) {
+      samples[(int) (count++ % LATENCY_SAMPLE_SIZE)] = nanos;
+    }
+
+    /**
+     * Returns the given percentile in nanoseconds of the recorded latencies or {@code -1} if fewer
+     * than the given number of latencies have been recorded.
+     */
+    long getPercentile(double percentile, int minSamples) {
+      long[] sorted;
+      synchronized (this) {
+        if (count < minSamples || count == 0) {
+          return -1;
+        }
+        sorted = new long[(int) Math.min(count, LATENCY_SAMPLE_SIZE)];
+        System.arraycopy(samples, 0, sorted, 0, sorted.length);
+      }
+      Arrays.sort(sorted);
+      int index = (int) Math.ceil(percentile * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+  }
+
+  /** Outcome of one of the raced executions of a request. */
+  private static final class Attempt {
+
+    /** Whether this is the duplicate execution. */
+    final boolean hedge;
+
+    /** Executed request. */
+    final HttpRequest request;
+
+    /** Response or {@code null} for none. */
+    HttpResponse response;
+
+    /** Latency in nanoseconds of the last attempt of the execution. */
+    long latencyNanos;
+
+    /** I/O exception or {@code null} for none. */
+    IOException ioException;
+
+    /** Runtime exception or {@code null} for none. */
+    RuntimeException runtimeException;
+
+    Attempt(HttpRequest request, boolean hedge) {
+      this.request = request;
+      this.hedge = hedge;
+    }
+
+    /** Returns {@code 2} for a success response, {@code 1} for other responses, else {@code 0}. */
+    int getRank() {
+      return response == null ? 0 : response.isSuccessStatusCode() ? 2 : 1;
+    }
+
+    /** Returns the response or throws the exception. */
+    HttpResponse get() throws IOException {
+      if (ioException != null) {
+        throw ioException;
+      }
+      if (runtimeException != null) {
+        throw runtimeException;
+      }
+      return response;
+    }
+
+    /** Disconnects the response if any. */
+    void discard() {
+      if (response != null) {
+        try {
+          response.disconnect();
+        } catch (IOException e) {
+          HttpTransport.LOGGER.log(Level.FINE, "exception thrown while disconnecting response", e);
+        }
+      }
+    }
+  }
+
+  /** Executions of a request racing against each other. */
+  private final class Race {
+
+    /** Executor of the executions. */
+    private final Executor executor;
+
+    /** Attempts completed but not taken yet. */
+    private final BlockingQueue<Attempt> completed = new LinkedBlockingQueue<Attempt>();
+
+    /** Requests of the started executions whose attempts have not been taken yet. */
+    private final List<HttpRequest> requests = new ArrayList<HttpRequest>(2);
+
+    /** Whether the race is over, after which attempts are discarded as they complete. */
+    private boolean finished;
+
+    Race(Executor executor) {
+      this.executor = executor;
+    }
+
+    /** Starts an execution of the given request and returns whether it has been accepted. */
+    boolean start(final HttpRequest request, final boolean hedge) {
+      // added first in case the executor runs the execution on the calling thread
+      requests.add(request);
+      try {
+        executor.execute(new Runnable() {
+
+          public void run() {
+            Attempt attempt = new Attempt(request, hedge);
+            try {
+              attempt.response = request.executeWithoutHedging();
+              attempt.latencyNanos = System.nanoTime() - request.lastAttemptNanos;
+            } catch (IOException e) {
+              attempt.ioException = e;
+            } catch (RuntimeException e) {
+              attempt.runtimeException = e;
+            }
+            synchronized (Race.this) {
+              if (!finished) {
+                completed.add(attempt);
+                return;
+              }
+            }
+            attempt.discard();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        requests.remove(request);
+        return false;
+      }
+      return true;
+    }
+
+    /** Returns whether there are started executions whose attempts have not been taken yet. */
+    boolean hasPending() {
+      return !requests.isEmpty();
+    }
+
+    /**
+     * Returns the next completed attempt, waiting up to the given time in milliseconds, or
+     * {@code null} if none completed in time.
+     */
+    Attempt poll(long millis) throws InterruptedIOException {
+      try {
+        Attempt attempt = completed.poll(millis, TimeUnit.MILLISECONDS);
+        if (attempt != null) {
+          requests.remove(attempt.request);
+        }
+        return attempt;
+      } catch (InterruptedException e) {
+        throw interrupted();
+      }
+    }
+
+    /** Returns the next completed attempt, waiting as long as required. */
+    Attempt take() throws InterruptedIOException {
+      try {
+        Attempt attempt = completed.take();
+        requests.remove(attempt.request);
+        return attempt;
+      } catch (InterruptedException e) {
+        throw interrupted();
+      }
+    }
+
+    /**
+     * Finishes the race, stopping the retries and back-off of the executions still in progress and
+     * discarding the attempts completed but not taken.
+     */
+    void finish() {
+      synchronized (this) {
+        finished = true;
+      }
+      for (HttpRequest request : requests) {
+        request.abandoned = true;
+      }
+      for (Attempt attempt; (attempt = completed.poll()) != null;) {
+        attempt.discard();
+      }
+    }
+
+    private InterruptedIOException interrupted() {
+      finish();
+      Thread.currentThread().interrupt();
+      return new InterruptedIOException("interrupted while waiting for the response");
+    }
+  }
+
+  /** Fixed hedging delay in milliseconds. */
+  private final long delay;
+
+  /** Percentile of the latencies of a host used as the hedging delay or {@code 0} for none. */
+  private final double percentile;
+
+  /** Minimum number of latencies of a host before its percentile is used. */
+  private final int minSamples;
+
+  /** Fraction of a hedge earned by each request. */
+  private final double budgetRatio;
+
+  /** Maximum number of hedges the budget accumulates. */
+  private final double maxBudget;
+
+  /** Available hedges, guarded by {@code this}. */
+  private double budget;
+
+  /** Latencies by lower case host name. */
+  private final ConcurrentHashMap<String, HostLatency> latencies =
+      new ConcurrentHashMap<String, HostLatency>();
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong hedgeCount = new AtomicLong();
+  private final AtomicLong hedgeWinCount = new AtomicLong();
+  private final AtomicLong budgetExhaustedCount = new AtomicLong();
+
+  /** Constructor with the default behavior. */
+  public HedgingPolicy() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  HedgingPolicy(Builder builder) {
+    delay = builder.delay;
+    percentile = builder.percentile;
+    minSamples = builder.minSamples;
+    budgetRatio = builder.budgetRatio;
+    maxBudget = builder.maxBudget;
+    budget = maxBudget;
+  }
+
+  /** Returns the fixed hedging delay in milliseconds. */
+  public long getDelay() {
+    return delay;
+  }
+
+  /**
+   * Returns the percentile of the latencies of a host used as the hedging delay or {@code 0} for
+   * none.
+   */
+  public double getPercentile() {
+    return percentile;
+  }
+
+  /** Returns the fraction of a hedge earned by each request. */
+  public double getBudgetRatio() {
+    return budgetRatio;
+  }
+
+  /** Returns a snapshot of the hedging statistics. */
+  public Stats getStats() {
+    return new Stats(requestCount.get(), hedgeCount.get(), hedgeWinCount.get(),
+        budgetExhaustedCount.get());
+  }
+
+  /** Returns whether the given request is hedged by this policy. */
+  boolean isHedgeable(HttpRequest request) {
+    String method = request.getRequestMethod();
+    HttpContent content = request.getContent();
+    return (HttpMethods.GET.equals(method) || HttpMethods.HEAD.equals(method)
+        || HttpMethods.PUT.equals(method) && request.isIdempotent())
+        && (content == null || content.retrySupported());
+  }
+
+  /** Returns the hedging delay in milliseconds of a request to the given host. */
+  long getDelayMillis(String host) {
+    if (percentile > 0) {
+      long nanos = getHostLatency(host).getPercentile(percentile, minSamples);
+      if (nanos >= 0) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+      }
+    }
+    return delay;
+  }
+
+  /** Records the latency in nanoseconds of a response from the given host. */
+  void recordLatency(String host, long nanos) {
+    getHostLatency(host).record(nanos);
+  }
+
+  private HostLatency getHostLatency(String host) {
+    String key = host.toLowerCase(Locale.US);
+    HostLatency latency = latencies.get(key);
+    if (latency == null) {
+      HostLatency newLatency = new HostLatency();
+      latency = latencies.putIfAbsent(key, newLatency);
+      if (latency == null) {
+        latency = newLatency;
+      }
+    }
+    return latency;
+  }
+
+  /** Earns the budget of a request. */
+  private synchronized void earnBudget() {
+    budget = Math.min(maxBudget, budget + budgetRatio);
+  }
+
+  /** Spends the budget of a hedge and returns whether it was available. */
+  private synchronized boolean spendBudget() {
+    if (budget < 1) {
+      return false;
+    }
+    budget--;
+    return true;
+  }
+
+  /**
+   * Executes the given hedgeable request, racing it against a duplicate if it is slow.
+   *
+   * <p>
+   * The request and its duplicate are executed on copies of the request, so that the request
+   * itself is only modified on the calling thread: its URL is updated with the URL of the winning
+   * copy, which may differ after a redirect, and its response headers with the response headers of
+   * the winning response.
+   * </p>
+   */
+  HttpResponse execute(HttpRequest request) throws IOException {
+    requestCount.incrementAndGet();
+    earnBudget();
+    Executor executor = request.getExecutor() == null
+        ? request.getTransport().getAsyncExecutor() : request.getExecutor();
+    Race race = new Race(executor);
+    if (!race.start(request.copy(request.getNumberOfRetries()), false)) {
+      return request.executeWithoutHedging();
+    }
+    Attempt best;
+    try {
+      best = race.poll(getDelayMillis(request.getUrl().getHost()));
+      if (best == null) {
+        if (!spendBudget()) {
+          budgetExhaustedCount.incrementAndGet();
+        } else if (race.start(request.copy(0), true)) {
+          hedgeCount.incrementAndGet();
+        }
+        best = race.take();
+      }
+      // the first success response wins, or else the first response, or else the first exception
+      while (best.getRank() < 2 && race.hasPending()) {
+        Attempt next = race.take();
+        if (next.getRank() > best.getRank()) {
+          best.discard();
+          best = next;
+        } else {
+          next.discard();
+        }
+      }
+    } finally {
+      race.finish();
+    }
+    if (best.hedge && best.response != null) {
+      hedgeWinCount.incrementAndGet();
+    }
+    if (best.getRank() == 2) {
+      // only the winning success response measures the latency of the host, excluding back-off
+      recordLatency(request.getUrl().getHost(), best.latencyNanos);
+    }
+    request.setUrl(best.request.getUrl());
+    if (best.response != null) {
+      request.getResponseHeaders().clear();
+      request.getResponseHeaders().fromHttpHeaders(best.request.getResponseHeaders());
+    }
+    return best.get();
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link HedgingPolicy}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Fixed hedging delay in milliseconds. */
+    long delay = 1000;
+
+    /** Percentile of the latencies of a host used as the hedging delay or {@code 0} for none. */
+    double percentile = 0.95;
+
+    /** Minimum number of latencies of a host before its percentile is used. */
+    int minSamples = 20;
+
+    /** Fraction of a hedge earned by each request. */
+    double budgetRatio = 0.05;
+
+    /** Maximum number of hedges the budget accumulates. */
+    double maxBudget = 10;
+
+    /**
+     * Sets the fixed hedging delay in milliseconds, used until enough latencies of a host have been
+     * observed or if no percentile is used.
+     *
+     * <p>
+     * Default value is {@code 1000}.
+     * </p>
+     */
+    public Builder setDelay(long delay) {
+      Preconditions.checkArgument(delay >= 0);
+      this.delay = delay;
+      return this;
+    }
+
+    /**
+     * Sets the percentile of the latencies of the recent responses from a host used as the hedging
+     * delay of the requests to that host, between {@code 0} exclusive and {@code 1} inclusive, or
+     * {@code 0} to always use the fixed delay.
+     *
+     * <p>
+     * Default value is {@code 0.95}.
+     * </p>
+     */
+    public Builder setPercentile(double percentile) {
+      Preconditions.checkArgument(percentile >= 0 && percentile <= 1);
+      this.percentile = percentile;
+      return this;
+    }
+
+    /**
+     * Sets the minimum number of observed latencies of a host before their percentile is used.
+     *
+     * <p>
+     * Default value is {@code 20}.
+     * </p>
+     */
+    public Builder setMinSamples(int minSamples) {
+      Preconditions.checkArgument(minSamples > 0);
+      this.minSamples = minSamples;
+      return this;
+    }
+
+    /**
+     * Sets the fraction of a hedge earned by each request, which bounds the additional load caused
+     * by hedging.
+     *
+     * <p>
+     * Default value is {@code 0.05}, for at most five hedged requests per hundred requests once the
+     * initial budget is spent.
+     * </p>
+     */
+    public Builder setBudgetRatio(double budgetRatio) {
+      Preconditions.checkArgument(budgetRatio >= 0 && budgetRatio <= 1);
+      this.budgetRatio = budgetRatio;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of hedges the budget accumulates, which is also the initial budget.
+     *
+     * <p>
+     * Default value is {@code 10}.
+     * </p>
+     */
+    public Builder setMaxBudget(double maxBudget) {
+      Preconditions.checkArgument(maxBudget >= 0);
+      this.maxBudget = maxBudget;
+      return this;
+    }
+
+    /** Returns a new instance of {@link HedgingPolicy} based on the options. */
+    public HedgingPolicy build() {
+      return new HedgingPolicy(this);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link HedgingPolicy}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long requestCount;
+    private final long hedgeCount;
+    private final long hedgeWinCount;
+    private final long budgetExhaustedCount;
+
+    Stats(long requestCount, long hedgeCount, long hedgeWinCount, long budgetExhaustedCount) {
+      this.requestCount = requestCount;
+      this.hedgeCount = hedgeCount;
+      this.hedgeWinCount = hedgeWinCount;
+      this.budgetExhaustedCount = budgetExhaustedCount;
+    }
+
+    /** Returns the number of hedgeable requests executed. */
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    /** Returns the number of duplicate requests sent. */
+    public long getHedgeCount() {
+      return hedgeCount;
+    }
+
+    /** Returns the number of requests whose response came from the duplicate request. */
+    public long getHedgeWinCount() {
+      return hedgeWinCount;
+    }
+
+    /** Returns the number of slow requests not hedged because the budget was exhausted. */
+    public long getBudgetExhaustedCount() {
+      return budgetExhaustedCount;
+    }
+
+    /** Returns the fraction of the requests that were hedged or {@code 0} if none. */
+    public double getHedgeRate() {
+      return requestCount == 0 ? 0 : (double) hedgeCount / requestCount;
+    }
+
+    @Override
+    public String toString() {
+      return "[requests: " + requestCount + "; hedges: " + hedgeCount + "; hedge wins: "
+          + hedgeWinCount + "; budget exhausted: " + budgetExhaustedCount + "]";
+    }
+  }
+}
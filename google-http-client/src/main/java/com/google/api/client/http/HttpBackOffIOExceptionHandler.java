@@ -15,7 +15,6 @@
 package com.google.api.client.http;
 
 import com.google.api.client.util.BackOff;
-import com.google.api.client.util.BackOffUtils;
 import com.google.api.client.util.Beta;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
@@ -104,14 +103,28 @@ public class HttpBackOffIOExceptionHandler implements HttpIOExceptionHandler {
    * Handles the request with {@link BackOff}. That means that if back-off is required a call to
    * {@link Sleeper#sleep(long)} will be made.
    * </p>
+   *
+   * <p>
+   * Upgrade warning: since version 1.23, no back-off is made and {@code false} is returned if the
+   * {@link HttpRequest#getRetryBudget() retry budget} of the request is exhausted. Also, during
+   * {@link HttpRequest#executeAsync(HttpResponseCallback)} the sleeper is not called: the next
+   * attempt is scheduled after the back-off period instead.
+   * </p>
    */
   public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
     if (!supportsRetry) {
       return false;
     }
+    // only spend the retry budget once the back-off allows a retry
+    long backOffMillis = backOff.nextBackOffMillis();
+    if (backOffMillis == BackOff.STOP || !RetryBudget.tryRetry(request)) {
+      return false;
+    }
     try {
-      return BackOffUtils.next(sleeper, backOff);
+      HttpRequest.backOff(request, sleeper, backOffMillis);
+      return true;
     } catch (InterruptedException exception) {
+      RetryBudget.refundRetry(request);
       return false;
     }
   }
@@ -15,12 +15,13 @@
 package com.google.api.client.http;
 
 import com.google.api.client.util.BackOff;
-import com.google.api.client.util.BackOffUtils;
 import com.google.api.client.util.Beta;
+import com.google.api.client.util.Clock;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.Sleeper;
 
 import java.io.IOException;
+import java.util.Date;
 
 /**
  * {@link Beta} <br/>
@@ -42,6 +43,14 @@ import java.io.IOException;
  * </pre>
  *
  * <p>
+ * Since version 1.23, the {@code "Retry-After"} header of the response is honored, either as a
+ * number of seconds or as an HTTP-date: the handler sleeps for the longer of the back-off period
+ * and the period requested by the server. If the server requests a period longer than
+ * {@link #setMaxRetryAfterMillis the maximum}, no retry is made, since retrying earlier than asked
+ * would only waste a request.
+ * </p>
+ *
+ * <p>
  * Note: Implementation doesn't call {@link BackOff#reset} at all, since it expects a new
  * {@link BackOff} instance.
  * </p>
@@ -62,9 +71,23 @@ public class HttpBackOffUnsuccessfulResponseHandler implements HttpUnsuccessfulR
   /** Defines if back-off is required based on an abnormal HTTP response. */
   private BackOffRequired backOffRequired = BackOffRequired.ON_SERVER_ERROR;
 
+  /**
+   * The default maximum period in milliseconds requested by a {@code "Retry-After"} header which is
+   * honored (1 minute).
+   *
+   * @since 1.23
+   */
+  public static final long DEFAULT_MAX_RETRY_AFTER_MILLIS = 60000;
+
   /** Sleeper. */
   private Sleeper sleeper = Sleeper.DEFAULT;
 
+  /** Maximum period in milliseconds requested by a {@code "Retry-After"} header to honor. */
+  private long maxRetryAfterMillis = DEFAULT_MAX_RETRY_AFTER_MILLIS;
+
+  /** Clock used to resolve an HTTP-date when the response has no {@code "Date"} header. */
+  private Clock clock = Clock.SYSTEM;
+
   /**
    * Constructs a new instance from a {@link BackOff}.
    *
@@ -128,6 +151,66 @@ public class HttpBackOffUnsuccessfulResponseHandler implements HttpUnsuccessfulR
     return this;
   }
 
+  /**
+   * Returns the maximum period in milliseconds requested by a {@code "Retry-After"} header which is
+   * honored.
+   *
+   * @since 1.23
+   */
+  public final long getMaxRetryAfterMillis() {
+    return maxRetryAfterMillis;
+  }
+
+  /**
+   * Sets the maximum period in milliseconds requested by a {@code "Retry-After"} header which is
+   * honored. No retry is made if the server requests a longer period.
+   *
+   * <p>
+   * The default value is {@link #DEFAULT_MAX_RETRY_AFTER_MILLIS}.
+   * </p>
+   *
+   * <p>
+   * Overriding is only supported for the purpose of calling the super implementation and changing
+   * the return type, but nothing else.
+   * </p>
+   *
+   * @since 1.23
+   */
+  public HttpBackOffUnsuccessfulResponseHandler setMaxRetryAfterMillis(long maxRetryAfterMillis) {
+    Preconditions.checkArgument(maxRetryAfterMillis >= 0);
+    this.maxRetryAfterMillis = maxRetryAfterMillis;
+    return this;
+  }
+
+  /**
+   * Returns the clock used to resolve a {@code "Retry-After"} HTTP-date.
+   *
+   * @since 1.23
+   */
+  public final Clock getClock() {
+    return clock;
+  }
+
+  /**
+   * Sets the clock used to resolve a {@code "Retry-After"} HTTP-date when the response has no
+   * {@code "Date"} header.
+   *
+   * <p>
+   * The default value is {@link Clock#SYSTEM}.
+   * </p>
+   *
+   * <p>
+   * Overriding is only supported for the purpose of calling the super implementation and changing
+   * the return type, but nothing else.
+   * </p>
+   *
+   * @since 1.23
+   */
+  public HttpBackOffUnsuccessfulResponseHandler setClock(Clock clock) {
+    this.clock = Preconditions.checkNotNull(clock);
+    return this;
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -135,6 +218,15 @@ public class HttpBackOffUnsuccessfulResponseHandler implements HttpUnsuccessfulR
    * Handles the request with {@link BackOff}. That means that if back-off is required a call to
    * {@link Sleeper#sleep(long)} will be made.
    * </p>
+   *
+   * <p>
+   * Upgrade warning: since version 1.23, no back-off is made and {@code false} is returned if the
+   * {@link HttpRequest#getRetryBudget() retry budget} of the request is exhausted. Also, the sleep
+   * lasts at least the period requested by the {@code "Retry-After"} header of the response, and
+   * {@code false} is returned if that period is longer than {@link #getMaxRetryAfterMillis()}.
+   * During {@link HttpRequest#executeAsync(HttpResponseCallback)} the sleeper is not called: the
+   * next attempt is scheduled after the period instead.
+   * </p>
    */
   public final boolean handleResponse(
       HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
@@ -142,16 +234,62 @@ public class HttpBackOffUnsuccessfulResponseHandler implements HttpUnsuccessfulR
       return false;
     }
     // check if back-off is required for this response
-    if (backOffRequired.isRequired(response)) {
-      try {
-        return BackOffUtils.next(sleeper, backOff);
-      } catch (InterruptedException exception) {
-        // ignore
-      }
+    if (!backOffRequired.isRequired(response)) {
+      return false;
+    }
+    long retryAfterMillis = getRetryAfterMillis(response, clock.currentTimeMillis());
+    if (retryAfterMillis > maxRetryAfterMillis) {
+      return false;
+    }
+    // only spend the retry budget once the back-off allows a retry
+    long backOffMillis = backOff.nextBackOffMillis();
+    if (backOffMillis == BackOff.STOP || !RetryBudget.tryRetry(request)) {
+      return false;
+    }
+    try {
+      HttpRequest.backOff(request, sleeper, Math.max(backOffMillis, retryAfterMillis));
+      return true;
+    } catch (InterruptedException exception) {
+      RetryBudget.refundRetry(request);
     }
     return false;
   }
 
+  /**
+   * Returns the period in milliseconds requested by the {@code "Retry-After"} header of the given
+   * response, or {@code -1} for none or if it cannot be parsed.
+   *
+   * <p>
+   * An HTTP-date is resolved against the {@code "Date"} header of the response if any, so that a
+   * skew between the clocks of the client and of the server does not matter, and against the given
+   * current time otherwise.
+   * </p>
+   */
+  static long getRetryAfterMillis(HttpResponse response, long currentTimeMillis) {
+    String retryAfter = response == null ? null : response.getHeaders().getRetryAfter();
+    if (retryAfter == null) {
+      return -1;
+    }
+    retryAfter = retryAfter.trim();
+    try {
+      long seconds = Long.parseLong(retryAfter);
+      // saturates instead of overflowing into an immediate retry
+      return seconds > Long.MAX_VALUE / 1000 ? Long.MAX_VALUE : Math.max(0, seconds * 1000);
+    } catch (NumberFormatException e) {
+      if (retryAfter.matches("[0-9]+")) {
+        // delta-seconds too large for a long
+        return Long.MAX_VALUE;
+      }
+    }
+    Date retryAfterDate = HttpHeaders.parseHttpDate(retryAfter);
+    if (retryAfterDate == null) {
+      return -1;
+    }
+    Date date = HttpHeaders.parseHttpDate(response.getHeaders().getDate());
+    long nowMillis = date == null ? currentTimeMillis : date.getTime();
+    return Math.max(0, retryAfterDate.getTime() - nowMillis);
+  }
+
   /**
    * {@link Beta} <br/>
    * Interface which defines if back-off is required based on an abnormal {@link HttpResponse}.
@@ -183,5 +321,18 @@ public class HttpBackOffUnsuccessfulResponseHandler implements HttpUnsuccessfulR
         return response.getStatusCode() / 100 == 5;
       }
     };
+
+    /**
+     * Back-off required implementation which its {@link #isRequired(HttpResponse)} returns
+     * {@code true} if a server error occurred (5xx) or if too many requests were sent (429).
+     *
+     * @since 1.23
+     */
+    BackOffRequired ON_SERVER_ERROR_OR_TOO_MANY_REQUESTS = new BackOffRequired() {
+      public boolean isRequired(HttpResponse response) {
+        int statusCode = response.getStatusCode();
+        return statusCode / 100 == 5 || statusCode == HttpStatusCodes.STATUS_CODE_TOO_MANY_REQUESTS;
+      }
+    };
   }
 }
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+/**
+ * {@link Beta} <br/>
+ * Future result of an asynchronous HTTP operation that supports callbacks and composition.
+ *
+ * <p>
+ * Callbacks and transformations are run on the executor of the future, which is the executor of
+ * the request for futures returned by {@link HttpRequest#executeFuture()}, so that they never block
+ * the thread that completed the operation, for example the I/O thread of a non-blocking transport.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  request.parseAsAsync(Feed.class).addCallback(new HttpFuture.Callback&lt;Feed&gt;() {
+    public void onSuccess(Feed feed) {
+      ...
+    }
+
+    public void onFailure(Throwable exception) {
+      ...
+    }
+  });
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @param <T> result type
+ * @since 1.23
+ */
+@Beta
+public final class HttpFuture<T> implements Future<T> {
+
+  /**
+   * {@link Beta} <br/>
+   * Callback notified when a future completes.
+   *
+   * @param <T> result type
+   * @since 1.23
+   */
+  @Beta
+  public interface Callback<T> {
+
+    /** Called with the result of a successful completion. */
+    void onSuccess(T result);
+
+    /**
+     * Called with the exception of a failed completion, which is a
+     * {@link CancellationException} if the future has been cancelled.
+     */
+    void onFailure(Throwable exception);
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Transformation of the result of a future into the result of another future.
+   *
+   * @param <F> result type of the source future
+   * @param <T> result type of the transformed future
+   * @since 1.23
+   */
+  @Beta
+  public interface Transformer<F, T> {
+
+    /**
+     * Transforms the given result, an exception thrown failing the transformed future.
+     *
+     * @param input result of the source future
+     * @return result of the transformed future
+     */
+    T apply(F input) throws Exception;
+  }
+
+  /** Executor of the callbacks and transformations. */
+  private final Executor executor;
+
+  /** Lock guarding the state. */
+  private final Object lock = new Object();
+
+  /** Whether the future has completed. */
+  private boolean done;
+
+  /** Result of a successful completion. */
+  private T result;
+
+  /** Exception of a failed completion or {@code null} for none. */
+  private Throwable exception;
+
+  /** Callbacks to notify on completion or {@code null} once notified. */
+  private List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>();
+
+  /**
+   * @param executor executor of the callbacks and transformations
+   */
+  HttpFuture(Executor executor) {
+    this.executor = Preconditions.checkNotNull(executor);
+  }
+
+  /**
+   * Completes the future successfully.
+   *
+   * @return whether the future has been completed by this call
+   */
+  boolean set(T result) {
+    return complete(result, null);
+  }
+
+  /**
+   * Completes the future with a failure.
+   *
+   * @return whether the future has been completed by this call
+   */
+  boolean setException(Throwable exception) {
+    return complete(null, Preconditions.checkNotNull(exception));
+  }
+
+  private boolean complete(T result, Throwable exception) {
+    List<Callback<? super T>> callbacks;
+    synchronized (lock) {
+      if (done) {
+        return false;
+      }
+      done = true;
+      this.result = result;
+      this.exception = exception;
+      callbacks = this.callbacks;
+      this.callbacks = null;
+      lock.notifyAll();
+    }
+    for (Callback<? super T> callback : callbacks) {
+      notify(callback);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a callback notified on the executor of this future once it completes, or right away if
+   * it has already completed.
+   *
+   * @param callback callback
+   * @return this future
+   */
+  public HttpFuture<T> addCallback(Callback<? super T> callback) {
+    Preconditions.checkNotNull(callback);
+    synchronized (lock) {
+      if (!done) {
+        callbacks.add(callback);
+        return this;
+      }
+    }
+    notify(callback);
+    return this;
+  }
+
+  /**
+   * Returns a future completed with the result of the given transformer applied on the executor of
+   * this future to the result of this future, or failed with the failure of this future or of the
+   * transformer.
+   *
+   * <p>
+   * Cancelling the returned future does not cancel this future.
+   * </p>
+   *
+   * @param transformer transformer
+   * @return transformed future
+   */
+  public <R> HttpFuture<R> transform(final Transformer<? super T, ? extends R> transformer) {
+    Preconditions.checkNotNull(transformer);
+    final HttpFuture<R> transformed = new HttpFuture<R>(executor);
+    addCallback(new Callback<T>() {
+
+      public void onSuccess(T result) {
+        if (transformed.isDone()) {
+          return;
+        }
+        try {
+          transformed.set(transformer.apply(result));
+        } catch (Throwable e) {
+          transformed.setException(e);
+        }
+      }
+
+      public void onFailure(Throwable exception) {
+        transformed.setException(exception);
+      }
+    });
+    return transformed;
+  }
+
+  /** Notifies the given callback of the completion on the executor. */
+  private void notify(final Callback<? super T> callback) {
+    Runnable notification = new Runnable() {
+
+      public void run() {
+        T result;
+        Throwable exception;
+        synchronized (lock) {
+          result = HttpFuture.this.result;
+          exception = HttpFuture.this.exception;
+        }
+        try {
+          if (exception == null) {
+            callback.onSuccess(result);
+          } else {
+            callback.onFailure(exception);
+          }
+        } catch (RuntimeException e) {
+          HttpTransport.LOGGER.log(Level.WARNING, "exception thrown by callback", e);
+        }
+      }
+    };
+    try {
+      executor.execute(notification);
+    } catch (RejectedExecutionException e) {
+      // executor shut down, so notify on the current thread rather than never
+      notification.run();
+    }
+  }
+
+  /**
+   * Completes this future with a {@link CancellationException} if not already completed.
+   *
+   * <p>
+   * An HTTP request that is already in progress is not interrupted, but its response is
+   * disconnected once received.
+   * </p>
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    return setException(new CancellationException());
+  }
+
+  public boolean isCancelled() {
+    synchronized (lock) {
+      return exception instanceof CancellationException;
+    }
+  }
+
+  public boolean isDone() {
+    synchronized (lock) {
+      return done;
+    }
+  }
+
+  public T get() throws InterruptedException, ExecutionException {
+    synchronized (lock) {
+      while (!done) {
+        lock.wait();
+      }
+      return getResult();
+    }
+  }
+
+  public T get(long timeout, TimeUnit unit)
+      throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (lock) {
+      while (!done) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          throw new TimeoutException();
+        }
+        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+      }
+      return getResult();
+    }
+  }
+
+  /** Returns the result or throws the exception of the completed future. */
+  private T getResult() throws ExecutionException {
+    if (exception == null) {
+      return result;
+    }
+    if (exception instanceof CancellationException) {
+      CancellationException cancellation = new CancellationException();
+      cancellation.initCause(exception);
+      throw cancellation;
+    }
+    throw new ExecutionException(exception);
+  }
+}
@@ -29,14 +29,19 @@ import com.google.api.client.util.Types;
 import java.io.IOException;
 import java.io.Writer;
 import java.lang.reflect.Type;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -65,9 +70,12 @@ public class HttpHeaders extends GenericData {
   @Key("Accept")
   private List<String> accept;
 
+  /** Default {@code "Accept-Encoding"} header. */
+  static final List<String> DEFAULT_ACCEPT_ENCODING = Collections.singletonList("gzip");
+
   /** {@code "Accept-Encoding"} header. */
   @Key("Accept-Encoding")
-  private List<String> acceptEncoding = new ArrayList<String>(Collections.singleton("gzip"));
+  private List<String> acceptEncoding = new ArrayList<String>(DEFAULT_ACCEPT_ENCODING);
 
   /** {@code "Authorization"} header. */
   @Key("Authorization")
@@ -895,7 +903,7 @@ public class HttpHeaders extends GenericData {
   /**
    * Returns the string header value for the given header value as an object.
    */
-  private static String toStringValue(Object headerValue) {
+  static String toStringValue(Object headerValue) {
     return headerValue instanceof Enum<?>
         ? FieldInfo.of((Enum<?>) headerValue).getName() : headerValue.toString();
   }
@@ -938,6 +946,11 @@ public class HttpHeaders extends GenericData {
       Logger logger,
       LowLevelHttpRequest lowLevelHttpRequest,
       Writer writer) throws IOException {
+    if (logbuf == null && curlbuf == null && writer == null && lowLevelHttpRequest != null) {
+      // nothing to log, so use the precompiled writer of the headers class
+      HeaderWriter.of(headers).write(headers, lowLevelHttpRequest);
+      return;
+    }
     HashSet<String> headerNames = new HashSet<String>();
     for (Map.Entry<String, Object> headerEntry : headers.entrySet()) {
       String name = headerEntry.getKey();
@@ -991,6 +1004,22 @@ public class HttpHeaders extends GenericData {
     state.finish();
   }
 
+  /**
+   * Puts the given headers into this {@link HttpHeaders} object.
+   *
+   * @param headerNames header names
+   * @param headerValues header values, in the same order as the header names
+   */
+  final void fromHeaderLists(List<String> headerNames, List<String> headerValues) {
+    clear();
+    ParseHeaderState state = new ParseHeaderState(this, null);
+    int headerCount = headerNames.size();
+    for (int i = 0; i < headerCount; i++) {
+      parseHeader(headerNames.get(i), headerValues.get(i), state);
+    }
+    state.finish();
+  }
+
   /** LowLevelHttpRequest which will call the .parseHeader() method for every header added. */
   private static class HeaderParsingFakeLevelHttpRequest extends LowLevelHttpRequest {
     private final HttpHeaders target;
@@ -1071,6 +1100,29 @@ public class HttpHeaders extends GenericData {
     return Collections.singletonList(toStringValue(value));
   }
 
+  /** Formats of the HTTP-date in RFC 7231: IMF-fixdate, obsolete RFC 850 and asctime. */
+  private static final String[] HTTP_DATE_FORMATS = {
+      "EEE, dd MMM yyyy HH:mm:ss zzz", "EEEE, dd-MMM-yy HH:mm:ss zzz", "EEE MMM d HH:mm:ss yyyy"};
+
+  /** Parses an HTTP-date in any of the formats of RFC 7231, or returns {@code null} for none. */
+  static Date parseHttpDate(String value) {
+    if (value == null) {
+      return null;
+    }
+    for (String pattern : HTTP_DATE_FORMATS) {
+      // SimpleDateFormat is not thread-safe
+      SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+      format.setTimeZone(TimeZone.getTimeZone("GMT"));
+      format.setLenient(false);
+      ParsePosition position = new ParsePosition(0);
+      Date date = format.parse(value, position);
+      if (date != null && position.getIndex() == value.length()) {
+        return date;
+      }
+    }
+    return null;
+  }
+
   /**
    * Puts all headers of the {@link HttpHeaders} object into this {@link HttpHeaders} object.
    *
@@ -25,11 +25,15 @@ import com.google.api.client.util.StringUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -210,6 +214,55 @@ public final class HttpRequest {
   /** Sleeper. */
   private Sleeper sleeper = Sleeper.DEFAULT;
 
+  /** Executor of asynchronous executions or {@code null} for the transport's default. */
+  private Executor executor;
+
+  /** Hedging policy or {@code null} for none. */
+  private HedgingPolicy hedgingPolicy;
+
+  /** Whether the request is idempotent even though its method is not safe. */
+  private boolean idempotent;
+
+  /** Concurrency limiter or {@code null} for none. */
+  private ConcurrencyLimiter concurrencyLimiter;
+
+  /** Circuit breaker or {@code null} for none. */
+  private CircuitBreaker circuitBreaker;
+
+  /** Retry budget or {@code null} for none. */
+  private RetryBudget retryBudget;
+
+  /** Coalescer of identical concurrent requests or {@code null} for none. */
+  private RequestCoalescer requestCoalescer;
+
+  /** Scheduler of asynchronous retries or {@code null} for the transport's default. */
+  private ScheduledExecutorService retryScheduler;
+
+  /** Whether to resume the response content with a ranged request when reading it fails. */
+  private boolean resumeContentOnIOException;
+
+  /** Registry of the content codings used to decode the response content. */
+  private ContentCodingRegistry contentCodingRegistry = ContentCodingRegistry.getDefault();
+
+  /**
+   * Back-off period in milliseconds deferred by the current asynchronous attempt, or {@code -1} if
+   * a back-off sleeps on the current thread.
+   */
+  private long deferredBackOffMillis = -1;
+
+  /**
+   * {@link System#nanoTime()} when the last attempt of {@link #executeWithoutHedging()} was sent,
+   * after any back-off and wait for a permit, used to measure its latency.
+   */
+  long lastAttemptNanos;
+
+  /**
+   * Whether the response is no longer needed, set by the hedging policy on the copy of a request
+   * which lost the race, after which {@link #executeWithoutHedging()} makes no further back-off or
+   * attempt.
+   */
+  volatile boolean abandoned;
+
   /**
    * @param transport HTTP transport
    * @param requestMethod HTTP request method or {@code null} for none
@@ -298,6 +351,17 @@ public final class HttpRequest {
   /**
    * Sets the HTTP content encoding or {@code null} for none.
    *
+   * <p>
+   * Since 1.23, content which {@link HttpContent#retrySupported() supports retries} is encoded only
+   * once per execution, into a buffer which supplies both the content length and the content of
+   * every attempt. Large encoded content spills to a temporary file. When
+   * {@link #setLoggingEnabled logging} is enabled and {@link Level#CONFIG} is loggable, the content
+   * is instead encoded once to compute its length and once more for each attempt, so that the
+   * content is logged as it is written. Content whose
+   * length is known and less than the minimum length of a {@link MinimumLengthEncoding} is sent
+   * without encoding.
+   * </p>
+   *
    * @since 1.14
    */
   public HttpRequest setEncoding(HttpEncoding encoding) {
@@ -839,22 +903,135 @@ public final class HttpRequest {
    *         {@link #getThrowExceptionOnExecuteError()} is {@code true})
    * @see HttpResponse#isSuccessStatusCode()
    */
-  @SuppressWarnings("deprecation")
   public HttpResponse execute() throws IOException {
-    boolean retryRequest = false;
-    Preconditions.checkArgument(numRetries >= 0);
-    int retriesRemaining = numRetries;
-    if (backOffPolicy != null) {
-      // Reset the BackOffPolicy at the start of each execute.
-      backOffPolicy.reset();
+    if (hedgingPolicy != null && hedgingPolicy.isHedgeable(this)) {
+      return hedgingPolicy.execute(this);
+    }
+    return executeWithoutHedging();
+  }
+
+  /** Executes this request on the calling thread, ignoring the hedging policy. */
+  HttpResponse executeWithoutHedging() throws IOException {
+    Execution execution = new Execution();
+    try {
+      do {
+        LowLevelHttpRequest lowLevelHttpRequest = execution.startAttempt();
+        execution.acquirePermit(true);
+        lastAttemptNanos = System.nanoTime();
+        try {
+          execution.setLowLevelResponse(execution.executeLowLevel(lowLevelHttpRequest));
+        } catch (IOException e) {
+          execution.handleIOException(e);
+        } finally {
+          execution.releasePermit();
+        }
+        execution.finishAttempt();
+      } while (execution.retryRequest && !abandoned);
+    } finally {
+      execution.releaseEncodedContent();
     }
-    HttpResponse response = null;
+    return execution.complete();
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Executes this request and notifies the given callback on completion, using
+   * {@link LowLevelHttpRequest#executeAsync} for each attempt.
+   *
+   * <p>
+   * The behavior is otherwise the same as for {@link #execute()}, including the retry handling and
+   * the interceptors. For a transport based on non-blocking I/O this returns immediately, and the
+   * handlers, interceptors and callback are invoked on a thread of the transport once a response
+   * is available. For other transports this blocks the calling thread until the callback has been
+   * notified or a retry has been scheduled.
+   * </p>
+   *
+   * <p>
+   * The back-off periods of {@link HttpBackOffUnsuccessfulResponseHandler},
+   * {@link HttpBackOffIOExceptionHandler} and {@link BackOffPolicy} do not hold any thread: the
+   * next attempt is scheduled after the period on the {@link #getRetryScheduler() retry
+   * scheduler} and then runs on the executor of {@link #getExecutor()} or
+   * {@link HttpTransport#getAsyncExecutor()}, which also notifies the callback. Other handlers
+   * which sleep still block the thread of the attempt.
+   * </p>
+   *
+   * @param callback callback to notify on completion
+   * @since 1.23
+   */
+  @Beta
+  public void executeAsync(final HttpResponseCallback callback) {
+    Preconditions.checkNotNull(callback);
+    final Execution execution = new Execution();
+    execution.attemptAsync(new HttpResponseCallback() {
+
+      public void onResponse(HttpResponse response) {
+        execution.releaseEncodedContent();
+        callback.onResponse(response);
+      }
+
+      public void onFailure(Throwable cause) {
+        execution.releaseEncodedContent();
+        callback.onFailure(cause);
+      }
+    });
+  }
+
+  /**
+   * State of a single execution of this request across all of its attempts, as run by
+   * {@link #execute()} or by {@link #executeAsync(HttpResponseCallback)}.
+   */
+  private final class Execution {
+
+    /** Whether another attempt is required after the current one. */
+    boolean retryRequest;
+
+    /** Number of attempts remaining before the request will be terminated. */
+    int retriesRemaining = numRetries;
+
+    /** HTTP response of the current attempt or {@code null} for none. */
+    HttpResponse response;
+
+    /** I/O exception handled in the current attempt or {@code null} for none. */
     IOException executeException;
 
-    Preconditions.checkNotNull(requestMethod);
-    Preconditions.checkNotNull(url);
+    /** I/O exception thrown by the current attempt or {@code null} for none. */
+    IOException attemptException;
+
+    /** Concurrency limiter slot taken by the current attempt or {@code null} for none. */
+    ConcurrencyLimiter.Permit permit;
+
+    /** Circuit breaker call of the current attempt or {@code null} for none. */
+    CircuitBreaker.Call circuitBreakerCall;
+
+    /** Key of the current attempt in the request coalescer or {@code null} if not coalesced. */
+    String coalescingKey;
 
-    do {
+    /** Content encoded once for all of the attempts or {@code null} for none. */
+    EncodedContent encodedContent;
+
+    /** Content from which {@link #encodedContent} was encoded. */
+    HttpContent encodedContentSource;
+
+    /** Encoding with which {@link #encodedContent} was encoded. */
+    HttpEncoding encodedContentEncoding;
+
+    @SuppressWarnings("deprecation")
+    Execution() {
+      Preconditions.checkArgument(numRetries >= 0);
+      if (backOffPolicy != null) {
+        // Reset the BackOffPolicy at the start of each execute.
+        backOffPolicy.reset();
+      }
+      Preconditions.checkNotNull(requestMethod);
+      Preconditions.checkNotNull(url);
+      if (retryBudget != null) {
+        retryBudget.recordRequest();
+      }
+      deferredBackOffMillis = -1;
+    }
+
+    /** Starts a new attempt and returns the low-level HTTP request to execute for it. */
+    LowLevelHttpRequest startAttempt() throws IOException {
       // Cleanup any unneeded response from a previous iteration
       if (response != null) {
         response.ignore();
@@ -862,10 +1039,11 @@ public final class HttpRequest {
 
       response = null;
       executeException = null;
+      attemptException = null;
 
       // run the interceptor
       if (executeInterceptor != null) {
-        executeInterceptor.intercept(this);
+        executeInterceptor.intercept(HttpRequest.this);
       }
       // build low-level HTTP request
       String urlString = url.build();
@@ -898,12 +1076,22 @@ public final class HttpRequest {
           headers.setUserAgent(originalUserAgent + " " + USER_AGENT_SUFFIX);
         }
       }
+      // negotiate all of the content codings which may be decoded, unless the default was changed
+      Object originalAcceptEncoding = headers.get("Accept-Encoding");
+      boolean negotiateAcceptEncoding =
+          HttpHeaders.DEFAULT_ACCEPT_ENCODING.equals(originalAcceptEncoding);
+      if (negotiateAcceptEncoding) {
+        headers.setAcceptEncoding(contentCodingRegistry.getAcceptEncoding());
+      }
       // headers
       HttpHeaders.serializeHeaders(headers, logbuf, curlbuf, logger, lowLevelHttpRequest);
       if (!suppressUserAgentSuffix) {
         // set the original user agent back so that retries do not keep appending to it
         headers.setUserAgent(originalUserAgent);
       }
+      if (negotiateAcceptEncoding) {
+        headers.set("Accept-Encoding", originalAcceptEncoding);
+      }
 
       // content
       StreamingContent streamingContent = content;
@@ -918,9 +1106,14 @@ public final class HttpRequest {
               streamingContent, HttpTransport.LOGGER, Level.CONFIG, contentLoggingLimit);
         }
         // encoding
-        if (encoding == null) {
+        if (encoding == null || !isEncodingRequired()) {
           contentEncoding = null;
           contentLength = content.getLength();
+        } else if (contentRetrySupported && !loggable) {
+          // encode once, both for the content length and for all of the attempts
+          contentEncoding = encoding.getName();
+          streamingContent = getEncodedContent();
+          contentLength = encodedContent.getLength();
         } else {
           contentEncoding = encoding.getName();
           streamingContent = new HttpEncodingStreamingContent(streamingContent, encoding);
@@ -975,33 +1168,175 @@ public final class HttpRequest {
       // null content is inherently able to be retried
       retryRequest = contentRetrySupported && retriesRemaining > 0;
 
-      // execute
       lowLevelHttpRequest.setTimeout(connectTimeout, readTimeout);
+      coalescingKey = getCoalescingKey(urlString);
+      return lowLevelHttpRequest;
+    }
+
+    /**
+     * Returns whether the content is long enough to be worth encoding, according to the
+     * {@link MinimumLengthEncoding#getMinimumLength() minimum length} of the encoding if any.
+     */
+    private boolean isEncodingRequired() throws IOException {
+      if (!(encoding instanceof MinimumLengthEncoding)) {
+        return true;
+      }
+      long minimumLength = ((MinimumLengthEncoding) encoding).getMinimumLength();
+      if (minimumLength == 0) {
+        return true;
+      }
+      long length = content.getLength();
+      return length < 0 || length >= minimumLength;
+    }
+
+    /**
+     * Returns the content encoded with the encoding, encoding it only if the content or the
+     * encoding changed since the previous attempt.
+     */
+    private EncodedContent getEncodedContent() throws IOException {
+      if (encodedContent != null
+          && (encodedContentSource != content || encodedContentEncoding != encoding)) {
+        releaseEncodedContent();
+      }
+      if (encodedContent == null) {
+        encodedContent = EncodedContent.encode(content, encoding);
+        encodedContentSource = content;
+        encodedContentEncoding = encoding;
+      }
+      return encodedContent;
+    }
+
+    /** Releases the buffer of the encoded content, if any. */
+    void releaseEncodedContent() {
+      if (encodedContent != null) {
+        encodedContent.release();
+        encodedContent = null;
+        encodedContentSource = null;
+        encodedContentEncoding = null;
+      }
+    }
+
+    /**
+     * Returns the key of the current attempt in the request coalescer, made of the method, URL and
+     * headers, or {@code null} if the attempt is not coalesced.
+     */
+    private String getCoalescingKey(String urlString) {
+      if (requestCoalescer == null || content != null
+          || !requestMethod.equals(HttpMethods.GET) && !requestMethod.equals(HttpMethods.HEAD)) {
+        return null;
+      }
+      StringBuilder key = new StringBuilder(requestMethod).append(' ').append(urlString);
+      for (Map.Entry<String, Object> header : new TreeMap<String, Object>(headers).entrySet()) {
+        key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+      }
+      return key.toString();
+    }
+
+    /** Executes the low-level HTTP request of the current attempt, possibly coalesced. */
+    LowLevelHttpResponse executeLowLevel(LowLevelHttpRequest lowLevelHttpRequest)
+        throws IOException {
+      if (coalescingKey == null) {
+        return lowLevelHttpRequest.execute();
+      }
+      return requestCoalescer.execute(coalescingKey, lowLevelHttpRequest);
+    }
+
+    /** Sets the HTTP response of the current attempt from its low-level HTTP response. */
+    void setLowLevelResponse(LowLevelHttpResponse lowLevelHttpResponse) throws IOException {
+      // Flag used to indicate if an exception is thrown before the response is constructed.
+      boolean responseConstructed = false;
       try {
-        LowLevelHttpResponse lowLevelHttpResponse = lowLevelHttpRequest.execute();
-        // Flag used to indicate if an exception is thrown before the response is constructed.
-        boolean responseConstructed = false;
-        try {
-          response = new HttpResponse(this, lowLevelHttpResponse);
-          responseConstructed = true;
-        } finally {
-          if (!responseConstructed) {
-            InputStream lowLevelContent = lowLevelHttpResponse.getContent();
-            if (lowLevelContent != null) {
-              lowLevelContent.close();
-            }
+        response = new HttpResponse(HttpRequest.this, lowLevelHttpResponse);
+        responseConstructed = true;
+      } finally {
+        if (!responseConstructed) {
+          InputStream lowLevelContent = lowLevelHttpResponse.getContent();
+          if (lowLevelContent != null) {
+            lowLevelContent.close();
           }
         }
-      } catch (IOException e) {
-        if (!retryOnExecuteIOException && (ioExceptionHandler == null
-            || !ioExceptionHandler.handleIOException(this, retryRequest))) {
+      }
+    }
+
+    /**
+     * Handles an I/O exception of the current attempt, re-throwing it if it could not be handled.
+     */
+    @SuppressWarnings("deprecation")
+    void handleIOException(IOException e) throws IOException {
+      attemptException = e;
+      if (!(retryOnExecuteIOException && (!retryRequest || spendRetry()))
+          && (ioExceptionHandler == null
+              || !ioExceptionHandler.handleIOException(HttpRequest.this, retryRequest))) {
+        throw e;
+      }
+      // Save the exception in case the retries do not work and we need to re-throw it later.
+      executeException = e;
+      HttpTransport.LOGGER.log(Level.WARNING, "exception thrown while executing request", e);
+    }
+
+    /**
+     * Consults the circuit breaker and takes a slot of the concurrency limiter for the current
+     * attempt, if any.
+     *
+     * @param wait whether to wait for a slot of the concurrency limiter, which asynchronous
+     *        attempts must not do
+     * @throws CircuitBreakerOpenException if the circuit of the host is open
+     * @throws ConcurrencyLimitExceededException if no slot became available
+     */
+    void acquirePermit(boolean wait) throws IOException {
+      String host = url.getHost();
+      if (circuitBreaker != null) {
+        circuitBreakerCall = circuitBreaker.acquire(host);
+      }
+      if (concurrencyLimiter != null) {
+        try {
+          permit = concurrencyLimiter.acquire(host, wait);
+        } catch (IOException e) {
+          cancelPermit();
           throw e;
         }
-        // Save the exception in case the retries do not work and we need to re-throw it later.
-        executeException = e;
-        logger.log(Level.WARNING, "exception thrown while executing request", e);
       }
+    }
+
+    /**
+     * Gives back the slot of the concurrency limiter and cancels the circuit breaker call of an
+     * attempt that was not sent, without recording any outcome.
+     */
+    void cancelPermit() {
+      if (permit != null) {
+        permit.release(-1, null);
+        permit = null;
+      }
+      if (circuitBreakerCall != null) {
+        circuitBreakerCall.cancel();
+        circuitBreakerCall = null;
+      }
+    }
+
+    /**
+     * Records the outcome of the current attempt in the circuit breaker and gives back the slot of
+     * the concurrency limiter, if any.
+     */
+    void releasePermit() {
+      int statusCode = response == null ? -1 : response.getStatusCode();
+      if (permit != null) {
+        permit.release(statusCode, attemptException);
+        permit = null;
+      }
+      if (circuitBreakerCall != null) {
+        circuitBreakerCall.record(statusCode, attemptException);
+        circuitBreakerCall = null;
+      }
+    }
+
+    /** Spends the retry budget of a built-in retry and returns whether it was available. */
+    boolean spendRetry() {
+      return RetryBudget.tryRetry(HttpRequest.this);
+    }
 
+    /** Finishes the current attempt, determining whether another attempt is required. */
+    @SuppressWarnings("deprecation")
+    void finishAttempt() throws IOException {
       // Flag used to indicate if an exception is thrown before the response has completed
       // processing.
       boolean responseProcessed = false;
@@ -1012,7 +1347,8 @@ public final class HttpRequest {
             // Even if we don't have the potential to retry, we might want to run the
             // handler to fix conditions (like expired tokens) that might cause us
             // trouble on our next request
-            errorHandled = unsuccessfulResponseHandler.handleResponse(this, response, retryRequest);
+            errorHandled = unsuccessfulResponseHandler.handleResponse(
+                HttpRequest.this, response, retryRequest);
           }
           if (!errorHandled) {
             if (handleRedirect(response.getStatusCode(), response.getHeaders())) {
@@ -1023,9 +1359,9 @@ public final class HttpRequest {
               // The unsuccessful request's error could not be handled and should be backed off
               // before retrying
               long backOffTime = backOffPolicy.getNextBackOffMillis();
-              if (backOffTime != BackOffPolicy.STOP) {
+              if (backOffTime != BackOffPolicy.STOP && spendRetry()) {
                 try {
-                  sleeper.sleep(backOffTime);
+                  backOff(HttpRequest.this, sleeper, backOffTime);
                 } catch (InterruptedException exception) {
                   // ignore
                 }
@@ -1054,25 +1390,180 @@ public final class HttpRequest {
           response.disconnect();
         }
       }
-    } while (retryRequest);
+    }
 
-    if (response == null) {
-      // Retries did not help resolve the execute exception, re-throw it.
-      throw executeException;
+    /** Completes the execution after the last attempt and returns the HTTP response. */
+    HttpResponse complete() throws IOException {
+      if (response == null) {
+        // Retries did not help resolve the execute exception, re-throw it.
+        throw executeException;
+      }
+      // response interceptor
+      if (responseInterceptor != null) {
+        responseInterceptor.interceptResponse(response);
+      }
+      // throw an exception if unsuccessful response
+      if (throwExceptionOnExecuteError && !response.isSuccessStatusCode()) {
+        try {
+          throw new HttpResponseException(response);
+        } finally {
+          response.disconnect();
+        }
+      }
+      return response;
     }
-    // response interceptor
-    if (responseInterceptor != null) {
-      responseInterceptor.interceptResponse(response);
+
+    /** Runs the next attempt asynchronously, notifying the callback once no retry is required. */
+    void attemptAsync(final HttpResponseCallback callback) {
+      LowLevelHttpRequest lowLevelHttpRequest;
+      try {
+        lowLevelHttpRequest = startAttempt();
+        acquirePermit(false);
+      } catch (IOException e) {
+        callback.onFailure(e);
+        return;
+      } catch (RuntimeException e) {
+        callback.onFailure(e);
+        return;
+      }
+      // back-off handlers of this attempt defer their period to the retry scheduler
+      deferredBackOffMillis = 0;
+      LowLevelHttpResponseCallback lowLevelCallback = new LowLevelHttpResponseCallback() {
+
+        public void onResponse(LowLevelHttpResponse lowLevelHttpResponse) {
+          try {
+            try {
+              setLowLevelResponse(lowLevelHttpResponse);
+            } catch (IOException e) {
+              handleIOException(e);
+            } finally {
+              releasePermit();
+            }
+          } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+          } catch (RuntimeException e) {
+            callback.onFailure(e);
+            return;
+          }
+          finishAttemptAsync(callback);
+        }
+
+        public void onFailure(IOException exception) {
+          try {
+            try {
+              handleIOException(exception);
+            } finally {
+              releasePermit();
+            }
+          } catch (IOException e) {
+            callback.onFailure(e);
+            return;
+          } catch (RuntimeException e) {
+            callback.onFailure(e);
+            return;
+          }
+          finishAttemptAsync(callback);
+        }
+      };
+      try {
+        if (coalescingKey == null) {
+          lowLevelHttpRequest.executeAsync(lowLevelCallback);
+        } else {
+          requestCoalescer.executeAsync(coalescingKey, lowLevelHttpRequest, lowLevelCallback);
+        }
+      } catch (RuntimeException e) {
+        deferredBackOffMillis = -1;
+        cancelPermit();
+        callback.onFailure(e);
+      }
     }
-    // throw an exception if unsuccessful response
-    if (throwExceptionOnExecuteError && !response.isSuccessStatusCode()) {
+
+    /**
+     * Finishes the current asynchronous attempt, either retrying, possibly after the deferred
+     * back-off period, or notifying the callback.
+     */
+    void finishAttemptAsync(HttpResponseCallback callback) {
+      HttpResponse result;
       try {
-        throw new HttpResponseException(response);
-      } finally {
-        response.disconnect();
+        long backOffMillis;
+        try {
+          finishAttempt();
+        } finally {
+          backOffMillis = deferredBackOffMillis;
+          deferredBackOffMillis = -1;
+        }
+        if (retryRequest) {
+          if (backOffMillis > 0) {
+            scheduleAttemptAsync(callback, backOffMillis);
+          } else {
+            attemptAsync(callback);
+          }
+          return;
+        }
+        result = complete();
+      } catch (IOException e) {
+        callback.onFailure(e);
+        return;
+      } catch (RuntimeException e) {
+        callback.onFailure(e);
+        return;
+      }
+      callback.onResponse(result);
+    }
+
+    /**
+     * Schedules the next asynchronous attempt on the retry scheduler after the given back-off
+     * period, without holding any thread while waiting, and runs it on the executor.
+     */
+    void scheduleAttemptAsync(final HttpResponseCallback callback, long delayMillis) {
+      final Executor attemptExecutor =
+          executor == null ? transport.getAsyncExecutor() : executor;
+      ScheduledExecutorService scheduler =
+          retryScheduler == null ? transport.getRetryScheduler() : retryScheduler;
+      try {
+        scheduler.schedule(new Runnable() {
+
+          public void run() {
+            try {
+              attemptExecutor.execute(new Runnable() {
+
+                public void run() {
+                  attemptAsync(callback);
+                }
+              });
+            } catch (RejectedExecutionException e) {
+              callback.onFailure(e);
+            }
+          }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        callback.onFailure(e);
       }
     }
-    return response;
+  }
+
+  /**
+   * Waits for the given back-off period before the next attempt of the given request.
+   *
+   * <p>
+   * During an attempt of {@link #executeAsync(HttpResponseCallback)} the period is deferred, and
+   * the next attempt is scheduled after it on the {@link #getRetryScheduler() retry scheduler}.
+   * Otherwise, or if the request is {@code null}, the current thread sleeps with the given sleeper.
+   * There is no back-off for a request abandoned by the hedging policy.
+   * </p>
+   */
+  static void backOff(HttpRequest request, Sleeper sleeper, long backOffMillis)
+      throws InterruptedException {
+    if (request != null && request.abandoned) {
+      // no further attempt will be made
+      return;
+    }
+    if (request != null && request.deferredBackOffMillis >= 0) {
+      request.deferredBackOffMillis = Math.max(request.deferredBackOffMillis, backOffMillis);
+    } else {
+      sleeper.sleep(backOffMillis);
+    }
   }
 
   /**
@@ -1097,15 +1588,96 @@ public final class HttpRequest {
 
   /**
    * {@link Beta} <br/>
-   * Executes this request asynchronously using {@link #executeAsync(Executor)} in a single separate
-   * thread using {@link Executors#newSingleThreadExecutor()}.
+   * Executes this request asynchronously using {@link #executeFuture()}.
+   *
+   * <p>
+   * Upgrade warning: in prior version 1.22 this method created a new single thread executor for
+   * each call, which was never shut down. Starting with version 1.23 it uses the executor of
+   * {@link #getExecutor()} or {@link HttpTransport#getAsyncExecutor()}.
+   * </p>
    *
    * @return A future for accessing the results of the asynchronous request.
    * @since 1.13
    */
   @Beta
   public Future<HttpResponse> executeAsync() {
-    return executeAsync(Executors.newSingleThreadExecutor());
+    return executeFuture();
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Executes this request asynchronously and returns a future of the HTTP response.
+   *
+   * <p>
+   * The request is executed with {@link #executeAsync(HttpResponseCallback)} on the executor of
+   * {@link #getExecutor()}, or of {@link HttpTransport#getAsyncExecutor()} if {@code null}, which
+   * is also used for the callbacks and transformations of the returned future. For a transport
+   * based on non-blocking I/O, no thread of the executor is blocked while waiting for the
+   * response. If the future is cancelled before the response is received, the response is
+   * disconnected.
+   * </p>
+   *
+   * @return future of the HTTP response
+   * @since 1.23
+   */
+  @Beta
+  public HttpFuture<HttpResponse> executeFuture() {
+    Executor executor = this.executor == null ? transport.getAsyncExecutor() : this.executor;
+    final HttpFuture<HttpResponse> future = new HttpFuture<HttpResponse>(executor);
+    try {
+      executor.execute(new Runnable() {
+
+        public void run() {
+          if (future.isDone()) {
+            return;
+          }
+          try {
+            executeAsync(new HttpResponseCallback() {
+
+              public void onResponse(HttpResponse response) {
+                if (!future.set(response)) {
+                  try {
+                    response.disconnect();
+                  } catch (IOException e) {
+                    HttpTransport.LOGGER.log(
+                        Level.FINE, "exception thrown while disconnecting response", e);
+                  }
+                }
+              }
+
+              public void onFailure(Throwable exception) {
+                future.setException(exception);
+              }
+            });
+          } catch (RuntimeException e) {
+            future.setException(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      future.setException(e);
+    }
+    return future;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Executes this request asynchronously with {@link #executeFuture()} and returns a future of
+   * the response content parsed with {@link HttpResponse#parseAs(Class)} on the executor.
+   *
+   * @param dataClass class of the data to parse into
+   * @return future of the parsed data
+   * @since 1.23
+   */
+  @Beta
+  public <T> HttpFuture<T> parseAsAsync(final Class<T> dataClass) {
+    Preconditions.checkNotNull(dataClass);
+    return executeFuture().transform(new HttpFuture.Transformer<HttpResponse, T>() {
+
+      public T apply(HttpResponse response) throws IOException {
+        return response.parseAs(dataClass);
+      }
+    });
   }
 
   /**
@@ -1169,4 +1741,353 @@ public final class HttpRequest {
     this.sleeper = Preconditions.checkNotNull(sleeper);
     return this;
   }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the executor of asynchronous executions and of their callbacks, or {@code null} for
+   * {@link HttpTransport#getAsyncExecutor()}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the executor of asynchronous executions and of their callbacks, or {@code null} for
+   * {@link HttpTransport#getAsyncExecutor()}.
+   *
+   * <p>
+   * To use the same executor for all requests of a request factory, set it in its
+   * {@link HttpRequestInitializer}.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setExecutor(Executor executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the hedging policy or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HedgingPolicy getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the hedging policy or {@code null} for none.
+   *
+   * <p>
+   * With a hedging policy, {@link #execute()} of an idempotent request runs on the executor of
+   * {@link #getExecutor()} or {@link HttpTransport#getAsyncExecutor()} and may be raced against a
+   * duplicate request, as described in {@link HedgingPolicy}. It must therefore not be called from
+   * a thread of that executor. The interceptors and handlers of this request are shared by the
+   * duplicate requests and must be thread-safe. Asynchronous executions are not hedged.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+    this.hedgingPolicy = hedgingPolicy;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns whether the request is marked as idempotent even though its method is not safe.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public boolean isIdempotent() {
+    return idempotent;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets whether the request is idempotent even though its method is not safe, for example a
+   * {@code PUT} request that may be sent twice, which allows it to be hedged.
+   *
+   * <p>
+   * The default value is {@code false}. {@code GET} and {@code HEAD} requests are always
+   * considered idempotent.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setIdempotent(boolean idempotent) {
+    this.idempotent = idempotent;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the concurrency limiter or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the concurrency limiter or {@code null} for none.
+   *
+   * <p>
+   * Each attempt of the request takes a slot of the host from the limiter before it is sent, as
+   * described in {@link ConcurrencyLimiter}, and {@link #execute()} throws a
+   * {@link ConcurrencyLimitExceededException} if none became available. The default value is the
+   * concurrency limiter of the {@link HttpRequestFactory} if any.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    this.concurrencyLimiter = concurrencyLimiter;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the circuit breaker or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public CircuitBreaker getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the circuit breaker or {@code null} for none.
+   *
+   * <p>
+   * The circuit breaker is consulted before each attempt of the request is sent, as described in
+   * {@link CircuitBreaker}, and {@link #execute()} throws a {@link CircuitBreakerOpenException}
+   * without sending the attempt if the circuit of the host is open.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the retry budget or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public RetryBudget getRetryBudget() {
+    return retryBudget;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the retry budget shared with other requests or {@code null} for none.
+   *
+   * <p>
+   * Each execution of the request is recorded in the budget, and retries are only made while the
+   * budget allows them, as described in {@link RetryBudget}.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setRetryBudget(RetryBudget retryBudget) {
+    this.retryBudget = retryBudget;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the scheduler of the back-off periods between asynchronous attempts, or {@code null}
+   * for {@link HttpTransport#getRetryScheduler()}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ScheduledExecutorService getRetryScheduler() {
+    return retryScheduler;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the scheduler of the back-off periods between asynchronous attempts, or {@code null} for
+   * {@link HttpTransport#getRetryScheduler()}.
+   *
+   * <p>
+   * The scheduler only hands the next attempts over to the executor once their back-off period
+   * has elapsed, as described in {@link #executeAsync(HttpResponseCallback)}, so a single thread is
+   * enough for many requests.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setRetryScheduler(ScheduledExecutorService retryScheduler) {
+    this.retryScheduler = retryScheduler;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns whether to resume the response content with a ranged request when reading it fails.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public boolean getResumeContentOnIOException() {
+    return resumeContentOnIOException;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets whether to resume the response content with a ranged request when reading it fails.
+   *
+   * <p>
+   * If enabled, an {@link IOException} thrown while reading the {@link HttpResponse#getContent()
+   * content} of a successful {@code GET} response, for example because the connection broke, is
+   * handled by the {@link #getIOExceptionHandler() I/O exception handler}, such as
+   * {@link HttpBackOffIOExceptionHandler} with its {@link com.google.api.client.util.BackOff}. If
+   * it allows a retry, a copy of this request is executed with a {@code "Range"} header starting
+   * from the last byte read, and an {@code "If-Range"} header set to the {@code "ETag"} or
+   * {@code "Last-Modified"} header of the response, and reading continues transparently from its
+   * content. The content of a {@code 206} response is resumed within the range of its
+   * {@code "Content-Range"} header. The content is resumed at most {@link #getNumberOfRetries()}
+   * times. Responses without any of these headers cannot be resumed. If the content changed,
+   * reading fails with an {@link IOException}.
+   * </p>
+   *
+   * <p>
+   * The default value is {@code false}.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setResumeContentOnIOException(boolean resumeContentOnIOException) {
+    this.resumeContentOnIOException = resumeContentOnIOException;
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the registry of the content codings used to decode the response content, which
+   * defaults to {@link ContentCodingRegistry#getDefault()}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ContentCodingRegistry getContentCodingRegistry() {
+    return contentCodingRegistry;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the registry of the content codings used to decode the response content, which defaults
+   * to {@link ContentCodingRegistry#getDefault()}.
+   *
+   * <p>
+   * Unless the {@code "Accept-Encoding"} header has been changed from its default value of
+   * {@code "gzip"}, it is sent as {@link ContentCodingRegistry#getAcceptEncoding()}.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setContentCodingRegistry(ContentCodingRegistry contentCodingRegistry) {
+    this.contentCodingRegistry = Preconditions.checkNotNull(contentCodingRegistry);
+    return this;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the coalescer of identical concurrent requests or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public RequestCoalescer getRequestCoalescer() {
+    return requestCoalescer;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Sets the coalescer of identical concurrent requests or {@code null} for none.
+   *
+   * <p>
+   * The attempts of a {@code GET} or {@code HEAD} request without content are coalesced with the
+   * identical attempts in flight of other requests with the same coalescer, as described in
+   * {@link RequestCoalescer}. Requests executed with a {@link #setHedgingPolicy hedging policy}
+   * are not coalesced, since their duplicates are meant to reach the server.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequest setRequestCoalescer(RequestCoalescer requestCoalescer) {
+    this.requestCoalescer = requestCoalescer;
+    return this;
+  }
+
+  /**
+   * Returns a copy of this request without hedging policy for the given number of retries, with
+   * copies of the URL and of the request and response headers.
+   */
+  @SuppressWarnings("deprecation")
+  HttpRequest copy(int numRetries) {
+    HttpRequest copy = new HttpRequest(transport, requestMethod);
+    copy.executeInterceptor = executeInterceptor;
+    copy.headers = headers.clone();
+    copy.responseHeaders = responseHeaders.clone();
+    copy.numRetries = numRetries;
+    copy.contentLoggingLimit = contentLoggingLimit;
+    copy.loggingEnabled = loggingEnabled;
+    copy.curlLoggingEnabled = curlLoggingEnabled;
+    copy.content = content;
+    copy.url = url.clone();
+    copy.connectTimeout = connectTimeout;
+    copy.readTimeout = readTimeout;
+    copy.unsuccessfulResponseHandler = unsuccessfulResponseHandler;
+    copy.ioExceptionHandler = ioExceptionHandler;
+    copy.responseInterceptor = responseInterceptor;
+    copy.objectParser = objectParser;
+    copy.encoding = encoding;
+    copy.backOffPolicy = backOffPolicy;
+    copy.followRedirects = followRedirects;
+    copy.throwExceptionOnExecuteError = throwExceptionOnExecuteError;
+    copy.retryOnExecuteIOException = retryOnExecuteIOException;
+    copy.suppressUserAgentSuffix = suppressUserAgentSuffix;
+    copy.sleeper = sleeper;
+    copy.executor = executor;
+    copy.idempotent = idempotent;
+    copy.concurrencyLimiter = concurrencyLimiter;
+    copy.circuitBreaker = circuitBreaker;
+    copy.retryBudget = retryBudget;
+    copy.retryScheduler = retryScheduler;
+    copy.contentCodingRegistry = contentCodingRegistry;
+    copy.resumeContentOnIOException = resumeContentOnIOException;
+    return copy;
+  }
 }
@@ -14,8 +14,9 @@
 
 package com.google.api.client.http;
 
-import java.io.IOException;
+import com.google.api.client.util.Beta;
 
+import java.io.IOException;
 
 /**
  * Thread-safe light-weight HTTP request factory layer on top of the HTTP transport that has an
@@ -46,13 +47,32 @@ public final class HttpRequestFactory {
   /** HTTP request initializer or {@code null} for none. */
   private final HttpRequestInitializer initializer;
 
+  /** Concurrency limiter of the built requests or {@code null} for none. */
+  private final ConcurrencyLimiter concurrencyLimiter;
+
+  /** Coalescer of the built requests or {@code null} for none. */
+  private final RequestCoalescer requestCoalescer;
+
   /**
    * @param transport HTTP transport
    * @param initializer HTTP request initializer or {@code null} for none
    */
   HttpRequestFactory(HttpTransport transport, HttpRequestInitializer initializer) {
+    this(transport, initializer, null, null);
+  }
+
+  /**
+   * @param transport HTTP transport
+   * @param initializer HTTP request initializer or {@code null} for none
+   * @param concurrencyLimiter concurrency limiter of the built requests or {@code null} for none
+   * @param requestCoalescer coalescer of the built requests or {@code null} for none
+   */
+  HttpRequestFactory(HttpTransport transport, HttpRequestInitializer initializer,
+      ConcurrencyLimiter concurrencyLimiter, RequestCoalescer requestCoalescer) {
     this.transport = transport;
     this.initializer = initializer;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.requestCoalescer = requestCoalescer;
   }
 
   /**
@@ -77,6 +97,75 @@ public final class HttpRequestFactory {
     return initializer;
   }
 
+  /**
+   * {@link Beta} <br/>
+   * Returns the concurrency limiter of the built requests or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ConcurrencyLimiter getConcurrencyLimiter() {
+    return concurrencyLimiter;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns a request factory with the same transport and initializer as this one, which sets the
+   * given concurrency limiter on the requests it builds before invoking the initializer.
+   *
+   * <p>
+   * Sample usage:
+   * </p>
+   *
+   * <pre>
+  HttpRequestFactory requestFactory = transport.createRequestFactory(initializer)
+      .withConcurrencyLimiter(new ConcurrencyLimiter.Builder().setMaxQueueSize(0).build());
+   * </pre>
+   *
+   * @param concurrencyLimiter concurrency limiter or {@code null} for none
+   * @return new request factory
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequestFactory withConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    return new HttpRequestFactory(transport, initializer, concurrencyLimiter, requestCoalescer);
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the coalescer of the built requests or {@code null} for none.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public RequestCoalescer getRequestCoalescer() {
+    return requestCoalescer;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns a request factory with the same transport, initializer and concurrency limiter as this
+   * one, which sets the given coalescer on the requests it builds before invoking the initializer,
+   * so that identical {@code GET} requests executed concurrently share a single flight.
+   *
+   * <p>
+   * Sample usage:
+   * </p>
+   *
+   * <pre>
+  HttpRequestFactory requestFactory = transport.createRequestFactory(initializer)
+      .withRequestCoalescer(new RequestCoalescer());
+   * </pre>
+   *
+   * @param requestCoalescer request coalescer or {@code null} for none
+   * @return new request factory
+   * @since 1.23
+   */
+  @Beta
+  public HttpRequestFactory withRequestCoalescer(RequestCoalescer requestCoalescer) {
+    return new HttpRequestFactory(transport, initializer, concurrencyLimiter, requestCoalescer);
+  }
+
   /**
    * Builds a request for the given HTTP method, URL, and content.
    *
@@ -89,6 +178,8 @@ public final class HttpRequestFactory {
   public HttpRequest buildRequest(String requestMethod, GenericUrl url, HttpContent content)
       throws IOException {
     HttpRequest request = transport.buildRequest();
+    request.setConcurrencyLimiter(concurrencyLimiter);
+    request.setRequestCoalescer(requestCoalescer);
     if (initializer != null) {
       initializer.initialize(request);
     }
@@ -102,6 +193,21 @@ public final class HttpRequestFactory {
     return request;
   }
 
+  /**
+   * {@link Beta} <br/>
+   * Builds a batch request for the given batch endpoint URL, which sends queued requests of this
+   * factory or of any other factory in a single {@code multipart/mixed} request built by this
+   * factory.
+   *
+   * @param batchUrl URL of the batch endpoint
+   * @return new batch request
+   * @since 1.23
+   */
+  @Beta
+  public BatchRequest buildBatchRequest(GenericUrl batchUrl) {
+    return new BatchRequest(this, batchUrl);
+  }
+
   /**
    * Builds a {@code DELETE} request for the given URL.
    *
@@ -14,6 +14,8 @@
 
 package com.google.api.client.http;
 
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.BufferPool;
 import com.google.api.client.util.Charsets;
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.LoggingInputStream;
@@ -26,10 +28,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.GZIPInputStream;
 
 /**
  * HTTP response.
@@ -116,6 +120,9 @@ public final class HttpResponse {
   /** Signals whether the content has been read from the input stream. */
   private boolean contentRead;
 
+  /** Channel of the content or {@code null} before {@link #getContentChannel()}. */
+  private ReadableByteChannel contentChannel;
+
   HttpResponse(HttpRequest request, LowLevelHttpResponse response) throws IOException {
     this.request = request;
     contentLoggingLimit = request.getContentLoggingLimit();
@@ -357,11 +364,14 @@ public final class HttpResponse {
         // processed.
         boolean contentProcessed = false;
         try {
-          // gzip encoding (wrap content with GZipInputStream)
-          String contentEncoding = this.contentEncoding;
-          if (contentEncoding != null && contentEncoding.contains("gzip")) {
-            lowLevelResponseContent = new GZIPInputStream(lowLevelResponseContent);
+          // resume the raw content on failure
+          if (request.getResumeContentOnIOException() && isSuccessStatusCode()
+              && HttpMethods.GET.equals(request.getRequestMethod())) {
+            lowLevelResponseContent = ResumableInputStream.wrap(this, lowLevelResponseContent);
           }
+          // content codings (for example wrap content with GZipInputStream)
+          lowLevelResponseContent = request.getContentCodingRegistry()
+              .decode(contentEncoding, lowLevelResponseContent);
           // logging (wrap content with LoggingInputStream)
           Logger logger = HttpTransport.LOGGER;
           if (loggingEnabled && logger.isLoggable(Level.CONFIG)) {
@@ -384,6 +394,12 @@ public final class HttpResponse {
     return content;
   }
 
+  /** Returns the raw content of the low-level HTTP response, without decoding or logging. */
+  InputStream getRawContent() throws IOException {
+    contentRead = true;
+    return response.getContent();
+  }
+
   /**
    * Writes the content of the HTTP response into the given destination output stream.
    *
@@ -405,7 +421,8 @@ public final class HttpResponse {
    * </p>
    *
    * <p>
-   * This method closes the content of the HTTP response from {@link #getContent()}.
+   * This method closes the content of the HTTP response from {@link #getContent()}. The content
+   * is copied through a buffer from the {@link BufferPool#getBulk() bulk transfer buffer pool}.
    * </p>
    *
    * <p>
@@ -418,7 +435,68 @@ public final class HttpResponse {
    */
   public void download(OutputStream outputStream) throws IOException {
     InputStream inputStream = getContent();
-    IOUtils.copy(inputStream, outputStream);
+    IOUtils.copy(inputStream, outputStream, true, BufferPool.getBulk());
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the content of the HTTP response as a readable byte channel, which reads the content
+   * into caller-supplied byte buffers, or {@code null} for none.
+   *
+   * <p>
+   * The channel reads the same content as {@link #getContent()}, and closing it closes the content.
+   * If the content stream of the transport is itself a readable byte channel, as for
+   * {@link com.google.api.client.http.nio.NioHttpTransport}, and the content is neither decoded nor
+   * logged, that stream is returned, so that the bytes are copied from the transport directly into
+   * the buffers.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ReadableByteChannel getContentChannel() throws IOException {
+    if (contentChannel == null) {
+      InputStream inputStream = getContent();
+      if (inputStream == null) {
+        return null;
+      }
+      contentChannel = inputStream instanceof ReadableByteChannel
+          ? (ReadableByteChannel) inputStream : Channels.newChannel(inputStream);
+    }
+    return contentChannel;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Reads the content of the HTTP response from {@link #getContentChannel()} into the given byte
+   * buffers in order, until all of them are full or the content ends.
+   *
+   * <p>
+   * This method does not close the content, so that it may be called again to read the rest of
+   * the content.
+   * </p>
+   *
+   * @param buffers byte buffers
+   * @return number of bytes read, or {@code -1} if the content had already ended
+   * @since 1.23
+   */
+  @Beta
+  public long readContent(ByteBuffer... buffers) throws IOException {
+    ReadableByteChannel channel = getContentChannel();
+    if (channel == null) {
+      return -1;
+    }
+    long total = 0;
+    for (ByteBuffer buffer : buffers) {
+      while (buffer.hasRemaining()) {
+        int count = channel.read(buffer);
+        if (count == -1) {
+          return total == 0 ? -1 : total;
+        }
+        total += count;
+      }
+    }
+    return total;
   }
 
   /**
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+/**
+ * {@link Beta} <br/>
+ * Callback notified on completion of {@link HttpRequest#executeAsync(HttpResponseCallback)}.
+ *
+ * <p>
+ * Exactly one of the methods is called exactly once for each asynchronous execution. Sample usage:
+ * </p>
+ *
+ * <pre>
+  request.executeAsync(new HttpResponseCallback() {
+
+    public void onResponse(HttpResponse response) {
+      try {
+        // process the HTTP response object
+      } finally {
+        response.disconnect();
+      }
+    }
+
+    public void onFailure(Throwable cause) {
+      // handle the I/O exception, HTTP response exception, or unexpected runtime exception
+    }
+  });
+ * </pre>
+ *
+ * <p>
+ * Implementations should not block for long periods of time, because they may be called from a
+ * thread shared by many requests.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public interface HttpResponseCallback {
+
+  /**
+   * Invoked with the HTTP response, which is either a successful response or an HTTP error response
+   * if {@link HttpRequest#getThrowExceptionOnExecuteError()} is {@code false}.
+   *
+   * <p>
+   * Callers should call {@link HttpResponse#disconnect} when the HTTP response object is no longer
+   * needed, just like for {@link HttpRequest#execute()}.
+   * </p>
+   *
+   * @param response HTTP response
+   */
+  void onResponse(HttpResponse response);
+
+  /**
+   * Invoked when the execution failed, for example with the {@link java.io.IOException} or
+   * {@link HttpResponseException} that {@link HttpRequest#execute()} would have thrown.
+   *
+   * @param cause cause of the failure
+   */
+  void onFailure(Throwable cause);
+}
@@ -36,6 +36,13 @@ public class HttpStatusCodes {
    */
   public static final int STATUS_CODE_NO_CONTENT = 204;
 
+  /**
+   * Status code for a successful request whose content is the requested range of the resource.
+   *
+   * @since 1.23
+   */
+  public static final int STATUS_CODE_PARTIAL_CONTENT = 206;
+
   /** Status code for a resource corresponding to any one of a set of representations. */
   public static final int STATUS_CODE_MULTIPLE_CHOICES = 300;
 
@@ -78,6 +85,13 @@ public class HttpStatusCodes {
   /** Status code for a request for which one of the conditions it was made under has failed. */
   public static final int STATUS_CODE_PRECONDITION_FAILED = 412;
 
+  /**
+   * Status code for a client that has sent too many requests in a given amount of time.
+   *
+   * @since 1.23
+   */
+  public static final int STATUS_CODE_TOO_MANY_REQUESTS = 429;
+
   /** Status code for an internal server error. */
   public static final int STATUS_CODE_SERVER_ERROR = 500;
 
@@ -14,8 +14,18 @@
 
 package com.google.api.client.http;
 
+import com.google.api.client.util.Beta;
+
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -148,6 +158,82 @@ public abstract class HttpTransport {
    */
   protected abstract LowLevelHttpRequest buildRequest(String method, String url) throws IOException;
 
+  /**
+   * {@link Beta} <br/>
+   * Returns the executor used by default to execute requests asynchronously and to notify their
+   * callbacks, as used by {@link HttpRequest#executeFuture()} unless
+   * {@link HttpRequest#setExecutor} has been called.
+   *
+   * <p>
+   * Default implementation returns an executor shared by all transports, with a bounded number of
+   * daemon threads of twice the number of available processors, but at least {@code 4}, and an
+   * unbounded queue of pending tasks. Subclasses may override.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public Executor getAsyncExecutor() {
+    return DefaultAsyncExecutorHolder.EXECUTOR;
+  }
+
+  /** Lazy holder of the default asynchronous executor. */
+  private static final class DefaultAsyncExecutorHolder {
+
+    static final Executor EXECUTOR = newDefaultAsyncExecutor();
+
+    private static Executor newDefaultAsyncExecutor() {
+      int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+      final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+      final AtomicInteger threadCount = new AtomicInteger();
+      return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+              Thread thread = threadFactory.newThread(runnable);
+              thread.setName("google-http-client-async-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the scheduler used by default to wait for the back-off period between the attempts of
+   * requests executed asynchronously, as used by {@link HttpRequest#executeAsync(
+   * HttpResponseCallback)} unless {@link HttpRequest#setRetryScheduler} has been called.
+   *
+   * <p>
+   * Default implementation returns a scheduler shared by all transports, with a single daemon
+   * thread which only hands the next attempts over to their executor. Subclasses may override.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public ScheduledExecutorService getRetryScheduler() {
+    return DefaultRetrySchedulerHolder.SCHEDULER;
+  }
+
+  /** Lazy holder of the default retry scheduler. */
+  private static final class DefaultRetrySchedulerHolder {
+
+    static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+          private final ThreadFactory threadFactory = Executors.defaultThreadFactory();
+
+          public Thread newThread(Runnable runnable) {
+            Thread thread = threadFactory.newThread(runnable);
+            thread.setName("google-http-client-retry");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
   /**
    * Default implementation does nothing, but subclasses may override to possibly release allocated
    * system resources or close connections.
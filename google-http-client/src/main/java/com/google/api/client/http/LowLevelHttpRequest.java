@@ -14,6 +14,7 @@
 
 package com.google.api.client.http;
 
+import com.google.api.client.util.Beta;
 import com.google.api.client.util.StreamingContent;
 
 import java.io.IOException;
@@ -161,4 +162,29 @@ public abstract class LowLevelHttpRequest {
 
   /** Executes the request and returns a low-level HTTP response object. */
   public abstract LowLevelHttpResponse execute() throws IOException;
+
+  /**
+   * {@link Beta} <br/>
+   * Executes the request and notifies the given callback with the low-level HTTP response object.
+   *
+   * <p>
+   * Default implementation calls {@link #execute()} on the calling thread and then notifies the
+   * callback, but subclasses based on non-blocking I/O should override to return immediately and
+   * notify the callback once the response is available.
+   * </p>
+   *
+   * @param callback callback to notify on completion
+   * @since 1.23
+   */
+  @Beta
+  public void executeAsync(LowLevelHttpResponseCallback callback) {
+    LowLevelHttpResponse response;
+    try {
+      response = execute();
+    } catch (IOException exception) {
+      callback.onFailure(exception);
+      return;
+    }
+    callback.onResponse(response);
+  }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.io.IOException;
+
+/**
+ * {@link Beta} <br/>
+ * Callback notified on completion of {@link LowLevelHttpRequest#executeAsync}.
+ *
+ * <p>
+ * Exactly one of the methods is called exactly once for each asynchronous execution. Transports
+ * based on non-blocking I/O invoke it from one of their own threads, so implementations must not
+ * block for long periods of time.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public interface LowLevelHttpResponseCallback {
+
+  /**
+   * Invoked when the low-level HTTP response has been received.
+   *
+   * @param response low-level HTTP response
+   */
+  void onResponse(LowLevelHttpResponse response);
+
+  /**
+   * Invoked when the low-level HTTP request failed with an I/O exception.
+   *
+   * @param exception I/O exception
+   */
+  void onFailure(IOException exception);
+}
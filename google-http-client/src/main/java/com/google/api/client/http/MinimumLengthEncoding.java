@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+/**
+ * {@link Beta} <br/>
+ * HTTP content encoding which is only worth applying to content of a minimum length, since the
+ * encoding of small content costs more than it saves.
+ *
+ * <p>
+ * {@link HttpRequest} sends content whose {@link HttpContent#getLength() length} is known and less
+ * than {@link #getMinimumLength()} without encoding.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public interface MinimumLengthEncoding extends HttpEncoding {
+
+  /** Returns the minimum content length in bytes for the content to be encoded. */
+  long getMinimumLength();
+}
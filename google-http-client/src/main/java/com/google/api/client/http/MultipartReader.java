@@ -0,0 +1,399 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.StringUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link Beta} <br/>
+ * Streaming reader of the parts of a multipart content, as specified in <a
+ * href="http://tools.ietf.org/html/rfc2046#section-5.1">RFC 2046 section 5.1</a>.
+ *
+ * <p>
+ * Parts are read in turn with {@link #nextPart()}, each one exposing its headers and its content as
+ * an input stream that ends at the next delimiter. The delimiters are searched for in a fixed size
+ * buffer, so memory usage is constant regardless of the size of the parts. Reading the next part
+ * skips the unread content of the current one, after which the input stream of the current part
+ * returns end of stream.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  MultipartReader reader = new MultipartReader(response);
+  try {
+    MultipartReader.Part part;
+    while ((part = reader.nextPart()) != null) {
+      String contentType = part.getHeaders().getContentType();
+      InputStream content = part.getContent();
+      ...
+    }
+  } finally {
+    reader.close();
+  }
+ * </pre>
+ *
+ * <p>
+ * Line terminators are expected to be {@code "\r\n"}, but a bare {@code "\n"} is also accepted.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class MultipartReader {
+
+  /** Minimum size of the buffer used to search for delimiters. */
+  private static final int MIN_BUFFER_SIZE = 8192;
+
+  /** Multipart content. */
+  private final InputStream in;
+
+  /** Delimiter to search for, starting with the line feed that precedes it. */
+  private final byte[] delimiter;
+
+  /** Buffer of bytes read from the multipart content. */
+  private final byte[] buffer;
+
+  /** Index of the next byte to read in the buffer. */
+  private int position;
+
+  /** Index after the last byte read in the buffer. */
+  private int limit;
+
+  /** Whether the end of the multipart content has been reached. */
+  private boolean endOfStream;
+
+  /** Whether the delimiter ending the current part (or the preamble) has been reached. */
+  private boolean delimiterReached;
+
+  /** Whether the close delimiter has been reached or there are no more parts. */
+  private boolean done;
+
+  /** Index of the current part or {@code -1} for the preamble. */
+  private int partIndex = -1;
+
+  /**
+   * @param response HTTP response with a multipart content type
+   * @throws IllegalArgumentException if the content type has no boundary
+   */
+  public MultipartReader(HttpResponse response) throws IOException {
+    this(contentOf(response), boundaryOf(response));
+  }
+
+  /**
+   * @param in multipart content
+   * @param boundary boundary of the parts
+   */
+  public MultipartReader(InputStream in, String boundary) {
+    this.in = Preconditions.checkNotNull(in);
+    Preconditions.checkArgument(boundary.length() != 0, "empty boundary");
+    delimiter = StringUtils.getBytesUtf8("\n--" + boundary);
+    buffer = new byte[Math.max(MIN_BUFFER_SIZE, 2 * delimiter.length)];
+    // the first delimiter may be at the very beginning of the content
+    buffer[0] = '\n';
+    limit = 1;
+  }
+
+  private static InputStream contentOf(HttpResponse response) throws IOException {
+    InputStream content = response.getContent();
+    return content == null ? new ByteArrayInputStream(new byte[0]) : content;
+  }
+
+  private static String boundaryOf(HttpResponse response) {
+    HttpMediaType mediaType = response.getMediaType();
+    String boundary = mediaType == null ? null : mediaType.getParameter("boundary");
+    Preconditions.checkArgument(
+        boundary != null, "no multipart boundary in content type: %s", response.getContentType());
+    return boundary;
+  }
+
+  /**
+   * Returns the next part or {@code null} if there are no more parts.
+   *
+   * <p>
+   * The unread content of the current part is skipped.
+   * </p>
+   */
+  public Part nextPart() throws IOException {
+    skipContent();
+    if (done) {
+      return null;
+    }
+    // close delimiter or transport padding until the end of the delimiter line
+    if (ensureAvailable(2) && buffer[position] == '-' && buffer[position + 1] == '-') {
+      done = true;
+      return null;
+    }
+    if (readLine() == null) {
+      throw new IOException("unexpected end of multipart content");
+    }
+    // part headers, possibly folded over several lines
+    List<String> headerNames = new ArrayList<String>();
+    List<String> headerValues = new ArrayList<String>();
+    String line;
+    while ((line = readLine()) != null && line.length() != 0) {
+      char first = line.charAt(0);
+      int last = headerValues.size() - 1;
+      if ((first == ' ' || first == '\t') && last >= 0) {
+        headerValues.set(last, headerValues.get(last) + " " + line.trim());
+        continue;
+      }
+      int colon = line.indexOf(':');
+      if (colon > 0) {
+        headerNames.add(line.substring(0, colon).trim());
+        headerValues.add(line.substring(colon + 1).trim());
+      }
+    }
+    if (line == null) {
+      throw new IOException("unexpected end of multipart content");
+    }
+    HttpHeaders headers = new HttpHeaders();
+    headers.fromHeaderLists(headerNames, headerValues);
+    delimiterReached = false;
+    partIndex++;
+    return new Part(headers, new PartInputStream(partIndex));
+  }
+
+  /** Closes the multipart content. */
+  public void close() throws IOException {
+    done = true;
+    delimiterReached = true;
+    in.close();
+  }
+
+  /** Skips the unread content of the current part or of the preamble. */
+  private void skipContent() throws IOException {
+    while (!delimiterReached) {
+      int count = Math.max(0, contentEnd() - position);
+      if (count > 0) {
+        position += count;
+      } else {
+        readContent(null, 0, 0);
+      }
+    }
+  }
+
+  /**
+   * Returns the index in the buffer after the last byte of content that is known not to be part of
+   * a delimiter, which is the index of the next delimiter if it is in the buffer.
+   */
+  private int contentEnd() {
+    int index = indexOfDelimiter();
+    if (index != -1) {
+      // the carriage return preceding the line feed is part of the delimiter
+      return index > position && buffer[index - 1] == '\r' ? index - 1 : index;
+    }
+    if (endOfStream) {
+      return limit;
+    }
+    // keep enough bytes for a delimiter and its preceding carriage return to be found entirely in
+    // the buffer
+    return Math.max(position, limit - delimiter.length);
+  }
+
+  /**
+   * Reads content of the current part or of the preamble.
+   *
+   * @param b destination buffer or {@code null} to read nothing but make progress
+   * @return number of bytes read, or {@code -1} once the delimiter has been reached
+   */
+  private int readContent(byte[] b, int off, int len) throws IOException {
+    while (!delimiterReached) {
+      int end = contentEnd();
+      if (end > position) {
+        if (b == null) {
+          return 0;
+        }
+        int count = Math.min(len, end - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+      }
+      int index = indexOfDelimiter();
+      if (index != -1) {
+        position = index + delimiter.length;
+        delimiterReached = true;
+      } else if (endOfStream) {
+        delimiterReached = true;
+        done = true;
+        if (partIndex != -1) {
+          throw new IOException("unexpected end of multipart content");
+        }
+      } else {
+        fill();
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the index of the next delimiter in the buffer or {@code -1} if not found. */
+  private int indexOfDelimiter() {
+    byte[] delimiter = this.delimiter;
+    byte[] buffer = this.buffer;
+    int last = limit - delimiter.length;
+    outer:
+    for (int i = position; i <= last; i++) {
+      for (int j = 0; j < delimiter.length; j++) {
+        if (buffer[i + j] != delimiter[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Moves the unread bytes to the beginning of the buffer and reads more bytes after them, unless
+   * the end of the stream is reached.
+   */
+  private void fill() throws IOException {
+    if (position > 0) {
+      System.arraycopy(buffer, position, buffer, 0, limit - position);
+      limit -= position;
+      position = 0;
+    }
+    int read = in.read(buffer, limit, buffer.length - limit);
+    if (read == -1) {
+      endOfStream = true;
+    } else {
+      limit += read;
+    }
+  }
+
+  /** Returns whether at least the given number of bytes are available in the buffer. */
+  private boolean ensureAvailable(int count) throws IOException {
+    while (limit - position < count && !endOfStream) {
+      fill();
+    }
+    return limit - position >= count;
+  }
+
+  /**
+   * Reads a line and returns it without its line terminator or returns {@code null} at the end of
+   * the stream.
+   */
+  private String readLine() throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    while (ensureAvailable(1)) {
+      byte b = buffer[position++];
+      if (b == '\n') {
+        String result = StringUtils.newStringUtf8(line.toByteArray());
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+      }
+      line.write(b);
+    }
+    return null;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Part of a multipart content.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Part {
+
+    /** Headers of the part. */
+    private final HttpHeaders headers;
+
+    /** Content of the part. */
+    private final InputStream content;
+
+    Part(HttpHeaders headers, InputStream content) {
+      this.headers = headers;
+      this.content = content;
+    }
+
+    /** Returns the headers of the part. */
+    public HttpHeaders getHeaders() {
+      return headers;
+    }
+
+    /**
+     * Returns the content of the part, which ends at the next delimiter.
+     *
+     * <p>
+     * The content must be read before the next part is read. Closing it doesn't close the
+     * multipart content.
+     * </p>
+     */
+    public InputStream getContent() {
+      return content;
+    }
+  }
+
+  /** Input stream of the content of a part that ends at the next delimiter. */
+  private final class PartInputStream extends InputStream {
+
+    /** Index of the part. */
+    private final int index;
+
+    /** Whether the input stream is closed. */
+    private boolean closed;
+
+    PartInputStream(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int read;
+      do {
+        read = read(b, 0, 1);
+      } while (read == 0);
+      return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed || index != partIndex) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      return readContent(b, off, len);
+    }
+
+    @Override
+    public int available() {
+      return closed || index != partIndex || delimiterReached
+          ? 0 : Math.max(0, contentEnd() - position);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+}
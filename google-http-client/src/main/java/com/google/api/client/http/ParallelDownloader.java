@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link Beta} <br/>
+ * Downloads the content of a {@code GET} request into a file with concurrent ranged requests, so
+ * that large downloads are not limited by the throughput of a single connection.
+ *
+ * <p>
+ * The first {@link Builder#setChunkSize chunk} is requested with a {@code "Range"} header, whose
+ * {@code "Content-Range"} response header tells the total length of the content. The remaining
+ * chunks are then requested concurrently by up to {@link Builder#setParallelism parallelism}
+ * requests, each written directly at its offset in the file with positional writes. The chunks
+ * are requested with an {@code "If-Range"} header set to the {@code "ETag"} or
+ * {@code "Last-Modified"} header of the first response, so that a change of the content during
+ * the download fails the download rather than mixing two versions. The number of bytes written is
+ * checked against the total length of the content.
+ * </p>
+ *
+ * <p>
+ * If the server ignores the range and sends the whole content, it is written sequentially. If the
+ * first response has neither a strong {@code "ETag"} nor a {@code "Last-Modified"} header, the
+ * chunks could not be checked against each other, so the whole content is requested again without
+ * a range and written sequentially. If the server does not tell the total length, the rest of the
+ * content is requested with a single open-ended range.
+ * </p>
+ *
+ * <p>
+ * Each chunk is requested with a {@link HttpRequest#copy copy} of the given request, with the same
+ * handlers and number of retries, and executed on the executor of
+ * {@link HttpRequest#getExecutor()} or of {@link HttpTransport#getAsyncExecutor()}, and on the
+ * calling thread. The calling thread downloads all of the chunks not yet picked up by a thread of
+ * the executor and then only waits for the chunks already in progress, so that downloading from a
+ * thread of a saturated executor does not deadlock but downloads with less parallelism. The
+ * content is requested with the {@code "identity"} coding, since ranges apply to the encoded
+ * content.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  ParallelDownloader downloader = new ParallelDownloader.Builder().setParallelism(8).build();
+  FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+  try {
+    downloader.download(requestFactory.buildGetRequest(url), channel);
+  } finally {
+    channel.close();
+  }
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class ParallelDownloader {
+
+  /** Status code of a range that cannot be satisfied. */
+  private static final int STATUS_CODE_RANGE_NOT_SATISFIABLE = 416;
+
+  /** Pattern of the {@code "Content-Range"} header of a satisfied range. */
+  private static final Pattern CONTENT_RANGE_PATTERN =
+      Pattern.compile("\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)\\s*");
+
+  /** Size of a chunk in bytes. */
+  private final long chunkSize;
+
+  /** Maximum number of concurrent requests. */
+  private final int parallelism;
+
+  /**
+   * @param builder builder
+   */
+  ParallelDownloader(Builder builder) {
+    chunkSize = builder.chunkSize;
+    parallelism = builder.parallelism;
+  }
+
+  /** Returns the size of a chunk in bytes. */
+  public long getChunkSize() {
+    return chunkSize;
+  }
+
+  /** Returns the maximum number of concurrent requests. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  /**
+   * Downloads the content of the given {@code GET} request into the given file channel, starting
+   * at position {@code 0}.
+   *
+   * <p>
+   * The given request itself is not executed, and the file channel is not closed.
+   * </p>
+   *
+   * @param request {@code GET} request
+   * @param channel file channel opened for writing
+   * @return number of bytes downloaded
+   * @throws IOException I/O exception, or HTTP response exception for an unsuccessful response, in
+   *         which case the file holds part of the content
+   */
+  public long download(HttpRequest request, FileChannel channel) throws IOException {
+    Preconditions.checkArgument(HttpMethods.GET.equals(request.getRequestMethod()));
+    HttpRequest firstRequest = newRangeRequest(request, 0, chunkSize - 1, null);
+    HttpResponse response = firstRequest.execute();
+    if (response.getStatusCode() == STATUS_CODE_RANGE_NOT_SATISFIABLE
+        && "bytes */0".equals(response.getHeaders().getContentRange())) {
+      // empty content
+      response.ignore();
+      return 0;
+    }
+    checkSuccess(response);
+    long total;
+    long firstLength;
+    String validator;
+    try {
+      if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_PARTIAL_CONTENT) {
+        // the server ignored the range and sent the whole content
+        return writeWhole(response, channel);
+      }
+      long[] range = parseContentRange(response.getHeaders().getContentRange());
+      if (range == null || range[0] != 0) {
+        throw new IOException(
+            "Unexpected Content-Range: " + response.getHeaders().getContentRange());
+      }
+      total = range[2];
+      validator = response.getHeaders().getETag();
+      if (validator == null || validator.startsWith("W/")) {
+        // weak entity tags may not be used in If-Range
+        validator = response.getHeaders().getLastModified();
+      }
+      if (validator == null && range[1] + 1 != total) {
+        // without a validator the chunks could mix different versions of the content
+        response.disconnect();
+        return downloadWhole(request, channel);
+      }
+      firstLength = write(response, channel, 0);
+      checkLength(range[1] + 1, firstLength);
+    } finally {
+      response.ignore();
+    }
+    if (total == -1) {
+      // the total length is unknown: request the rest of the content at once
+      return firstLength + downloadRange(request, channel, firstLength, -1, validator);
+    }
+    if (firstLength < total) {
+      downloadChunks(request, channel, firstLength, total, validator);
+    }
+    return total;
+  }
+
+  /** Downloads the given range of the content into the file channel with concurrent requests. */
+  private void downloadChunks(HttpRequest request, FileChannel channel, long start, long total,
+      String validator) throws IOException {
+    ChunkWorker worker = new ChunkWorker(request, channel, start, total, validator);
+    int workerCount = (int) Math.min(parallelism, worker.chunkCount);
+    Executor executor = request.getExecutor() == null
+        ? request.getTransport().getAsyncExecutor() : request.getExecutor();
+    for (int i = 1; i < workerCount; i++) {
+      try {
+        executor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        // the calling thread downloads the chunks of the rejected worker
+      }
+    }
+    worker.run();
+    try {
+      worker.awaitStarted();
+    } catch (InterruptedException e) {
+      worker.failure.compareAndSet(null, e);
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while downloading");
+    }
+    Throwable cause = worker.failure.get();
+    if (cause instanceof IOException) {
+      throw (IOException) cause;
+    }
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    checkLength(total - start, worker.downloaded.get());
+  }
+
+  /**
+   * Worker downloading the chunks of a range one after the other until all of them have been
+   * picked up by a worker, run concurrently by the calling thread and by the executor.
+   */
+  private final class ChunkWorker implements Runnable {
+
+    private final HttpRequest request;
+    private final FileChannel channel;
+    private final long start;
+    private final long total;
+    private final String validator;
+
+    /** Number of chunks. */
+    final long chunkCount;
+
+    /** Index of the next chunk to download. */
+    private final AtomicLong nextChunk = new AtomicLong();
+
+    /** Number of bytes downloaded. */
+    final AtomicLong downloaded = new AtomicLong();
+
+    /** First failure or {@code null} for none. */
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    /** Number of running workers, guarded by {@code this}. */
+    private int running;
+
+    /** Whether workers that have not started yet must not start, guarded by {@code this}. */
+    private boolean closed;
+
+    ChunkWorker(
+        HttpRequest request, FileChannel channel, long start, long total, String validator) {
+      this.request = request;
+      this.channel = channel;
+      this.start = start;
+      this.total = total;
+      this.validator = validator;
+      chunkCount = (total - start + chunkSize - 1) / chunkSize;
+    }
+
+    public void run() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        running++;
+      }
+      try {
+        long chunk;
+        while (failure.get() == null && (chunk = nextChunk.getAndIncrement()) < chunkCount) {
+          long chunkStart = start + chunk * chunkSize;
+          long chunkEnd = Math.min(chunkStart + chunkSize, total) - 1;
+          downloaded.addAndGet(downloadRange(request, channel, chunkStart, chunkEnd, validator));
+        }
+      } catch (Throwable e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        synchronized (this) {
+          running--;
+          notifyAll();
+        }
+      }
+    }
+
+    /**
+     * Waits for the workers that have already started, after the calling thread has run its own
+     * worker, which has picked up all of the remaining chunks. Workers that have not started yet
+     * are still queued on the executor and no longer have anything to do, so waiting for them
+     * could deadlock if the calling thread itself is a thread of a saturated executor.
+     */
+    synchronized void awaitStarted() throws InterruptedException {
+      closed = true;
+      while (running > 0) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Downloads the given range of the content into the file channel and returns the number of bytes
+   * downloaded.
+   *
+   * @param start first byte position
+   * @param end last byte position or {@code -1} for the end of the content
+   */
+  private long downloadRange(HttpRequest request, FileChannel channel, long start, long end,
+      String validator) throws IOException {
+    HttpResponse response = newRangeRequest(request, start, end, validator).execute();
+    checkSuccess(response);
+    try {
+      if (response.getStatusCode() != HttpStatusCodes.STATUS_CODE_PARTIAL_CONTENT) {
+        throw new IOException("Content changed during download, status code: "
+            + response.getStatusCode());
+      }
+      long[] range = parseContentRange(response.getHeaders().getContentRange());
+      if (range == null || range[0] != start || end != -1 && range[1] != end) {
+        throw new IOException(
+            "Unexpected Content-Range: " + response.getHeaders().getContentRange());
+      }
+      long length = write(response, channel, start);
+      checkLength(range[1] - start + 1, length);
+      return length;
+    } finally {
+      response.ignore();
+    }
+  }
+
+  /**
+   * Downloads the whole content into the file channel with a single request and returns the number
+   * of bytes downloaded.
+   */
+  private static long downloadWhole(HttpRequest request, FileChannel channel) throws IOException {
+    HttpResponse response = newRequest(request).execute();
+    checkSuccess(response);
+    try {
+      return writeWhole(response, channel);
+    } finally {
+      response.ignore();
+    }
+  }
+
+  /** Returns a copy of the given request for the given range. */
+  private static HttpRequest newRangeRequest(
+      HttpRequest request, long start, long end, String validator) {
+    HttpRequest copy = newRequest(request);
+    copy.getHeaders()
+        .setRange("bytes=" + start + "-" + (end == -1 ? "" : String.valueOf(end)))
+        .setIfRange(validator);
+    return copy;
+  }
+
+  /** Returns a copy of the given request for the {@code "identity"} coding of the content. */
+  private static HttpRequest newRequest(HttpRequest request) {
+    HttpRequest copy = request.copy(request.getNumberOfRetries());
+    copy.getHeaders().setAcceptEncoding("identity");
+    // the status code of the responses is checked after the response handlers
+    return copy.setThrowExceptionOnExecuteError(false);
+  }
+
+  /** Throws an HTTP response exception if the given response is unsuccessful. */
+  private static void checkSuccess(HttpResponse response) throws IOException {
+    if (!response.isSuccessStatusCode()) {
+      try {
+        throw new HttpResponseException(response);
+      } finally {
+        response.disconnect();
+      }
+    }
+  }
+
+  /**
+   * Writes the content of the given response into the file channel at the given position and
+   * returns the number of bytes written.
+   */
+  private static long write(HttpResponse response, FileChannel channel, long position)
+      throws IOException {
+    InputStream content = response.getContent();
+    if (content == null) {
+      return 0;
+    }
+    long written = 0;
+    byte[] buffer = BufferPool.getBulk().acquire();
+    try {
+      int count;
+      while ((count = content.read(buffer)) != -1) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+        while (byteBuffer.hasRemaining()) {
+          written += channel.write(byteBuffer, position + written);
+        }
+      }
+    } finally {
+      BufferPool.getBulk().release(buffer);
+      content.close();
+    }
+    return written;
+  }
+
+  /**
+   * Writes the whole content of the given response into the file channel and returns the number of
+   * bytes written, checked against the {@code "Content-Length"} header if any.
+   */
+  private static long writeWhole(HttpResponse response, FileChannel channel) throws IOException {
+    long length = write(response, channel, 0);
+    Long contentLength = response.getHeaders().getContentLength();
+    if (contentLength != null) {
+      checkLength(contentLength, length);
+    }
+    return length;
+  }
+
+  /** Throws an I/O exception if the given number of bytes differs from the expected one. */
+  private static void checkLength(long expected, long actual) throws IOException {
+    if (expected != actual) {
+      throw new IOException(
+          "Downloaded " + actual + " bytes instead of the expected " + expected + " bytes");
+    }
+  }
+
+  /**
+   * Parses the given {@code "Content-Range"} header of a satisfied range into its first and last
+   * byte positions and total length, or {@code -1} for an unknown total length.
+   *
+   * @return positions and total length, or {@code null} if {@code null} or invalid
+   */
+  static long[] parseContentRange(String contentRange) {
+    if (contentRange == null) {
+      return null;
+    }
+    Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange);
+    if (!matcher.matches()) {
+      return null;
+    }
+    try {
+      long first = Long.parseLong(matcher.group(1));
+      long last = Long.parseLong(matcher.group(2));
+      long total = matcher.group(3).equals("*") ? -1 : Long.parseLong(matcher.group(3));
+      if (last < first || total != -1 && last >= total) {
+        return null;
+      }
+      return new long[] {first, last, total};
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link ParallelDownloader}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Size of a chunk in bytes. */
+    long chunkSize = 8 * 1024 * 1024;
+
+    /** Maximum number of concurrent requests. */
+    int parallelism = 4;
+
+    /**
+     * Sets the size of a chunk in bytes, which is the length of the range of each request.
+     *
+     * <p>
+     * Default value is 8 MiB.
+     * </p>
+     */
+    public Builder setChunkSize(long chunkSize) {
+      Preconditions.checkArgument(chunkSize > 0);
+      this.chunkSize = chunkSize;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of concurrent requests.
+     *
+     * <p>
+     * Default value is {@code 4}.
+     * </p>
+     */
+    public Builder setParallelism(int parallelism) {
+      Preconditions.checkArgument(parallelism > 0);
+      this.parallelism = parallelism;
+      return this;
+    }
+
+    /** Returns a new parallel downloader. */
+    public ParallelDownloader build() {
+      return new ParallelDownloader(this);
+    }
+  }
+}
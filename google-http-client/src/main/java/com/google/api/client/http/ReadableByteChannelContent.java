@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * {@link Beta} <br/>
+ * HTTP content read from a blocking readable byte channel until its end.
+ *
+ * <p>
+ * The channel can only be read once, so the content does not support retries. The channel is
+ * closed once it has been read, unless {@link #setCloseChannel} is set to {@code false}.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class ReadableByteChannelContent extends AbstractHttpContent {
+
+  /** Channel. */
+  private final ReadableByteChannel channel;
+
+  /** Content length or less than zero if not known. */
+  private long length = -1;
+
+  /** Whether the channel should be closed once read. */
+  private boolean closeChannel = true;
+
+  /**
+   * @param type content type or {@code null} for none
+   * @param channel readable byte channel
+   */
+  public ReadableByteChannelContent(String type, ReadableByteChannel channel) {
+    super(type);
+    this.channel = Preconditions.checkNotNull(channel);
+  }
+
+  @Override
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Sets the content length or less than zero if not known.
+   *
+   * <p>
+   * Defaults to {@code -1}.
+   * </p>
+   */
+  public ReadableByteChannelContent setLength(long length) {
+    this.length = length;
+    return this;
+  }
+
+  /** Returns whether the channel should be closed once read. */
+  public boolean getCloseChannel() {
+    return closeChannel;
+  }
+
+  /**
+   * Sets whether the channel should be closed once read.
+   *
+   * <p>
+   * Defaults to {@code true}.
+   * </p>
+   */
+  public ReadableByteChannelContent setCloseChannel(boolean closeChannel) {
+    this.closeChannel = closeChannel;
+    return this;
+  }
+
+  @Override
+  public boolean retrySupported() {
+    return false;
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    byte[] array = BufferPool.getDefault().acquire();
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(array);
+      while (channel.read(buffer) != -1) {
+        out.write(array, 0, buffer.position());
+        buffer.clear();
+      }
+      out.flush();
+    } finally {
+      BufferPool.getDefault().release(array);
+      if (closeChannel) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the channel.
+   */
+  public ReadableByteChannel getChannel() {
+    return channel;
+  }
+
+  @Override
+  public ReadableByteChannelContent setMediaType(HttpMediaType mediaType) {
+    return (ReadableByteChannelContent) super.setMediaType(mediaType);
+  }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Beta} <br/>
+ * Coalesces identical requests executed concurrently into a single flight, so that a burst of
+ * requests for the same resource, for example when a cached value expires, only reaches the server
+ * once.
+ *
+ * <p>
+ * The coalescer is set with {@link HttpRequestFactory#withRequestCoalescer}. A {@code GET} or
+ * {@code HEAD} request without content is coalesced with the requests in flight with the same
+ * method, the same {@link GenericUrl#build() URL} and the same headers, in which case no
+ * low-level HTTP request is executed for it: it waits for the response of the request in flight
+ * instead. The content of that response is buffered in memory, and each request receives its own
+ * view of it, which it may read and close independently. If the request in flight fails, all of the
+ * coalesced requests fail with the same exception, and are then handled by their own I/O exception
+ * handler.
+ * </p>
+ *
+ * <p>
+ * Since the whole content of coalesced responses is buffered, the coalescer is intended for small
+ * resources such as configuration or discovery documents rather than for downloads.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class RequestCoalescer {
+
+  /** Flights in progress by key. */
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+  private final AtomicLong flightCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /**
+   * Executes the given low-level HTTP request, or waits for the response of the request in flight
+   * with the same key, and returns a view of the buffered response.
+   */
+  LowLevelHttpResponse execute(String key, LowLevelHttpRequest request) throws IOException {
+    Flight flight = new Flight();
+    Flight existing = flights.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalescedCount.incrementAndGet();
+      return existing.await();
+    }
+    flightCount.incrementAndGet();
+    BufferedLowLevelHttpResponse response = null;
+    IOException exception = null;
+    try {
+      response = BufferedLowLevelHttpResponse.read(request.execute());
+      return response;
+    } catch (IOException e) {
+      exception = e;
+      throw e;
+    } catch (RuntimeException e) {
+      exception = newIOException(e);
+      throw e;
+    } catch (Error e) {
+      exception = newIOException(e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+      flight.complete(response, exception);
+    }
+  }
+
+  /**
+   * Executes the given low-level HTTP request asynchronously, or waits for the response of the
+   * request in flight with the same key, and notifies the given callback with a view of the
+   * buffered response.
+   *
+   * <p>
+   * If the low-level HTTP request throws an unchecked exception instead of starting, the flight is
+   * abandoned: the requests which joined it fail and the exception is rethrown without notifying
+   * the given callback.
+   * </p>
+   */
+  void executeAsync(
+      final String key, LowLevelHttpRequest request, final LowLevelHttpResponseCallback callback) {
+    final Flight flight = new Flight();
+    Flight existing = flights.putIfAbsent(key, flight);
+    if (existing != null) {
+      coalescedCount.incrementAndGet();
+      existing.addCallback(callback);
+      return;
+    }
+    flightCount.incrementAndGet();
+    try {
+      startFlight(key, flight, request);
+    } catch (RuntimeException e) {
+      flights.remove(key, flight);
+      flight.complete(null, newIOException(e));
+      throw e;
+    } catch (Error e) {
+      flights.remove(key, flight);
+      flight.complete(null, newIOException(e));
+      throw e;
+    }
+    // notified immediately if the flight already completed
+    flight.addCallback(callback);
+  }
+
+  /** Executes the low-level HTTP request of the given flight asynchronously. */
+  private void startFlight(final String key, final Flight flight, LowLevelHttpRequest request) {
+    request.executeAsync(new LowLevelHttpResponseCallback() {
+
+      public void onResponse(LowLevelHttpResponse response) {
+        BufferedLowLevelHttpResponse bufferedResponse = null;
+        IOException exception = null;
+        try {
+          bufferedResponse = BufferedLowLevelHttpResponse.read(response);
+        } catch (IOException e) {
+          exception = e;
+        } catch (RuntimeException e) {
+          exception = newIOException(e);
+        }
+        flights.remove(key, flight);
+        flight.complete(bufferedResponse, exception);
+      }
+
+      public void onFailure(IOException exception) {
+        flights.remove(key, flight);
+        flight.complete(null, exception);
+      }
+    });
+  }
+
+  /** Returns an I/O exception caused by the given unexpected failure of a request in flight. */
+  private static IOException newIOException(Throwable cause) {
+    IOException exception = new IOException("request in flight failed: " + cause);
+    exception.initCause(cause);
+    return exception;
+  }
+
+  /** Returns a snapshot of the statistics. */
+  public Stats getStats() {
+    return new Stats(flightCount.get(), coalescedCount.get(), flights.size());
+  }
+
+  /** Request in flight, whose outcome is shared by all of the requests coalesced into it. */
+  private static final class Flight {
+
+    /** Buffered response or {@code null} for none, guarded by {@code this}. */
+    private BufferedLowLevelHttpResponse response;
+
+    /** I/O exception or {@code null} for none, guarded by {@code this}. */
+    private IOException exception;
+
+    /** Whether the flight has completed, guarded by {@code this}. */
+    private boolean done;
+
+    /** Callbacks to notify on completion, guarded by {@code this}. */
+    private final List<LowLevelHttpResponseCallback> callbacks =
+        new ArrayList<LowLevelHttpResponseCallback>();
+
+    /** Notifies the given callback on completion, or immediately if already completed. */
+    void addCallback(LowLevelHttpResponseCallback callback) {
+      synchronized (this) {
+        if (!done) {
+          callbacks.add(callback);
+          return;
+        }
+      }
+      notifyCallback(callback);
+    }
+
+    /** Completes the flight with the given response or exception and notifies the callbacks. */
+    void complete(BufferedLowLevelHttpResponse response, IOException exception) {
+      List<LowLevelHttpResponseCallback> toNotify;
+      synchronized (this) {
+        this.response = response;
+        this.exception = exception;
+        done = true;
+        toNotify = new ArrayList<LowLevelHttpResponseCallback>(callbacks);
+        callbacks.clear();
+      }
+      for (LowLevelHttpResponseCallback callback : toNotify) {
+        notifyCallback(callback);
+      }
+    }
+
+    /** Notifies the given callback of the outcome of the completed flight. */
+    private void notifyCallback(LowLevelHttpResponseCallback callback) {
+      BufferedLowLevelHttpResponse response;
+      IOException exception;
+      synchronized (this) {
+        response = this.response;
+        exception = this.exception;
+      }
+      if (exception != null) {
+        callback.onFailure(exception);
+      } else {
+        callback.onResponse(response);
+      }
+    }
+
+    /** Waits for the completion of the flight and returns its response. */
+    LowLevelHttpResponse await() throws IOException {
+      final CountDownLatch latch = new CountDownLatch(1);
+      final LowLevelHttpResponse[] result = new LowLevelHttpResponse[1];
+      final IOException[] failure = new IOException[1];
+      addCallback(new LowLevelHttpResponseCallback() {
+
+        public void onResponse(LowLevelHttpResponse response) {
+          result[0] = response;
+          latch.countDown();
+        }
+
+        public void onFailure(IOException exception) {
+          failure[0] = exception;
+          latch.countDown();
+        }
+      });
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for the request in flight");
+      }
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+      return result[0];
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link RequestCoalescer}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long flightCount;
+    private final long coalescedCount;
+    private final int inFlightCount;
+
+    Stats(long flightCount, long coalescedCount, int inFlightCount) {
+      this.flightCount = flightCount;
+      this.coalescedCount = coalescedCount;
+      this.inFlightCount = inFlightCount;
+    }
+
+    /** Returns the number of low-level HTTP requests executed. */
+    public long getFlightCount() {
+      return flightCount;
+    }
+
+    /** Returns the number of requests served by the response of another request in flight. */
+    public long getCoalescedCount() {
+      return coalescedCount;
+    }
+
+    /** Returns the number of low-level HTTP requests currently in flight. */
+    public int getInFlightCount() {
+      return inFlightCount;
+    }
+
+    @Override
+    public String toString() {
+      return "[flights: " + flightCount + "; coalesced: " + coalescedCount + "; in flight: "
+          + inFlightCount + "]";
+    }
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream over the raw content of a {@code GET} response which, when reading fails, resumes
+ * from the last byte read with a ranged request, as described in
+ * {@link HttpRequest#setResumeContentOnIOException}.
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+final class ResumableInputStream extends InputStream {
+
+  /** Request whose copies resume the content. */
+  private final HttpRequest request;
+
+  /** Copy of the request at the time of the response, from which the ranged requests are made. */
+  private final HttpRequest template;
+
+  /** {@code "If-Range"} validator of the content. */
+  private final String validator;
+
+  /** Content encoding of the response. */
+  private final String contentEncoding;
+
+  /** Expected length of the content or {@code -1} if unknown. */
+  private final long expectedLength;
+
+  /** Offset in the resource of the first byte of the content. */
+  private final long rangeStart;
+
+  /** Offset in the resource of the last byte of the content or {@code -1} for the end. */
+  private final long rangeEnd;
+
+  /** Current raw content stream. */
+  private InputStream content;
+
+  /** Number of bytes read so far. */
+  private long position;
+
+  /** Number of resumptions remaining. */
+  private int resumesRemaining;
+
+  private ResumableInputStream(HttpRequest request, HttpResponse response, String validator,
+      InputStream content, long rangeStart, long rangeEnd) {
+    this.request = request;
+    this.rangeStart = rangeStart;
+    this.rangeEnd = rangeEnd;
+    template = request.copy(0);
+    this.validator = validator;
+    contentEncoding = response.getContentEncoding();
+    Long contentLength = response.getHeaders().getContentLength();
+    expectedLength = contentLength == null ? -1 : contentLength;
+    this.content = content;
+    resumesRemaining = request.getNumberOfRetries();
+  }
+
+  /**
+   * Returns a resumable stream over the given raw content of the given successful {@code GET}
+   * response, or the content itself if it has no validator to resume it with.
+   *
+   * <p>
+   * The content of a {@code 206} response is resumed within the range of its
+   * {@code "Content-Range"} header, and is not resumable without a valid one.
+   * </p>
+   */
+  static InputStream wrap(HttpResponse response, InputStream content) {
+    String validator = getValidator(response.getHeaders());
+    if (validator == null) {
+      return content;
+    }
+    long rangeStart = 0;
+    long rangeEnd = -1;
+    if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_PARTIAL_CONTENT) {
+      long[] range = ParallelDownloader.parseContentRange(response.getHeaders().getContentRange());
+      if (range == null) {
+        return content;
+      }
+      rangeStart = range[0];
+      rangeEnd = range[1];
+    }
+    return new ResumableInputStream(
+        response.getRequest(), response, validator, content, rangeStart, rangeEnd);
+  }
+
+  /**
+   * Returns the strong {@code "ETag"} or else the {@code "Last-Modified"} header of the given
+   * response headers, or {@code null} for none.
+   */
+  static String getValidator(HttpHeaders headers) {
+    String etag = headers.getETag();
+    if (etag != null && !etag.startsWith("W/")) {
+      return etag;
+    }
+    return headers.getLastModified();
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int count;
+    do {
+      count = read(b, 0, 1);
+    } while (count == 0);
+    return count == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    while (true) {
+      try {
+        int count = content.read(b, off, len);
+        if (count == -1) {
+          if (expectedLength != -1 && position < expectedLength) {
+            throw new EOFException("Content ended after " + position + " bytes instead of "
+                + expectedLength + " bytes");
+          }
+          return -1;
+        }
+        position += count;
+        return count;
+      } catch (IOException e) {
+        resume(e);
+      }
+    }
+  }
+
+  @Override
+  public int available() throws IOException {
+    return content.available();
+  }
+
+  @Override
+  public void close() throws IOException {
+    content.close();
+  }
+
+  /**
+   * Resumes the content from the current position, or throws the given I/O exception if the
+   * content cannot be resumed.
+   */
+  private void resume(IOException cause) throws IOException {
+    try {
+      content.close();
+    } catch (IOException ignored) {
+      // the content is broken anyway
+    }
+    HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+    while (resumesRemaining > 0 && ioExceptionHandler != null
+        && ioExceptionHandler.handleIOException(request, true)) {
+      resumesRemaining--;
+      try {
+        content = openRange(cause);
+        return;
+      } catch (ResumeException e) {
+        throw e;
+      } catch (IOException e) {
+        cause = e;
+      }
+    }
+    throw cause;
+  }
+
+  /**
+   * Requests the content from the current position, within the original range if any, and returns
+   * its raw stream.
+   *
+   * @throws ResumeException if the content changed or the server cannot resume it
+   */
+  private InputStream openRange(IOException cause) throws IOException {
+    HttpRequest copy = template.copy(0).setThrowExceptionOnExecuteError(false);
+    long offset = rangeStart + position;
+    copy.getHeaders()
+        .setRange("bytes=" + offset + "-" + (rangeEnd == -1 ? "" : String.valueOf(rangeEnd)))
+        .setIfRange(validator);
+    HttpResponse response = copy.execute();
+    boolean opened = false;
+    try {
+      int statusCode = response.getStatusCode();
+      if (statusCode >= HttpStatusCodes.STATUS_CODE_SERVER_ERROR) {
+        // may succeed on the next attempt
+        throw new HttpResponseException(response);
+      }
+      if (!equals(contentEncoding, response.getContentEncoding())) {
+        throw new ResumeException("content encoding changed", cause);
+      }
+      long skip = 0;
+      if (statusCode == HttpStatusCodes.STATUS_CODE_PARTIAL_CONTENT) {
+        long[] range = ParallelDownloader.parseContentRange(
+            response.getHeaders().getContentRange());
+        if (range == null || range[0] != offset || rangeEnd != -1 && range[1] != rangeEnd) {
+          throw new ResumeException(
+              "unexpected Content-Range: " + response.getHeaders().getContentRange(), cause);
+        }
+      } else if (statusCode == HttpStatusCodes.STATUS_CODE_OK
+          && validator.equals(getValidator(response.getHeaders()))) {
+        if (rangeStart != 0 || rangeEnd != -1) {
+          throw new ResumeException("server ignored the range", cause);
+        }
+        // the server ignored the range but sent the same content
+        skip = position;
+      } else {
+        throw new ResumeException("content changed, status code: " + statusCode, cause);
+      }
+      InputStream rangeContent = response.getRawContent();
+      if (rangeContent == null) {
+        throw new ResumeException("no content", cause);
+      }
+      while (skip > 0) {
+        long skipped = rangeContent.skip(skip);
+        if (skipped <= 0) {
+          if (rangeContent.read() == -1) {
+            throw new EOFException("Content ended before the resume position");
+          }
+          skipped = 1;
+        }
+        skip -= skipped;
+      }
+      opened = true;
+      return rangeContent;
+    } finally {
+      if (!opened) {
+        response.disconnect();
+      }
+    }
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  /** I/O exception for content which cannot be resumed. */
+  private static final class ResumeException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ResumeException(String message, IOException cause) {
+      super("Cannot resume content: " + message);
+      initCause(cause);
+    }
+  }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.NanoClock;
+import com.google.api.client.util.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Beta} <br/>
+ * Budget of retries shared by many requests, which caps the retries to a fraction of the requests
+ * so that retries do not multiply the load on a server during an outage.
+ *
+ * <p>
+ * The budget is a token bucket set with {@link HttpRequest#setRetryBudget}. Each execution of a
+ * request deposits {@link Builder#setRetryRatio a fraction} of a token, and tokens are also
+ * deposited at {@link Builder#setMinRetriesPerSecond a minimum rate} so that a client with little
+ * traffic may still retry. Each retry withdraws a token, and a retry is not made when no token is
+ * available. The bucket holds at most {@link Builder#setMaxRetries a maximum number} of tokens,
+ * which is also its initial content.
+ * </p>
+ *
+ * <p>
+ * The budget is checked by {@link HttpBackOffUnsuccessfulResponseHandler} and
+ * {@link HttpBackOffIOExceptionHandler} before backing off, and by the deprecated built-in retry
+ * behavior of {@link HttpRequest#execute()}. Other handlers may call {@link #tryRetry()} before
+ * retrying. The number of retries refused because the budget is exhausted is available with
+ * {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  final RetryBudget retryBudget = new RetryBudget.Builder().setRetryRatio(0.1).build();
+  HttpRequestFactory requestFactory = transport.createRequestFactory(new HttpRequestInitializer() {
+    public void initialize(HttpRequest request) {
+      request.setRetryBudget(retryBudget);
+      request.setUnsuccessfulResponseHandler(
+          new HttpBackOffUnsuccessfulResponseHandler(new ExponentialBackOff()));
+    }
+  });
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class RetryBudget {
+
+  /** Fraction of a token deposited by each request. */
+  private final double retryRatio;
+
+  /** Number of tokens deposited per second regardless of the requests. */
+  private final double minRetriesPerSecond;
+
+  /** Maximum number of tokens. */
+  private final double maxRetries;
+
+  /** Nano clock. */
+  private final NanoClock nanoClock;
+
+  /** Available tokens, guarded by {@code this}. */
+  private double tokens;
+
+  /** Time in nanoseconds of the last deposit at the minimum rate, guarded by {@code this}. */
+  private long lastRefillNanos;
+
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong retryCount = new AtomicLong();
+  private final AtomicLong exhaustedCount = new AtomicLong();
+
+  /** Constructor with the default behavior. */
+  public RetryBudget() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  RetryBudget(Builder builder) {
+    retryRatio = builder.retryRatio;
+    minRetriesPerSecond = builder.minRetriesPerSecond;
+    maxRetries = builder.maxRetries;
+    nanoClock = builder.nanoClock;
+    tokens = maxRetries;
+    lastRefillNanos = nanoClock.nanoTime();
+  }
+
+  /** Returns the fraction of a retry earned by each request. */
+  public double getRetryRatio() {
+    return retryRatio;
+  }
+
+  /** Records the execution of a request, which earns a fraction of a retry. */
+  public void recordRequest() {
+    requestCount.incrementAndGet();
+    synchronized (this) {
+      refill();
+      tokens = Math.min(maxRetries, tokens + retryRatio);
+    }
+  }
+
+  /**
+   * Spends the budget of a retry and returns whether it was available, in which case the caller may
+   * retry.
+   */
+  public boolean tryRetry() {
+    synchronized (this) {
+      refill();
+      if (tokens >= 1) {
+        tokens--;
+        retryCount.incrementAndGet();
+        return true;
+      }
+    }
+    exhaustedCount.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Spends the retry budget of the given request if any and returns whether a retry may be made.
+   */
+  static boolean tryRetry(HttpRequest request) {
+    RetryBudget retryBudget = request == null ? null : request.getRetryBudget();
+    return retryBudget == null || retryBudget.tryRetry();
+  }
+
+  /** Returns the retry spent by the given request, which was not made after all. */
+  static void refundRetry(HttpRequest request) {
+    RetryBudget retryBudget = request == null ? null : request.getRetryBudget();
+    if (retryBudget != null) {
+      synchronized (retryBudget) {
+        retryBudget.tokens = Math.min(retryBudget.maxRetries, retryBudget.tokens + 1);
+      }
+      retryBudget.retryCount.decrementAndGet();
+    }
+  }
+
+  /** Deposits the tokens earned at the minimum rate since the last deposit. */
+  private void refill() {
+    long now = nanoClock.nanoTime();
+    if (minRetriesPerSecond > 0) {
+      tokens = Math.min(maxRetries, tokens + (now - lastRefillNanos) * minRetriesPerSecond / 1e9);
+    }
+    lastRefillNanos = now;
+  }
+
+  /** Returns a snapshot of the statistics. */
+  public Stats getStats() {
+    double availableRetries;
+    synchronized (this) {
+      refill();
+      availableRetries = tokens;
+    }
+    return new Stats(requestCount.get(), retryCount.get(), exhaustedCount.get(),
+        (long) availableRetries);
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link RetryBudget}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Fraction of a token deposited by each request. */
+    double retryRatio = 0.1;
+
+    /** Number of tokens deposited per second regardless of the requests. */
+    double minRetriesPerSecond = 10;
+
+    /** Maximum number of tokens. */
+    double maxRetries = 100;
+
+    /** Nano clock. */
+    NanoClock nanoClock = NanoClock.SYSTEM;
+
+    /**
+     * Sets the fraction of a retry earned by each request, which caps the retries to that fraction
+     * of the requests.
+     *
+     * <p>
+     * Default value is {@code 0.1}, for at most ten retries per hundred requests beyond the
+     * minimum rate.
+     * </p>
+     */
+    public Builder setRetryRatio(double retryRatio) {
+      Preconditions.checkArgument(retryRatio >= 0);
+      this.retryRatio = retryRatio;
+      return this;
+    }
+
+    /**
+     * Sets the number of retries per second allowed regardless of the number of requests.
+     *
+     * <p>
+     * Default value is {@code 10}.
+     * </p>
+     */
+    public Builder setMinRetriesPerSecond(double minRetriesPerSecond) {
+      Preconditions.checkArgument(minRetriesPerSecond >= 0);
+      this.minRetriesPerSecond = minRetriesPerSecond;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of retries the budget accumulates, which is also the initial budget.
+     *
+     * <p>
+     * Default value is {@code 100}.
+     * </p>
+     */
+    public Builder setMaxRetries(double maxRetries) {
+      Preconditions.checkArgument(maxRetries >= 0);
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /**
+     * Sets the nano clock.
+     *
+     * <p>
+     * Default value is {@link NanoClock#SYSTEM}.
+     * </p>
+     */
+    public Builder setNanoClock(NanoClock nanoClock) {
+      this.nanoClock = Preconditions.checkNotNull(nanoClock);
+      return this;
+    }
+
+    /** Returns a new instance of {@link RetryBudget} based on the options. */
+    public RetryBudget build() {
+      return new RetryBudget(this);
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the statistics of a {@link RetryBudget}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long requestCount;
+    private final long retryCount;
+    private final long exhaustedCount;
+    private final long availableRetries;
+
+    Stats(long requestCount, long retryCount, long exhaustedCount, long availableRetries) {
+      this.requestCount = requestCount;
+      this.retryCount = retryCount;
+      this.exhaustedCount = exhaustedCount;
+      this.availableRetries = availableRetries;
+    }
+
+    /** Returns the number of recorded requests. */
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    /** Returns the number of retries allowed by the budget. */
+    public long getRetryCount() {
+      return retryCount;
+    }
+
+    /** Returns the number of retries refused because the budget was exhausted. */
+    public long getExhaustedCount() {
+      return exhaustedCount;
+    }
+
+    /** Returns the number of retries currently available. */
+    public long getAvailableRetries() {
+      return availableRetries;
+    }
+
+    @Override
+    public String toString() {
+      return "[requests: " + requestCount + "; retries: " + retryCount + "; exhausted: "
+          + exhaustedCount + "; available: " + availableRetries + "]";
+    }
+  }
+}
@@ -14,12 +14,14 @@
 
 package com.google.api.client.http.apache;
 
+import com.google.api.client.http.DnsResolver;
 import com.google.api.client.http.HttpMethods;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.Beta;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.SecurityUtils;
+import com.google.api.client.util.SharedTlsContext;
 import com.google.api.client.util.SslUtils;
 import java.io.IOException;
 import java.io.InputStream;
@@ -27,7 +29,6 @@ import java.net.ProxySelector;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.cert.CertificateFactory;
-import javax.net.ssl.SSLContext;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
@@ -179,19 +180,40 @@ public final class ApacheHttpTransport extends HttpTransport {
    */
   static DefaultHttpClient newDefaultHttpClient(
       SSLSocketFactory socketFactory, HttpParams params, ProxySelector proxySelector) {
-    // See http://hc.apache.org/httpcomponents-client-ga/tutorial/html/connmgmt.html
-    SchemeRegistry registry = new SchemeRegistry();
-    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
-    registry.register(new Scheme("https", socketFactory, 443));
-    ClientConnectionManager connectionManager = new ThreadSafeClientConnManager(params, registry);
+    SchemeRegistry registry = newSchemeRegistry(socketFactory);
+    return newDefaultHttpClient(
+        new ThreadSafeClientConnManager(params, registry), params, proxySelector);
+  }
+
+  /**
+   * Creates a new instance of the Apache HTTP client based on the given connection manager.
+   *
+   * @param connectionManager client connection manager
+   * @param params HTTP parameters
+   * @param proxySelector HTTP proxy selector to use {@link ProxySelectorRoutePlanner} or
+   *        {@code null} for {@link DefaultHttpRoutePlanner}
+   * @return new instance of the Apache HTTP client
+   */
+  static DefaultHttpClient newDefaultHttpClient(
+      ClientConnectionManager connectionManager, HttpParams params, ProxySelector proxySelector) {
     DefaultHttpClient defaultHttpClient = new DefaultHttpClient(connectionManager, params);
     defaultHttpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
     if (proxySelector != null) {
-      defaultHttpClient.setRoutePlanner(new ProxySelectorRoutePlanner(registry, proxySelector));
+      defaultHttpClient.setRoutePlanner(new ProxySelectorRoutePlanner(
+          connectionManager.getSchemeRegistry(), proxySelector));
     }
     return defaultHttpClient;
   }
 
+  /** Returns a new scheme registry for HTTP and the given HTTPS socket factory. */
+  static SchemeRegistry newSchemeRegistry(SSLSocketFactory socketFactory) {
+    // See http://hc.apache.org/httpcomponents-client-ga/tutorial/html/connmgmt.html
+    SchemeRegistry registry = new SchemeRegistry();
+    registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    registry.register(new Scheme("https", socketFactory, 443));
+    return registry;
+  }
+
   @Override
   public boolean supportsMethod(String method) {
     return true;
@@ -263,6 +285,21 @@ public final class ApacheHttpTransport extends HttpTransport {
      */
     private ProxySelector proxySelector = ProxySelector.getDefault();
 
+    /**
+     * Inactivity period in milliseconds after which a pooled connection is validated before reuse
+     * or {@code -1} to never validate.
+     */
+    private long validateAfterInactivity = 2000;
+
+    /** Time to live in milliseconds of a pooled connection or {@code -1} for infinite. */
+    private long connectionTimeToLive = -1;
+
+    /** Idle time in milliseconds after which a pooled connection is closed or {@code 0}. */
+    private long idleConnectionTimeout;
+
+    /** DNS resolver or {@code null} to use {@link java.net.InetAddress}. */
+    private DnsResolver dnsResolver;
+
     /**
      * Sets the HTTP proxy to use {@link DefaultHttpRoutePlanner} or {@code null} to use
      * {@link #setProxySelector(ProxySelector)} with {@link ProxySelector#getDefault()}.
@@ -356,15 +393,37 @@ public final class ApacheHttpTransport extends HttpTransport {
     /**
      * Sets the SSL socket factory based on a root certificate trust store.
      *
+     * <p>
+     * Upgrade warning: since version 1.23 the SSL socket factory is based on the TLS context shared
+     * with the other transports that trust the same certificates, as returned by
+     * {@link SslUtils#getSharedTlsContext}.
+     * </p>
+     *
      * @param trustStore certificate trust store (use for example {@link SecurityUtils#loadKeyStore}
      *        or {@link SecurityUtils#loadKeyStoreFromCertificates})
      *
      * @since 1.14
      */
     public Builder trustCertificates(KeyStore trustStore) throws GeneralSecurityException {
-      SSLContext sslContext = SslUtils.getTlsSslContext();
-      SslUtils.initSslContext(sslContext, trustStore, SslUtils.getPkixTrustManagerFactory());
-      return setSocketFactory(new SSLSocketFactoryExtension(sslContext));
+      return setSharedTlsContext(SslUtils.getSharedTlsContext(trustStore));
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the SSL socket factory based on a shared TLS context, so that TLS sessions are resumed
+     * across the transports using the same context.
+     *
+     * <p>
+     * For example, {@code setSharedTlsContext(SslUtils.getSharedTlsContext(null))} trusts the
+     * default certificates of the JVM.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setSharedTlsContext(SharedTlsContext tlsContext)
+        throws GeneralSecurityException {
+      return setSocketFactory(new SSLSocketFactoryExtension(tlsContext.getSocketFactory()));
     }
 
     /**
@@ -401,9 +460,139 @@ public final class ApacheHttpTransport extends HttpTransport {
       return params;
     }
 
-    /** Returns a new instance of {@link ApacheHttpTransport} based on the options. */
+    /**
+     * {@link Beta} <br/>
+     * Sets the maximum number of pooled connections across all routes.
+     *
+     * <p>
+     * Default value is {@code 200}.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setMaxConnectionsTotal(int maxConnectionsTotal) {
+      Preconditions.checkArgument(maxConnectionsTotal > 0);
+      ConnManagerParams.setMaxTotalConnections(params, maxConnectionsTotal);
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the maximum number of pooled connections per route.
+     *
+     * <p>
+     * Default value is {@code 20}.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      Preconditions.checkArgument(maxConnectionsPerRoute > 0);
+      ConnManagerParams.setMaxConnectionsPerRoute(
+          params, new ConnPerRouteBean(maxConnectionsPerRoute));
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the inactivity period in milliseconds after which a pooled connection is checked for
+     * staleness before it is reused or {@code -1} to never check.
+     *
+     * <p>
+     * Default value is {@code 2000}. Stale checking of every request is turned off in the default
+     * HTTP parameters, so this only pays the cost of the check for connections that have been idle
+     * long enough to have been closed by the server.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setValidateAfterInactivity(long validateAfterInactivity) {
+      Preconditions.checkArgument(validateAfterInactivity >= -1);
+      this.validateAfterInactivity = validateAfterInactivity;
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the time to live in milliseconds of a pooled connection or {@code -1} for infinite.
+     *
+     * <p>
+     * Default value is {@code -1}. Connections older than their time to live are closed instead of
+     * being reused, which is useful to pick up DNS changes of long-lived hosts.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setConnectionTimeToLive(long connectionTimeToLive) {
+      Preconditions.checkArgument(connectionTimeToLive == -1 || connectionTimeToLive > 0);
+      this.connectionTimeToLive = connectionTimeToLive;
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the idle time in milliseconds after which a background thread closes a pooled
+     * connection or {@code 0} for no background thread.
+     *
+     * <p>
+     * Default value is {@code 0}. The background thread also closes expired connections and is
+     * stopped by {@link ApacheHttpTransport#shutdown()}.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setIdleConnectionTimeout(long idleConnectionTimeout) {
+      Preconditions.checkArgument(idleConnectionTimeout >= 0);
+      this.idleConnectionTimeout = idleConnectionTimeout;
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the DNS resolver used to open connections or {@code null} to use the JVM-global cache of
+     * {@link java.net.InetAddress}.
+     *
+     * <p>
+     * Connections are opened to the first reachable address returned by the resolver. A
+     * {@link com.google.api.client.http.CachingDnsResolver} caches the addresses of the hosts with
+     * its own time to live and spreads the connections across all of them instead, as described in
+     * {@link com.google.api.client.http.CachingDnsResolver#connect(String, int, int)}. When a proxy
+     * is used, it resolves the proxy host.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setDnsResolver(DnsResolver dnsResolver) {
+      this.dnsResolver = dnsResolver;
+      return this;
+    }
+
+    /** Returns the DNS resolver or {@code null} to use {@link java.net.InetAddress}. */
+    @Beta
+    public DnsResolver getDnsResolver() {
+      return dnsResolver;
+    }
+
+    /**
+     * Returns a new instance of {@link ApacheHttpTransport} based on the options.
+     *
+     * <p>
+     * Upgrade warning: since version 1.23 the connection manager of the Apache HTTP client is a
+     * {@link PooledClientConnectionManager}.
+     * </p>
+     */
     public ApacheHttpTransport build() {
-      return new ApacheHttpTransport(newDefaultHttpClient(socketFactory, params, proxySelector));
+      PooledClientConnectionManager connectionManager = new PooledClientConnectionManager(params,
+          newSchemeRegistry(socketFactory), validateAfterInactivity, connectionTimeToLive,
+          idleConnectionTimeout, dnsResolver);
+      return new ApacheHttpTransport(
+          newDefaultHttpClient(connectionManager, params, proxySelector));
     }
   }
 }
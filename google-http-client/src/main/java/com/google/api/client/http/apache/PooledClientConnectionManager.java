@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.apache;
+
+import com.google.api.client.http.CachingDnsResolver;
+import com.google.api.client.http.DnsResolver;
+import com.google.api.client.util.Beta;
+
+import org.apache.http.HttpConnectionMetrics;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link Beta} <br/>
+ * Pooled client connection manager with per-route limits, validation of connections after a
+ * period of inactivity, a connection time to live, a background reaper of idle and expired
+ * connections and live pool statistics.
+ *
+ * <p>
+ * Connections are pooled as by {@link ThreadSafeClientConnManager}, whose limits are set from
+ * {@link ConnManagerParams}. Instead of checking every connection for staleness before each
+ * request, a connection is only validated when it is leased after having been idle for longer than
+ * {@link ApacheHttpTransport.Builder#setValidateAfterInactivity}. Stale connections and connections
+ * older than their time to live are closed when leased, so that they are transparently reopened.
+ * </p>
+ *
+ * <p>
+ * If a {@link DnsResolver} is set with {@link ApacheHttpTransport.Builder#setDnsResolver},
+ * connections are opened to the addresses it returns, or to the addresses chosen by a
+ * {@link CachingDnsResolver}, instead of the first address returned by {@link InetAddress}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+      .setMaxConnectionsTotal(500)
+      .setMaxConnectionsPerRoute(50)
+      .setIdleConnectionTimeout(30000)
+      .build();
+  PooledClientConnectionManager.PoolStats stats =
+      ((PooledClientConnectionManager) transport.getHttpClient().getConnectionManager())
+      .getTotalStats();
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class PooledClientConnectionManager extends ThreadSafeClientConnManager {
+
+  private static final Logger LOGGER =
+      Logger.getLogger(PooledClientConnectionManager.class.getName());
+
+  /** Counter used to name the reaper threads. */
+  private static final AtomicInteger REAPER_COUNTER = new AtomicInteger();
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of connection pool statistics.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class PoolStats {
+
+    private final int leased;
+    private final int available;
+    private final int pending;
+    private final int max;
+
+    PoolStats(int leased, int available, int pending, int max) {
+      this.leased = leased;
+      this.available = available;
+      this.pending = pending;
+      this.max = max;
+    }
+
+    /** Returns the number of connections currently leased to requests. */
+    public int getLeased() {
+      return leased;
+    }
+
+    /** Returns the number of idle pooled connections available for reuse. */
+    public int getAvailable() {
+      return available;
+    }
+
+    /** Returns the number of requests waiting for a connection. */
+    public int getPending() {
+      return pending;
+    }
+
+    /** Returns the maximum number of connections. */
+    public int getMax() {
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return "[leased: " + leased + "; pending: " + pending + "; available: " + available
+          + "; max: " + max + "]";
+    }
+  }
+
+  /** Counters of a single route. */
+  private static final class RouteCounters {
+
+    /** Number of leased connections. */
+    final AtomicInteger leased = new AtomicInteger();
+
+    /** Number of requests waiting for a connection. */
+    final AtomicInteger pending = new AtomicInteger();
+  }
+
+  /** Times of a pooled connection. */
+  private static final class ConnectionTimes {
+
+    /** Time in nanoseconds when the connection has been first seen. */
+    final long createdNanos;
+
+    /** Time in nanoseconds when the connection has last been released. */
+    long releasedNanos;
+
+    ConnectionTimes(long createdNanos) {
+      this.createdNanos = createdNanos;
+      releasedNanos = createdNanos;
+    }
+  }
+
+  /** HTTP parameters with the connection limits. */
+  private final HttpParams params;
+
+  /** Inactivity period in milliseconds after which a connection is validated or {@code -1}. */
+  private final long validateAfterInactivity;
+
+  /** Time to live in milliseconds of a connection or {@code -1} for infinite. */
+  private final long timeToLive;
+
+  /** Idle time in milliseconds after which the reaper closes a connection or {@code 0}. */
+  private final long idleConnectionTimeout;
+
+  /**
+   * DNS resolver or {@code null} to use {@link InetAddress}, read by the connection operator only
+   * once connections are opened, since the operator is created by the super class constructor.
+   */
+  private final DnsResolver dnsResolver;
+
+  /** Counters by route. */
+  private final ConcurrentHashMap<HttpRoute, RouteCounters> counters =
+      new ConcurrentHashMap<HttpRoute, RouteCounters>();
+
+  /** Routes of the leased connections. */
+  private final Map<ManagedClientConnection, HttpRoute> leases =
+      new IdentityHashMap<ManagedClientConnection, HttpRoute>();
+
+  /**
+   * Times by connection, keyed by the metrics of the underlying connection, which are the same
+   * object for every lease of the same open connection.
+   */
+  private final Map<HttpConnectionMetrics, ConnectionTimes> connectionTimes =
+      new WeakHashMap<HttpConnectionMetrics, ConnectionTimes>();
+
+  /** Reaper thread or {@code null} for none. */
+  private final Thread reaper;
+
+  /** Whether {@link #shutdown()} has been called. */
+  private volatile boolean shutdown;
+
+  /**
+   * @param params HTTP parameters with the connection limits set with {@link ConnManagerParams}
+   * @param schemeRegistry scheme registry
+   * @param validateAfterInactivity inactivity period in milliseconds after which a leased
+   *        connection is checked for staleness or {@code -1} to never check
+   * @param timeToLive time to live in milliseconds of a connection or {@code -1} for infinite
+   * @param idleConnectionTimeout idle time in milliseconds after which a background thread closes
+   *        a pooled connection or {@code 0} for no background thread
+   */
+  PooledClientConnectionManager(HttpParams params, SchemeRegistry schemeRegistry,
+      long validateAfterInactivity, long timeToLive, long idleConnectionTimeout) {
+    this(params, schemeRegistry, validateAfterInactivity, timeToLive, idleConnectionTimeout, null);
+  }
+
+  /**
+   * @param params HTTP parameters with the connection limits set with {@link ConnManagerParams}
+   * @param schemeRegistry scheme registry
+   * @param validateAfterInactivity inactivity period in milliseconds after which a leased
+   *        connection is checked for staleness or {@code -1} to never check
+   * @param timeToLive time to live in milliseconds of a connection or {@code -1} for infinite
+   * @param idleConnectionTimeout idle time in milliseconds after which a background thread closes
+   *        a pooled connection or {@code 0} for no background thread
+   * @param dnsResolver DNS resolver or {@code null} to use {@link InetAddress}
+   */
+  PooledClientConnectionManager(HttpParams params, SchemeRegistry schemeRegistry,
+      long validateAfterInactivity, long timeToLive, long idleConnectionTimeout,
+      DnsResolver dnsResolver) {
+    super(params, schemeRegistry);
+    this.dnsResolver = dnsResolver;
+    this.params = params;
+    this.validateAfterInactivity = validateAfterInactivity;
+    this.timeToLive = timeToLive;
+    this.idleConnectionTimeout = idleConnectionTimeout;
+    if (idleConnectionTimeout > 0) {
+      reaper = new Thread(new Runnable() {
+
+        public void run() {
+          reap();
+        }
+      }, "PooledClientConnectionManager-reaper-" + REAPER_COUNTER.incrementAndGet());
+      reaper.setDaemon(true);
+      reaper.start();
+    } else {
+      reaper = null;
+    }
+  }
+
+  @Override
+  protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemeRegistry) {
+    return new DnsResolverConnectionOperator(schemeRegistry);
+  }
+
+  /** Returns the DNS resolver or {@code null} to use {@link InetAddress}. */
+  public DnsResolver getDnsResolver() {
+    return dnsResolver;
+  }
+
+  @Override
+  public ClientConnectionRequest requestConnection(final HttpRoute route, Object state) {
+    final ClientConnectionRequest request = super.requestConnection(route, state);
+    return new ClientConnectionRequest() {
+
+      public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+          throws InterruptedException, ConnectionPoolTimeoutException {
+        RouteCounters routeCounters = getCounters(route);
+        routeCounters.pending.incrementAndGet();
+        ManagedClientConnection connection;
+        try {
+          connection = request.getConnection(timeout, unit);
+        } finally {
+          routeCounters.pending.decrementAndGet();
+        }
+        routeCounters.leased.incrementAndGet();
+        synchronized (leases) {
+          leases.put(connection, route);
+        }
+        validate(connection);
+        return connection;
+      }
+
+      public void abortRequest() {
+        request.abortRequest();
+      }
+    };
+  }
+
+  @Override
+  public void releaseConnection(
+      ManagedClientConnection connection, long validDuration, TimeUnit timeUnit) {
+    HttpRoute route;
+    synchronized (leases) {
+      route = leases.remove(connection);
+    }
+    if (route != null) {
+      getCounters(route).leased.decrementAndGet();
+    }
+    long validMillis =
+        validDuration > 0 ? (timeUnit == null ? validDuration : timeUnit.toMillis(validDuration))
+            : -1;
+    if (connection.isOpen()) {
+      ConnectionTimes times = getTimes(connection);
+      if (times != null) {
+        long now = System.nanoTime();
+        times.releasedNanos = now;
+        if (timeToLive > 0) {
+          long remainingMillis = timeToLive - (now - times.createdNanos) / 1000000L;
+          if (remainingMillis <= 0) {
+            closeQuietly(connection);
+          } else if (validMillis <= 0 || remainingMillis < validMillis) {
+            validMillis = remainingMillis;
+          }
+        }
+      }
+    }
+    super.releaseConnection(connection, validMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    if (reaper != null) {
+      reaper.interrupt();
+    }
+    super.shutdown();
+  }
+
+  /** Returns the statistics of the given route. */
+  public PoolStats getStats(HttpRoute route) {
+    RouteCounters routeCounters = counters.get(route);
+    int leased = routeCounters == null ? 0 : routeCounters.leased.get();
+    int pending = routeCounters == null ? 0 : routeCounters.pending.get();
+    int available = Math.max(0, getConnectionsInPool(route) - leased);
+    return new PoolStats(leased, available, pending,
+        ConnManagerParams.getMaxConnectionsPerRoute(params).getMaxForRoute(route));
+  }
+
+  /** Returns the statistics of all routes. */
+  public PoolStats getTotalStats() {
+    int leased = 0;
+    int pending = 0;
+    for (RouteCounters routeCounters : counters.values()) {
+      leased += routeCounters.leased.get();
+      pending += routeCounters.pending.get();
+    }
+    int available = Math.max(0, getConnectionsInPool() - leased);
+    return new PoolStats(
+        leased, available, pending, ConnManagerParams.getMaxTotalConnections(params));
+  }
+
+  /** Returns the routes for which connections have been requested. */
+  public List<HttpRoute> getRoutes() {
+    return new ArrayList<HttpRoute>(counters.keySet());
+  }
+
+  private RouteCounters getCounters(HttpRoute route) {
+    RouteCounters routeCounters = counters.get(route);
+    if (routeCounters == null) {
+      RouteCounters newCounters = new RouteCounters();
+      routeCounters = counters.putIfAbsent(route, newCounters);
+      if (routeCounters == null) {
+        routeCounters = newCounters;
+      }
+    }
+    return routeCounters;
+  }
+
+  /** Returns the times of the given open connection, first seen now if unknown. */
+  private ConnectionTimes getTimes(ManagedClientConnection connection) {
+    HttpConnectionMetrics metrics;
+    try {
+      metrics = connection.getMetrics();
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (metrics == null) {
+      return null;
+    }
+    synchronized (connectionTimes) {
+      ConnectionTimes times = connectionTimes.get(metrics);
+      if (times == null) {
+        times = new ConnectionTimes(System.nanoTime());
+        connectionTimes.put(metrics, times);
+      }
+      return times;
+    }
+  }
+
+  /**
+   * Closes a newly leased connection if it exceeded its time to live or is found to be stale after
+   * a period of inactivity, so that it is reopened.
+   */
+  private void validate(ManagedClientConnection connection) {
+    if (!connection.isOpen()) {
+      return;
+    }
+    ConnectionTimes times = getTimes(connection);
+    if (times == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (timeToLive > 0 && now - times.createdNanos >= timeToLive * 1000000L) {
+      closeQuietly(connection);
+    } else if (validateAfterInactivity >= 0
+        && now - times.releasedNanos >= validateAfterInactivity * 1000000L
+        && connection.isStale()) {
+      closeQuietly(connection);
+    }
+  }
+
+  private static void closeQuietly(ManagedClientConnection connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "exception thrown while closing connection", e);
+    }
+  }
+
+  /**
+   * Connection operator opening connections with the DNS resolver, if any, and otherwise as
+   * {@link DefaultClientConnectionOperator}. Connections bound to a local address are always opened
+   * by {@link DefaultClientConnectionOperator}.
+   */
+  private final class DnsResolverConnectionOperator implements ClientConnectionOperator {
+
+    /** Scheme registry. */
+    private final SchemeRegistry schemeRegistry;
+
+    /** Default connection operator. */
+    private final DefaultClientConnectionOperator defaultOperator;
+
+    DnsResolverConnectionOperator(SchemeRegistry schemeRegistry) {
+      this.schemeRegistry = schemeRegistry;
+      defaultOperator = new DefaultClientConnectionOperator(schemeRegistry);
+    }
+
+    public OperatedClientConnection createConnection() {
+      return defaultOperator.createConnection();
+    }
+
+    public void openConnection(OperatedClientConnection conn, HttpHost target, InetAddress local,
+        HttpContext context, HttpParams params) throws IOException {
+      DnsResolver resolver = dnsResolver;
+      if (resolver == null || local != null) {
+        defaultOperator.openConnection(conn, target, local, context, params);
+        return;
+      }
+      Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+      SocketFactory socketFactory = scheme.getSocketFactory();
+      String host = target.getHostName();
+      int port = scheme.resolvePort(target.getPort());
+      Socket socket;
+      try {
+        socket = CachingDnsResolver.connect(
+            resolver, host, port, HttpConnectionParams.getConnectionTimeout(params));
+      } catch (SocketTimeoutException e) {
+        throw new ConnectTimeoutException("Connect to " + target + " timed out");
+      }
+      boolean success = false;
+      try {
+        conn.opening(socket, target);
+        socket.setTcpNoDelay(HttpConnectionParams.getTcpNoDelay(params));
+        socket.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+        int linger = HttpConnectionParams.getLinger(params);
+        if (linger >= 0) {
+          socket.setSoLinger(linger > 0, linger);
+        }
+        if (socketFactory instanceof LayeredSocketFactory) {
+          socket = ((LayeredSocketFactory) socketFactory).createSocket(socket, host, port, true);
+          conn.opening(socket, target);
+        }
+        conn.openCompleted(socketFactory.isSecure(socket), params);
+        success = true;
+      } finally {
+        if (!success) {
+          socket.close();
+        }
+      }
+    }
+
+    public void updateSecureConnection(OperatedClientConnection conn, HttpHost target,
+        HttpContext context, HttpParams params) throws IOException {
+      defaultOperator.updateSecureConnection(conn, target, context, params);
+    }
+  }
+
+  /** Periodically closes expired and idle connections until shut down. */
+  void reap() {
+    long intervalMillis = Math.max(1000, Math.min(idleConnectionTimeout / 2, 30000));
+    while (!shutdown) {
+      try {
+        Thread.sleep(intervalMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      closeExpiredConnections();
+      closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -42,8 +42,17 @@ final class SSLSocketFactoryExtension extends SSLSocketFactory {
    */
   SSLSocketFactoryExtension(SSLContext sslContext) throws KeyManagementException,
       UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException {
+    this(sslContext.getSocketFactory());
+  }
+
+  /**
+   * @param socketFactory Java SSL socket factory
+   */
+  SSLSocketFactoryExtension(javax.net.ssl.SSLSocketFactory socketFactory)
+      throws KeyManagementException, UnrecoverableKeyException, NoSuchAlgorithmException,
+      KeyStoreException {
     super((KeyStore) null);
-    socketFactory = sslContext.getSocketFactory();
+    this.socketFactory = socketFactory;
   }
 
   @Override
@@ -14,11 +14,13 @@
 
 package com.google.api.client.http.javanet;
 
+import com.google.api.client.http.DnsResolver;
 import com.google.api.client.http.HttpMethods;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.util.Beta;
 import com.google.api.client.util.Preconditions;
 import com.google.api.client.util.SecurityUtils;
+import com.google.api.client.util.SharedTlsContext;
 import com.google.api.client.util.SslUtils;
 
 import java.io.IOException;
@@ -33,7 +35,6 @@ import java.util.Arrays;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -123,6 +124,32 @@ public final class NetHttpTransport extends HttpTransport {
     this.hostnameVerifier = hostnameVerifier;
   }
 
+  /**
+   * {@link Beta} <br/>
+   * Returns a snapshot of the statistics of the connection pool if the connection factory is a
+   * {@link PooledConnectionFactory}, or {@code null} otherwise.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public PooledConnectionFactory.PoolStats getConnectionPoolStats() {
+    return connectionFactory instanceof PooledConnectionFactory
+        ? ((PooledConnectionFactory) connectionFactory).getStats() : null;
+  }
+
+  /**
+   * Closes the idle connections of the connection pool if the connection factory is a
+   * {@link PooledConnectionFactory}.
+   *
+   * @since 1.23
+   */
+  @Override
+  public void shutdown() {
+    if (connectionFactory instanceof PooledConnectionFactory) {
+      ((PooledConnectionFactory) connectionFactory).evictAll();
+    }
+  }
+
   @Override
   public boolean supportsMethod(String method) {
     return Arrays.binarySearch(SUPPORTED_METHODS, method) >= 0;
@@ -178,6 +205,15 @@ public final class NetHttpTransport extends HttpTransport {
      */
     private ConnectionFactory connectionFactory;
 
+    /** Maximum number of idle connections per host or {@code -1} to not own a pool. */
+    private int maxIdleConnectionsPerHost = -1;
+
+    /** Idle time in milliseconds after which a pooled connection is closed or {@code -1}. */
+    private long idleConnectionTimeout = -1;
+
+    /** DNS resolver or {@code null} to use {@link java.net.InetAddress}. */
+    private DnsResolver dnsResolver;
+
     /**
      * Sets the HTTP proxy or {@code null} to use the proxy settings from <a
      * href="http://docs.oracle.com/javase/7/docs/api/java/net/doc-files/net-properties.html">system
@@ -262,14 +298,35 @@ public final class NetHttpTransport extends HttpTransport {
     /**
      * Sets the SSL socket factory based on a root certificate trust store.
      *
+     * <p>
+     * Upgrade warning: since version 1.23 the SSL socket factory is based on the TLS context shared
+     * with the other transports that trust the same certificates, as returned by
+     * {@link SslUtils#getSharedTlsContext}.
+     * </p>
+     *
      * @param trustStore certificate trust store (use for example {@link SecurityUtils#loadKeyStore}
      *        or {@link SecurityUtils#loadKeyStoreFromCertificates})
      * @since 1.14
      */
     public Builder trustCertificates(KeyStore trustStore) throws GeneralSecurityException {
-      SSLContext sslContext = SslUtils.getTlsSslContext();
-      SslUtils.initSslContext(sslContext, trustStore, SslUtils.getPkixTrustManagerFactory());
-      return setSslSocketFactory(sslContext.getSocketFactory());
+      return setSharedTlsContext(SslUtils.getSharedTlsContext(trustStore));
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the SSL socket factory based on a shared TLS context, so that TLS sessions are resumed
+     * across the transports using the same context.
+     *
+     * <p>
+     * For example, {@code setSharedTlsContext(SslUtils.getSharedTlsContext(null))} trusts the
+     * default certificates of the JVM.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setSharedTlsContext(SharedTlsContext tlsContext) {
+      return setSslSocketFactory(tlsContext.getSocketFactory());
     }
 
     /**
@@ -312,8 +369,89 @@ public final class NetHttpTransport extends HttpTransport {
       return this;
     }
 
+    /**
+     * {@link Beta} <br/>
+     * Sets the maximum number of idle connections kept alive per host in a connection pool owned
+     * by the transport, instead of the hidden keep-alive cache of {@link HttpURLConnection}.
+     *
+     * <p>
+     * Setting this option or {@link #setIdleConnectionTimeout} makes the transport use a
+     * {@link PooledConnectionFactory}, whose statistics are available with
+     * {@link NetHttpTransport#getConnectionPoolStats()}. It can't be combined with
+     * {@link #setConnectionFactory}.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+      Preconditions.checkArgument(maxIdleConnectionsPerHost >= 0);
+      this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the idle time in milliseconds after which a connection of the connection pool owned by
+     * the transport is closed.
+     *
+     * <p>
+     * See {@link #setMaxIdleConnectionsPerHost} for details.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setIdleConnectionTimeout(long idleConnectionTimeout) {
+      Preconditions.checkArgument(idleConnectionTimeout > 0);
+      this.idleConnectionTimeout = idleConnectionTimeout;
+      return this;
+    }
+
+    /**
+     * {@link Beta} <br/>
+     * Sets the DNS resolver used to open connections that don't go through a proxy or {@code null}
+     * to use the JVM-global cache of {@link java.net.InetAddress}.
+     *
+     * <p>
+     * Connections are opened to the first reachable address returned by the resolver. A
+     * {@link com.google.api.client.http.CachingDnsResolver} caches the addresses of the hosts with
+     * its own time to live and spreads the connections across all of them instead, as described in
+     * {@link com.google.api.client.http.CachingDnsResolver#connect(String, int, int)}.
+     * {@link HttpURLConnection} doesn't support custom resolvers,
+     * so setting a resolver makes the transport use a {@link PooledConnectionFactory} as described
+     * in {@link #setMaxIdleConnectionsPerHost}.
+     * </p>
+     *
+     * @since 1.23
+     */
+    @Beta
+    public Builder setDnsResolver(DnsResolver dnsResolver) {
+      this.dnsResolver = dnsResolver;
+      return this;
+    }
+
+    /** Returns the DNS resolver or {@code null} to use {@link java.net.InetAddress}. */
+    @Beta
+    public DnsResolver getDnsResolver() {
+      return dnsResolver;
+    }
+
     /** Returns a new instance of {@link NetHttpTransport} based on the options. */
     public NetHttpTransport build() {
+      if (maxIdleConnectionsPerHost != -1 || idleConnectionTimeout != -1 || dnsResolver != null) {
+        Preconditions.checkState(connectionFactory == null,
+            "connection pool options can't be combined with a connection factory");
+        PooledConnectionFactory.Builder poolBuilder =
+            new PooledConnectionFactory.Builder().setProxy(proxy).setDnsResolver(dnsResolver);
+        if (maxIdleConnectionsPerHost != -1) {
+          poolBuilder.setMaxIdleConnectionsPerHost(maxIdleConnectionsPerHost);
+        }
+        if (idleConnectionTimeout != -1) {
+          poolBuilder.setIdleConnectionTimeout(idleConnectionTimeout);
+        }
+        return new NetHttpTransport(poolBuilder.build(), sslSocketFactory, hostnameVerifier);
+      }
       return proxy == null
           ? new NetHttpTransport(connectionFactory, sslSocketFactory, hostnameVerifier)
           : new NetHttpTransport(proxy, sslSocketFactory, hostnameVerifier);
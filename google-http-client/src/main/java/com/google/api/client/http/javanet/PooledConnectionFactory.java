@@ -0,0 +1,552 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.javanet;
+
+import com.google.api.client.http.DnsResolver;
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link Beta} <br/>
+ * Connection factory that keeps alive connections in a pool owned by the factory, instead of the
+ * hidden keep-alive cache of the JDK's {@link HttpURLConnection}.
+ *
+ * <p>
+ * The {@link HttpURLConnection} instances produced by this factory speak HTTP/1.1 directly over
+ * sockets. When the response content has been fully read, the socket is returned to the pool,
+ * which keeps at most {@link Builder#setMaxIdleConnectionsPerHost} idle connections per host and
+ * closes connections idle for longer than {@link Builder#setIdleConnectionTimeout}. Statistics of
+ * the pool are available with {@link #getStats()}.
+ * </p>
+ *
+ * <p>
+ * Sample usage:
+ * </p>
+ *
+ * <pre>
+  PooledConnectionFactory connectionFactory = new PooledConnectionFactory.Builder()
+      .setMaxIdleConnectionsPerHost(10)
+      .setIdleConnectionTimeout(30000)
+      .build();
+  NetHttpTransport transport =
+      new NetHttpTransport.Builder().setConnectionFactory(connectionFactory).build();
+ * </pre>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class PooledConnectionFactory implements ConnectionFactory {
+
+  /**
+   * Idle time in nanoseconds after which a pooled connection is checked to not have been closed by
+   * the server before it is reused.
+   */
+  private static final long VALIDATE_AFTER_INACTIVITY_NANOS = 1000000000L;
+
+  /** HTTP proxy or {@code null} to use the proxy settings from system properties. */
+  private final Proxy proxy;
+
+  /** Maximum number of idle connections per host. */
+  private final int maxIdleConnectionsPerHost;
+
+  /** DNS resolver of direct connections or {@code null} to use {@link java.net.InetAddress}. */
+  private final DnsResolver dnsResolver;
+
+  /** Idle time in nanoseconds after which a pooled connection is closed. */
+  private final long idleConnectionTimeoutNanos;
+
+  /** Idle connections by route, most recently used first, guarded by itself. */
+  private final Map<Route, LinkedList<PooledSocket>> idleConnections =
+      new HashMap<Route, LinkedList<PooledSocket>>();
+
+  /** Time in nanoseconds of the last eviction of expired connections of all routes. */
+  private long lastEvictionNanos = System.nanoTime();
+
+  /** Number of connections leased to requests. */
+  private int leasedCount;
+
+  /** Number of requests that reused a pooled connection. */
+  private long reuseCount;
+
+  /** Number of connections opened. */
+  private long connectCount;
+
+  /** Number of idle connections closed because of the pool limits or idle timeout. */
+  private long evictionCount;
+
+  /** Constructor with the default behavior. */
+  public PooledConnectionFactory() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  PooledConnectionFactory(Builder builder) {
+    proxy = builder.proxy;
+    maxIdleConnectionsPerHost = builder.maxIdleConnectionsPerHost;
+    dnsResolver = builder.dnsResolver;
+    idleConnectionTimeoutNanos = builder.idleConnectionTimeout * 1000000L;
+  }
+
+  public HttpURLConnection openConnection(URL url) throws IOException {
+    String protocol = url.getProtocol();
+    if (!"http".equals(protocol) && !"https".equals(protocol)) {
+      throw new ClassCastException("not an HTTP URL: " + url);
+    }
+    return new PooledHttpURLConnection(url, this, proxy);
+  }
+
+  /** Returns the HTTP proxy or {@code null} to use the proxy settings from system properties. */
+  public Proxy getProxy() {
+    return proxy;
+  }
+
+  /** Returns the maximum number of idle connections per host. */
+  public int getMaxIdleConnectionsPerHost() {
+    return maxIdleConnectionsPerHost;
+  }
+
+  /** Returns the idle time in milliseconds after which a pooled connection is closed. */
+  public long getIdleConnectionTimeout() {
+    return idleConnectionTimeoutNanos / 1000000L;
+  }
+
+  /**
+   * Returns the DNS resolver of direct connections or {@code null} to use
+   * {@link java.net.InetAddress}.
+   */
+  public DnsResolver getDnsResolver() {
+    return dnsResolver;
+  }
+
+  /** Returns a snapshot of the pool statistics. */
+  public PoolStats getStats() {
+    Map<String, Integer> idleCountByHost = new HashMap<String, Integer>();
+    int idleCount = 0;
+    synchronized (idleConnections) {
+      evictExpired(System.nanoTime());
+      for (Map.Entry<Route, LinkedList<PooledSocket>> entry : idleConnections.entrySet()) {
+        String host = entry.getKey().getHostAndPort();
+        int count = entry.getValue().size();
+        Integer previous = idleCountByHost.get(host);
+        idleCountByHost.put(host, previous == null ? count : previous + count);
+        idleCount += count;
+      }
+      return new PoolStats(idleCount, Collections.unmodifiableMap(idleCountByHost), leasedCount,
+          reuseCount, connectCount, evictionCount);
+    }
+  }
+
+  /** Closes all idle connections. */
+  public void evictAll() {
+    LinkedList<PooledSocket> evicted = new LinkedList<PooledSocket>();
+    synchronized (idleConnections) {
+      for (LinkedList<PooledSocket> sockets : idleConnections.values()) {
+        evicted.addAll(sockets);
+      }
+      idleConnections.clear();
+      evictionCount += evicted.size();
+    }
+    for (PooledSocket socket : evicted) {
+      socket.close();
+    }
+  }
+
+  /**
+   * Returns an idle connection of the given route or {@code null} if none is available, in which
+   * case the caller is expected to open a new connection and report it with {@link #connected}.
+   */
+  PooledSocket acquire(Route route) {
+    while (true) {
+      PooledSocket socket;
+      long now = System.nanoTime();
+      synchronized (idleConnections) {
+        LinkedList<PooledSocket> sockets = idleConnections.get(route);
+        socket = sockets == null ? null : sockets.poll();
+        if (socket == null) {
+          return null;
+        }
+        if (sockets.isEmpty()) {
+          idleConnections.remove(route);
+        }
+        if (now - socket.idleSinceNanos >= idleConnectionTimeoutNanos) {
+          evictionCount++;
+          socket.close();
+          continue;
+        }
+        leasedCount++;
+      }
+      if (now - socket.idleSinceNanos < VALIDATE_AFTER_INACTIVITY_NANOS || !socket.isStale()) {
+        synchronized (idleConnections) {
+          reuseCount++;
+        }
+        socket.reused = true;
+        return socket;
+      }
+      socket.close();
+      synchronized (idleConnections) {
+        leasedCount--;
+      }
+    }
+  }
+
+  /** Reports that a new connection has been opened and leased. */
+  void connected() {
+    synchronized (idleConnections) {
+      leasedCount++;
+      connectCount++;
+    }
+  }
+
+  /**
+   * Releases a leased connection, either returning it to the pool if it can be kept alive or
+   * closing it otherwise.
+   */
+  void release(PooledSocket socket, boolean keepAlive) {
+    PooledSocket evicted = null;
+    synchronized (idleConnections) {
+      leasedCount--;
+      if (keepAlive && maxIdleConnectionsPerHost > 0) {
+        long now = System.nanoTime();
+        socket.idleSinceNanos = now;
+        socket.reused = false;
+        LinkedList<PooledSocket> sockets = idleConnections.get(socket.route);
+        if (sockets == null) {
+          sockets = new LinkedList<PooledSocket>();
+          idleConnections.put(socket.route, sockets);
+        }
+        sockets.addFirst(socket);
+        if (sockets.size() > maxIdleConnectionsPerHost) {
+          evicted = sockets.removeLast();
+          evictionCount++;
+        }
+        if (now - lastEvictionNanos >= idleConnectionTimeoutNanos / 2) {
+          evictExpired(now);
+        }
+        socket = null;
+      }
+    }
+    if (socket != null) {
+      socket.close();
+    }
+    if (evicted != null) {
+      evicted.close();
+    }
+  }
+
+  /** Closes the idle connections of all routes that exceeded the idle timeout. */
+  private void evictExpired(long now) {
+    lastEvictionNanos = now;
+    for (Iterator<LinkedList<PooledSocket>> routes = idleConnections.values().iterator();
+        routes.hasNext();) {
+      LinkedList<PooledSocket> sockets = routes.next();
+      // most recently used first, so the expired ones are at the end
+      while (!sockets.isEmpty()
+          && now - sockets.getLast().idleSinceNanos >= idleConnectionTimeoutNanos) {
+        sockets.removeLast().close();
+        evictionCount++;
+      }
+      if (sockets.isEmpty()) {
+        routes.remove();
+      }
+    }
+  }
+
+  /** Route of a pooled connection. */
+  static final class Route {
+
+    /** Whether the connection uses TLS. */
+    final boolean secure;
+
+    /** Host name. */
+    final String host;
+
+    /** Port. */
+    final int port;
+
+    /** Proxy. */
+    final Proxy proxy;
+
+    /** SSL socket factory or {@code null} if not secure. */
+    final SSLSocketFactory sslSocketFactory;
+
+    /** Host name verifier or {@code null} if not secure. */
+    final HostnameVerifier hostnameVerifier;
+
+    Route(boolean secure, String host, int port, Proxy proxy, SSLSocketFactory sslSocketFactory,
+        HostnameVerifier hostnameVerifier) {
+      this.secure = secure;
+      this.host = host;
+      this.port = port;
+      this.proxy = proxy;
+      this.sslSocketFactory = sslSocketFactory;
+      this.hostnameVerifier = hostnameVerifier;
+    }
+
+    String getHostAndPort() {
+      return host + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Route)) {
+        return false;
+      }
+      Route other = (Route) obj;
+      return secure == other.secure && host.equalsIgnoreCase(other.host) && port == other.port
+          && proxy.equals(other.proxy) && sslSocketFactory == other.sslSocketFactory
+          && hostnameVerifier == other.hostnameVerifier;
+    }
+
+    @Override
+    public int hashCode() {
+      return (host.toLowerCase().hashCode() * 31 + port) * 31 + proxy.hashCode();
+    }
+  }
+
+  /** Open connection with its buffered streams. */
+  static final class PooledSocket {
+
+    /** Route. */
+    final Route route;
+
+    /** Socket. */
+    final Socket socket;
+
+    /** Buffered input stream. */
+    final BufferedInputStream in;
+
+    /** Buffered output stream. */
+    final OutputStream out;
+
+    /** Time in nanoseconds when the connection was last released to the pool. */
+    long idleSinceNanos;
+
+    /** Whether the connection has been taken from the pool for the current request. */
+    boolean reused;
+
+    PooledSocket(Route route, Socket socket) throws IOException {
+      this.route = route;
+      this.socket = socket;
+      in = new BufferedInputStream(socket.getInputStream(), 8192);
+      out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+    }
+
+    /** Returns whether the server closed the idle connection or sent unexpected data. */
+    boolean isStale() {
+      try {
+        if (in.available() > 0) {
+          return true;
+        }
+        int soTimeout = socket.getSoTimeout();
+        try {
+          socket.setSoTimeout(1);
+          // either end of stream or unexpected data
+          in.read();
+          return true;
+        } catch (SocketTimeoutException e) {
+          return false;
+        } finally {
+          socket.setSoTimeout(soTimeout);
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+
+    void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the pool statistics.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class PoolStats {
+
+    private final int idleCount;
+    private final Map<String, Integer> idleCountByHost;
+    private final int leasedCount;
+    private final long reuseCount;
+    private final long connectCount;
+    private final long evictionCount;
+
+    PoolStats(int idleCount, Map<String, Integer> idleCountByHost, int leasedCount,
+        long reuseCount, long connectCount, long evictionCount) {
+      this.idleCount = idleCount;
+      this.idleCountByHost = idleCountByHost;
+      this.leasedCount = leasedCount;
+      this.reuseCount = reuseCount;
+      this.connectCount = connectCount;
+      this.evictionCount = evictionCount;
+    }
+
+    /** Returns the number of idle connections in the pool. */
+    public int getIdleCount() {
+      return idleCount;
+    }
+
+    /** Returns the number of idle connections in the pool by {@code "host:port"}. */
+    public Map<String, Integer> getIdleCountByHost() {
+      return idleCountByHost;
+    }
+
+    /** Returns the number of connections currently used by requests. */
+    public int getLeasedCount() {
+      return leasedCount;
+    }
+
+    /** Returns the number of requests that reused a pooled connection. */
+    public long getReuseCount() {
+      return reuseCount;
+    }
+
+    /** Returns the number of connections that have been opened. */
+    public long getConnectCount() {
+      return connectCount;
+    }
+
+    /**
+     * Returns the number of idle connections that have been closed because of the pool limits or
+     * the idle timeout.
+     */
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    @Override
+    public String toString() {
+      return "[idle: " + idleCount + "; leased: " + leasedCount + "; reused: " + reuseCount
+          + "; connected: " + connectCount + "; evicted: " + evictionCount + "]";
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link PooledConnectionFactory}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** HTTP proxy or {@code null} to use the proxy settings from system properties. */
+    Proxy proxy;
+
+    /** Maximum number of idle connections per host. */
+    int maxIdleConnectionsPerHost = 5;
+
+    /** Idle time in milliseconds after which a pooled connection is closed. */
+    long idleConnectionTimeout = 60000;
+
+    /** DNS resolver of direct connections or {@code null} to use {@link java.net.InetAddress}. */
+    DnsResolver dnsResolver;
+
+    /**
+     * Sets the HTTP proxy or {@code null} to use the proxy settings from <a
+     * href="http://docs.oracle.com/javase/7/docs/api/java/net/doc-files/net-properties.html">system
+     * properties</a>.
+     */
+    public Builder setProxy(Proxy proxy) {
+      this.proxy = proxy;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of idle connections kept alive per host or {@code 0} to not keep
+     * connections alive.
+     *
+     * <p>
+     * Default value is {@code 5}.
+     * </p>
+     */
+    public Builder setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+      Preconditions.checkArgument(maxIdleConnectionsPerHost >= 0);
+      this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+      return this;
+    }
+
+    /**
+     * Sets the idle time in milliseconds after which a pooled connection is closed.
+     *
+     * <p>
+     * Default value is {@code 60000}.
+     * </p>
+     */
+    public Builder setIdleConnectionTimeout(long idleConnectionTimeout) {
+      Preconditions.checkArgument(idleConnectionTimeout > 0);
+      this.idleConnectionTimeout = idleConnectionTimeout;
+      return this;
+    }
+
+    /**
+     * Sets the DNS resolver used to open connections that don't go through a proxy or {@code null}
+     * to use {@link java.net.InetAddress}.
+     *
+     * <p>
+     * Connections are opened with {@link
+     * com.google.api.client.http.CachingDnsResolver#connect(DnsResolver, String, int, int)}.
+     * </p>
+     */
+    public Builder setDnsResolver(DnsResolver dnsResolver) {
+      this.dnsResolver = dnsResolver;
+      return this;
+    }
+
+    /** Returns a new instance of {@link PooledConnectionFactory} based on the options. */
+    public PooledConnectionFactory build() {
+      return new PooledConnectionFactory(this);
+    }
+  }
+}
@@ -0,0 +1,965 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.javanet;
+
+import com.google.api.client.http.CachingDnsResolver;
+import com.google.api.client.http.DnsResolver;
+import com.google.api.client.http.javanet.PooledConnectionFactory.PooledSocket;
+import com.google.api.client.http.javanet.PooledConnectionFactory.Route;
+import com.google.api.client.util.BufferPool;
+import com.google.api.client.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * HTTP/1.1 URL connection over a socket of a {@link PooledConnectionFactory}.
+ *
+ * <p>
+ * Extends {@link HttpsURLConnection} so that the SSL socket factory and host name verifier can be
+ * set for {@code "https"} URLs, but also handles {@code "http"} URLs. The request is buffered
+ * unless a fixed length or chunked streaming mode is set. The socket is returned to the pool once
+ * the response content has been fully read, or when it is closed with little content left.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+final class PooledHttpURLConnection extends HttpsURLConnection {
+
+  /** Maximum number of bytes of a response header line. */
+  private static final int MAX_LINE_LENGTH = 65536;
+
+  /** Maximum number of unread response bytes that are drained on close to reuse the socket. */
+  private static final int MAX_DRAIN_LENGTH = 65536;
+
+  /** Class name of the default host name verifier, which defers to the JDK's own verification. */
+  private static final String DEFAULT_HOSTNAME_VERIFIER_CLASS_NAME =
+      "javax.net.ssl.HttpsURLConnection$DefaultHostnameVerifier";
+
+  /** Connection factory that owns the socket pool. */
+  private final PooledConnectionFactory factory;
+
+  /** HTTP proxy or {@code null} to use the default proxy selector. */
+  private final Proxy proxy;
+
+  /** Request header names. */
+  private final List<String> requestHeaderNames = new ArrayList<String>();
+
+  /** Request header values. */
+  private final List<String> requestHeaderValues = new ArrayList<String>();
+
+  /** Route of the connection or {@code null} before connecting. */
+  private Route route;
+
+  /** Leased socket or {@code null} if not connected or already released. */
+  private PooledSocket socket;
+
+  /** SSL session or {@code null} if not secure. */
+  private SSLSession sslSession;
+
+  /** Whether the request line and headers have been sent. */
+  private boolean requestHeadSent;
+
+  /** Stream returned by {@link #getOutputStream()} or {@code null} before it is called. */
+  private OutputStream requestContent;
+
+  /** Buffered request content or {@code null} if streamed or none. */
+  private ByteArrayOutputStream bufferedContent;
+
+  /** Exception thrown while executing the request or {@code null} for none. */
+  private IOException failure;
+
+  /** Whether any byte of the response has been read. */
+  private boolean responseStarted;
+
+  /** Response status line or {@code null} before the response is read. */
+  private String statusLine;
+
+  /** Response header names. */
+  private final List<String> responseHeaderNames = new ArrayList<String>();
+
+  /** Response header values. */
+  private final List<String> responseHeaderValues = new ArrayList<String>();
+
+  /** Response content stream or {@code null} before the response is read. */
+  private ResponseContent responseContent;
+
+  PooledHttpURLConnection(URL url, PooledConnectionFactory factory, Proxy proxy) {
+    super(url);
+    this.factory = factory;
+    this.proxy = proxy;
+  }
+
+  @Override
+  public void setRequestProperty(String key, String value) {
+    checkNotConnected();
+    checkHeader(key, value);
+    for (int i = requestHeaderNames.size() - 1; i >= 0; i--) {
+      if (requestHeaderNames.get(i).equalsIgnoreCase(key)) {
+        requestHeaderNames.remove(i);
+        requestHeaderValues.remove(i);
+      }
+    }
+    requestHeaderNames.add(key);
+    requestHeaderValues.add(value);
+  }
+
+  @Override
+  public void addRequestProperty(String key, String value) {
+    checkNotConnected();
+    checkHeader(key, value);
+    requestHeaderNames.add(key);
+    requestHeaderValues.add(value);
+  }
+
+  @Override
+  public String getRequestProperty(String key) {
+    checkNotConnected();
+    for (int i = requestHeaderNames.size() - 1; i >= 0; i--) {
+      if (requestHeaderNames.get(i).equalsIgnoreCase(key)) {
+        return requestHeaderValues.get(i);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Map<String, List<String>> getRequestProperties() {
+    checkNotConnected();
+    return toMap(requestHeaderNames, requestHeaderValues, null);
+  }
+
+  private void checkNotConnected() {
+    if (connected) {
+      throw new IllegalStateException("Already connected");
+    }
+  }
+
+  private static void checkHeader(String key, String value) {
+    if (key == null) {
+      throw new NullPointerException("key is null");
+    }
+    if (key.indexOf('\r') != -1 || key.indexOf('\n') != -1
+        || value != null && (value.indexOf('\r') != -1 || value.indexOf('\n') != -1)) {
+      throw new IllegalArgumentException("Illegal character(s) in message header");
+    }
+  }
+
+  @Override
+  public void connect() throws IOException {
+    if (connected) {
+      return;
+    }
+    openSocket(false);
+    connected = true;
+  }
+
+  /**
+   * Leases a socket from the pool or opens a new one.
+   *
+   * @param fresh whether to open a new socket even if an idle one is available
+   */
+  private void openSocket(boolean fresh) throws IOException {
+    if (route == null) {
+      boolean secure = "https".equals(url.getProtocol());
+      int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+      route = new Route(secure, url.getHost(), port, proxy == null ? selectProxy() : proxy,
+          secure ? getSSLSocketFactory() : null, secure ? getHostnameVerifier() : null);
+    }
+    socket = fresh ? null : factory.acquire(route);
+    if (socket == null) {
+      socket = newSocket();
+      factory.connected();
+    }
+    if (route.secure) {
+      sslSession = ((SSLSocket) socket.socket).getSession();
+    }
+    socket.socket.setSoTimeout(getReadTimeout());
+  }
+
+  /** Returns the proxy selected by the default proxy selector for the URL. */
+  private Proxy selectProxy() {
+    ProxySelector selector = ProxySelector.getDefault();
+    if (selector != null) {
+      try {
+        List<Proxy> proxies = selector.select(url.toURI());
+        if (proxies != null && !proxies.isEmpty()) {
+          return proxies.get(0);
+        }
+      } catch (URISyntaxException e) {
+        // use no proxy
+      }
+    }
+    return Proxy.NO_PROXY;
+  }
+
+  /** Opens a new socket to the route, tunneling through the proxy for TLS. */
+  private PooledSocket newSocket() throws IOException {
+    String host = route.host;
+    int port = route.port;
+    Proxy.Type proxyType = route.proxy.type();
+    DnsResolver dnsResolver = factory.getDnsResolver();
+    Socket rawSocket;
+    if (proxyType == Proxy.Type.DIRECT && dnsResolver != null) {
+      rawSocket = CachingDnsResolver.connect(dnsResolver, host, port, getConnectTimeout());
+    } else if (proxyType == Proxy.Type.SOCKS) {
+      rawSocket = new Socket(route.proxy);
+    } else {
+      rawSocket = new Socket();
+    }
+    boolean success = false;
+    try {
+      if (!rawSocket.isConnected()) {
+        SocketAddress address;
+        if (proxyType == Proxy.Type.HTTP) {
+          address = route.proxy.address();
+        } else if (proxyType == Proxy.Type.SOCKS) {
+          address = InetSocketAddress.createUnresolved(host, port);
+        } else {
+          address = new InetSocketAddress(host, port);
+        }
+        rawSocket.connect(address, getConnectTimeout());
+      }
+      rawSocket.setTcpNoDelay(true);
+      rawSocket.setSoTimeout(getReadTimeout());
+      Socket connectedSocket = rawSocket;
+      if (route.secure) {
+        if (proxyType == Proxy.Type.HTTP) {
+          tunnel(rawSocket);
+        }
+        connectedSocket = newSslSocket(rawSocket);
+      }
+      PooledSocket result = new PooledSocket(route, connectedSocket);
+      success = true;
+      return result;
+    } finally {
+      if (!success) {
+        rawSocket.close();
+      }
+    }
+  }
+
+  /** Establishes a tunnel through the HTTP proxy with the {@code CONNECT} method. */
+  private void tunnel(Socket rawSocket) throws IOException {
+    String authority = route.getHostAndPort();
+    OutputStream out = rawSocket.getOutputStream();
+    out.write(StringUtils.getBytesUtf8(
+        "CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n"));
+    out.flush();
+    // read unbuffered so that no byte of the TLS handshake is consumed
+    InputStream in = rawSocket.getInputStream();
+    String proxyStatusLine = readLine(in);
+    String line = proxyStatusLine;
+    while (line != null && line.length() != 0) {
+      line = readLine(in);
+    }
+    if (line == null || parseStatusCode(proxyStatusLine) != 200) {
+      throw new IOException(
+          "Unable to tunnel through proxy. Proxy returns \"" + proxyStatusLine + "\"");
+    }
+  }
+
+  /** Layers TLS over the connected socket and verifies the host name. */
+  private Socket newSslSocket(Socket rawSocket) throws IOException {
+    SSLSocket sslSocket =
+        (SSLSocket) route.sslSocketFactory.createSocket(rawSocket, route.host, route.port, true);
+    HostnameVerifier hostnameVerifier = route.hostnameVerifier;
+    boolean defaultVerifier = hostnameVerifier == null
+        || DEFAULT_HOSTNAME_VERIFIER_CLASS_NAME.equals(hostnameVerifier.getClass().getName());
+    if (defaultVerifier) {
+      enableEndpointIdentification(sslSocket);
+    }
+    sslSocket.startHandshake();
+    if (!defaultVerifier && !hostnameVerifier.verify(route.host, sslSocket.getSession())) {
+      sslSocket.close();
+      throw new SSLPeerUnverifiedException("Hostname " + route.host + " not verified");
+    }
+    return sslSocket;
+  }
+
+  /**
+   * Delegates host name verification to the SSL socket, which requires Java 7 or higher, since the
+   * default host name verifier rejects all host names.
+   */
+  private static void enableEndpointIdentification(SSLSocket sslSocket) throws SSLException {
+    try {
+      Method getParameters = SSLSocket.class.getMethod("getSSLParameters");
+      Object parameters = getParameters.invoke(sslSocket);
+      parameters.getClass()
+          .getMethod("setEndpointIdentificationAlgorithm", String.class)
+          .invoke(parameters, "HTTPS");
+      SSLSocket.class.getMethod("setSSLParameters", getParameters.getReturnType())
+          .invoke(sslSocket, parameters);
+    } catch (Exception e) {
+      SSLException exception =
+          new SSLException("host name verification unavailable, set a HostnameVerifier");
+      exception.initCause(e);
+      throw exception;
+    }
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    if (!doOutput) {
+      throw new ProtocolException(
+          "cannot write to a URLConnection if doOutput=false - call setDoOutput(true)");
+    }
+    if (requestContent != null) {
+      return requestContent;
+    }
+    if (statusLine != null || failure != null) {
+      throw new ProtocolException("Cannot write output after reading input.");
+    }
+    connect();
+    if (fixedContentLength != -1) {
+      sendRequestHead();
+      requestContent = new FixedLengthOutputStream(socket.out, fixedContentLength);
+    } else if (chunkLength != -1) {
+      sendRequestHead();
+      requestContent = new ChunkedOutputStream(socket.out);
+    } else {
+      bufferedContent = new ByteArrayOutputStream();
+      requestContent = bufferedContent;
+    }
+    return requestContent;
+  }
+
+  /** Sends the request line and headers. */
+  private void sendRequestHead() throws IOException {
+    StringBuilder head = new StringBuilder();
+    head.append(method).append(' ');
+    if (route.proxy.type() == Proxy.Type.HTTP && !route.secure) {
+      head.append(url.getProtocol()).append("://").append(url.getAuthority());
+    }
+    String file = url.getFile();
+    head.append(file.length() == 0 ? "/" : file).append(" HTTP/1.1\r\n");
+    boolean streaming = fixedContentLength != -1 || chunkLength != -1 || bufferedContent != null;
+    boolean hasHost = false;
+    for (int i = 0; i < requestHeaderNames.size(); i++) {
+      String name = requestHeaderNames.get(i);
+      if (streaming && (name.equalsIgnoreCase("Content-Length")
+          || name.equalsIgnoreCase("Transfer-Encoding"))) {
+        continue;
+      }
+      hasHost |= name.equalsIgnoreCase("Host");
+      String value = requestHeaderValues.get(i);
+      head.append(name).append(": ").append(value == null ? "" : value).append("\r\n");
+    }
+    if (!hasHost) {
+      head.append("Host: ").append(url.getHost());
+      if (url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+        head.append(':').append(url.getPort());
+      }
+      head.append("\r\n");
+    }
+    if (fixedContentLength != -1) {
+      head.append("Content-Length: ").append(fixedContentLength).append("\r\n");
+    } else if (chunkLength != -1) {
+      head.append("Transfer-Encoding: chunked\r\n");
+    } else if (bufferedContent != null) {
+      head.append("Content-Length: ").append(bufferedContent.size()).append("\r\n");
+    }
+    head.append("\r\n");
+    socket.out.write(StringUtils.getBytesUtf8(head.toString()));
+    requestHeadSent = true;
+  }
+
+  /**
+   * Sends the request if not already sent and reads the response head, retrying once on a new
+   * socket if a pooled socket turns out to have been closed by the server before any response
+   * byte and the request content has not been streamed.
+   */
+  private void readResponse() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+    if (statusLine != null) {
+      return;
+    }
+    try {
+      connect();
+      while (true) {
+        boolean streamed = requestHeadSent;
+        try {
+          if (!requestHeadSent) {
+            sendRequestHead();
+            if (bufferedContent != null) {
+              bufferedContent.writeTo(socket.out);
+            }
+          } else if (requestContent != null) {
+            requestContent.close();
+          }
+          socket.out.flush();
+          readResponseHead();
+          break;
+        } catch (IOException e) {
+          boolean retry = socket.reused && !streamed && !responseStarted;
+          releaseSocket(false);
+          if (!retry) {
+            throw e;
+          }
+          requestHeadSent = false;
+          openSocket(true);
+        }
+      }
+    } catch (IOException e) {
+      releaseSocket(false);
+      failure = e;
+      throw e;
+    }
+  }
+
+  /** Reads the response status line and headers, skipping informational responses. */
+  private void readResponseHead() throws IOException {
+    InputStream in = socket.in;
+    String line;
+    do {
+      responseHeaderNames.clear();
+      responseHeaderValues.clear();
+      line = readLine(in);
+      if (line == null) {
+        throw new IOException("Unexpected end of file from server");
+      }
+      responseStarted = true;
+      responseCode = parseStatusCode(line);
+      if (responseCode == -1) {
+        throw new IOException("Invalid Http response");
+      }
+      int reasonIndex = line.indexOf(' ', line.indexOf(' ') + 1);
+      responseMessage = reasonIndex == -1 ? "" : line.substring(reasonIndex + 1);
+      statusLine = line;
+      while (true) {
+        String header = readLine(in);
+        if (header == null) {
+          throw new IOException("Unexpected end of file from server");
+        }
+        if (header.length() == 0) {
+          break;
+        }
+        int colon = header.indexOf(':');
+        if (colon > 0) {
+          responseHeaderNames.add(header.substring(0, colon).trim());
+          responseHeaderValues.add(header.substring(colon + 1).trim());
+        }
+      }
+    } while (responseCode / 100 == 1 && responseCode != 101);
+    boolean hasContent = !"HEAD".equals(method) && responseCode / 100 != 1 && responseCode != 204
+        && responseCode != 304;
+    boolean keepAlive = statusLine.startsWith("HTTP/1.1") ? !hasHeaderToken("Connection", "close")
+        : hasHeaderToken("Connection", "keep-alive");
+    if (!hasContent) {
+      responseContent = new ResponseContent(0, false, keepAlive);
+    } else if (hasHeaderToken("Transfer-Encoding", "chunked")) {
+      responseContent = new ResponseContent(-1, true, keepAlive);
+    } else {
+      String contentLength = getHeaderValue("Content-Length");
+      long length = -1;
+      if (contentLength != null) {
+        try {
+          length = Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+          // read until end of stream
+        }
+      }
+      responseContent = new ResponseContent(length, false, keepAlive && length != -1);
+    }
+  }
+
+  /** Returns the status code of the given status line or {@code -1} if invalid. */
+  private static int parseStatusCode(String line) {
+    int space = line == null || !line.startsWith("HTTP/") ? -1 : line.indexOf(' ');
+    if (space == -1 || line.length() < space + 4) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(line.substring(space + 1, space + 4));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Reads a line terminated by LF or CRLF, without the terminator, or returns {@code null} at the
+   * end of the stream before any byte.
+   */
+  private static String readLine(InputStream in) throws IOException {
+    StringBuilder line = new StringBuilder();
+    while (true) {
+      int b = in.read();
+      if (b == -1) {
+        if (line.length() == 0) {
+          return null;
+        }
+        throw new IOException("Unexpected end of file from server");
+      }
+      if (b == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        return line.toString();
+      }
+      if (line.length() == MAX_LINE_LENGTH) {
+        throw new IOException("response header line too long");
+      }
+      line.append((char) b);
+    }
+  }
+
+  /** Returns the last value of the given response header or {@code null} for none. */
+  private String getHeaderValue(String name) {
+    for (int i = responseHeaderNames.size() - 1; i >= 0; i--) {
+      if (responseHeaderNames.get(i).equalsIgnoreCase(name)) {
+        return responseHeaderValues.get(i);
+      }
+    }
+    return null;
+  }
+
+  /** Returns whether a response header of the given name has the given comma-separated token. */
+  private boolean hasHeaderToken(String name, String token) {
+    for (int i = 0; i < responseHeaderNames.size(); i++) {
+      if (responseHeaderNames.get(i).equalsIgnoreCase(name)) {
+        for (String value : responseHeaderValues.get(i).split(",")) {
+          if (value.trim().equalsIgnoreCase(token)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /** Releases the socket to the pool if still leased. */
+  void releaseSocket(boolean keepAlive) {
+    if (socket != null) {
+      factory.release(socket, keepAlive);
+      socket = null;
+    }
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    if (!doInput) {
+      throw new ProtocolException(
+          "Cannot read from URLConnection if doInput=false (call setDoInput(true))");
+    }
+    readResponse();
+    if (responseCode >= 400) {
+      if (responseCode == 404 || responseCode == 410) {
+        throw new FileNotFoundException(url.toString());
+      }
+      throw new IOException(
+          "Server returned HTTP response code: " + responseCode + " for URL: " + url);
+    }
+    return responseContent;
+  }
+
+  @Override
+  public InputStream getErrorStream() {
+    return statusLine != null && responseCode >= 400 ? responseContent : null;
+  }
+
+  @Override
+  public int getResponseCode() throws IOException {
+    readResponse();
+    return responseCode;
+  }
+
+  @Override
+  public String getResponseMessage() throws IOException {
+    readResponse();
+    return responseMessage;
+  }
+
+  @Override
+  public String getHeaderField(String name) {
+    if (!readResponseQuietly()) {
+      return null;
+    }
+    return name == null ? statusLine : getHeaderValue(name);
+  }
+
+  @Override
+  public String getHeaderField(int n) {
+    if (!readResponseQuietly() || n < 0 || n > responseHeaderNames.size()) {
+      return null;
+    }
+    return n == 0 ? statusLine : responseHeaderValues.get(n - 1);
+  }
+
+  @Override
+  public String getHeaderFieldKey(int n) {
+    if (!readResponseQuietly() || n <= 0 || n > responseHeaderNames.size()) {
+      return null;
+    }
+    return responseHeaderNames.get(n - 1);
+  }
+
+  @Override
+  public Map<String, List<String>> getHeaderFields() {
+    if (!readResponseQuietly()) {
+      return Collections.emptyMap();
+    }
+    return toMap(responseHeaderNames, responseHeaderValues, statusLine);
+  }
+
+  /** Reads the response and returns whether it succeeded. */
+  private boolean readResponseQuietly() {
+    try {
+      readResponse();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Returns an unmodifiable map of the given headers, merging the values of names that only differ
+   * by case, with the given status line for the {@code null} key unless {@code null}.
+   */
+  private static Map<String, List<String>> toMap(
+      List<String> names, List<String> values, String statusLine) {
+    Map<String, List<String>> lowerCaseMap = new LinkedHashMap<String, List<String>>();
+    Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+    if (statusLine != null) {
+      result.put(null, Collections.singletonList(statusLine));
+    }
+    for (int i = 0; i < names.size(); i++) {
+      String name = names.get(i);
+      String lowerCaseName = name.toLowerCase();
+      List<String> list = lowerCaseMap.get(lowerCaseName);
+      if (list == null) {
+        list = new ArrayList<String>();
+        lowerCaseMap.put(lowerCaseName, list);
+        result.put(name, list);
+      }
+      list.add(values.get(i));
+    }
+    for (Map.Entry<String, List<String>> entry : result.entrySet()) {
+      entry.setValue(Collections.unmodifiableList(entry.getValue()));
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+  @Override
+  public void disconnect() {
+    if (responseContent != null) {
+      responseContent.closed = true;
+    }
+    releaseSocket(false);
+  }
+
+  @Override
+  public boolean usingProxy() {
+    return route != null && route.proxy.type() != Proxy.Type.DIRECT;
+  }
+
+  @Override
+  public String getCipherSuite() {
+    return getSslSession().getCipherSuite();
+  }
+
+  @Override
+  public Certificate[] getLocalCertificates() {
+    return getSslSession().getLocalCertificates();
+  }
+
+  @Override
+  public Certificate[] getServerCertificates() throws SSLPeerUnverifiedException {
+    return getSslSession().getPeerCertificates();
+  }
+
+  private SSLSession getSslSession() {
+    if (sslSession == null) {
+      throw new IllegalStateException("connection not yet open or not secure");
+    }
+    return sslSession;
+  }
+
+  /** Request content of a fixed length. */
+  private static final class FixedLengthOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private long remaining;
+    private boolean closed;
+
+    FixedLengthOutputStream(OutputStream out, long length) {
+      this.out = out;
+      remaining = length;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+      if (len > remaining) {
+        throw new IOException("too many bytes written");
+      }
+      out.write(b, off, len);
+      remaining -= len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      if (remaining > 0) {
+        throw new IOException("insufficient data written");
+      }
+      out.flush();
+    }
+  }
+
+  /** Request content with chunked transfer coding. */
+  private static final class ChunkedOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private boolean closed;
+
+    ChunkedOutputStream(OutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("Stream is closed");
+      }
+      if (len == 0) {
+        return;
+      }
+      out.write(StringUtils.getBytesUtf8(Integer.toHexString(len) + "\r\n"));
+      out.write(b, off, len);
+      out.write('\r');
+      out.write('\n');
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      out.write(StringUtils.getBytesUtf8("0\r\n\r\n"));
+      out.flush();
+    }
+  }
+
+  /**
+   * Response content that releases the socket to the pool once fully read.
+   */
+  private final class ResponseContent extends InputStream {
+
+    /** Remaining bytes of the content or current chunk, or {@code -1} until end of stream. */
+    private long remaining;
+
+    /** Whether the content uses chunked transfer coding. */
+    private final boolean chunked;
+
+    /** Whether the socket can be kept alive after the content. */
+    private final boolean keepAlive;
+
+    /** Whether the end of the content has been reached. */
+    private boolean eof;
+
+    /** Whether the stream has been closed. */
+    boolean closed;
+
+    ResponseContent(long length, boolean chunked, boolean keepAlive) {
+      this.chunked = chunked;
+      this.keepAlive = keepAlive;
+      remaining = chunked ? 0 : length;
+      if (length == 0 && !chunked) {
+        finish();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      int n = read(b, 0, 1);
+      return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (closed) {
+        throw new IOException("stream is closed");
+      }
+      if (eof) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+      if (chunked && remaining == 0 && !nextChunk()) {
+        return -1;
+      }
+      InputStream in = socket.in;
+      int n;
+      try {
+        n = in.read(b, off, remaining == -1 ? len : (int) Math.min(len, remaining));
+      } catch (IOException e) {
+        releaseSocket(false);
+        throw e;
+      }
+      if (n == -1) {
+        if (remaining != -1) {
+          releaseSocket(false);
+          throw new IOException("Premature EOF");
+        }
+        finish();
+        return -1;
+      }
+      if (remaining != -1) {
+        remaining -= n;
+        if (remaining == 0 && !chunked) {
+          finish();
+        }
+      }
+      return n;
+    }
+
+    /** Reads the next chunk size and returns whether there is a non-empty chunk. */
+    private boolean nextChunk() throws IOException {
+      InputStream in = socket.in;
+      try {
+        String line = readLine(in);
+        if (line != null && line.length() == 0) {
+          // end of the previous chunk
+          line = readLine(in);
+        }
+        if (line == null) {
+          throw new IOException("Premature EOF");
+        }
+        int extension = line.indexOf(';');
+        String size = (extension == -1 ? line : line.substring(0, extension)).trim();
+        try {
+          remaining = Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+          throw new IOException("Bogus chunk size: " + line);
+        }
+        if (remaining != 0) {
+          return true;
+        }
+        // trailers
+        do {
+          line = readLine(in);
+        } while (line != null && line.length() != 0);
+        if (line == null) {
+          throw new IOException("Premature EOF");
+        }
+      } catch (IOException e) {
+        releaseSocket(false);
+        throw e;
+      }
+      finish();
+      return false;
+    }
+
+    private void finish() {
+      eof = true;
+      releaseSocket(keepAlive);
+    }
+
+    @Override
+    public int available() throws IOException {
+      if (closed || eof || socket == null) {
+        return 0;
+      }
+      int available = socket.in.available();
+      return remaining == -1 ? available : (int) Math.min(available, remaining);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      if (!eof && keepAlive && (chunked || remaining <= MAX_DRAIN_LENGTH)) {
+        // drain a small remainder so that the socket can be reused
+        byte[] buffer = BufferPool.getDefault().acquire();
+        long drained = 0;
+        try {
+          while (!eof && drained < MAX_DRAIN_LENGTH) {
+            int n = read(buffer, 0, buffer.length);
+            if (n != -1) {
+              drained += n;
+            }
+          }
+        } catch (IOException e) {
+          // not reusable
+        } finally {
+          BufferPool.getDefault().release(buffer);
+        }
+      }
+      closed = true;
+      if (!eof) {
+        releaseSocket(false);
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of idle keep-alive connections per route.
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ */
+final class ConnectionPool {
+
+  /** Maximum number of idle connections per route. */
+  private final int maxIdlePerRoute;
+
+  /** Idle connections per route, most recently released last. */
+  private final Map<String, LinkedList<Http1Connection>> idle =
+      new HashMap<String, LinkedList<Http1Connection>>();
+
+  ConnectionPool(int maxIdlePerRoute) {
+    this.maxIdlePerRoute = maxIdlePerRoute;
+  }
+
+  /** Removes and returns the most recently released idle connection or {@code null} for none. */
+  synchronized Http1Connection acquire(String route) {
+    LinkedList<Http1Connection> connections = idle.get(route);
+    if (connections == null) {
+      return null;
+    }
+    Http1Connection connection = connections.removeLast();
+    if (connections.isEmpty()) {
+      idle.remove(route);
+    }
+    return connection;
+  }
+
+  /**
+   * Adds an idle connection.
+   *
+   * @return whether the connection has been pooled or {@code false} if it should be closed
+   */
+  synchronized boolean release(Http1Connection connection) {
+    LinkedList<Http1Connection> connections = idle.get(connection.route);
+    if (connections == null) {
+      connections = new LinkedList<Http1Connection>();
+      idle.put(connection.route, connections);
+    }
+    if (connections.size() >= maxIdlePerRoute) {
+      return false;
+    }
+    connections.add(connection);
+    return true;
+  }
+
+  /** Removes the given connection if it is idle in the pool. */
+  synchronized void remove(Http1Connection connection) {
+    LinkedList<Http1Connection> connections = idle.get(connection.route);
+    if (connections != null && connections.remove(connection) && connections.isEmpty()) {
+      idle.remove(connection.route);
+    }
+  }
+
+  /** Returns the number of idle connections. */
+  synchronized int idleCount() {
+    int count = 0;
+    for (List<Http1Connection> connections : idle.values()) {
+      count += connections.size();
+    }
+    return count;
+  }
+
+  /** Removes and returns all idle connections. */
+  synchronized List<Http1Connection> clear() {
+    List<Http1Connection> result = new ArrayList<Http1Connection>();
+    for (List<Http1Connection> connections : idle.values()) {
+      result.addAll(connections);
+    }
+    idle.clear();
+    return result;
+  }
+}
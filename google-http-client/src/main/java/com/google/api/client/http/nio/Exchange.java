@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.FileChannelContent;
+import com.google.api.client.util.StringUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A single request and response exchange dispatched to a connection.
+ *
+ * <p>
+ * Implementation is not thread-safe and after dispatching must only be used on the selector loop
+ * thread.
+ * </p>
+ */
+final class Exchange {
+
+  /** Listener of the outcome of an exchange, always called on the selector loop thread. */
+  interface Listener {
+
+    /** Called once the response head has been received. */
+    void onResponse(NioHttpResponse response);
+
+    /** Called if the exchange failed before the response head has been received. */
+    void onFailure(IOException exception);
+  }
+
+  /** Connection pool key of the server, for example {@code "https://www.google.com:443"}. */
+  final String route;
+
+  /** Host name of the server. */
+  final String host;
+
+  /** Port of the server. */
+  final int port;
+
+  /** Whether the connection is secured with TLS. */
+  final boolean secure;
+
+  /** HTTP request method. */
+  final String method;
+
+  /** Request target, for example {@code "/path?query"}. */
+  final String path;
+
+  /** Value of the {@code Host} header or of the {@code :authority} pseudo-header. */
+  final String authority;
+
+  /** Header names excluding the {@code Host} header. */
+  final List<String> headerNames;
+
+  /** Header values. */
+  final List<String> headerValues;
+
+  /** Request content buffers or {@code null} for none. */
+  private final ByteBuffer[] content;
+
+  /** Length of the request content. */
+  final long contentLength;
+
+  /**
+   * Request content to send from its file with {@link java.nio.channels.FileChannel#transferTo}
+   * or {@code null} for none, only used for HTTP/1.1 over plain connections.
+   */
+  final FileChannelContent fileContent;
+
+  /** Timeout in milliseconds to establish a connection or {@code 0} for an infinite timeout. */
+  final int connectTimeout;
+
+  /** Timeout in milliseconds to read data or {@code 0} for an infinite timeout. */
+  final int readTimeout;
+
+  /** Listener. */
+  final Listener listener;
+
+  /**
+   * Whether the exchange has already been retried on a new connection after failing on a reused
+   * one.
+   */
+  boolean retried;
+
+  /** Serialized HTTP/1.1 request head or {@code null} before first use. */
+  private ByteBuffer http1Head;
+
+  Exchange(String route, String host, int port, boolean secure, String method, String path,
+      String authority, List<String> headerNames, List<String> headerValues,
+      ByteBuffer[] content, FileChannelContent fileContent, int connectTimeout, int readTimeout,
+      Listener listener) {
+    this.route = route;
+    this.host = host;
+    this.port = port;
+    this.secure = secure;
+    this.method = method;
+    this.path = path;
+    this.authority = authority;
+    this.headerNames = headerNames;
+    this.headerValues = headerValues;
+    this.content = content;
+    long length = 0;
+    if (content != null) {
+      for (ByteBuffer buffer : content) {
+        length += buffer.remaining();
+      }
+    }
+    contentLength = length;
+    this.fileContent = fileContent;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+    this.listener = listener;
+  }
+
+  /**
+   * Returns new views of the content buffers, which share their bytes with the original content,
+   * or an empty array for none.
+   */
+  ByteBuffer[] newContent() {
+    if (content == null) {
+      return new ByteBuffer[0];
+    }
+    ByteBuffer[] result = new ByteBuffer[content.length];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = content[i].duplicate();
+    }
+    return result;
+  }
+
+  /**
+   * Returns new buffers of the serialized HTTP/1.1 request message, the head followed by views of
+   * the content buffers, excluding the {@link #fileContent} if any.
+   */
+  ByteBuffer[] newHttp1Request() {
+    if (http1Head == null) {
+      StringBuilder head = new StringBuilder();
+      head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+      appendHeader(head, "Host", authority);
+      for (int i = 0; i < headerNames.size(); i++) {
+        appendHeader(head, headerNames.get(i), headerValues.get(i));
+      }
+      head.append("\r\n");
+      http1Head = ByteBuffer.wrap(StringUtils.getBytesUtf8(head.toString()));
+    }
+    ByteBuffer[] views = newContent();
+    ByteBuffer[] result = new ByteBuffer[1 + views.length];
+    result[0] = http1Head.duplicate();
+    System.arraycopy(views, 0, result, 1, views.length);
+    return result;
+  }
+
+  private static void appendHeader(StringBuilder head, String name, String value) {
+    head.append(name).append(": ").append(value).append("\r\n");
+  }
+}
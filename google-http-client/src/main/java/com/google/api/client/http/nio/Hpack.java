@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.util.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK header compression for HTTP/2 as specified in <a
+ * href="https://tools.ietf.org/html/rfc7541">RFC 7541</a>.
+ *
+ * <p>
+ * The {@link Encoder} never adds entries to the dynamic table, so that it does not depend on the
+ * header table size of the peer, but uses the static table and Huffman coding where it is shorter.
+ * The {@link Decoder} supports the complete specification.
+ * </p>
+ */
+final class Hpack {
+
+  /** Static table entries as name and value pairs, starting with index {@code 1}. */
+  static final String[][] STATIC_TABLE = {
+      {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+      {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+      {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+      {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+      {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""},
+      {"accept", ""}, {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""},
+      {"authorization", ""}, {"cache-control", ""}, {"content-disposition", ""},
+      {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+      {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+      {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+      {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+      {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""},
+      {"max-forwards", ""}, {"proxy-authenticate", ""}, {"proxy-authorization", ""},
+      {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""}, {"server", ""},
+      {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+      {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}};
+
+  /** Huffman codes of the symbols {@code 0} to {@code 255}, right-aligned. */
+  private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb, 0x14,
+      0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17,
+      0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20,
+      0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65, 0x66, 0x67,
+      0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73, 0xfd, 0x1ffb,
+      0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26, 0x27, 0x6,
+      0x74, 0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78, 0x79, 0x7a,
+      0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8,
+      0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd,
+      0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1,
+      0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7,
+      0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec, 0x1fffe0,
+      0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea, 0x3fffe2,
+      0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1, 0xfffeb,
+      0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde,
+      0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0,
+      0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9,
+      0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9,
+      0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5,
+      0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8,
+      0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef,
+      0x7fffff0, 0x3ffffee};
+
+  /** Huffman code lengths in bits of the symbols {@code 0} to {@code 255}. */
+  private static final byte[] HUFFMAN_CODE_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+      28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7,
+      7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22,
+      22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22,
+      23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21,
+      23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26,
+      27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24,
+      20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27,
+      28, 27, 27, 27, 27, 27, 26};
+
+  /**
+   * Huffman decoding tree, where {@code HUFFMAN_TREE[2 * node + bit]} is the next node for a
+   * non-negative value or the decoded symbol {@code -1 - value} for a negative value.
+   */
+  private static final int[] HUFFMAN_TREE = buildHuffmanTree();
+
+  /** Index in the static table of the first entry of each header name. */
+  private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+
+  static {
+    for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+      STATIC_NAME_INDEX.put(STATIC_TABLE[i][0], i + 1);
+    }
+  }
+
+  private Hpack() {
+  }
+
+  private static int[] buildHuffmanTree() {
+    // a complete prefix code of 257 symbols (including EOS) has 256 internal nodes
+    int[] tree = new int[2 * 256];
+    int nodes = 1;
+    for (int symbol = 0; symbol < 256; symbol++) {
+      int code = HUFFMAN_CODES[symbol];
+      int node = 0;
+      for (int bit = HUFFMAN_CODE_LENGTHS[symbol] - 1; bit >= 0; bit--) {
+        int slot = 2 * node + ((code >>> bit) & 1);
+        if (bit == 0) {
+          tree[slot] = -1 - symbol;
+        } else {
+          if (tree[slot] == 0) {
+            tree[slot] = nodes++;
+          }
+          node = tree[slot];
+        }
+      }
+    }
+    return tree;
+  }
+
+  /** Writes an integer with the given prefix bits and flags in the first byte. */
+  static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  /** Reads an integer with the given prefix bits, starting at the current byte. */
+  static int readInt(ByteBuffer in, int prefixBits) throws IOException {
+    int max = (1 << prefixBits) - 1;
+    int value = in.get() & max;
+    if (value < max) {
+      return value;
+    }
+    for (int shift = 0; shift <= 21; shift += 7) {
+      checkRemaining(in);
+      int b = in.get() & 0xff;
+      value += (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("HPACK integer overflow");
+  }
+
+  /** Writes a string literal, Huffman encoded if that is shorter. */
+  static void writeString(ByteArrayOutputStream out, byte[] bytes) {
+    long bits = 0;
+    for (byte b : bytes) {
+      bits += HUFFMAN_CODE_LENGTHS[b & 0xff];
+    }
+    int huffmanLength = (int) ((bits + 7) / 8);
+    if (huffmanLength >= bytes.length) {
+      writeInt(out, bytes.length, 7, 0);
+      out.write(bytes, 0, bytes.length);
+      return;
+    }
+    writeInt(out, huffmanLength, 7, 0x80);
+    long current = 0;
+    int currentBits = 0;
+    for (byte b : bytes) {
+      int symbol = b & 0xff;
+      current = (current << HUFFMAN_CODE_LENGTHS[symbol]) | HUFFMAN_CODES[symbol];
+      currentBits += HUFFMAN_CODE_LENGTHS[symbol];
+      while (currentBits >= 8) {
+        currentBits -= 8;
+        out.write((int) (current >>> currentBits));
+      }
+    }
+    if (currentBits > 0) {
+      // pad with the most significant bits of the EOS symbol, which are all ones
+      out.write((int) ((current << (8 - currentBits)) | (0xff >>> currentBits)));
+    }
+  }
+
+  /** Reads a string literal, decoding each byte as a character in ISO-8859-1. */
+  static String readString(ByteBuffer in) throws IOException {
+    checkRemaining(in);
+    boolean huffman = (in.get(in.position()) & 0x80) != 0;
+    int length = readInt(in, 7);
+    if (length > in.remaining()) {
+      throw new IOException("HPACK string exceeds header block");
+    }
+    StringBuilder result = new StringBuilder(length);
+    if (!huffman) {
+      for (int i = 0; i < length; i++) {
+        result.append((char) (in.get() & 0xff));
+      }
+      return result.toString();
+    }
+    int node = 0;
+    int bitsSinceSymbol = 0;
+    boolean allOnes = true;
+    for (int i = 0; i < length; i++) {
+      int b = in.get() & 0xff;
+      for (int bit = 7; bit >= 0; bit--) {
+        int value = (b >>> bit) & 1;
+        int next = HUFFMAN_TREE[2 * node + value];
+        bitsSinceSymbol++;
+        allOnes &= value == 1;
+        if (next < 0) {
+          result.append((char) (-1 - next));
+          node = 0;
+          bitsSinceSymbol = 0;
+          allOnes = true;
+        } else if (next == 0) {
+          // only the EOS symbol leads to an unassigned slot
+          throw new IOException("HPACK Huffman string contains EOS");
+        } else {
+          node = next;
+        }
+      }
+    }
+    if (bitsSinceSymbol > 7 || !allOnes) {
+      throw new IOException("invalid HPACK Huffman padding");
+    }
+    return result.toString();
+  }
+
+  private static void checkRemaining(ByteBuffer in) throws IOException {
+    if (!in.hasRemaining()) {
+      throw new IOException("truncated HPACK header block");
+    }
+  }
+
+  /**
+   * HPACK encoder.
+   *
+   * <p>
+   * Implementation is stateless and therefore thread-safe.
+   * </p>
+   */
+  static final class Encoder {
+
+    /** Encodes a header, whose name must be lower case. */
+    void encode(ByteArrayOutputStream out, String name, String value) {
+      Integer nameIndex = STATIC_NAME_INDEX.get(name);
+      if (nameIndex != null) {
+        for (int i = nameIndex - 1; i < STATIC_TABLE.length && STATIC_TABLE[i][0].equals(name);
+            i++) {
+          if (STATIC_TABLE[i][1].equals(value)) {
+            writeInt(out, i + 1, 7, 0x80);
+            return;
+          }
+        }
+      }
+      // literal header field without indexing
+      if (nameIndex != null) {
+        writeInt(out, nameIndex, 4, 0);
+      } else {
+        out.write(0);
+        writeString(out, StringUtils.getBytesUtf8(name));
+      }
+      writeString(out, StringUtils.getBytesUtf8(value));
+    }
+  }
+
+  /**
+   * HPACK decoder with its dynamic table.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   */
+  static final class Decoder {
+
+    /** Maximum size of the dynamic table allowed by the settings. */
+    private final int maxTableSize;
+
+    /** Maximum total size of the headers of a header block. */
+    private final int maxHeaderListSize;
+
+    /** Current maximum size of the dynamic table. */
+    private int tableSize;
+
+    /** Current size of the dynamic table. */
+    private int size;
+
+    /** Dynamic table entries as name and value pairs, newest first. */
+    private final LinkedList<String[]> dynamicTable = new LinkedList<String[]>();
+
+    Decoder(int maxTableSize, int maxHeaderListSize) {
+      this.maxTableSize = maxTableSize;
+      this.maxHeaderListSize = maxHeaderListSize;
+      tableSize = maxTableSize;
+    }
+
+    /** Decodes a complete header block into the given lists of header names and values. */
+    void decode(ByteBuffer in, List<String> names, List<String> values) throws IOException {
+      int headerListSize = 0;
+      while (in.hasRemaining()) {
+        int b = in.get(in.position()) & 0xff;
+        String name;
+        String value;
+        if ((b & 0x80) != 0) {
+          String[] entry = entry(readInt(in, 7));
+          name = entry[0];
+          value = entry[1];
+        } else if ((b & 0x40) != 0) {
+          name = readName(in, 6);
+          value = readString(in);
+          add(name, value);
+        } else if ((b & 0x20) != 0) {
+          int newSize = readInt(in, 5);
+          if (newSize > maxTableSize) {
+            throw new IOException("HPACK table size update exceeds the maximum");
+          }
+          tableSize = newSize;
+          evict(0);
+          continue;
+        } else {
+          name = readName(in, 4);
+          value = readString(in);
+        }
+        headerListSize += name.length() + value.length() + 32;
+        if (headerListSize > maxHeaderListSize) {
+          throw new IOException("header list too large");
+        }
+        names.add(name);
+        values.add(value);
+      }
+    }
+
+    private String readName(ByteBuffer in, int prefixBits) throws IOException {
+      int index = readInt(in, prefixBits);
+      return index == 0 ? readString(in) : entry(index)[0];
+    }
+
+    private String[] entry(int index) throws IOException {
+      if (index >= 1 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      int dynamicIndex = index - STATIC_TABLE.length - 1;
+      if (index < 1 || dynamicIndex >= dynamicTable.size()) {
+        throw new IOException("invalid HPACK index: " + index);
+      }
+      return dynamicTable.get(dynamicIndex);
+    }
+
+    private void add(String name, String value) {
+      int entrySize = name.length() + value.length() + 32;
+      evict(entrySize);
+      if (entrySize <= tableSize) {
+        dynamicTable.addFirst(new String[] {name, value});
+        size += entrySize;
+      }
+    }
+
+    /** Evicts the oldest entries until there is room for an entry of the given size. */
+    private void evict(int entrySize) {
+      while (!dynamicTable.isEmpty() && size + entrySize > tableSize) {
+        String[] entry = dynamicTable.removeLast();
+        size -= entry[0].length() + entry[1].length() + 32;
+      }
+    }
+  }
+}
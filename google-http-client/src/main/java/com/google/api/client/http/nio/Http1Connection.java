@@ -0,0 +1,540 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.nio.ResponseParser.ResponseHead;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+
+/**
+ * HTTP/1.1 client connection driven by a {@link SelectorLoop}.
+ *
+ * <p>
+ * A connection runs at most one exchange at a time. Once the response message has been completely
+ * received, the connection returns to the {@link ConnectionPool} if it may be kept alive. While the
+ * connection is idle it remains registered for reading so that a close by the server is detected
+ * immediately.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe and apart from {@link #dispatch} must only be used on the
+ * selector loop thread.
+ * </p>
+ */
+final class Http1Connection
+    implements SelectorLoop.Handler, ResponseParser.Listener, ResponseBodyStream.Listener {
+
+  /** Connection state. */
+  private enum State {
+    CONNECTING, HANDSHAKING, ACTIVE, IDLE, CLOSED
+  }
+
+  /** Size of the read buffer. */
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  /** Transport that opened the connection. */
+  private final NioHttpTransport transport;
+
+  /** Selector loop. */
+  private final SelectorLoop loop;
+
+  /** Connection pool key. */
+  final String route;
+
+  /** Resolved address of the server. */
+  final InetSocketAddress address;
+
+  /** Socket I/O. */
+  private final SocketIo io;
+
+  /** Whether other exchanges are waiting for this connection to be established using HTTP/2. */
+  private final boolean http2Expected;
+
+  /** Read buffer. */
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+  /** Response parser. */
+  private final ResponseParser parser = new ResponseParser(this);
+
+  /** Selection key or {@code null} before registration. */
+  private SelectionKey key;
+
+  /** Current state. */
+  private State state = State.CONNECTING;
+
+  /** Current exchange or {@code null} for none. */
+  private Exchange exchange;
+
+  /** Remaining serialized request message of the current exchange. */
+  private ByteBuffer[] request;
+
+  /** File channel of the file content of the current exchange or {@code null} for none. */
+  private FileChannel contentChannel;
+
+  /** Position of the file content in its file channel. */
+  private long contentStart;
+
+  /** Number of bytes of the file content transferred so far. */
+  private long contentTransferred;
+
+  /** Whether the current exchange has received any byte of its response. */
+  private boolean responseStarted;
+
+  /** Body of the current response or {@code null} before the response head has been received. */
+  private ResponseBodyStream body;
+
+  /** Whether reading has been paused because the response body reader is too slow. */
+  private boolean readPaused;
+
+  /** Whether the connection has completed at least one exchange. */
+  private boolean reused;
+
+  /** Time in nanoseconds of the last state change or read. */
+  private long lastActivityNanos = System.nanoTime();
+
+  /** Pending timeout timer or {@code null} for none. */
+  private SelectorLoop.Timer timer;
+
+  /** Deadline in nanoseconds of the pending timeout timer. */
+  private long timerDeadlineNanos;
+
+  Http1Connection(NioHttpTransport transport, SelectorLoop loop, String route,
+      InetSocketAddress address, SocketIo io, boolean http2Expected) {
+    this.transport = transport;
+    this.loop = loop;
+    this.route = route;
+    this.address = address;
+    this.io = io;
+    this.http2Expected = http2Expected;
+  }
+
+  /** Dispatches the given exchange to this connection from any thread. */
+  void dispatch(final Exchange exchange) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        if (state == State.CONNECTING && key == null) {
+          register(exchange);
+        } else {
+          send(exchange);
+        }
+      }
+    });
+  }
+
+  /** Registers the newly opened channel with the selector and starts the given exchange. */
+  private void register(Exchange newExchange) {
+    exchange = newExchange;
+    lastActivityNanos = System.nanoTime();
+    try {
+      key = io.channel.register(loop.selector(), SelectionKey.OP_CONNECT, this);
+      if (io.channel.isConnectionPending() && io.channel.finishConnect()
+          || io.channel.isConnected()) {
+        connected();
+      }
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    armTimer();
+  }
+
+  /** Starts the given exchange on this idle connection. */
+  private void send(Exchange newExchange) {
+    if (state != State.IDLE) {
+      // closed by the server or by the idle timeout after having been taken from the pool
+      retry(newExchange, new ClosedChannelException());
+      return;
+    }
+    exchange = newExchange;
+    state = State.ACTIVE;
+    startExchange();
+  }
+
+  public void handleSelect(SelectionKey selectedKey) {
+    try {
+      if (state == State.CONNECTING) {
+        if (!io.channel.finishConnect()) {
+          return;
+        }
+        connected();
+      } else if (state == State.HANDSHAKING) {
+        handshake();
+      } else {
+        if (selectedKey.isValid() && selectedKey.isWritable() && exchange != null) {
+          writeRequest();
+        }
+        if (selectedKey.isValid() && selectedKey.isReadable()) {
+          readResponse();
+        }
+      }
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  public void shutdown() {
+    fail(new IOException("transport has been shut down"));
+  }
+
+  /** Continues once the TCP connection has been established. */
+  private void connected() throws IOException {
+    state = State.HANDSHAKING;
+    handshake();
+  }
+
+  /** Continues the connection setup and starts the exchange once ready. */
+  private void handshake() throws IOException {
+    if (!io.handshake()) {
+      key.interestOps(io.handshakeInterestOps());
+      return;
+    }
+    if (transport.usesHttp2(exchange.secure, io.applicationProtocol())) {
+      upgradeToHttp2();
+      return;
+    }
+    if (http2Expected) {
+      transport.http2Unavailable(route, address, null);
+    }
+    state = State.ACTIVE;
+    startExchange();
+  }
+
+  /** Hands the established connection and the current exchange over to a new HTTP/2 connection. */
+  private void upgradeToHttp2() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    state = State.CLOSED;
+    Exchange first = exchange;
+    exchange = null;
+    new Http2Connection(transport, loop, route, address, io, key).start(first);
+  }
+
+  /** Starts sending the current exchange. */
+  private void startExchange() {
+    request = exchange.newHttp1Request();
+    responseStarted = false;
+    body = null;
+    readPaused = false;
+    parser.reset(exchange.method);
+    lastActivityNanos = System.nanoTime();
+    armTimer();
+    contentTransferred = 0;
+    try {
+      if (exchange.fileContent != null) {
+        contentChannel = exchange.fileContent.openChannel();
+        contentStart = contentChannel.position();
+      }
+      writeRequest();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Writes the request message as far as possible. */
+  private void writeRequest() throws IOException {
+    boolean done = io.write(request) && transferContent();
+    lastActivityNanos = System.nanoTime();
+    updateInterestOps(!done);
+  }
+
+  /**
+   * Transfers the file content directly from its file to the socket as far as possible.
+   *
+   * @return whether all of the file content, if any, has been transferred
+   */
+  private boolean transferContent() throws IOException {
+    if (contentChannel == null) {
+      return true;
+    }
+    long length = exchange.fileContent.getLength();
+    while (contentTransferred < length) {
+      // file content is only sent over plain connections, whose socket channel is written directly
+      long count = contentChannel.transferTo(
+          contentStart + contentTransferred, length - contentTransferred, io.channel);
+      if (count == 0) {
+        if (contentStart + contentTransferred >= contentChannel.size()) {
+          throw new IOException("file content is shorter than its length of " + length);
+        }
+        return false;
+      }
+      contentTransferred += count;
+    }
+    closeContentChannel();
+    return true;
+  }
+
+  /** Closes the file channel of the file content, if any. */
+  private void closeContentChannel() {
+    if (contentChannel != null) {
+      try {
+        contentChannel.close();
+      } catch (IOException e) {
+        // ignore
+      }
+      contentChannel = null;
+    }
+  }
+
+  /** Returns whether the request message is still being written. */
+  private boolean writing() {
+    return SocketIo.hasRemaining(request) || contentChannel != null;
+  }
+
+  /** Updates the selection key interest operations. */
+  private void updateInterestOps(boolean writing) {
+    int ops = (readPaused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0);
+    key.interestOps(ops);
+  }
+
+  /** Reads and parses as much of the response as is available. */
+  private void readResponse() throws IOException {
+    while (!readPaused && state != State.CLOSED) {
+      readBuffer.clear();
+      int count = io.read(readBuffer);
+      if (count < 0) {
+        endOfInput();
+        return;
+      }
+      if (count == 0) {
+        return;
+      }
+      lastActivityNanos = System.nanoTime();
+      readBuffer.flip();
+      if (state != State.ACTIVE || parser.isDone()) {
+        // unexpected bytes outside of an exchange
+        close();
+        return;
+      }
+      responseStarted = true;
+      parser.parse(readBuffer);
+      if (readBuffer.hasRemaining()) {
+        // no pipelining, so anything following the response is a protocol error
+        close();
+        return;
+      }
+    }
+  }
+
+  /** Handles the end of the input stream. */
+  private void endOfInput() throws IOException {
+    if (state == State.ACTIVE) {
+      parser.endOfInput();
+    }
+    close();
+  }
+
+  public void onResponseHead(ResponseHead head, boolean hasBody) {
+    // even an empty body completes only after the connection has been released
+    body = new ResponseBodyStream(this);
+    exchange.listener.onResponse(new NioHttpResponse(head, body));
+  }
+
+  public void onResponseBody(ByteBuffer data) {
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    body.offer(bytes);
+    if (body.buffered() >= ResponseBodyStream.HIGH_WATER_MARK) {
+      readPaused = true;
+      body.pause();
+      updateInterestOps(writing());
+    }
+  }
+
+  public void onResponseComplete(boolean keepAlive) {
+    // update the connection state before the reader can observe the end of the body
+    ResponseBodyStream completedBody = body;
+    closeContentChannel();
+    exchange = null;
+    body = null;
+    reused = true;
+    if (!keepAlive) {
+      close();
+    } else {
+      state = State.IDLE;
+      lastActivityNanos = System.nanoTime();
+      if (transport.pool.release(this)) {
+        updateInterestOps(false);
+        armTimer();
+      } else {
+        close();
+      }
+    }
+    completedBody.finish();
+  }
+
+  public void resume(final ResponseBodyStream stream) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        if (stream == body && readPaused) {
+          readPaused = false;
+          lastActivityNanos = System.nanoTime();
+          updateInterestOps(writing());
+          armTimer();
+          try {
+            if (io.hasBufferedInput()) {
+              readResponse();
+            }
+          } catch (IOException e) {
+            fail(e);
+          }
+        }
+      }
+    });
+  }
+
+  public void abort(final ResponseBodyStream stream) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        if (stream == body) {
+          // the rest of the body would need to be read, so simply close the connection
+          close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Fails the current exchange with the given exception and closes the connection.
+   */
+  private void fail(IOException exception) {
+    Exchange failed = exchange;
+    ResponseBodyStream failedBody = body;
+    boolean retry = failed != null && failedBody == null && reused && !responseStarted
+        && !(exception instanceof SocketTimeoutException);
+    boolean established = state == State.ACTIVE || state == State.IDLE;
+    close();
+    if (http2Expected && !established) {
+      transport.http2Unavailable(route, address, exception);
+    }
+    if (failedBody != null) {
+      failedBody.fail(exception);
+    } else if (failed != null) {
+      if (retry) {
+        retry(failed, exception);
+      } else {
+        failed.listener.onFailure(exception);
+      }
+    }
+  }
+
+  /**
+   * Retries the given exchange on a new connection if it has not been retried yet, since a reused
+   * connection may have been closed by the server at any time.
+   */
+  private void retry(Exchange failed, IOException exception) {
+    if (failed.retried) {
+      failed.listener.onFailure(exception);
+      return;
+    }
+    failed.retried = true;
+    try {
+      transport.connect(failed, address);
+    } catch (IOException e) {
+      failed.listener.onFailure(e);
+    } catch (IllegalStateException e) {
+      failed.listener.onFailure(exception);
+    }
+  }
+
+  /** Closes the connection, which is also removed from the pool. */
+  void close() {
+    if (state == State.CLOSED) {
+      return;
+    }
+    state = State.CLOSED;
+    exchange = null;
+    body = null;
+    closeContentChannel();
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    transport.pool.remove(this);
+    if (key != null) {
+      key.cancel();
+    }
+    io.close();
+  }
+
+  /**
+   * Returns the deadline in nanoseconds of the current state or {@code null} for none.
+   */
+  private Long deadline() {
+    int timeoutMillis;
+    switch (state) {
+      case CONNECTING:
+      case HANDSHAKING:
+        timeoutMillis = exchange.connectTimeout;
+        break;
+      case ACTIVE:
+        timeoutMillis = readPaused ? 0 : exchange.readTimeout;
+        break;
+      case IDLE:
+        timeoutMillis = transport.keepAliveTimeout;
+        break;
+      default:
+        return null;
+    }
+    return timeoutMillis <= 0 ? null : lastActivityNanos + timeoutMillis * 1000000L;
+  }
+
+  /** Ensures a timer is scheduled no later than the deadline of the current state. */
+  private void armTimer() {
+    Long deadline = deadline();
+    if (deadline == null || timer != null && timerDeadlineNanos - deadline <= 0) {
+      return;
+    }
+    if (timer != null) {
+      timer.cancel();
+    }
+    timerDeadlineNanos = deadline;
+    long delayMillis = Math.max(0, (deadline - System.nanoTime()) / 1000000L);
+    timer = loop.schedule(new Runnable() {
+
+      public void run() {
+        timer = null;
+        checkTimeout();
+      }
+    }, delayMillis);
+  }
+
+  /** Checks whether the deadline of the current state has expired. */
+  private void checkTimeout() {
+    Long deadline = deadline();
+    if (deadline == null) {
+      return;
+    }
+    if (deadline - System.nanoTime() > 0) {
+      armTimer();
+    } else if (state == State.IDLE) {
+      close();
+    } else if (state == State.ACTIVE) {
+      fail(new SocketTimeoutException("Read timed out"));
+    } else {
+      fail(new SocketTimeoutException("connect timed out"));
+    }
+  }
+}
@@ -0,0 +1,993 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.nio.ResponseParser.ResponseHead;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * HTTP/2 client connection driven by a {@link SelectorLoop} as specified in <a
+ * href="https://tools.ietf.org/html/rfc7540">RFC 7540</a>.
+ *
+ * <p>
+ * Exchanges are multiplexed as concurrent streams over the single connection. Exchanges beyond the
+ * maximum number of concurrent streams, which is the lower of the local limit and the limit of the
+ * server, are queued until a stream completes. Flow control is applied in both directions: request
+ * content is sent only within the windows granted by the server, and window updates for a response
+ * stream are withheld while its body reader is too slow.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe and apart from {@link #dispatch} must only be used on the
+ * selector loop thread.
+ * </p>
+ */
+final class Http2Connection implements SelectorLoop.Handler, ResponseBodyStream.Listener {
+
+  /** Connection preface sent by the client. */
+  static final byte[] PREFACE = {'P', 'R', 'I', ' ', '*', ' ', 'H', 'T', 'T', 'P', '/', '2', '.',
+      '0', '\r', '\n', '\r', '\n', 'S', 'M', '\r', '\n', '\r', '\n'};
+
+  static final int TYPE_DATA = 0x0;
+  static final int TYPE_HEADERS = 0x1;
+  static final int TYPE_PRIORITY = 0x2;
+  static final int TYPE_RST_STREAM = 0x3;
+  static final int TYPE_SETTINGS = 0x4;
+  static final int TYPE_PUSH_PROMISE = 0x5;
+  static final int TYPE_PING = 0x6;
+  static final int TYPE_GOAWAY = 0x7;
+  static final int TYPE_WINDOW_UPDATE = 0x8;
+  static final int TYPE_CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+  static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+  static final int NO_ERROR = 0x0;
+  static final int PROTOCOL_ERROR = 0x1;
+  static final int FLOW_CONTROL_ERROR = 0x3;
+  static final int FRAME_SIZE_ERROR = 0x6;
+  static final int REFUSED_STREAM = 0x7;
+  static final int CANCEL = 0x8;
+  static final int COMPRESSION_ERROR = 0x9;
+
+  /** Frame header length. */
+  static final int FRAME_HEADER_LENGTH = 9;
+
+  /** Default flow control window size. */
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+
+  /** Default and advertised maximum frame size. */
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+  /** Default HPACK header table size. */
+  static final int DEFAULT_HEADER_TABLE_SIZE = 4096;
+
+  /** Flow control window advertised for each response stream. */
+  static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+
+  /** Flow control window advertised for the whole connection. */
+  static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  /** Maximum size of a decoded header list. */
+  static final int MAX_HEADER_LIST_SIZE = 256 * 1024;
+
+  /** Headers that are specific to an HTTP/1.1 connection and must not be sent over HTTP/2. */
+  private static final List<String> CONNECTION_HEADERS = new ArrayList<String>();
+
+  static {
+    CONNECTION_HEADERS.add("connection");
+    CONNECTION_HEADERS.add("keep-alive");
+    CONNECTION_HEADERS.add("proxy-connection");
+    CONNECTION_HEADERS.add("transfer-encoding");
+    CONNECTION_HEADERS.add("upgrade");
+    CONNECTION_HEADERS.add("host");
+  }
+
+  /** Stream of a single exchange. */
+  private static final class Stream {
+
+    /** Stream identifier. */
+    final int id;
+
+    /** Exchange. */
+    final Exchange exchange;
+
+    /** Remaining request content buffers to send or {@code null} for none. */
+    ByteBuffer[] content;
+
+    /** Index of the current request content buffer. */
+    int contentIndex;
+
+    /** Number of request content bytes remaining to send. */
+    long contentRemaining;
+
+    /** Send flow control window. */
+    int sendWindow;
+
+    /** Number of received bytes not yet acknowledged with a window update. */
+    int unacknowledged;
+
+    /** Response body or {@code null} before the response head has been received. */
+    ResponseBodyStream body;
+
+    /** Whether window updates are withheld because the body reader is too slow. */
+    boolean paused;
+
+    /** Time in nanoseconds of the last read on this stream. */
+    long lastActivityNanos = System.nanoTime();
+
+    Stream(int id, Exchange exchange, int sendWindow) {
+      this.id = id;
+      this.exchange = exchange;
+      this.sendWindow = sendWindow;
+    }
+  }
+
+  /** Transport that opened the connection. */
+  private final NioHttpTransport transport;
+
+  /** Selector loop. */
+  private final SelectorLoop loop;
+
+  /** Connection key of the server. */
+  final String route;
+
+  /** Resolved address of the server. */
+  private final InetSocketAddress address;
+
+  /** Socket I/O. */
+  private final SocketIo io;
+
+  /** Selection key. */
+  private final SelectionKey key;
+
+  /** HPACK encoder. */
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+  /** HPACK decoder. */
+  private final Hpack.Decoder decoder =
+      new Hpack.Decoder(DEFAULT_HEADER_TABLE_SIZE, MAX_HEADER_LIST_SIZE);
+
+  /** Active streams by identifier. */
+  private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+
+  /** Exchanges waiting for a stream to become available. */
+  private final LinkedList<Exchange> queued = new LinkedList<Exchange>();
+
+  /** Frames to write. */
+  private final LinkedList<ByteBuffer> outbound = new LinkedList<ByteBuffer>();
+
+  /** Read buffer, large enough for a complete frame. */
+  private final ByteBuffer inbound =
+      ByteBuffer.allocate(FRAME_HEADER_LENGTH + DEFAULT_MAX_FRAME_SIZE);
+
+  /** Identifier of the next stream. */
+  private int nextStreamId = 1;
+
+  /** Maximum number of concurrent streams allowed by the server. */
+  private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+
+  /** Initial send window of new streams as set by the server. */
+  private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+
+  /** Maximum frame size allowed by the server. */
+  private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+
+  /** Send flow control window of the connection. */
+  private int connectionSendWindow = DEFAULT_WINDOW_SIZE;
+
+  /** Number of bytes received on the connection not yet acknowledged with a window update. */
+  private int connectionUnacknowledged;
+
+  /** Header block being received or {@code null} for none. */
+  private ByteArrayOutputStream headerBlock;
+
+  /** Stream identifier of the header block being received. */
+  private int headerBlockStreamId;
+
+  /** Whether the header block being received ends its stream. */
+  private boolean headerBlockEndStream;
+
+  /** Whether the server sent a {@code GOAWAY} frame or no further streams can be created. */
+  private boolean goingAway;
+
+  /** Whether the connection has been closed. */
+  private boolean closed;
+
+  /** Time in nanoseconds since when the connection has no active stream. */
+  private long idleSinceNanos = System.nanoTime();
+
+  /** Pending timeout timer or {@code null} for none. */
+  private SelectorLoop.Timer timer;
+
+  /** Deadline in nanoseconds of the pending timeout timer. */
+  private long timerDeadlineNanos;
+
+  Http2Connection(NioHttpTransport transport, SelectorLoop loop, String route,
+      InetSocketAddress address, SocketIo io, SelectionKey key) {
+    this.transport = transport;
+    this.loop = loop;
+    this.route = route;
+    this.address = address;
+    this.io = io;
+    this.key = key;
+  }
+
+  /**
+   * Starts the connection on its established socket with the given first exchange, which must be
+   * called on the selector loop thread.
+   */
+  void start(Exchange first) {
+    key.attach(this);
+    ByteBuffer preface = ByteBuffer.wrap(PREFACE);
+    outbound.add(preface);
+    ByteBuffer settings = ByteBuffer.allocate(3 * 6);
+    settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+    settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW_SIZE);
+    settings.putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+    writeFrame(TYPE_SETTINGS, 0, 0, settings.array(), 0, settings.capacity());
+    writeWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+    transport.http2Connected(this);
+    queued.add(first);
+    startStreams();
+    flush();
+  }
+
+  /** Dispatches the given exchange to this connection from any thread. */
+  void dispatch(final Exchange exchange) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        if (closed || goingAway) {
+          transport.redispatch(exchange, address);
+          return;
+        }
+        queued.add(exchange);
+        startStreams();
+        flush();
+      }
+    });
+  }
+
+  public void handleSelect(SelectionKey selectedKey) {
+    if (selectedKey.isValid() && selectedKey.isWritable()) {
+      flush();
+    }
+    if (!closed && selectedKey.isValid() && selectedKey.isReadable()) {
+      try {
+        read();
+      } catch (IOException e) {
+        fail(e);
+        return;
+      }
+      flush();
+    }
+  }
+
+  public void shutdown() {
+    fail(new IOException("transport has been shut down"));
+  }
+
+  public void resume(final ResponseBodyStream body) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        Stream stream = findStream(body);
+        if (stream != null && stream.paused) {
+          stream.paused = false;
+          stream.lastActivityNanos = System.nanoTime();
+          if (stream.unacknowledged > 0) {
+            writeWindowUpdate(stream.id, stream.unacknowledged);
+            stream.unacknowledged = 0;
+          }
+          flush();
+        }
+      }
+    });
+  }
+
+  public void abort(final ResponseBodyStream body) {
+    loop.execute(new Runnable() {
+
+      public void run() {
+        Stream stream = findStream(body);
+        if (stream != null) {
+          streams.remove(stream.id);
+          writeResetStream(stream.id, CANCEL);
+          streamClosed();
+          flush();
+        }
+      }
+    });
+  }
+
+  /** Reads and handles as many frames as are available. */
+  private void read() throws IOException {
+    while (!closed) {
+      int count = io.read(inbound);
+      if (count < 0) {
+        throw new IOException("connection closed by server");
+      }
+      if (count == 0) {
+        return;
+      }
+      inbound.flip();
+      while (!closed && inbound.remaining() >= FRAME_HEADER_LENGTH) {
+        int position = inbound.position();
+        int length = (inbound.get(position) & 0xff) << 16
+            | (inbound.get(position + 1) & 0xff) << 8 | inbound.get(position + 2) & 0xff;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+          connectionError(FRAME_SIZE_ERROR, "frame too large: " + length);
+          return;
+        }
+        if (inbound.remaining() < FRAME_HEADER_LENGTH + length) {
+          break;
+        }
+        int type = inbound.get(position + 3) & 0xff;
+        int flags = inbound.get(position + 4) & 0xff;
+        int streamId = inbound.getInt(position + 5) & 0x7fffffff;
+        inbound.position(position + FRAME_HEADER_LENGTH);
+        ByteBuffer payload = inbound.slice();
+        payload.limit(length);
+        inbound.position(position + FRAME_HEADER_LENGTH + length);
+        handleFrame(type, flags, streamId, payload);
+      }
+      inbound.compact();
+    }
+  }
+
+  /** Handles a received frame. */
+  private void handleFrame(int type, int flags, int streamId, ByteBuffer payload)
+      throws IOException {
+    if (headerBlock != null && type != TYPE_CONTINUATION) {
+      connectionError(PROTOCOL_ERROR, "expected CONTINUATION frame");
+      return;
+    }
+    switch (type) {
+      case TYPE_DATA:
+        onData(flags, streamId, payload);
+        break;
+      case TYPE_HEADERS:
+        onHeaders(flags, streamId, payload);
+        break;
+      case TYPE_RST_STREAM:
+        onResetStream(streamId, payload);
+        break;
+      case TYPE_SETTINGS:
+        onSettings(flags, payload);
+        break;
+      case TYPE_PUSH_PROMISE:
+        connectionError(PROTOCOL_ERROR, "server push has been disabled");
+        break;
+      case TYPE_PING:
+        if ((flags & FLAG_ACK) == 0) {
+          byte[] data = toArray(payload);
+          writeFrame(TYPE_PING, FLAG_ACK, 0, data, 0, data.length);
+        }
+        break;
+      case TYPE_GOAWAY:
+        onGoAway(payload);
+        break;
+      case TYPE_WINDOW_UPDATE:
+        onWindowUpdate(streamId, payload);
+        break;
+      case TYPE_CONTINUATION:
+        onContinuation(flags, streamId, payload);
+        break;
+      default:
+        // PRIORITY and unknown frame types are ignored
+    }
+  }
+
+  private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+    int length = payload.remaining();
+    connectionUnacknowledged += length;
+    if (connectionUnacknowledged >= CONNECTION_WINDOW_SIZE / 2) {
+      writeWindowUpdate(0, connectionUnacknowledged);
+      connectionUnacknowledged = 0;
+    }
+    removePadding(flags, payload);
+    Stream stream = streams.get(streamId);
+    if (stream == null || stream.body == null) {
+      // stream has been reset or cancelled by the client
+      return;
+    }
+    stream.lastActivityNanos = System.nanoTime();
+    stream.body.offer(toArray(payload));
+    stream.unacknowledged += length;
+    if ((flags & FLAG_END_STREAM) != 0) {
+      completeStream(stream);
+    } else if (stream.body.buffered() >= ResponseBodyStream.HIGH_WATER_MARK) {
+      stream.paused = true;
+      stream.body.pause();
+    } else if (!stream.paused && stream.unacknowledged >= STREAM_WINDOW_SIZE / 2) {
+      writeWindowUpdate(stream.id, stream.unacknowledged);
+      stream.unacknowledged = 0;
+    }
+  }
+
+  private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+    removePadding(flags, payload);
+    if ((flags & FLAG_PRIORITY) != 0) {
+      if (payload.remaining() < 5) {
+        throw new IOException("invalid HEADERS frame");
+      }
+      payload.position(payload.position() + 5);
+    }
+    headerBlock = new ByteArrayOutputStream();
+    headerBlockStreamId = streamId;
+    headerBlockEndStream = (flags & FLAG_END_STREAM) != 0;
+    appendHeaderBlock(flags, payload);
+  }
+
+  private void onContinuation(int flags, int streamId, ByteBuffer payload) throws IOException {
+    if (headerBlock == null || streamId != headerBlockStreamId) {
+      connectionError(PROTOCOL_ERROR, "unexpected CONTINUATION frame");
+      return;
+    }
+    appendHeaderBlock(flags, payload);
+  }
+
+  /**
+   * Appends a header block fragment, handling the header block once it is complete or failing the
+   * connection once it exceeds {@link #MAX_HEADER_LIST_SIZE}.
+   */
+  private void appendHeaderBlock(int flags, ByteBuffer payload) throws IOException {
+    if (headerBlock.size() + payload.remaining() > MAX_HEADER_LIST_SIZE) {
+      headerBlock = null;
+      connectionError(PROTOCOL_ERROR, "header block too large");
+      return;
+    }
+    headerBlock.write(payload.array(), payload.arrayOffset() + payload.position(),
+        payload.remaining());
+    if ((flags & FLAG_END_HEADERS) != 0) {
+      onHeaderBlock();
+    }
+  }
+
+  /** Handles a complete header block. */
+  private void onHeaderBlock() throws IOException {
+    ByteBuffer block = ByteBuffer.wrap(headerBlock.toByteArray());
+    headerBlock = null;
+    List<String> names = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+    try {
+      // always decode to keep the dynamic table in sync
+      decoder.decode(block, names, values);
+    } catch (IOException e) {
+      connectionError(COMPRESSION_ERROR, e.getMessage());
+      return;
+    }
+    Stream stream = streams.get(headerBlockStreamId);
+    if (stream == null) {
+      return;
+    }
+    stream.lastActivityNanos = System.nanoTime();
+    if (stream.body == null) {
+      int statusCode = -1;
+      ResponseHead head = null;
+      for (int i = 0; i < names.size(); i++) {
+        if (":status".equals(names.get(i))) {
+          try {
+            statusCode = Integer.parseInt(values.get(i));
+          } catch (NumberFormatException e) {
+            // handled below
+          }
+          head = new ResponseHead("HTTP/2", statusCode, null, "HTTP/2 " + values.get(i));
+        }
+      }
+      if (head == null || statusCode < 100) {
+        streams.remove(stream.id);
+        writeResetStream(stream.id, PROTOCOL_ERROR);
+        stream.exchange.listener.onFailure(new IOException("invalid response status"));
+        streamClosed();
+        return;
+      }
+      if (statusCode / 100 == 1 && !headerBlockEndStream) {
+        // skip informational responses
+        return;
+      }
+      for (int i = 0; i < names.size(); i++) {
+        if (!names.get(i).startsWith(":")) {
+          head.headerNames.add(names.get(i));
+          head.headerValues.add(values.get(i));
+        }
+      }
+      stream.body = new ResponseBodyStream(this);
+      stream.exchange.listener.onResponse(new NioHttpResponse(head, stream.body));
+    }
+    // trailers are ignored
+    if (headerBlockEndStream) {
+      completeStream(stream);
+    }
+  }
+
+  private void onResetStream(int streamId, ByteBuffer payload) throws IOException {
+    if (payload.remaining() != 4) {
+      connectionError(FRAME_SIZE_ERROR, "invalid RST_STREAM frame");
+      return;
+    }
+    int errorCode = payload.getInt();
+    Stream stream = streams.remove(streamId);
+    if (stream == null) {
+      return;
+    }
+    IOException exception =
+        new IOException("stream reset by server with error code " + errorCode);
+    if (stream.body != null) {
+      stream.body.fail(exception);
+    } else if (errorCode == REFUSED_STREAM && !stream.exchange.retried) {
+      // the server guarantees that it did not process the request
+      stream.exchange.retried = true;
+      transport.redispatch(stream.exchange, address);
+    } else {
+      stream.exchange.listener.onFailure(exception);
+    }
+    streamClosed();
+  }
+
+  private void onSettings(int flags, ByteBuffer payload) throws IOException {
+    if ((flags & FLAG_ACK) != 0) {
+      return;
+    }
+    if (payload.remaining() % 6 != 0) {
+      connectionError(FRAME_SIZE_ERROR, "invalid SETTINGS frame");
+      return;
+    }
+    while (payload.hasRemaining()) {
+      int id = payload.getShort() & 0xffff;
+      int value = payload.getInt();
+      switch (id) {
+        case SETTINGS_MAX_CONCURRENT_STREAMS:
+          peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+          break;
+        case SETTINGS_INITIAL_WINDOW_SIZE:
+          if (value < 0) {
+            connectionError(FLOW_CONTROL_ERROR, "invalid initial window size");
+            return;
+          }
+          int delta = value - peerInitialWindowSize;
+          for (Stream stream : streams.values()) {
+            stream.sendWindow += delta;
+          }
+          peerInitialWindowSize = value;
+          break;
+        case SETTINGS_MAX_FRAME_SIZE:
+          if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+            connectionError(PROTOCOL_ERROR, "invalid maximum frame size");
+            return;
+          }
+          peerMaxFrameSize = value;
+          break;
+        default:
+          // the encoder does not use the dynamic table, so the header table size is irrelevant
+      }
+    }
+    writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+    startStreams();
+    sendData();
+  }
+
+  private void onGoAway(ByteBuffer payload) {
+    if (payload.remaining() < 8) {
+      connectionError(FRAME_SIZE_ERROR, "invalid GOAWAY frame");
+      return;
+    }
+    int lastStreamId = payload.getInt() & 0x7fffffff;
+    goAway();
+    for (Iterator<Stream> iterator = streams.values().iterator(); iterator.hasNext();) {
+      Stream stream = iterator.next();
+      if (stream.id > lastStreamId) {
+        // the server guarantees that it did not process the request
+        iterator.remove();
+        if (stream.body == null) {
+          transport.redispatch(stream.exchange, address);
+        } else {
+          stream.body.fail(new IOException("stream refused by server"));
+        }
+      }
+    }
+    streamClosed();
+  }
+
+  private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+    if (payload.remaining() != 4) {
+      connectionError(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE frame");
+      return;
+    }
+    int increment = payload.getInt() & 0x7fffffff;
+    if (streamId == 0) {
+      if (increment == 0) {
+        connectionError(PROTOCOL_ERROR, "invalid window size increment");
+        return;
+      }
+      if (connectionSendWindow > Integer.MAX_VALUE - increment) {
+        connectionError(FLOW_CONTROL_ERROR, "window size overflow");
+        return;
+      }
+      connectionSendWindow += increment;
+    } else {
+      Stream stream = streams.get(streamId);
+      if (stream != null) {
+        if (increment == 0) {
+          streamError(stream, PROTOCOL_ERROR, "invalid window size increment");
+          return;
+        }
+        if (stream.sendWindow > Integer.MAX_VALUE - increment) {
+          streamError(stream, FLOW_CONTROL_ERROR, "window size overflow");
+          return;
+        }
+        stream.sendWindow += increment;
+      }
+    }
+    sendData();
+  }
+
+  /** Starts queued exchanges while streams are available. */
+  private void startStreams() {
+    int maxStreams = Math.min(transport.maxConcurrentStreams, peerMaxConcurrentStreams);
+    while (!goingAway && !queued.isEmpty() && streams.size() < maxStreams) {
+      if (nextStreamId < 0) {
+        // stream identifiers are exhausted
+        goAway();
+        break;
+      }
+      startStream(queued.removeFirst());
+    }
+    sendData();
+    armTimer();
+  }
+
+  /** Sends the headers of a new stream for the given exchange. */
+  private void startStream(Exchange exchange) {
+    Stream stream = new Stream(nextStreamId, exchange, peerInitialWindowSize);
+    nextStreamId += 2;
+    streams.put(stream.id, stream);
+    ByteArrayOutputStream block = new ByteArrayOutputStream();
+    encoder.encode(block, ":method", exchange.method);
+    encoder.encode(block, ":scheme", exchange.secure ? "https" : "http");
+    encoder.encode(block, ":authority", exchange.authority);
+    encoder.encode(block, ":path", exchange.path);
+    for (int i = 0; i < exchange.headerNames.size(); i++) {
+      String name = exchange.headerNames.get(i).toLowerCase(Locale.US);
+      if (!CONNECTION_HEADERS.contains(name)) {
+        encoder.encode(block, name, exchange.headerValues.get(i));
+      }
+    }
+    boolean hasContent = exchange.contentLength > 0;
+    byte[] bytes = block.toByteArray();
+    int offset = 0;
+    do {
+      int length = Math.min(bytes.length - offset, peerMaxFrameSize);
+      int flags = offset + length == bytes.length ? FLAG_END_HEADERS : 0;
+      if (offset == 0) {
+        writeFrame(TYPE_HEADERS, flags | (hasContent ? 0 : FLAG_END_STREAM), stream.id, bytes,
+            offset, length);
+      } else {
+        writeFrame(TYPE_CONTINUATION, flags, stream.id, bytes, offset, length);
+      }
+      offset += length;
+    } while (offset < bytes.length);
+    if (hasContent) {
+      stream.content = exchange.newContent();
+      stream.contentRemaining = exchange.contentLength;
+    }
+  }
+
+  /** Sends as much request content as the flow control windows allow. */
+  private void sendData() {
+    for (Stream stream : streams.values()) {
+      while (stream.content != null && connectionSendWindow > 0 && stream.sendWindow > 0) {
+        int length = (int) Math.min(stream.contentRemaining,
+            Math.min(peerMaxFrameSize, Math.min(connectionSendWindow, stream.sendWindow)));
+        boolean last = length == stream.contentRemaining;
+        writeFrameHeader(TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id, length);
+        // the payload is queued as views of the content buffers rather than copied
+        int count = length;
+        while (count > 0) {
+          ByteBuffer buffer = stream.content[stream.contentIndex];
+          int sliceLength = Math.min(count, buffer.remaining());
+          ByteBuffer slice = buffer.slice();
+          slice.limit(sliceLength);
+          outbound.add(slice);
+          buffer.position(buffer.position() + sliceLength);
+          if (!buffer.hasRemaining()) {
+            stream.contentIndex++;
+          }
+          count -= sliceLength;
+        }
+        stream.contentRemaining -= length;
+        connectionSendWindow -= length;
+        stream.sendWindow -= length;
+        if (last) {
+          stream.content = null;
+        }
+      }
+    }
+  }
+
+  /** Completes a stream once the server has ended it. */
+  private void completeStream(Stream stream) {
+    streams.remove(stream.id);
+    if (stream.content != null) {
+      // the server responded before receiving all of the request content
+      writeResetStream(stream.id, NO_ERROR);
+    }
+    streamClosed();
+    if (stream.body == null) {
+      stream.exchange.listener.onFailure(new IOException("stream ended without response"));
+    } else {
+      stream.body.finish();
+    }
+  }
+
+  /** Updates the connection after a stream has been closed. */
+  private void streamClosed() {
+    if (streams.isEmpty()) {
+      idleSinceNanos = System.nanoTime();
+      if (goingAway && queued.isEmpty()) {
+        close();
+        return;
+      }
+    }
+    startStreams();
+  }
+
+  /** Stops creating new streams, redispatching queued exchanges to another connection. */
+  private void goAway() {
+    if (!goingAway) {
+      goingAway = true;
+      transport.http2Disconnected(this);
+    }
+    while (!queued.isEmpty()) {
+      transport.redispatch(queued.removeFirst(), address);
+    }
+  }
+
+  /** Sends a {@code RST_STREAM} frame with the given error code and fails the stream. */
+  private void streamError(Stream stream, int errorCode, String message) {
+    streams.remove(stream.id);
+    writeResetStream(stream.id, errorCode);
+    IOException exception = new IOException(message);
+    if (stream.body != null) {
+      stream.body.fail(exception);
+    } else {
+      stream.exchange.listener.onFailure(exception);
+    }
+    streamClosed();
+  }
+
+  /** Sends a {@code GOAWAY} frame with the given error code and fails the connection. */
+  private void connectionError(int errorCode, String message) {
+    ByteBuffer payload = ByteBuffer.allocate(8);
+    payload.putInt(0).putInt(errorCode);
+    writeFrame(TYPE_GOAWAY, 0, 0, payload.array(), 0, 8);
+    flush();
+    fail(new IOException(message));
+  }
+
+  /** Closes the connection gracefully once there are no active streams. */
+  private void close() {
+    ByteBuffer payload = ByteBuffer.allocate(8);
+    payload.putInt(0).putInt(NO_ERROR);
+    writeFrame(TYPE_GOAWAY, 0, 0, payload.array(), 0, 8);
+    flush();
+    fail(new IOException("connection closed"));
+  }
+
+  /** Fails all active streams with the given exception and closes the connection. */
+  private void fail(IOException exception) {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+    if (!goingAway) {
+      goingAway = true;
+      transport.http2Disconnected(this);
+    }
+    key.cancel();
+    io.close();
+    for (Stream stream : streams.values()) {
+      if (stream.body != null) {
+        stream.body.fail(exception);
+      } else {
+        stream.exchange.listener.onFailure(exception);
+      }
+    }
+    streams.clear();
+    while (!queued.isEmpty()) {
+      transport.redispatch(queued.removeFirst(), address);
+    }
+  }
+
+  /** Writes the pending frames as far as possible. */
+  private void flush() {
+    if (closed) {
+      return;
+    }
+    try {
+      while (!outbound.isEmpty()) {
+        if (!io.write(outbound.getFirst())) {
+          break;
+        }
+        outbound.removeFirst();
+      }
+      key.interestOps(SelectionKey.OP_READ | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /** Queues the header of a frame whose payload is queued separately. */
+  private void writeFrameHeader(int type, int flags, int streamId, int length) {
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+    header.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    header.put((byte) type).put((byte) flags).putInt(streamId);
+    header.flip();
+    outbound.add(header);
+  }
+
+  private void writeFrame(
+      int type, int flags, int streamId, byte[] payload, int offset, int length) {
+    ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_LENGTH + length);
+    frame.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+    frame.put((byte) type).put((byte) flags).putInt(streamId);
+    frame.put(payload, offset, length);
+    frame.flip();
+    outbound.add(frame);
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) {
+    ByteBuffer payload = ByteBuffer.allocate(4);
+    payload.putInt(increment);
+    writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload.array(), 0, 4);
+  }
+
+  private void writeResetStream(int streamId, int errorCode) {
+    ByteBuffer payload = ByteBuffer.allocate(4);
+    payload.putInt(errorCode);
+    writeFrame(TYPE_RST_STREAM, 0, streamId, payload.array(), 0, 4);
+  }
+
+  /** Removes the padding of a padded frame. */
+  private static void removePadding(int flags, ByteBuffer payload) throws IOException {
+    if ((flags & FLAG_PADDED) != 0) {
+      int padLength = payload.hasRemaining() ? payload.get() & 0xff : -1;
+      if (padLength < 0 || padLength > payload.remaining()) {
+        throw new IOException("invalid padding");
+      }
+      payload.limit(payload.limit() - padLength);
+    }
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+
+  private Stream findStream(ResponseBodyStream body) {
+    for (Stream stream : streams.values()) {
+      if (stream.body == body) {
+        return stream;
+      }
+    }
+    return null;
+  }
+
+  /** Returns the earliest deadline in nanoseconds or {@code null} for none. */
+  private Long deadline() {
+    Long deadline = null;
+    if (streams.isEmpty() && queued.isEmpty()) {
+      if (transport.keepAliveTimeout > 0) {
+        deadline = idleSinceNanos + transport.keepAliveTimeout * 1000000L;
+      }
+    } else {
+      for (Stream stream : streams.values()) {
+        int readTimeout = stream.exchange.readTimeout;
+        if (readTimeout > 0 && !stream.paused) {
+          long streamDeadline = stream.lastActivityNanos + readTimeout * 1000000L;
+          if (deadline == null || streamDeadline - deadline < 0) {
+            deadline = streamDeadline;
+          }
+        }
+      }
+    }
+    return deadline;
+  }
+
+  /** Ensures a timer is scheduled no later than the earliest deadline. */
+  private void armTimer() {
+    Long deadline = deadline();
+    if (closed || deadline == null || timer != null && timerDeadlineNanos - deadline <= 0) {
+      return;
+    }
+    if (timer != null) {
+      timer.cancel();
+    }
+    timerDeadlineNanos = deadline;
+    long delayMillis = Math.max(0, (deadline - System.nanoTime()) / 1000000L);
+    timer = loop.schedule(new Runnable() {
+
+      public void run() {
+        timer = null;
+        checkTimeouts();
+      }
+    }, delayMillis);
+  }
+
+  /** Fails the streams whose read timeout expired or closes the connection if idle too long. */
+  private void checkTimeouts() {
+    long now = System.nanoTime();
+    if (streams.isEmpty() && queued.isEmpty()) {
+      Long deadline = deadline();
+      if (deadline != null && deadline - now <= 0) {
+        close();
+        return;
+      }
+    } else {
+      List<Stream> expired = new ArrayList<Stream>();
+      for (Stream stream : streams.values()) {
+        int readTimeout = stream.exchange.readTimeout;
+        if (readTimeout > 0 && !stream.paused
+            && stream.lastActivityNanos + readTimeout * 1000000L - now <= 0) {
+          expired.add(stream);
+        }
+      }
+      for (Stream stream : expired) {
+        streams.remove(stream.id);
+        writeResetStream(stream.id, CANCEL);
+        SocketTimeoutException exception = new SocketTimeoutException("Read timed out");
+        if (stream.body != null) {
+          stream.body.fail(exception);
+        } else {
+          stream.exchange.listener.onFailure(exception);
+        }
+      }
+      if (!expired.isEmpty()) {
+        streamClosed();
+      }
+    }
+    armTimer();
+    flush();
+  }
+}
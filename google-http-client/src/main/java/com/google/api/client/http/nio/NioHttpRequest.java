@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.ByteBufferContent;
+import com.google.api.client.http.FileChannelContent;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.LowLevelHttpResponseCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request of the {@link NioHttpTransport}.
+ *
+ * <p>
+ * The streaming content is buffered in memory on the calling thread before the request is
+ * dispatched to the selector loop, except for a {@link ByteBufferContent}, whose buffers are
+ * written directly to the connection, and for a {@link FileChannelContent} sent with HTTP/1.1
+ * over a plain connection, which the connection transfers directly from the file to the socket.
+ * </p>
+ */
+final class NioHttpRequest extends LowLevelHttpRequest {
+
+  private final NioHttpTransport transport;
+  private final String method;
+  private final URL url;
+  private final List<String> headerNames = new ArrayList<String>();
+  private final List<String> headerValues = new ArrayList<String>();
+  private int connectTimeout;
+  private int readTimeout;
+
+  NioHttpRequest(NioHttpTransport transport, String method, URL url) {
+    this.transport = transport;
+    this.method = method;
+    this.url = url;
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    headerNames.add(name);
+    headerValues.add(value);
+  }
+
+  @Override
+  public void setTimeout(int connectTimeout, int readTimeout) {
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  @Override
+  public LowLevelHttpResponse execute() throws IOException {
+    BlockingListener listener = new BlockingListener();
+    transport.execute(newExchange(listener));
+    return listener.await();
+  }
+
+  @Override
+  public void executeAsync(final LowLevelHttpResponseCallback callback) {
+    Exchange exchange;
+    try {
+      exchange = newExchange(new Exchange.Listener() {
+
+        public void onResponse(final NioHttpResponse response) {
+          transport.callbackExecutor.execute(new Runnable() {
+
+            public void run() {
+              callback.onResponse(response);
+            }
+          });
+        }
+
+        public void onFailure(final IOException exception) {
+          transport.callbackExecutor.execute(new Runnable() {
+
+            public void run() {
+              callback.onFailure(exception);
+            }
+          });
+        }
+      });
+      transport.execute(exchange);
+    } catch (IOException e) {
+      callback.onFailure(e);
+    }
+  }
+
+  /** Returns a new exchange of the request with its content buffered in memory. */
+  private Exchange newExchange(Exchange.Listener listener) throws IOException {
+    boolean secure = "https".equalsIgnoreCase(url.getProtocol());
+    int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    String host = url.getHost();
+    String authority = url.getPort() == -1 ? host : host + ':' + port;
+    List<String> names = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+    for (int i = 0; i < headerNames.size(); i++) {
+      if ("Host".equalsIgnoreCase(headerNames.get(i))) {
+        authority = headerValues.get(i);
+      } else {
+        names.add(headerNames.get(i));
+        values.add(headerValues.get(i));
+      }
+    }
+    ByteBuffer[] content = null;
+    FileChannelContent fileContent = null;
+    if (getStreamingContent() != null) {
+      long contentLength;
+      if (getStreamingContent() instanceof FileChannelContent && !secure
+          && !transport.mayUseHttp2(secure)) {
+        // sent from the file by the connection without copying it through the heap
+        fileContent = (FileChannelContent) getStreamingContent();
+        contentLength = fileContent.getLength();
+      } else if (getStreamingContent() instanceof ByteBufferContent) {
+        // written by the connection from views of the buffers without copying them
+        ByteBufferContent bufferContent = (ByteBufferContent) getStreamingContent();
+        content = bufferContent.getBuffers();
+        contentLength = bufferContent.getLength();
+      } else {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getStreamingContent().writeTo(out);
+        content = new ByteBuffer[] {ByteBuffer.wrap(out.toByteArray())};
+        contentLength = out.size();
+      }
+      String contentType = getContentType();
+      if (contentType != null) {
+        names.add("Content-Type");
+        values.add(contentType);
+      }
+      String contentEncoding = getContentEncoding();
+      if (contentEncoding != null) {
+        names.add("Content-Encoding");
+        values.add(contentEncoding);
+      }
+      names.add("Content-Length");
+      values.add(Long.toString(contentLength));
+    } else if ("POST".equals(method) || "PUT".equals(method) || "PATCH".equals(method)) {
+      names.add("Content-Length");
+      values.add("0");
+    }
+    String file = url.getFile();
+    String route = url.getProtocol().toLowerCase() + "://" + host + ':' + port;
+    return new Exchange(route, host, port, secure, method, file.length() == 0 ? "/" : file,
+        authority, names, values, content, fileContent, connectTimeout, readTimeout, listener);
+  }
+
+  /** Exchange listener that blocks the calling thread until the response head is available. */
+  static final class BlockingListener implements Exchange.Listener {
+
+    private NioHttpResponse response;
+    private IOException exception;
+
+    public synchronized void onResponse(NioHttpResponse response) {
+      this.response = response;
+      notifyAll();
+    }
+
+    public synchronized void onFailure(IOException exception) {
+      this.exception = exception;
+      notifyAll();
+    }
+
+    synchronized LowLevelHttpResponse await() throws IOException {
+      while (response == null && exception == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      if (exception != null) {
+        throw exception;
+      }
+      return response;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.nio.ResponseParser.ResponseHead;
+
+import java.io.InputStream;
+
+final class NioHttpResponse extends LowLevelHttpResponse {
+
+  private final ResponseHead head;
+  private final ResponseBodyStream body;
+
+  NioHttpResponse(ResponseHead head, ResponseBodyStream body) {
+    this.head = head;
+    this.body = body;
+  }
+
+  @Override
+  public InputStream getContent() {
+    return body;
+  }
+
+  @Override
+  public String getContentEncoding() {
+    return head.getHeaderValue("Content-Encoding");
+  }
+
+  @Override
+  public long getContentLength() {
+    String contentLength = head.getHeaderValue("Content-Length");
+    if (contentLength == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentLength);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public String getContentType() {
+    return head.getHeaderValue("Content-Type");
+  }
+
+  @Override
+  public String getStatusLine() {
+    return head.statusLine;
+  }
+
+  @Override
+  public int getStatusCode() {
+    return head.statusCode;
+  }
+
+  @Override
+  public String getReasonPhrase() {
+    return head.reasonPhrase;
+  }
+
+  @Override
+  public int getHeaderCount() {
+    return head.headerNames.size();
+  }
+
+  @Override
+  public String getHeaderName(int index) {
+    return head.headerNames.get(index);
+  }
+
+  @Override
+  public String getHeaderValue(int index) {
+    return head.headerValues.get(index);
+  }
+
+  /**
+   * Closes the response body, which closes the connection if the body has not been completely
+   * received.
+   */
+  @Override
+  public void disconnect() {
+    body.close();
+  }
+}
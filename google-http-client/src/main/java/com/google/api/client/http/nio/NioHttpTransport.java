@@ -0,0 +1,712 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.util.Beta;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.SecurityUtils;
+import com.google.api.client.util.SharedTlsContext;
+import com.google.api.client.util.SslUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+
+/**
+ * {@link Beta} <br/>
+ * Thread-safe HTTP low-level transport based on non-blocking I/O from the {@code java.nio}
+ * package.
+ *
+ * <p>
+ * All connections are multiplexed over a small number of selector threads, so that a large number
+ * of concurrent requests does not require a thread per request. Requests executed with
+ * {@link com.google.api.client.http.HttpRequest#executeAsync(
+ * com.google.api.client.http.HttpResponseCallback)} return immediately and the callback is notified
+ * on the callback executor once the response head has been received, while
+ * {@link com.google.api.client.http.HttpRequest#execute()} blocks the calling thread until then. In
+ * both cases the response body is read from a stream that is fed by the selector thread, which
+ * stops reading from the connection while too many bytes are waiting to be consumed.
+ * </p>
+ *
+ * <p>
+ * Connections are kept alive in a pool of idle connections per host, which are closed after the
+ * keep-alive timeout. A request that fails on a pooled connection before receiving any byte of the
+ * response is retried once on a new connection, since the server may close an idle connection at
+ * any time.
+ * </p>
+ *
+ * <p>
+ * HTTP/2 may be enabled with {@link Builder#setHttp2Enabled} for {@code https} URLs, negotiated
+ * with ALPN, and with {@link Builder#setHttp2PriorKnowledge} for {@code http} URLs. Requests to the
+ * same host and port then share a single connection as concurrent streams, using HPACK header
+ * compression and per-stream flow control.
+ * </p>
+ *
+ * <p>
+ * Limitations: proxies are not supported, request content is buffered in memory before it is sent,
+ * except for a {@link com.google.api.client.http.ByteBufferContent}, whose buffers are written to
+ * the socket without copying, and for a {@link com.google.api.client.http.FileChannelContent} sent
+ * with HTTP/1.1 over a plain connection, which is transferred from the file to the socket without
+ * copying, and the host name is resolved on the calling thread.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe. For maximum efficiency, applications should use a single
+ * globally-shared instance of the HTTP transport and call {@link #shutdown()} when done with it.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class NioHttpTransport extends HttpTransport {
+
+  /** Default number of selector threads. */
+  static final int DEFAULT_SELECTOR_THREADS = 1;
+
+  /** Default maximum number of idle connections per host. */
+  static final int DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST = 20;
+
+  /** Default keep-alive timeout in milliseconds. */
+  static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 60 * 1000;
+
+  /** Default maximum number of concurrent HTTP/2 streams per connection. */
+  static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+  /** Application protocols offered with ALPN if HTTP/2 is enabled. */
+  private static final String[] HTTP2_APPLICATION_PROTOCOLS = {"h2", "http/1.1"};
+
+  /** Counter used to name the threads. */
+  private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+  /** Number of selector threads. */
+  private final int selectorThreads;
+
+  /** Selector loops, started lazily. */
+  private SelectorLoop[] loops;
+
+  /** Index of the selector loop of the next new connection. */
+  private final AtomicInteger nextLoop = new AtomicInteger();
+
+  /** Whether {@link #shutdown()} has been called. */
+  private boolean shutdown;
+
+  /** Pool of idle connections. */
+  final ConnectionPool pool;
+
+  /** Keep-alive timeout in milliseconds of idle connections or {@code 0} for none. */
+  final int keepAliveTimeout;
+
+  /** Executor of the response callbacks. */
+  final Executor callbackExecutor;
+
+  /** SSL context or {@code null} for the default. */
+  private SSLContext sslContext;
+
+  /** Host name verifier or {@code null} to let the SSL engine verify host names. */
+  private final HostnameVerifier hostnameVerifier;
+
+  /** Whether HTTP/2 is offered with ALPN for {@code https} URLs. */
+  private final boolean http2Enabled;
+
+  /** Whether HTTP/2 is used with prior knowledge for {@code http} URLs. */
+  private final boolean http2PriorKnowledge;
+
+  /** Maximum number of concurrent HTTP/2 streams per connection. */
+  final int maxConcurrentStreams;
+
+  /** Established HTTP/2 connections by route, also used as lock of the HTTP/2 state. */
+  private final Map<String, Http2Connection> http2Connections =
+      new HashMap<String, Http2Connection>();
+
+  /** Exchanges waiting for an HTTP/2 connection being established by route. */
+  private final Map<String, List<Exchange>> pendingHttp2Exchanges =
+      new HashMap<String, List<Exchange>>();
+
+  /** Routes of {@code https} URLs whose server negotiated HTTP/2. */
+  private final Set<String> http2Routes = new HashSet<String>();
+
+  /**
+   * Constructor with the default options.
+   *
+   * <p>
+   * Use {@link Builder} to modify the options.
+   * </p>
+   */
+  public NioHttpTransport() {
+    this(new Builder());
+  }
+
+  NioHttpTransport(Builder builder) {
+    selectorThreads = builder.selectorThreads;
+    pool = new ConnectionPool(builder.maxIdleConnectionsPerHost);
+    keepAliveTimeout = builder.keepAliveTimeout;
+    callbackExecutor =
+        builder.callbackExecutor == null ? getAsyncExecutor() : builder.callbackExecutor;
+    sslContext = builder.sslContext;
+    hostnameVerifier = builder.hostnameVerifier;
+    http2Enabled = builder.http2Enabled;
+    http2PriorKnowledge = builder.http2PriorKnowledge;
+    maxConcurrentStreams = builder.maxConcurrentStreams;
+  }
+
+  @Override
+  protected NioHttpRequest buildRequest(String method, String url) throws IOException {
+    Preconditions.checkArgument(supportsMethod(method), "HTTP method %s not supported", method);
+    URL connUrl = new URL(url);
+    String protocol = connUrl.getProtocol();
+    Preconditions.checkArgument(
+        "http".equalsIgnoreCase(protocol) || "https".equalsIgnoreCase(protocol),
+        "unsupported protocol: %s", protocol);
+    return new NioHttpRequest(this, method, connUrl);
+  }
+
+  @Override
+  public boolean supportsMethod(String method) {
+    return !"CONNECT".equals(method);
+  }
+
+  /**
+   * Shuts down the selector threads, failing all in-flight requests.
+   */
+  @Override
+  public void shutdown() throws IOException {
+    synchronized (this) {
+      shutdown = true;
+      if (loops != null) {
+        for (SelectorLoop loop : loops) {
+          loop.shutdown();
+        }
+      }
+    }
+    pool.clear();
+    synchronized (http2Connections) {
+      http2Connections.clear();
+    }
+  }
+
+  /** Returns the number of idle connections in the pool. */
+  int getIdleConnectionCount() {
+    return pool.idleCount();
+  }
+
+  /** Dispatches the given exchange to a pooled connection or else to a new connection. */
+  void execute(Exchange exchange) throws IOException {
+    execute(exchange, null);
+  }
+
+  /**
+   * Dispatches the given exchange to an HTTP/2 connection, to a pooled HTTP/1.1 connection or else
+   * to a new connection.
+   *
+   * @param address resolved address of the server or {@code null} to resolve it if needed
+   */
+  private void execute(Exchange exchange, InetSocketAddress address) throws IOException {
+    boolean http2Expected = false;
+    if (mayUseHttp2(exchange.secure)) {
+      synchronized (http2Connections) {
+        Http2Connection connection = http2Connections.get(exchange.route);
+        if (connection != null) {
+          connection.dispatch(exchange);
+          return;
+        }
+        List<Exchange> pending = pendingHttp2Exchanges.get(exchange.route);
+        if (pending != null) {
+          pending.add(exchange);
+          return;
+        }
+        // for https URLs the protocol is only known once negotiated
+        http2Expected = !exchange.secure || http2Routes.contains(exchange.route);
+        if (http2Expected) {
+          pendingHttp2Exchanges.put(exchange.route, new ArrayList<Exchange>());
+        }
+      }
+    }
+    if (!http2Expected) {
+      Http1Connection connection = pool.acquire(exchange.route);
+      if (connection != null) {
+        connection.dispatch(exchange);
+        return;
+      }
+    }
+    if (address == null) {
+      address = new InetSocketAddress(exchange.host, exchange.port);
+      if (address.isUnresolved()) {
+        if (http2Expected) {
+          http2Unavailable(exchange.route, null, new UnknownHostException(exchange.host));
+        }
+        throw new UnknownHostException(exchange.host);
+      }
+    }
+    try {
+      connect(exchange, address, http2Expected);
+    } catch (IOException e) {
+      if (http2Expected) {
+        http2Unavailable(exchange.route, address, e);
+      }
+      throw e;
+    } catch (RuntimeException e) {
+      if (http2Expected) {
+        http2Unavailable(exchange.route, address, new IOException(e.getMessage()));
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Dispatches the given exchange again from the selector loop thread after its connection could
+   * not serve it, notifying its listener of any failure.
+   *
+   * @param address resolved address of the server
+   */
+  void redispatch(Exchange exchange, InetSocketAddress address) {
+    try {
+      execute(exchange, address);
+    } catch (IOException e) {
+      exchange.listener.onFailure(e);
+    } catch (IllegalStateException e) {
+      exchange.listener.onFailure(new IOException(e.getMessage()));
+    }
+  }
+
+  /** Opens a new connection to the given address and dispatches the given exchange to it. */
+  void connect(Exchange exchange, InetSocketAddress address) throws IOException {
+    connect(exchange, address, false);
+  }
+
+  /**
+   * Opens a new connection to the given address and dispatches the given exchange to it.
+   *
+   * @param http2Expected whether other exchanges are waiting for this connection to be established
+   *        using HTTP/2
+   */
+  private void connect(Exchange exchange, InetSocketAddress address, boolean http2Expected)
+      throws IOException {
+    SelectorLoop loop = nextLoop();
+    SocketChannel channel = SocketChannel.open();
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      channel.connect(address);
+      SocketIo io;
+      if (exchange.secure) {
+        io = new TlsSocketIo(channel, TlsSocketIo.newClientEngine(getSslContext(), exchange.host,
+            exchange.port, hostnameVerifier, http2Enabled ? HTTP2_APPLICATION_PROTOCOLS : null),
+            exchange.host, hostnameVerifier);
+      } else {
+        io = new SocketIo.Plain(channel);
+      }
+      new Http1Connection(this, loop, exchange.route, address, io, http2Expected)
+          .dispatch(exchange);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /** Returns whether exchanges of the given security may be sent over HTTP/2. */
+  boolean mayUseHttp2(boolean secure) {
+    return secure ? http2Enabled : http2PriorKnowledge;
+  }
+
+  /**
+   * Returns whether a newly established connection uses HTTP/2.
+   *
+   * @param secure whether the connection is secured with TLS
+   * @param applicationProtocol application protocol negotiated with ALPN or {@code null} for none
+   */
+  boolean usesHttp2(boolean secure, String applicationProtocol) {
+    return secure ? http2Enabled && "h2".equals(applicationProtocol) : http2PriorKnowledge;
+  }
+
+  /** Registers a newly established HTTP/2 connection and dispatches the waiting exchanges to it. */
+  void http2Connected(Http2Connection connection) {
+    synchronized (http2Connections) {
+      if (!http2Connections.containsKey(connection.route)) {
+        http2Connections.put(connection.route, connection);
+        http2Routes.add(connection.route);
+      }
+      List<Exchange> pending = pendingHttp2Exchanges.remove(connection.route);
+      if (pending != null) {
+        for (Exchange exchange : pending) {
+          connection.dispatch(exchange);
+        }
+      }
+    }
+  }
+
+  /** Unregisters an HTTP/2 connection that no longer accepts new streams. */
+  void http2Disconnected(Http2Connection connection) {
+    synchronized (http2Connections) {
+      if (http2Connections.get(connection.route) == connection) {
+        http2Connections.remove(connection.route);
+      }
+    }
+  }
+
+  /**
+   * Handles a connection expected to use HTTP/2 that failed or negotiated HTTP/1.1 instead.
+   *
+   * @param route route of the connection
+   * @param address resolved address of the server or {@code null} if unknown
+   * @param exception exception to fail the waiting exchanges with or {@code null} to dispatch them
+   *        using HTTP/1.1
+   */
+  void http2Unavailable(String route, InetSocketAddress address, IOException exception) {
+    List<Exchange> pending;
+    synchronized (http2Connections) {
+      pending = pendingHttp2Exchanges.remove(route);
+      if (exception == null) {
+        http2Routes.remove(route);
+      }
+    }
+    if (pending != null) {
+      for (Exchange exchange : pending) {
+        if (exception == null) {
+          redispatch(exchange, address);
+        } else {
+          exchange.listener.onFailure(exception);
+        }
+      }
+    }
+  }
+
+  /** Returns the selector loop of the next new connection, starting the loops on first use. */
+  private synchronized SelectorLoop nextLoop() throws IOException {
+    Preconditions.checkState(!shutdown, "transport has been shut down");
+    if (loops == null) {
+      SelectorLoop[] newLoops = new SelectorLoop[selectorThreads];
+      for (int i = 0; i < newLoops.length; i++) {
+        newLoops[i] = new SelectorLoop("NioHttpTransport-selector-"
+            + THREAD_COUNTER.incrementAndGet());
+      }
+      loops = newLoops;
+    }
+    return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+  }
+
+  /** Returns the SSL context, initializing the default one on first use. */
+  private synchronized SSLContext getSslContext() throws IOException {
+    if (sslContext == null) {
+      try {
+        sslContext = SslUtils.getTlsSslContext();
+        sslContext.init(null, null, null);
+      } catch (GeneralSecurityException e) {
+        IOException exception = new IOException("unable to initialize SSL context");
+        exception.initCause(e);
+        throw exception;
+      }
+    }
+    return sslContext;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link NioHttpTransport}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Builder {
+
+    /** Number of selector threads. */
+    int selectorThreads = DEFAULT_SELECTOR_THREADS;
+
+    /** Maximum number of idle connections per host. */
+    int maxIdleConnectionsPerHost = DEFAULT_MAX_IDLE_CONNECTIONS_PER_HOST;
+
+    /** Keep-alive timeout in milliseconds of idle connections or {@code 0} for none. */
+    int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+
+    /** Executor of the response callbacks or {@code null} for the default. */
+    Executor callbackExecutor;
+
+    /** SSL context or {@code null} for the default. */
+    SSLContext sslContext;
+
+    /** Host name verifier or {@code null} to let the SSL engine verify host names. */
+    HostnameVerifier hostnameVerifier;
+
+    /** Whether HTTP/2 is offered with ALPN for {@code https} URLs. */
+    boolean http2Enabled;
+
+    /** Whether HTTP/2 is used with prior knowledge for {@code http} URLs. */
+    boolean http2PriorKnowledge;
+
+    /** Maximum number of concurrent HTTP/2 streams per connection. */
+    int maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+
+    /** Returns the number of selector threads. */
+    public int getSelectorThreads() {
+      return selectorThreads;
+    }
+
+    /**
+     * Sets the number of selector threads.
+     *
+     * <p>
+     * Default value is {@code 1}.
+     * </p>
+     */
+    public Builder setSelectorThreads(int selectorThreads) {
+      Preconditions.checkArgument(selectorThreads > 0);
+      this.selectorThreads = selectorThreads;
+      return this;
+    }
+
+    /** Returns the maximum number of idle connections per host. */
+    public int getMaxIdleConnectionsPerHost() {
+      return maxIdleConnectionsPerHost;
+    }
+
+    /**
+     * Sets the maximum number of idle connections per host or {@code 0} to disable keep-alive.
+     *
+     * <p>
+     * Default value is {@code 20}.
+     * </p>
+     */
+    public Builder setMaxIdleConnectionsPerHost(int maxIdleConnectionsPerHost) {
+      Preconditions.checkArgument(maxIdleConnectionsPerHost >= 0);
+      this.maxIdleConnectionsPerHost = maxIdleConnectionsPerHost;
+      return this;
+    }
+
+    /** Returns the keep-alive timeout in milliseconds of idle connections. */
+    public int getKeepAliveTimeout() {
+      return keepAliveTimeout;
+    }
+
+    /**
+     * Sets the keep-alive timeout in milliseconds after which idle connections are closed or
+     * {@code 0} to keep them open until closed by the server.
+     *
+     * <p>
+     * Default value is {@code 60000}.
+     * </p>
+     */
+    public Builder setKeepAliveTimeout(int keepAliveTimeout) {
+      Preconditions.checkArgument(keepAliveTimeout >= 0);
+      this.keepAliveTimeout = keepAliveTimeout;
+      return this;
+    }
+
+    /** Returns the executor of the response callbacks or {@code null} for the default. */
+    public Executor getCallbackExecutor() {
+      return callbackExecutor;
+    }
+
+    /**
+     * Sets the executor of the response callbacks or {@code null} for the default.
+     *
+     * <p>
+     * Callbacks typically read the response content, which blocks until the content is received,
+     * so the executor must not run them on the selector thread. The default is the bounded shared
+     * executor returned by {@link HttpTransport#getAsyncExecutor()}.
+     * </p>
+     */
+    public Builder setCallbackExecutor(Executor callbackExecutor) {
+      this.callbackExecutor = callbackExecutor;
+      return this;
+    }
+
+    /**
+     * Sets the SSL context based on root certificates in a Java KeyStore.
+     *
+     * @param keyStoreStream input stream to the key store (closed at the end of this method in a
+     *        finally block)
+     * @param storePass password protecting the key store file
+     */
+    public Builder trustCertificatesFromJavaKeyStore(InputStream keyStoreStream, String storePass)
+        throws GeneralSecurityException, IOException {
+      KeyStore trustStore = SecurityUtils.getJavaKeyStore();
+      SecurityUtils.loadKeyStore(trustStore, keyStoreStream, storePass);
+      return trustCertificates(trustStore);
+    }
+
+    /**
+     * Sets the SSL context based on root certificates generated from the specified stream using
+     * {@link CertificateFactory#generateCertificates(InputStream)}.
+     *
+     * @param certificateStream certificate stream
+     */
+    public Builder trustCertificatesFromStream(InputStream certificateStream)
+        throws GeneralSecurityException, IOException {
+      KeyStore trustStore = SecurityUtils.getJavaKeyStore();
+      trustStore.load(null, null);
+      SecurityUtils.loadKeyStoreFromCertificates(
+          trustStore, SecurityUtils.getX509CertificateFactory(), certificateStream);
+      return trustCertificates(trustStore);
+    }
+
+    /**
+     * Sets the SSL context based on a root certificate trust store.
+     *
+     * <p>
+     * The SSL context is the one of the TLS context shared with the other transports that trust the
+     * same certificates, as returned by {@link SslUtils#getSharedTlsContext}.
+     * </p>
+     *
+     * @param trustStore certificate trust store (use for example {@link SecurityUtils#loadKeyStore}
+     *        or {@link SecurityUtils#loadKeyStoreFromCertificates})
+     */
+    public Builder trustCertificates(KeyStore trustStore) throws GeneralSecurityException {
+      return setSharedTlsContext(SslUtils.getSharedTlsContext(trustStore));
+    }
+
+    /**
+     * Sets the SSL context of a shared TLS context, so that TLS sessions are resumed across the
+     * transports using the same context.
+     *
+     * <p>
+     * Handshakes of this transport use {@link javax.net.ssl.SSLEngine} and aren't counted in the
+     * {@link SharedTlsContext#getStats() statistics} of the shared context.
+     * </p>
+     */
+    public Builder setSharedTlsContext(SharedTlsContext tlsContext) {
+      return setSslContext(tlsContext.getSslContext());
+    }
+
+    /**
+     * Disables validating server SSL certificates by setting the SSL context using
+     * {@link SslUtils#trustAllSSLContext()} and {@link SslUtils#trustAllHostnameVerifier()} for
+     * the host name verifier.
+     *
+     * <p>
+     * Be careful! Disabling certificate validation is dangerous and should only be done in testing
+     * environments.
+     * </p>
+     */
+    public Builder doNotValidateCertificate() throws GeneralSecurityException {
+      hostnameVerifier = SslUtils.trustAllHostnameVerifier();
+      sslContext = SslUtils.trustAllSSLContext();
+      return this;
+    }
+
+    /** Returns the SSL context or {@code null} for the default. */
+    public SSLContext getSslContext() {
+      return sslContext;
+    }
+
+    /** Sets the SSL context or {@code null} for the default. */
+    public Builder setSslContext(SSLContext sslContext) {
+      this.sslContext = sslContext;
+      return this;
+    }
+
+    /** Returns the host name verifier or {@code null} for the default. */
+    public HostnameVerifier getHostnameVerifier() {
+      return hostnameVerifier;
+    }
+
+    /**
+     * Sets the host name verifier or {@code null} for the default, which lets the SSL engine verify
+     * host names and requires Java 7 or higher.
+     */
+    public Builder setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+      this.hostnameVerifier = hostnameVerifier;
+      return this;
+    }
+
+    /** Returns whether HTTP/2 is offered with ALPN for {@code https} URLs. */
+    public boolean getHttp2Enabled() {
+      return http2Enabled;
+    }
+
+    /**
+     * Sets whether HTTP/2 is offered with ALPN for {@code https} URLs.
+     *
+     * <p>
+     * If the server selects HTTP/2, all requests to the same host and port are multiplexed as
+     * concurrent streams over that single connection. Otherwise, or if ALPN is not supported by
+     * the Java runtime (which requires Java 9 or higher or a backport), HTTP/1.1 is used.
+     * </p>
+     *
+     * <p>
+     * Default value is {@code false}.
+     * </p>
+     */
+    public Builder setHttp2Enabled(boolean http2Enabled) {
+      this.http2Enabled = http2Enabled;
+      return this;
+    }
+
+    /** Returns whether HTTP/2 is used with prior knowledge for {@code http} URLs. */
+    public boolean getHttp2PriorKnowledge() {
+      return http2PriorKnowledge;
+    }
+
+    /**
+     * Sets whether HTTP/2 is used with prior knowledge for {@code http} URLs (known as
+     * {@code h2c}), which requires that the server supports HTTP/2 over cleartext TCP.
+     *
+     * <p>
+     * Default value is {@code false}.
+     * </p>
+     */
+    public Builder setHttp2PriorKnowledge(boolean http2PriorKnowledge) {
+      this.http2PriorKnowledge = http2PriorKnowledge;
+      return this;
+    }
+
+    /** Returns the maximum number of concurrent HTTP/2 streams per connection. */
+    public int getMaxConcurrentStreams() {
+      return maxConcurrentStreams;
+    }
+
+    /**
+     * Sets the maximum number of concurrent HTTP/2 streams per connection.
+     *
+     * <p>
+     * The server may impose a lower limit. Requests beyond the limit wait until a stream completes.
+     * Default value is {@code 100}.
+     * </p>
+     */
+    public Builder setMaxConcurrentStreams(int maxConcurrentStreams) {
+      Preconditions.checkArgument(maxConcurrentStreams > 0);
+      this.maxConcurrentStreams = maxConcurrentStreams;
+      return this;
+    }
+
+    /** Returns a new instance of {@link NioHttpTransport} based on the options. */
+    public NioHttpTransport build() {
+      return new NioHttpTransport(this);
+    }
+  }
+}
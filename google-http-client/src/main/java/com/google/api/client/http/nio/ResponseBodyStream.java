@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+
+/**
+ * Blocking input stream of a response body fed by the selector loop thread, which is also a
+ * readable byte channel that copies the received bytes directly into the given byte buffers.
+ *
+ * <p>
+ * The selector loop pauses reading from the connection once {@link #buffered()} reaches a high
+ * water mark and calls {@link #pause()}. The stream then asks its {@link Listener} to resume once
+ * the reader has consumed enough of the buffered bytes.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ */
+final class ResponseBodyStream extends InputStream implements ReadableByteChannel {
+
+  /** Listener notified from the reading thread. */
+  interface Listener {
+
+    /** Called once the buffered bytes dropped below the low water mark after a pause. */
+    void resume(ResponseBodyStream stream);
+
+    /** Called when the stream is closed before the body has been completely received. */
+    void abort(ResponseBodyStream stream);
+  }
+
+  /** Number of buffered bytes below which reading is resumed after a pause. */
+  static final int LOW_WATER_MARK = 64 * 1024;
+
+  /** Number of buffered bytes at which reading is paused. */
+  static final int HIGH_WATER_MARK = 256 * 1024;
+
+  /** Listener or {@code null} for none. */
+  private final Listener listener;
+
+  /** Received chunks not yet read. */
+  private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+
+  /** Read offset in the first chunk. */
+  private int offset;
+
+  /** Number of buffered bytes not yet read. */
+  private int buffered;
+
+  /** Whether the whole body has been received. */
+  private boolean complete;
+
+  /** Failure or {@code null} for none. */
+  private IOException failure;
+
+  /** Whether the stream has been closed. */
+  private boolean closed;
+
+  /** Whether reading from the connection has been paused. */
+  private boolean paused;
+
+  /**
+   * @param listener listener or {@code null} for none
+   */
+  ResponseBodyStream(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Adds received bytes. */
+  synchronized void offer(byte[] data) {
+    if (!closed && data.length > 0) {
+      chunks.add(data);
+      buffered += data.length;
+      notifyAll();
+    }
+  }
+
+  /** Marks the body as completely received. */
+  synchronized void finish() {
+    complete = true;
+    notifyAll();
+  }
+
+  /** Fails the stream with the given exception unless it has been completely received. */
+  synchronized void fail(IOException exception) {
+    if (!complete && failure == null) {
+      failure = exception;
+      notifyAll();
+    }
+  }
+
+  /** Returns the number of buffered bytes not yet read. */
+  synchronized int buffered() {
+    return buffered;
+  }
+
+  /** Returns whether the body has been completely received. */
+  synchronized boolean isComplete() {
+    return complete;
+  }
+
+  /** Records that reading from the connection has been paused. */
+  synchronized void pause() {
+    paused = true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int count = read(b, 0, 1);
+    return count == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    return read(b, off, len, null);
+  }
+
+  public int read(ByteBuffer dst) throws IOException {
+    return read(null, 0, dst.remaining(), dst);
+  }
+
+  public synchronized boolean isOpen() {
+    return !closed;
+  }
+
+  /**
+   * Reads up to the given number of bytes into the given array or else into the given buffer,
+   * blocking until at least one byte is available.
+   */
+  private int read(byte[] b, int off, int len, ByteBuffer dst) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    boolean resume;
+    int count;
+    synchronized (this) {
+      while (buffered == 0) {
+        if (closed) {
+          throw new IOException("stream closed");
+        }
+        if (failure != null) {
+          IOException exception = new IOException(failure.getMessage());
+          exception.initCause(failure);
+          throw exception;
+        }
+        if (complete) {
+          return -1;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      count = 0;
+      while (count < len && !chunks.isEmpty()) {
+        byte[] chunk = chunks.getFirst();
+        int n = Math.min(len - count, chunk.length - offset);
+        if (dst == null) {
+          System.arraycopy(chunk, offset, b, off + count, n);
+        } else {
+          dst.put(chunk, offset, n);
+        }
+        count += n;
+        offset += n;
+        if (offset == chunk.length) {
+          chunks.removeFirst();
+          offset = 0;
+        }
+      }
+      buffered -= count;
+      resume = paused && buffered <= LOW_WATER_MARK;
+      if (resume) {
+        paused = false;
+      }
+    }
+    if (resume && listener != null) {
+      listener.resume(this);
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized int available() {
+    return buffered;
+  }
+
+  @Override
+  public void close() {
+    boolean abort;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      abort = !complete && failure == null;
+      chunks.clear();
+      buffered = 0;
+      notifyAll();
+    }
+    if (abort && listener != null) {
+      listener.abort(this);
+    }
+  }
+}
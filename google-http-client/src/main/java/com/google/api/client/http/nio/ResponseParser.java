@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Incremental parser of HTTP/1.x response messages fed with buffers as they are read from the
+ * network.
+ *
+ * <p>
+ * Informational ({@code 1xx}) responses are skipped. The parser stops at the end of the message so
+ * that any unconsumed bytes remain in the buffer.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ */
+final class ResponseParser {
+
+  /** Maximum length of the status line or of a header line. */
+  static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  /** Listener of the parsed response. */
+  interface Listener {
+
+    /**
+     * Called when the response head has been parsed.
+     *
+     * @param hasBody whether the response has a message body
+     */
+    void onResponseHead(ResponseHead head, boolean hasBody) throws IOException;
+
+    /** Called with the next bytes of the message body, valid only until the method returns. */
+    void onResponseBody(ByteBuffer data) throws IOException;
+
+    /**
+     * Called once the response message is complete.
+     *
+     * @param keepAlive whether the connection may be reused for another request
+     */
+    void onResponseComplete(boolean keepAlive) throws IOException;
+  }
+
+  /** Parsed status line and headers of a response. */
+  static final class ResponseHead {
+
+    /** HTTP version, for example {@code "HTTP/1.1"}. */
+    final String version;
+
+    /** Status code. */
+    final int statusCode;
+
+    /** Reason phrase or {@code null} for none. */
+    final String reasonPhrase;
+
+    /** Status line. */
+    final String statusLine;
+
+    /** Header names. */
+    final List<String> headerNames = new ArrayList<String>();
+
+    /** Header values. */
+    final List<String> headerValues = new ArrayList<String>();
+
+    ResponseHead(String version, int statusCode, String reasonPhrase, String statusLine) {
+      this.version = version;
+      this.statusCode = statusCode;
+      this.reasonPhrase = reasonPhrase;
+      this.statusLine = statusLine;
+    }
+
+    /** Returns the value of the first header of the given name (case-insensitive) or {@code null}. */
+    String getHeaderValue(String name) {
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (headerNames.get(i).equalsIgnoreCase(name)) {
+          return headerValues.get(i);
+        }
+      }
+      return null;
+    }
+
+    /** Returns whether any header of the given name contains the given comma-separated token. */
+    boolean hasHeaderToken(String name, String token) {
+      for (int i = 0; i < headerNames.size(); i++) {
+        if (headerNames.get(i).equalsIgnoreCase(name)) {
+          for (String part : headerValues.get(i).split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+              return true;
+            }
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /** Parser state. */
+  private enum State {
+    STATUS_LINE, HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, BODY_UNTIL_CLOSE,
+    DONE
+  }
+
+  /** Listener. */
+  private final Listener listener;
+
+  /** Current state. */
+  private State state = State.DONE;
+
+  /** Whether the request method was {@code HEAD}. */
+  private boolean headRequest;
+
+  /** Current line being read. */
+  private final StringBuilder line = new StringBuilder();
+
+  /** Whether the current line is complete and must be cleared before reading the next line. */
+  private boolean lineComplete;
+
+  /** Response head being parsed. */
+  private ResponseHead head;
+
+  /** Remaining bytes of the fixed-length body or current chunk. */
+  private long remaining;
+
+  /** Whether the connection may be reused after the message. */
+  private boolean keepAlive;
+
+  ResponseParser(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Resets the parser to expect the response to a new request.
+   *
+   * @param requestMethod HTTP request method
+   */
+  void reset(String requestMethod) {
+    state = State.STATUS_LINE;
+    headRequest = "HEAD".equals(requestMethod);
+    line.setLength(0);
+    lineComplete = false;
+    head = null;
+  }
+
+  /** Returns whether the parser has completed the response message. */
+  boolean isDone() {
+    return state == State.DONE;
+  }
+
+  /**
+   * Parses the bytes of the given buffer until it is fully consumed or the message is complete.
+   */
+  void parse(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining() && state != State.DONE) {
+      switch (state) {
+        case STATUS_LINE:
+          if (readLine(buffer)) {
+            parseStatusLine();
+          }
+          break;
+        case HEADERS:
+          if (readLine(buffer)) {
+            parseHeaderLine();
+          }
+          break;
+        case FIXED_BODY:
+        case CHUNK_DATA:
+          int count = (int) Math.min(remaining, buffer.remaining());
+          int limit = buffer.limit();
+          buffer.limit(buffer.position() + count);
+          listener.onResponseBody(buffer);
+          buffer.position(buffer.limit());
+          buffer.limit(limit);
+          remaining -= count;
+          if (remaining == 0) {
+            if (state == State.FIXED_BODY) {
+              complete();
+            } else {
+              state = State.CHUNK_END;
+            }
+          }
+          break;
+        case CHUNK_SIZE:
+          if (readLine(buffer)) {
+            parseChunkSize();
+          }
+          break;
+        case CHUNK_END:
+          if (readLine(buffer)) {
+            if (line.length() != 0) {
+              throw new IOException("invalid chunk terminator");
+            }
+            state = State.CHUNK_SIZE;
+          }
+          break;
+        case TRAILERS:
+          if (readLine(buffer) && line.length() == 0) {
+            complete();
+          }
+          break;
+        case BODY_UNTIL_CLOSE:
+          listener.onResponseBody(buffer);
+          buffer.position(buffer.limit());
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+    }
+  }
+
+  /** Handles the end of the input stream. */
+  void endOfInput() throws IOException {
+    if (state == State.BODY_UNTIL_CLOSE) {
+      keepAlive = false;
+      complete();
+    } else if (state != State.DONE) {
+      throw new IOException("unexpected end of stream");
+    }
+  }
+
+  /**
+   * Reads bytes into the current line until the end of the line, which is stripped.
+   *
+   * @return whether the line is complete
+   */
+  private boolean readLine(ByteBuffer buffer) throws IOException {
+    if (lineComplete) {
+      line.setLength(0);
+      lineComplete = false;
+    }
+    while (buffer.hasRemaining()) {
+      char c = (char) (buffer.get() & 0xff);
+      if (c == '\n') {
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+          line.setLength(length - 1);
+        }
+        lineComplete = true;
+        return true;
+      }
+      if (line.length() >= MAX_LINE_LENGTH) {
+        throw new IOException("line too long");
+      }
+      line.append(c);
+    }
+    return false;
+  }
+
+  private void parseStatusLine() throws IOException {
+    String statusLine = line.toString();
+    if (statusLine.length() == 0) {
+      // tolerate empty lines before the status line
+      return;
+    }
+    int firstSpace = statusLine.indexOf(' ');
+    if (firstSpace <= 0 || !statusLine.startsWith("HTTP/")) {
+      throw new IOException("invalid status line: " + statusLine);
+    }
+    int secondSpace = statusLine.indexOf(' ', firstSpace + 1);
+    String code =
+        secondSpace == -1 ? statusLine.substring(firstSpace + 1)
+            : statusLine.substring(firstSpace + 1, secondSpace);
+    int statusCode;
+    try {
+      statusCode = Integer.parseInt(code);
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid status line: " + statusLine);
+    }
+    String reasonPhrase = secondSpace == -1 ? null : statusLine.substring(secondSpace + 1);
+    head = new ResponseHead(
+        statusLine.substring(0, firstSpace), statusCode, reasonPhrase, statusLine);
+    state = State.HEADERS;
+  }
+
+  private void parseHeaderLine() throws IOException {
+    String headerLine = line.toString();
+    if (headerLine.length() == 0) {
+      headersComplete();
+      return;
+    }
+    char first = headerLine.charAt(0);
+    if ((first == ' ' || first == '\t') && !head.headerValues.isEmpty()) {
+      // obsolete line folding
+      int last = head.headerValues.size() - 1;
+      head.headerValues.set(last, head.headerValues.get(last) + ' ' + headerLine.trim());
+      return;
+    }
+    int colon = headerLine.indexOf(':');
+    if (colon <= 0) {
+      throw new IOException("invalid header line: " + headerLine);
+    }
+    head.headerNames.add(headerLine.substring(0, colon).trim());
+    head.headerValues.add(headerLine.substring(colon + 1).trim());
+  }
+
+  private void headersComplete() throws IOException {
+    int statusCode = head.statusCode;
+    if (statusCode / 100 == 1) {
+      // skip informational responses
+      head = null;
+      state = State.STATUS_LINE;
+      return;
+    }
+    if ("HTTP/1.0".equals(head.version)) {
+      keepAlive = head.hasHeaderToken("Connection", "keep-alive");
+    } else {
+      keepAlive = !head.hasHeaderToken("Connection", "close");
+    }
+    boolean hasBody = !headRequest && statusCode != 204 && statusCode != 304;
+    if (!hasBody) {
+      listener.onResponseHead(head, false);
+      complete();
+    } else if (head.getHeaderValue("Transfer-Encoding") != null) {
+      if (!head.hasHeaderToken("Transfer-Encoding", "chunked")) {
+        throw new IOException("unsupported transfer encoding");
+      }
+      listener.onResponseHead(head, true);
+      state = State.CHUNK_SIZE;
+    } else if (head.getHeaderValue("Content-Length") != null) {
+      try {
+        remaining = Long.parseLong(head.getHeaderValue("Content-Length"));
+      } catch (NumberFormatException e) {
+        throw new IOException("invalid content length");
+      }
+      if (remaining < 0) {
+        throw new IOException("invalid content length");
+      }
+      listener.onResponseHead(head, remaining > 0);
+      if (remaining == 0) {
+        complete();
+      } else {
+        state = State.FIXED_BODY;
+      }
+    } else {
+      listener.onResponseHead(head, true);
+      state = State.BODY_UNTIL_CLOSE;
+    }
+  }
+
+  private void parseChunkSize() throws IOException {
+    String chunkLine = line.toString();
+    int extension = chunkLine.indexOf(';');
+    if (extension != -1) {
+      chunkLine = chunkLine.substring(0, extension);
+    }
+    try {
+      remaining = Long.parseLong(chunkLine.trim(), 16);
+    } catch (NumberFormatException e) {
+      throw new IOException("invalid chunk size: " + chunkLine);
+    }
+    if (remaining < 0) {
+      throw new IOException("invalid chunk size: " + chunkLine);
+    }
+    state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+  }
+
+  private void complete() throws IOException {
+    state = State.DONE;
+    head = null;
+    listener.onResponseComplete(keepAlive);
+  }
+}
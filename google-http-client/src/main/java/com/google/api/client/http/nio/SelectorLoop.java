@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Single selector thread that multiplexes the I/O of many non-blocking channels.
+ *
+ * <p>
+ * All channel I/O and all state of the registered {@link Handler}s is confined to the loop thread.
+ * Other threads interact with the loop through {@link #execute(Runnable)}.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ */
+final class SelectorLoop implements Runnable {
+
+  static final Logger LOGGER = Logger.getLogger(SelectorLoop.class.getName());
+
+  /** Handler of the I/O events of a registered channel, only ever called on the loop thread. */
+  interface Handler {
+
+    /** Handles the ready operations of the given selection key. */
+    void handleSelect(SelectionKey key);
+
+    /** Closes the handler because the loop is shutting down. */
+    void shutdown();
+  }
+
+  /** Task scheduled to run on the loop thread at a given time. */
+  final class Timer implements Comparable<Timer> {
+
+    /** Deadline in nanoseconds as specified by {@link System#nanoTime()}. */
+    final long deadlineNanos;
+
+    /** Task to run. */
+    final Runnable task;
+
+    /** Whether the timer has been cancelled. */
+    boolean cancelled;
+
+    Timer(long deadlineNanos, Runnable task) {
+      this.deadlineNanos = deadlineNanos;
+      this.task = task;
+    }
+
+    /** Cancels the timer, which must be called on the loop thread. */
+    void cancel() {
+      cancelled = true;
+    }
+
+    public int compareTo(Timer other) {
+      long delta = deadlineNanos - other.deadlineNanos;
+      return delta < 0 ? -1 : delta > 0 ? 1 : 0;
+    }
+  }
+
+  /** Selector. */
+  private final Selector selector;
+
+  /** Loop thread. */
+  private final Thread thread;
+
+  /** Tasks submitted from any thread to be run on the loop thread. */
+  private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+  /** Whether a wake up of the selector is pending. */
+  private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+  /** Timers ordered by deadline, only accessed on the loop thread. */
+  private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+  /** Whether {@link #shutdown()} has been called. */
+  private volatile boolean shutdown;
+
+  /**
+   * @param name name of the loop thread
+   */
+  SelectorLoop(String name) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Returns the selector, which must only be used on the loop thread. */
+  Selector selector() {
+    return selector;
+  }
+
+  /** Returns whether the current thread is the loop thread. */
+  boolean inLoop() {
+    return Thread.currentThread() == thread;
+  }
+
+  /**
+   * Runs the given task on the loop thread.
+   *
+   * @throws IllegalStateException if the loop has been shut down
+   */
+  void execute(Runnable task) {
+    if (shutdown) {
+      throw new IllegalStateException("transport has been shut down");
+    }
+    tasks.add(task);
+    if (!inLoop() && wakeupPending.compareAndSet(false, true)) {
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Schedules the given task to run on the loop thread after the given delay, which must be called
+   * on the loop thread.
+   */
+  Timer schedule(Runnable task, long delayMillis) {
+    Timer timer = new Timer(System.nanoTime() + delayMillis * 1000000L, task);
+    timers.add(timer);
+    return timer;
+  }
+
+  /** Stops the loop, closing all registered handlers. */
+  void shutdown() {
+    shutdown = true;
+    selector.wakeup();
+  }
+
+  public void run() {
+    try {
+      while (!shutdown) {
+        runTasks();
+        long timeoutMillis = runTimers();
+        if (!tasks.isEmpty()) {
+          selector.selectNow();
+        } else {
+          selector.select(timeoutMillis);
+        }
+        wakeupPending.set(false);
+        Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+        while (iterator.hasNext()) {
+          SelectionKey key = iterator.next();
+          iterator.remove();
+          try {
+            ((Handler) key.attachment()).handleSelect(key);
+          } catch (CancelledKeyException e) {
+            // channel was closed while handling another event
+          } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "exception thrown while handling I/O event", e);
+          }
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.SEVERE, "selector failed", e);
+    } catch (ClosedSelectorException e) {
+      // closed below
+    } finally {
+      shutdown = true;
+      closeAll();
+    }
+  }
+
+  /** Runs the submitted tasks. */
+  private void runTasks() {
+    Runnable task;
+    while ((task = tasks.poll()) != null) {
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "exception thrown while running task", e);
+      }
+    }
+  }
+
+  /**
+   * Runs the expired timers and returns the number of milliseconds until the next timer expires or
+   * {@code 0} for none.
+   */
+  private long runTimers() {
+    while (true) {
+      Timer timer = timers.peek();
+      if (timer == null) {
+        return 0;
+      }
+      if (timer.cancelled) {
+        timers.poll();
+        continue;
+      }
+      long remainingNanos = timer.deadlineNanos - System.nanoTime();
+      if (remainingNanos > 0) {
+        // round up so that the timer has expired when the selector returns
+        return remainingNanos / 1000000L + 1;
+      }
+      timers.poll();
+      try {
+        timer.task.run();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "exception thrown while running timer", e);
+      }
+    }
+  }
+
+  /** Shuts down all registered handlers and closes the selector. */
+  private void closeAll() {
+    List<Handler> handlers = new ArrayList<Handler>();
+    try {
+      for (SelectionKey key : selector.keys()) {
+        handlers.add((Handler) key.attachment());
+      }
+    } catch (ClosedSelectorException e) {
+      // no handlers left
+    }
+    for (Handler handler : handlers) {
+      try {
+        handler.shutdown();
+      } catch (RuntimeException e) {
+        LOGGER.log(Level.WARNING, "exception thrown while shutting down", e);
+      }
+    }
+    // fail tasks that were submitted concurrently with the shutdown
+    runTasks();
+    try {
+      selector.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "exception thrown while closing selector", e);
+    }
+  }
+}
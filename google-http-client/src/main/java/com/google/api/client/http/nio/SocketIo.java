@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Non-blocking byte I/O on top of a connected socket channel, optionally secured with TLS.
+ *
+ * <p>
+ * Implementation is not thread-safe and must only be used on the selector loop thread.
+ * </p>
+ */
+abstract class SocketIo {
+
+  /** Socket channel. */
+  final SocketChannel channel;
+
+  SocketIo(SocketChannel channel) {
+    this.channel = channel;
+  }
+
+  /**
+   * Continues the connection setup (for example a TLS handshake) as far as possible without
+   * blocking.
+   *
+   * @return whether the connection is ready for application data
+   */
+  abstract boolean handshake() throws IOException;
+
+  /**
+   * Returns the selection key interest operations needed to continue the connection setup after
+   * {@link #handshake()} returned {@code false}.
+   */
+  abstract int handshakeInterestOps();
+
+  /**
+   * Reads application data into the given buffer without blocking.
+   *
+   * @return number of bytes read, possibly {@code 0}, or {@code -1} for the end of the stream
+   */
+  abstract int read(ByteBuffer dst) throws IOException;
+
+  /**
+   * Writes as much of the given application data as possible without blocking.
+   *
+   * @return whether all of the data has been fully written to the socket
+   */
+  abstract boolean write(ByteBuffer src) throws IOException;
+
+  /**
+   * Writes as much of the given application data buffers, in order, as possible without blocking.
+   *
+   * @return whether all of the data has been fully written to the socket
+   */
+  boolean write(ByteBuffer[] srcs) throws IOException {
+    for (ByteBuffer src : srcs) {
+      if (!write(src)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns whether any of the given buffers has remaining bytes. */
+  static boolean hasRemaining(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      if (buffer.hasRemaining()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the application protocol negotiated during the connection setup, for example
+   * {@code "h2"}, or {@code null} for none.
+   */
+  String applicationProtocol() {
+    return null;
+  }
+
+  /**
+   * Returns whether application data may be available to {@link #read} without the channel being
+   * readable.
+   */
+  boolean hasBufferedInput() {
+    return false;
+  }
+
+  /** Closes the channel. */
+  void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /** Plain socket I/O without any transport security. */
+  static final class Plain extends SocketIo {
+
+    Plain(SocketChannel channel) {
+      super(channel);
+    }
+
+    @Override
+    boolean handshake() {
+      return true;
+    }
+
+    @Override
+    int handshakeInterestOps() {
+      return SelectionKey.OP_READ;
+    }
+
+    @Override
+    int read(ByteBuffer dst) throws IOException {
+      return channel.read(dst);
+    }
+
+    @Override
+    boolean write(ByteBuffer src) throws IOException {
+      channel.write(src);
+      return !src.hasRemaining();
+    }
+
+    @Override
+    boolean write(ByteBuffer[] srcs) throws IOException {
+      // gathering write of all of the buffers at once
+      channel.write(srcs);
+      return !hasRemaining(srcs);
+    }
+  }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Socket I/O secured with TLS using a non-blocking {@link SSLEngine}.
+ *
+ * <p>
+ * Delegated tasks of the SSL engine are run inline on the selector loop thread.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe and must only be used on the selector loop thread.
+ * </p>
+ */
+final class TlsSocketIo extends SocketIo {
+
+  /** Empty buffer used to wrap handshake messages. */
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  /** SSL engine. */
+  private final SSLEngine engine;
+
+  /** Host name of the server. */
+  private final String host;
+
+  /** Host name verifier or {@code null} if verified by the SSL engine. */
+  private final HostnameVerifier hostnameVerifier;
+
+  /** Encrypted bytes read from the channel, in write mode. */
+  private ByteBuffer netIn;
+
+  /** Encrypted bytes to write to the channel, in write mode. */
+  private ByteBuffer netOut;
+
+  /** Decrypted bytes not yet read, in write mode. */
+  private ByteBuffer appIn;
+
+  /** Whether the handshake has been started. */
+  private boolean handshakeStarted;
+
+  /** Whether the end of the encrypted stream has been reached. */
+  private boolean inputClosed;
+
+  TlsSocketIo(SocketChannel channel, SSLEngine engine, String host,
+      HostnameVerifier hostnameVerifier) {
+    super(channel);
+    this.engine = engine;
+    this.host = host;
+    this.hostnameVerifier = hostnameVerifier;
+    int packetSize = engine.getSession().getPacketBufferSize();
+    netIn = ByteBuffer.allocate(packetSize);
+    netOut = ByteBuffer.allocate(packetSize);
+    appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+  }
+
+  /**
+   * Returns a new client SSL engine for the given server.
+   *
+   * <p>
+   * If no host name verifier is given, host name verification is delegated to the SSL engine,
+   * which requires Java 7 or higher. Application protocols are only offered with ALPN if supported
+   * by the SSL engine, which requires Java 9 or higher or a backport.
+   * </p>
+   *
+   * @param applicationProtocols application protocols to offer with ALPN in order of preference
+   *        or {@code null} for none
+   */
+  static SSLEngine newClientEngine(SSLContext sslContext, String host, int port,
+      HostnameVerifier hostnameVerifier, String[] applicationProtocols) throws IOException {
+    SSLEngine engine = sslContext.createSSLEngine(host, port);
+    engine.setUseClientMode(true);
+    if (hostnameVerifier != null && applicationProtocols == null) {
+      return engine;
+    }
+    // SSLParameters is only available since Java 6
+    Object parameters;
+    Method setParameters;
+    try {
+      Method getParameters = SSLEngine.class.getMethod("getSSLParameters");
+      parameters = getParameters.invoke(engine);
+      setParameters = SSLEngine.class.getMethod("setSSLParameters", getParameters.getReturnType());
+    } catch (Exception e) {
+      if (hostnameVerifier == null) {
+        throw newHostnameVerificationUnavailableException(e);
+      }
+      return engine;
+    }
+    if (hostnameVerifier == null) {
+      try {
+        parameters.getClass()
+            .getMethod("setEndpointIdentificationAlgorithm", String.class)
+            .invoke(parameters, "HTTPS");
+      } catch (Exception e) {
+        throw newHostnameVerificationUnavailableException(e);
+      }
+    }
+    if (applicationProtocols != null) {
+      try {
+        parameters.getClass()
+            .getMethod("setApplicationProtocols", String[].class)
+            .invoke(parameters, (Object) applicationProtocols);
+      } catch (Exception e) {
+        // ALPN is not supported, so the server will use HTTP/1.1
+      }
+    }
+    try {
+      setParameters.invoke(engine, parameters);
+    } catch (Exception e) {
+      SSLException exception = new SSLException("unable to set SSL parameters");
+      exception.initCause(e);
+      throw exception;
+    }
+    return engine;
+  }
+
+  private static SSLException newHostnameVerificationUnavailableException(Exception cause) {
+    SSLException exception =
+        new SSLException("host name verification unavailable, set a HostnameVerifier");
+    exception.initCause(cause);
+    return exception;
+  }
+
+  @Override
+  String applicationProtocol() {
+    // SSLEngine.getApplicationProtocol is only available since Java 9
+    try {
+      Object protocol = SSLEngine.class.getMethod("getApplicationProtocol").invoke(engine);
+      return protocol == null || "".equals(protocol) ? null : (String) protocol;
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  @Override
+  boolean handshake() throws IOException {
+    if (!handshakeStarted) {
+      engine.beginHandshake();
+      handshakeStarted = true;
+    }
+    while (true) {
+      if (!flush()) {
+        return false;
+      }
+      HandshakeStatus status = engine.getHandshakeStatus();
+      if (status == HandshakeStatus.FINISHED || status == HandshakeStatus.NOT_HANDSHAKING) {
+        verifyHostname();
+        return true;
+      } else if (status == HandshakeStatus.NEED_TASK) {
+        runDelegatedTasks();
+      } else if (status == HandshakeStatus.NEED_WRAP) {
+        wrap(EMPTY);
+      } else if (!unwrap()) {
+        if (inputClosed) {
+          throw new SSLException("connection closed during handshake");
+        }
+        return false;
+      }
+    }
+  }
+
+  @Override
+  int handshakeInterestOps() {
+    return netOut.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+  }
+
+  @Override
+  int read(ByteBuffer dst) throws IOException {
+    while (true) {
+      if (appIn.position() > 0) {
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        int limit = appIn.limit();
+        appIn.limit(appIn.position() + count);
+        dst.put(appIn);
+        appIn.limit(limit);
+        appIn.compact();
+        return count;
+      }
+      if (inputClosed) {
+        return -1;
+      }
+      if (!unwrap()) {
+        return inputClosed ? -1 : 0;
+      }
+      // handle post-handshake messages, for example a TLS 1.3 key update
+      HandshakeStatus status = engine.getHandshakeStatus();
+      if (status == HandshakeStatus.NEED_TASK) {
+        runDelegatedTasks();
+      } else if (status == HandshakeStatus.NEED_WRAP) {
+        wrap(EMPTY);
+        flush();
+      }
+    }
+  }
+
+  @Override
+  boolean write(ByteBuffer src) throws IOException {
+    while (flush()) {
+      if (!src.hasRemaining()) {
+        return true;
+      }
+      wrap(src);
+    }
+    return false;
+  }
+
+  @Override
+  boolean hasBufferedInput() {
+    return appIn.position() > 0 || netIn.position() > 0;
+  }
+
+  @Override
+  void close() {
+    engine.closeOutbound();
+    try {
+      wrap(EMPTY);
+      flush();
+    } catch (IOException e) {
+      // ignore
+    }
+    super.close();
+  }
+
+  /**
+   * Unwraps encrypted bytes, reading from the channel as needed.
+   *
+   * @return whether any progress was made or {@code false} if more bytes must be read from the
+   *         channel first
+   */
+  private boolean unwrap() throws IOException {
+    while (true) {
+      netIn.flip();
+      SSLEngineResult result;
+      try {
+        result = engine.unwrap(netIn, appIn);
+      } finally {
+        netIn.compact();
+      }
+      switch (result.getStatus()) {
+        case OK:
+        case BUFFER_UNDERFLOW:
+          if (result.getStatus() == SSLEngineResult.Status.OK
+              && (result.bytesConsumed() > 0 || result.bytesProduced() > 0)) {
+            return true;
+          }
+          if (!netIn.hasRemaining()) {
+            netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+          }
+          int read = channel.read(netIn);
+          if (read < 0) {
+            inputClosed = true;
+            try {
+              engine.closeInbound();
+            } catch (SSLException e) {
+              // truncated stream, reported by the caller as a premature end of stream
+            }
+            return false;
+          }
+          if (read == 0) {
+            return false;
+          }
+          break;
+        case BUFFER_OVERFLOW:
+          appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+          break;
+        default:
+          inputClosed = true;
+          return true;
+      }
+    }
+  }
+
+  /** Wraps application bytes (or handshake messages for an empty buffer) into a TLS record. */
+  private void wrap(ByteBuffer src) throws IOException {
+    while (true) {
+      SSLEngineResult result = engine.wrap(src, netOut);
+      switch (result.getStatus()) {
+        case BUFFER_OVERFLOW:
+          netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+          break;
+        case CLOSED:
+          if (src != EMPTY) {
+            throw new SSLException("SSL engine is closed");
+          }
+          return;
+        default:
+          return;
+      }
+    }
+  }
+
+  /**
+   * Writes the pending encrypted bytes to the channel.
+   *
+   * @return whether all pending bytes have been written
+   */
+  private boolean flush() throws IOException {
+    if (netOut.position() == 0) {
+      return true;
+    }
+    netOut.flip();
+    try {
+      channel.write(netOut);
+      return !netOut.hasRemaining();
+    } finally {
+      netOut.compact();
+    }
+  }
+
+  /** Runs the delegated tasks of the SSL engine. */
+  private void runDelegatedTasks() {
+    Runnable task;
+    while ((task = engine.getDelegatedTask()) != null) {
+      task.run();
+    }
+  }
+
+  /** Verifies the host name of the server if a host name verifier is set. */
+  private void verifyHostname() throws SSLPeerUnverifiedException {
+    if (hostnameVerifier != null && !hostnameVerifier.verify(host, engine.getSession())) {
+      throw new SSLPeerUnverifiedException("host name verification failed for " + host);
+    }
+  }
+
+  /** Returns a buffer with at least the given additional capacity and the same content. */
+  private static ByteBuffer enlarge(ByteBuffer buffer, int additional) {
+    ByteBuffer result = ByteBuffer.allocate(buffer.position() + Math.max(additional, 1024));
+    buffer.flip();
+    result.put(buffer);
+    return result;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link Beta} <br/>
+ * Pool of byte arrays of a fixed size, used as temporary buffers by I/O copy loops so that they
+ * don't allocate a new buffer for every copy.
+ *
+ * <p>
+ * A buffer is taken with {@link #acquire()} and should be returned with {@link #release(byte[])}
+ * once it is no longer used, typically in a {@code finally} block. A buffer that is not returned is
+ * simply garbage collected. At most {@link #getMaxPooledBuffers()} buffers are kept in the pool,
+ * and buffers of a different size are ignored on release.
+ * </p>
+ *
+ * <p>
+ * {@link #getDefault()} is used by {@link IOUtils#copy} and the library's internal copy loops,
+ * and {@link #getBulk()} provides larger buffers for bulk transfers such as downloads.
+ * </p>
+ *
+ * <p>
+ * Implementation is lock-free and thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class BufferPool {
+
+  /** Size of the buffers of the {@link #getDefault() default pool} in bytes. */
+  public static final int DEFAULT_BUFFER_SIZE = 0x1000; // 4K
+
+  /** Size of the buffers of the {@link #getBulk() bulk transfer pool} in bytes. */
+  public static final int BULK_BUFFER_SIZE = 0x10000; // 64K
+
+  private static final BufferPool DEFAULT = new BufferPool(DEFAULT_BUFFER_SIZE, 64);
+
+  private static final BufferPool BULK = new BufferPool(BULK_BUFFER_SIZE, 16);
+
+  private final int bufferSize;
+  private final int maxPooledBuffers;
+
+  /** Pooled buffers. */
+  private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+  /** Number of pooled buffers, which may briefly differ from the size of the queue. */
+  private final AtomicInteger pooledCount = new AtomicInteger();
+
+  /**
+   * @param bufferSize size of the buffers in bytes
+   * @param maxPooledBuffers maximum number of buffers kept in the pool
+   */
+  public BufferPool(int bufferSize, int maxPooledBuffers) {
+    Preconditions.checkArgument(bufferSize > 0, "bufferSize must be positive");
+    Preconditions.checkArgument(maxPooledBuffers >= 0, "maxPooledBuffers must be non-negative");
+    this.bufferSize = bufferSize;
+    this.maxPooledBuffers = maxPooledBuffers;
+  }
+
+  /** Returns the default pool of {@link #DEFAULT_BUFFER_SIZE} byte buffers. */
+  public static BufferPool getDefault() {
+    return DEFAULT;
+  }
+
+  /** Returns the pool of {@link #BULK_BUFFER_SIZE} byte buffers for bulk transfers. */
+  public static BufferPool getBulk() {
+    return BULK;
+  }
+
+  /** Returns the size of the buffers in bytes. */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Returns the maximum number of buffers kept in the pool. */
+  public int getMaxPooledBuffers() {
+    return maxPooledBuffers;
+  }
+
+  /** Returns the number of buffers currently in the pool. */
+  public int getPooledCount() {
+    return Math.max(0, pooledCount.get());
+  }
+
+  /** Returns a buffer from the pool, or a new buffer if the pool is empty. */
+  public byte[] acquire() {
+    byte[] buffer = buffers.poll();
+    if (buffer == null) {
+      return new byte[bufferSize];
+    }
+    pooledCount.decrementAndGet();
+    return buffer;
+  }
+
+  /**
+   * Returns the given buffer to the pool, unless the pool is full or the buffer has a different
+   * size.
+   *
+   * <p>
+   * The buffer must not be used by the caller anymore.
+   * </p>
+   *
+   * @param buffer buffer or {@code null} to ignore
+   */
+  public void release(byte[] buffer) {
+    if (buffer == null || buffer.length != bufferSize) {
+      return;
+    }
+    if (pooledCount.incrementAndGet() <= maxPooledBuffers) {
+      buffers.offer(buffer);
+    } else {
+      pooledCount.decrementAndGet();
+    }
+  }
+}
@@ -32,30 +32,54 @@ import java.io.OutputStream;
  */
 public final class ByteStreams {
 
-  private static final int BUF_SIZE = 0x1000; // 4K
-
   /**
    * Copies all bytes from the input stream to the output stream. Does not close or flush either
    * stream.
    *
+   * <p>
+   * The copy buffer is drawn from the {@link BufferPool#getDefault() default buffer pool}.
+   * </p>
+   *
    * @param from the input stream to read from
    * @param to the output stream to write to
    * @return the number of bytes copied
    */
   public static long copy(InputStream from, OutputStream to) throws IOException {
+    return copy(from, to, BufferPool.getDefault());
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Copies all bytes from the input stream to the output stream using a copy buffer drawn from the
+   * given buffer pool. Does not close or flush either stream.
+   *
+   * @param from the input stream to read from
+   * @param to the output stream to write to
+   * @param bufferPool pool of the copy buffer, for example {@link BufferPool#getBulk()} for bulk
+   *        transfers
+   * @return the number of bytes copied
+   * @since 1.23
+   */
+  @Beta
+  public static long copy(InputStream from, OutputStream to, BufferPool bufferPool)
+      throws IOException {
     Preconditions.checkNotNull(from);
     Preconditions.checkNotNull(to);
-    byte[] buf = new byte[BUF_SIZE];
-    long total = 0;
-    while (true) {
-      int r = from.read(buf);
-      if (r == -1) {
-        break;
+    byte[] buf = bufferPool.acquire();
+    try {
+      long total = 0;
+      while (true) {
+        int r = from.read(buf);
+        if (r == -1) {
+          break;
+        }
+        to.write(buf, 0, r);
+        total += r;
       }
-      to.write(buf, 0, r);
-      total += r;
+      return total;
+    } finally {
+      bufferPool.release(buf);
     }
-    return total;
   }
 
   /**
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import java.io.IOException;
+
+/**
+ * {@link Beta} <br/>
+ * Implementation of {@link BackOff} with decorrelated jitter, where each back off period is drawn
+ * at random between the base interval and three times the previous back off period.
+ *
+ * <p>
+ * {@link #nextBackOffMillis()} is calculated using the following formula:
+ * </p>
+ *
+ * <pre>
+   interval = min(max_interval, random value in range [base_interval, 3 * previous_interval])
+ * </pre>
+ *
+ * <p>
+ * Unlike {@link ExponentialBackOff}, whose randomized intervals stay centered around a common
+ * exponential sequence, each interval depends on the random previous one. Clients that started to
+ * retry at the same time therefore drift apart quickly instead of retrying in synchronized waves,
+ * while the intervals still grow exponentially on average.
+ * </p>
+ *
+ * <p>
+ * If the time elapsed since a {@link DecorrelatedJitterBackOff} instance is created goes past the
+ * max_elapsed_time then the method {@link #nextBackOffMillis()} starts returning
+ * {@link BackOff#STOP}. The elapsed time can be reset by calling {@link #reset()}.
+ * </p>
+ *
+ * <p>
+ * Implementation is not thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public class DecorrelatedJitterBackOff implements BackOff {
+
+  /** The default base interval value in milliseconds (0.5 seconds). */
+  public static final int DEFAULT_BASE_INTERVAL_MILLIS = 500;
+
+  /** The default maximum back off time in milliseconds (1 minute). */
+  public static final int DEFAULT_MAX_INTERVAL_MILLIS = 60000;
+
+  /** The default maximum elapsed time in milliseconds (15 minutes). */
+  public static final int DEFAULT_MAX_ELAPSED_TIME_MILLIS = 900000;
+
+  /** The base interval in milliseconds, which is the minimum back off period. */
+  private final int baseIntervalMillis;
+
+  /** The maximum value of the back off period in milliseconds. */
+  private final int maxIntervalMillis;
+
+  /**
+   * The maximum elapsed time after instantiating {@link DecorrelatedJitterBackOff} or calling
+   * {@link #reset()} after which {@link #nextBackOffMillis()} returns {@link BackOff#STOP}.
+   */
+  private final int maxElapsedTimeMillis;
+
+  /** Nano clock. */
+  private final NanoClock nanoClock;
+
+  /** The previous back off period in milliseconds, or the base interval initially. */
+  private long previousIntervalMillis;
+
+  /** The system time in nanoseconds when the instance was created or last reset. */
+  private long startTimeNanos;
+
+  /** Creates an instance using default values. To override the defaults use {@link Builder}. */
+  public DecorrelatedJitterBackOff() {
+    this(new Builder());
+  }
+
+  /**
+   * @param builder builder
+   */
+  protected DecorrelatedJitterBackOff(Builder builder) {
+    baseIntervalMillis = builder.baseIntervalMillis;
+    maxIntervalMillis = builder.maxIntervalMillis;
+    maxElapsedTimeMillis = builder.maxElapsedTimeMillis;
+    nanoClock = builder.nanoClock;
+    Preconditions.checkArgument(baseIntervalMillis > 0);
+    Preconditions.checkArgument(maxIntervalMillis >= baseIntervalMillis);
+    Preconditions.checkArgument(maxElapsedTimeMillis > 0);
+    reset();
+  }
+
+  /** Sets the previous interval back to the base interval and restarts the timer. */
+  public final void reset() {
+    previousIntervalMillis = baseIntervalMillis;
+    startTimeNanos = nanoClock.nanoTime();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>
+   * This method calculates the next back off interval using the formula: interval =
+   * min(max_interval, random value in range [base_interval, 3 * previous_interval])
+   * </p>
+   */
+  public long nextBackOffMillis() throws IOException {
+    if (getElapsedTimeMillis() > maxElapsedTimeMillis) {
+      return STOP;
+    }
+    previousIntervalMillis = getNextInterval(
+        baseIntervalMillis, previousIntervalMillis, maxIntervalMillis, Math.random());
+    return previousIntervalMillis;
+  }
+
+  /**
+   * Returns the value for the given random value in [0, 1) from the interval [baseInterval,
+   * 3 * previousInterval], capped to the maximum interval.
+   */
+  static long getNextInterval(
+      int baseIntervalMillis, long previousIntervalMillis, int maxIntervalMillis, double random) {
+    long upperInterval = Math.max(baseIntervalMillis, 3 * previousIntervalMillis);
+    long randomValue =
+        baseIntervalMillis + (long) (random * (upperInterval - baseIntervalMillis + 1));
+    return Math.min(maxIntervalMillis, randomValue);
+  }
+
+  /** Returns the base interval in milliseconds. */
+  public final int getBaseIntervalMillis() {
+    return baseIntervalMillis;
+  }
+
+  /** Returns the maximum value of the back off period in milliseconds. */
+  public final int getMaxIntervalMillis() {
+    return maxIntervalMillis;
+  }
+
+  /** Returns the maximum elapsed time in milliseconds. */
+  public final int getMaxElapsedTimeMillis() {
+    return maxElapsedTimeMillis;
+  }
+
+  /**
+   * Returns the elapsed time in milliseconds since the instance was created or last reset.
+   */
+  public final long getElapsedTimeMillis() {
+    return (nanoClock.nanoTime() - startTimeNanos) / 1000000;
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Builder for {@link DecorrelatedJitterBackOff}.
+   *
+   * <p>
+   * Implementation is not thread-safe.
+   * </p>
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static class Builder {
+
+    /** The base interval in milliseconds. */
+    int baseIntervalMillis = DEFAULT_BASE_INTERVAL_MILLIS;
+
+    /** The maximum value of the back off period in milliseconds. */
+    int maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+
+    /** The maximum elapsed time in milliseconds. */
+    int maxElapsedTimeMillis = DEFAULT_MAX_ELAPSED_TIME_MILLIS;
+
+    /** Nano clock. */
+    NanoClock nanoClock = NanoClock.SYSTEM;
+
+    public Builder() {
+    }
+
+    /** Builds a new instance of {@link DecorrelatedJitterBackOff}. */
+    public DecorrelatedJitterBackOff build() {
+      return new DecorrelatedJitterBackOff(this);
+    }
+
+    /**
+     * Returns the base interval in milliseconds. The default value is
+     * {@link #DEFAULT_BASE_INTERVAL_MILLIS}.
+     */
+    public final int getBaseIntervalMillis() {
+      return baseIntervalMillis;
+    }
+
+    /**
+     * Sets the base interval in milliseconds, which is the minimum back off period. The default
+     * value is {@link #DEFAULT_BASE_INTERVAL_MILLIS}. Must be {@code > 0}.
+     *
+     * <p>
+     * Overriding is only supported for the purpose of calling the super implementation and changing
+     * the return type, but nothing else.
+     * </p>
+     */
+    public Builder setBaseIntervalMillis(int baseIntervalMillis) {
+      this.baseIntervalMillis = baseIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Returns the maximum value of the back off period in milliseconds. The default value is
+     * {@link #DEFAULT_MAX_INTERVAL_MILLIS}.
+     */
+    public final int getMaxIntervalMillis() {
+      return maxIntervalMillis;
+    }
+
+    /**
+     * Sets the maximum value of the back off period in milliseconds. The default value is
+     * {@link #DEFAULT_MAX_INTERVAL_MILLIS}. Must be {@code >= baseInterval}.
+     *
+     * <p>
+     * Overriding is only supported for the purpose of calling the super implementation and changing
+     * the return type, but nothing else.
+     * </p>
+     */
+    public Builder setMaxIntervalMillis(int maxIntervalMillis) {
+      this.maxIntervalMillis = maxIntervalMillis;
+      return this;
+    }
+
+    /**
+     * Returns the maximum elapsed time in milliseconds. The default value is
+     * {@link #DEFAULT_MAX_ELAPSED_TIME_MILLIS}.
+     */
+    public final int getMaxElapsedTimeMillis() {
+      return maxElapsedTimeMillis;
+    }
+
+    /**
+     * Sets the maximum elapsed time in milliseconds. The default value is
+     * {@link #DEFAULT_MAX_ELAPSED_TIME_MILLIS}. Must be {@code > 0}.
+     *
+     * <p>
+     * Overriding is only supported for the purpose of calling the super implementation and changing
+     * the return type, but nothing else.
+     * </p>
+     */
+    public Builder setMaxElapsedTimeMillis(int maxElapsedTimeMillis) {
+      this.maxElapsedTimeMillis = maxElapsedTimeMillis;
+      return this;
+    }
+
+    /** Returns the nano clock. */
+    public final NanoClock getNanoClock() {
+      return nanoClock;
+    }
+
+    /**
+     * Sets the nano clock ({@link NanoClock#SYSTEM} by default).
+     *
+     * <p>
+     * Overriding is only supported for the purpose of calling the super implementation and changing
+     * the return type, but nothing else.
+     * </p>
+     */
+    public Builder setNanoClock(NanoClock nanoClock) {
+      this.nanoClock = Preconditions.checkNotNull(nanoClock);
+      return this;
+    }
+  }
+}
@@ -90,8 +90,27 @@ public class IOUtils {
   public static void copy(
       InputStream inputStream, OutputStream outputStream, boolean closeInputStream)
       throws IOException {
+    copy(inputStream, outputStream, closeInputStream, BufferPool.getDefault());
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Writes the content provided by the given source input stream into the given destination output
+   * stream using a copy buffer drawn from the given buffer pool, optionally closing the input
+   * stream.
+   *
+   * @param inputStream source input stream
+   * @param outputStream destination output stream
+   * @param closeInputStream whether the input stream should be closed at the end of this method
+   * @param bufferPool pool of the copy buffer, for example {@link BufferPool#getBulk()} for bulk
+   *        transfers
+   * @since 1.23
+   */
+  @Beta
+  public static void copy(InputStream inputStream, OutputStream outputStream,
+      boolean closeInputStream, BufferPool bufferPool) throws IOException {
     try {
-      ByteStreams.copy(inputStream, outputStream);
+      ByteStreams.copy(inputStream, outputStream, bufferPool);
     } finally {
       if (closeInputStream) {
         inputStream.close();
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link Beta} <br/>
+ * TLS context shared by all the transports that trust the same certificates, so that they resume
+ * each other's TLS sessions instead of paying a full handshake for every new connection.
+ *
+ * <p>
+ * Instances are obtained with {@link SslUtils#getSharedTlsContext(java.security.KeyStore)}. The
+ * client sessions of the {@link #getSslContext() SSL context} are cached by host and port, both
+ * for session IDs and session tickets, so that a new connection to the same origin costs an
+ * abbreviated handshake. The size and timeout of the session cache are tuned with
+ * {@link #setSessionCacheSize} and {@link #setSessionTimeout}.
+ * </p>
+ *
+ * <p>
+ * Handshakes of the sockets created by {@link #getSocketFactory()} are counted in
+ * {@link #getStats()}, together with the setup time of the sockets, from the creation of the SSL
+ * socket to the completion of its handshake. The setup time includes connecting an unconnected
+ * socket and any delay before the handshake starts, which may be implicitly on the first read or
+ * write.
+ * </p>
+ *
+ * <p>
+ * Implementation is thread-safe.
+ * </p>
+ *
+ * @since 1.23
+ */
+@Beta
+public final class SharedTlsContext {
+
+  /** Default maximum number of cached client sessions. */
+  static final int DEFAULT_SESSION_CACHE_SIZE = 4096;
+
+  /** Default timeout in seconds of the cached client sessions. */
+  static final int DEFAULT_SESSION_TIMEOUT = 3600;
+
+  /** SSL context. */
+  private final SSLContext sslContext;
+
+  /** Instrumented socket factory. */
+  private final SSLSocketFactory socketFactory;
+
+  private final AtomicLong handshakeCount = new AtomicLong();
+  private final AtomicLong resumedCount = new AtomicLong();
+  private final AtomicLong totalSetupNanos = new AtomicLong();
+  private final AtomicLong maxSetupNanos = new AtomicLong();
+
+  /**
+   * @param sslContext initialized SSL context
+   */
+  SharedTlsContext(SSLContext sslContext) {
+    this.sslContext = sslContext;
+    socketFactory = new InstrumentedSocketFactory(sslContext.getSocketFactory());
+    SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+    if (sessionContext != null) {
+      sessionContext.setSessionCacheSize(DEFAULT_SESSION_CACHE_SIZE);
+      sessionContext.setSessionTimeout(DEFAULT_SESSION_TIMEOUT);
+    }
+  }
+
+  /** Returns the shared SSL context. */
+  public SSLContext getSslContext() {
+    return sslContext;
+  }
+
+  /**
+   * Returns the SSL socket factory of the shared SSL context, which records the handshakes of the
+   * sockets it creates.
+   */
+  public SSLSocketFactory getSocketFactory() {
+    return socketFactory;
+  }
+
+  /** Returns the maximum number of cached client sessions or {@code 0} for no limit. */
+  public int getSessionCacheSize() {
+    return sslContext.getClientSessionContext().getSessionCacheSize();
+  }
+
+  /**
+   * Sets the maximum number of cached client sessions or {@code 0} for no limit.
+   *
+   * <p>
+   * Default value is {@code 4096}.
+   * </p>
+   */
+  public SharedTlsContext setSessionCacheSize(int sessionCacheSize) {
+    Preconditions.checkArgument(sessionCacheSize >= 0);
+    sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+    return this;
+  }
+
+  /** Returns the timeout in seconds of the cached client sessions or {@code 0} for no limit. */
+  public int getSessionTimeout() {
+    return sslContext.getClientSessionContext().getSessionTimeout();
+  }
+
+  /**
+   * Sets the timeout in seconds of the cached client sessions or {@code 0} for no limit.
+   *
+   * <p>
+   * Default value is {@code 3600}. Servers usually stop accepting sessions sooner, so there is
+   * little point in keeping them longer.
+   * </p>
+   */
+  public SharedTlsContext setSessionTimeout(int sessionTimeout) {
+    Preconditions.checkArgument(sessionTimeout >= 0);
+    sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+    return this;
+  }
+
+  /** Returns a snapshot of the handshake statistics. */
+  public Stats getStats() {
+    return new Stats(handshakeCount.get(), resumedCount.get(), totalSetupNanos.get(),
+        maxSetupNanos.get());
+  }
+
+  /**
+   * Records the handshakes of the given socket if it is an SSL socket, with the setup time from now
+   * to the completion of each handshake.
+   */
+  Socket instrument(Socket socket) {
+    if (socket instanceof SSLSocket) {
+      final long startNanos = System.nanoTime();
+      final long startMillis = System.currentTimeMillis();
+      ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+
+        public void handshakeCompleted(HandshakeCompletedEvent event) {
+          long elapsed = System.nanoTime() - startNanos;
+          handshakeCount.incrementAndGet();
+          // a resumed session keeps the creation time of the full handshake that established it,
+          // including a TLS 1.3 session resumed with a pre-shared key into a new session object
+          if (event.getSession().getCreationTime() < startMillis) {
+            resumedCount.incrementAndGet();
+          }
+          totalSetupNanos.addAndGet(elapsed);
+          long max;
+          do {
+            max = maxSetupNanos.get();
+          } while (elapsed > max && !maxSetupNanos.compareAndSet(max, elapsed));
+        }
+      });
+    }
+    return socket;
+  }
+
+  /** SSL socket factory that records the handshakes of the sockets of the wrapped factory. */
+  private final class InstrumentedSocketFactory extends SSLSocketFactory {
+
+    /** Wrapped SSL socket factory. */
+    private final SSLSocketFactory socketFactory;
+
+    InstrumentedSocketFactory(SSLSocketFactory socketFactory) {
+      this.socketFactory = socketFactory;
+    }
+
+    @Override
+    public String[] getDefaultCipherSuites() {
+      return socketFactory.getDefaultCipherSuites();
+    }
+
+    @Override
+    public String[] getSupportedCipherSuites() {
+      return socketFactory.getSupportedCipherSuites();
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+      return instrument(socketFactory.createSocket());
+    }
+
+    @Override
+    public Socket createSocket(Socket socket, String host, int port, boolean autoClose)
+        throws IOException {
+      return instrument(socketFactory.createSocket(socket, host, port, autoClose));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+      return instrument(socketFactory.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+        throws IOException {
+      return instrument(socketFactory.createSocket(host, port, localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+      return instrument(socketFactory.createSocket(host, port));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+        int localPort) throws IOException {
+      return instrument(socketFactory.createSocket(address, port, localAddress, localPort));
+    }
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Immutable snapshot of the handshake statistics of a {@link SharedTlsContext}.
+   *
+   * @since 1.23
+   */
+  @Beta
+  public static final class Stats {
+
+    private final long handshakeCount;
+    private final long resumedCount;
+    private final long totalSetupNanos;
+    private final long maxSetupNanos;
+
+    Stats(long handshakeCount, long resumedCount, long totalSetupNanos, long maxSetupNanos) {
+      this.handshakeCount = handshakeCount;
+      this.resumedCount = resumedCount;
+      this.totalSetupNanos = totalSetupNanos;
+      this.maxSetupNanos = maxSetupNanos;
+    }
+
+    /** Returns the number of completed handshakes. */
+    public long getHandshakeCount() {
+      return handshakeCount;
+    }
+
+    /** Returns the number of completed handshakes that resumed a cached session. */
+    public long getResumedCount() {
+      return resumedCount;
+    }
+
+    /**
+     * Returns the fraction of the completed handshakes that resumed a cached session or {@code 0}
+     * if none.
+     */
+    public double getResumptionRate() {
+      return handshakeCount == 0 ? 0 : (double) resumedCount / handshakeCount;
+    }
+
+    /**
+     * Returns the total setup time in nanoseconds of the sockets whose handshake completed, from
+     * the creation of each SSL socket to the completion of its handshake, which includes
+     * connecting an unconnected socket.
+     */
+    public long getTotalSetupNanos() {
+      return totalSetupNanos;
+    }
+
+    /** Returns the average setup time in nanoseconds of a socket or {@code 0} if none. */
+    public long getAverageSetupNanos() {
+      return handshakeCount == 0 ? 0 : totalSetupNanos / handshakeCount;
+    }
+
+    /** Returns the maximum setup time in nanoseconds of a socket. */
+    public long getMaxSetupNanos() {
+      return maxSetupNanos;
+    }
+
+    @Override
+    public String toString() {
+      return "[handshakes: " + handshakeCount + "; resumed: " + resumedCount
+          + "; average setup ms: " + getAverageSetupNanos() / 1000000L + "]";
+    }
+  }
+}
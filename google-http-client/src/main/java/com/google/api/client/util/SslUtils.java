@@ -16,11 +16,20 @@ package com.google.api.client.util;
 
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSession;
@@ -36,6 +45,25 @@ import javax.net.ssl.X509TrustManager;
  */
 public final class SslUtils {
 
+  /** Maximum number of shared TLS contexts kept. */
+  static final int MAX_SHARED_TLS_CONTEXTS = 32;
+
+  /**
+   * Shared TLS contexts by fingerprint of their trust store and identity of their key managers, in
+   * least recently used order, guarded by the class.
+   */
+  private static final Map<SharedTlsContextKey, SharedTlsContext> SHARED_TLS_CONTEXTS =
+      new LinkedHashMap<SharedTlsContextKey, SharedTlsContext>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<SharedTlsContextKey, SharedTlsContext> eldest) {
+          return size() > MAX_SHARED_TLS_CONTEXTS;
+        }
+      };
+
   /**
    * Returns the SSL context for "SSL" algorithm.
    *
@@ -111,6 +139,140 @@ public final class SslUtils {
     return sslContext;
   }
 
+  /**
+   * {@link Beta} <br/>
+   * Returns the TLS context shared by all callers that trust the same certificates, creating it if
+   * necessary.
+   *
+   * <p>
+   * Transports configured with the shared context of a trust store resume each other's TLS
+   * sessions to the same origin, unlike transports initialized with an SSL context of their own.
+   * Trust stores are compared by the certificates of all of their entries, so different instances
+   * loaded from the same certificates share the same context. The most recently used
+   * {@code 32} contexts are kept.
+   * </p>
+   *
+   * @param trustStore key store for certificates to trust or {@code null} for the default trusted
+   *        certificates of the JVM
+   * @since 1.23
+   */
+  @Beta
+  public static SharedTlsContext getSharedTlsContext(KeyStore trustStore)
+      throws GeneralSecurityException {
+    return getSharedTlsContext(trustStore, null);
+  }
+
+  /**
+   * {@link Beta} <br/>
+   * Returns the TLS context shared by all callers that trust the same certificates and
+   * authenticate with the same key managers, creating it if necessary.
+   *
+   * <p>
+   * This is the same as {@link #getSharedTlsContext(KeyStore)}, except that the context also
+   * presents client certificates with the given key managers. Key managers are compared by
+   * identity, so only callers passing the same key manager instances share the same context.
+   * </p>
+   *
+   * @param trustStore key store for certificates to trust or {@code null} for the default trusted
+   *        certificates of the JVM
+   * @param keyManagers key managers of the client certificates or {@code null} for none
+   * @since 1.23
+   */
+  @Beta
+  public static SharedTlsContext getSharedTlsContext(KeyStore trustStore,
+      KeyManager[] keyManagers) throws GeneralSecurityException {
+    SharedTlsContextKey key = new SharedTlsContextKey(
+        trustStore == null ? "" : getKeyStoreFingerprint(trustStore),
+        keyManagers == null ? new KeyManager[0] : keyManagers.clone());
+    synchronized (SslUtils.class) {
+      SharedTlsContext context = SHARED_TLS_CONTEXTS.get(key);
+      if (context == null) {
+        SSLContext sslContext = getTlsSslContext();
+        TrustManagerFactory trustManagerFactory = getPkixTrustManagerFactory();
+        trustManagerFactory.init(trustStore);
+        sslContext.init(key.keyManagers.length == 0 ? null : key.keyManagers,
+            trustManagerFactory.getTrustManagers(), null);
+        context = new SharedTlsContext(sslContext);
+        SHARED_TLS_CONTEXTS.put(key, context);
+      }
+      return context;
+    }
+  }
+
+  /** Key of a shared TLS context. */
+  private static final class SharedTlsContextKey {
+
+    /** Fingerprint of the trust store. */
+    final String fingerprint;
+
+    /** Key managers, compared by identity. */
+    final KeyManager[] keyManagers;
+
+    SharedTlsContextKey(String fingerprint, KeyManager[] keyManagers) {
+      this.fingerprint = fingerprint;
+      this.keyManagers = keyManagers;
+    }
+
+    @Override
+    public int hashCode() {
+      int hashCode = fingerprint.hashCode();
+      for (KeyManager keyManager : keyManagers) {
+        hashCode = 31 * hashCode + System.identityHashCode(keyManager);
+      }
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof SharedTlsContextKey)) {
+        return false;
+      }
+      SharedTlsContextKey other = (SharedTlsContextKey) obj;
+      if (!fingerprint.equals(other.fingerprint)
+          || keyManagers.length != other.keyManagers.length) {
+        return false;
+      }
+      for (int i = 0; i < keyManagers.length; i++) {
+        if (keyManagers[i] != other.keyManagers[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns a SHA-256 fingerprint of the certificates of all of the entries of the key store,
+   * including the certificate chains of the key entries, whose first certificate is trusted too.
+   */
+  private static String getKeyStoreFingerprint(KeyStore trustStore)
+      throws GeneralSecurityException {
+    List<String> digests = new ArrayList<String>();
+    for (Enumeration<String> aliases = trustStore.aliases(); aliases.hasMoreElements();) {
+      String alias = aliases.nextElement();
+      Certificate[] chain = trustStore.isKeyEntry(alias)
+          ? trustStore.getCertificateChain(alias) : null;
+      if (chain == null) {
+        Certificate certificate = trustStore.getCertificate(alias);
+        chain = certificate == null ? new Certificate[0] : new Certificate[] {certificate};
+      }
+      MessageDigest entryDigest = MessageDigest.getInstance("SHA-256");
+      // distinguishes trusted certificate entries from key entries
+      entryDigest.update((byte) (trustStore.isKeyEntry(alias) ? 1 : 0));
+      for (Certificate certificate : chain) {
+        entryDigest.update(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+      }
+      digests.add(Base64.encodeBase64String(entryDigest.digest()));
+    }
+    // independent of the aliases and their order
+    Collections.sort(digests);
+    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+    for (String certificateDigest : digests) {
+      digest.update(StringUtils.getBytesUtf8(certificateDigest));
+    }
+    return Base64.encodeBase64String(digest.digest());
+  }
+
   /**
    * {@link Beta} <br/>
    * Returns an SSL context in which all X.509 certificates are trusted.
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BatchRequest}.
+ */
+public class BatchRequestTest extends TestCase {
+
+  static final String BOUNDARY = "batch_boundary";
+
+  /** Transport replying to each batch request with the next canned batch response content. */
+  static class BatchTransport extends MockHttpTransport {
+
+    final List<String> responses = new ArrayList<String>();
+    final List<String> requests = new ArrayList<String>();
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      assertEquals("POST", method);
+      assertEquals("http://example.com/batch", url);
+      return new MockLowLevelHttpRequest() {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          requests.add(getContentType() + "\n" + getContentAsString());
+          return new MockLowLevelHttpResponse()
+              .setContentType("multipart/mixed; boundary=" + BOUNDARY)
+              .setContent(responses.remove(0));
+        }
+      };
+    }
+  }
+
+  static String part(String response) {
+    return "--" + BOUNDARY + "\r\nContent-Type: application/http\r\n\r\n" + response + "\r\n";
+  }
+
+  static class RecordingCallback implements HttpResponseCallback {
+
+    String content;
+    Throwable failure;
+
+    public void onResponse(HttpResponse response) {
+      try {
+        content = response.parseAsString();
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+
+    public void onFailure(Throwable exception) {
+      failure = exception;
+    }
+  }
+
+  public void testExecute() throws Exception {
+    BatchTransport transport = new BatchTransport();
+    transport.responses.add("preamble\r\n"
+        + part("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\n\r\nfirst\r\nline")
+        + part("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n")
+        + part("HTTP/1.1 503 Service Unavailable\r\n\r\n")
+        + "--" + BOUNDARY + "--\r\n");
+    transport.responses.add(
+        part("HTTP/1.1 201 Created\r\n\r\nretried") + "--" + BOUNDARY + "--\r\n");
+    HttpRequestFactory requestFactory = transport.createRequestFactory();
+    BatchRequest batch =
+        requestFactory.buildBatchRequest(new GenericUrl("http://example.com/batch"));
+    RecordingCallback first = new RecordingCallback();
+    RecordingCallback second = new RecordingCallback();
+    RecordingCallback third = new RecordingCallback();
+    HttpRequest firstRequest =
+        requestFactory.buildGetRequest(new GenericUrl("http://example.com/a?b=c"));
+    firstRequest.getHeaders().set("X-Custom", "value");
+    batch.queue(firstRequest, first);
+    batch.queue(requestFactory.buildDeleteRequest(new GenericUrl("http://example.com/b")), second);
+    HttpRequest thirdRequest = requestFactory.buildPostRequest(
+        new GenericUrl("http://example.com/c"), ByteArrayContent.fromString("text/plain", "body"));
+    thirdRequest.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+      public boolean handleResponse(
+          HttpRequest request, HttpResponse response, boolean supportsRetry) {
+        return response.getStatusCode() == 503;
+      }
+    });
+    batch.queue(thirdRequest, third);
+    assertEquals(3, batch.size());
+    batch.execute();
+    assertEquals(0, batch.size());
+
+    assertEquals("first\r\nline", first.content);
+    assertNull(first.failure);
+    assertTrue(second.failure instanceof HttpResponseException);
+    assertEquals(404, ((HttpResponseException) second.failure).getStatusCode());
+    assertEquals("retried", third.content);
+
+    assertEquals(2, transport.requests.size());
+    String request = transport.requests.get(0);
+    assertTrue(request.startsWith("multipart/mixed; boundary="));
+    assertTrue(request.contains("Content-Type: application/http\r\n"));
+    assertTrue(request.contains("content-id: 1\r\n"));
+    assertTrue(request.contains("\r\n\r\nGET http://example.com/a?b=c HTTP/1.1\r\n"));
+    assertTrue(request.contains("x-custom: value\r\n"));
+    assertTrue(request.contains("\r\n\r\nDELETE http://example.com/b HTTP/1.1\r\n"));
+    assertTrue(request.contains("\r\n\r\nPOST http://example.com/c HTTP/1.1\r\n"));
+    assertTrue(request.contains("Content-Length: 4\r\n"));
+    assertTrue(request.contains("\r\n\r\nbody\r\n"));
+    String retry = transport.requests.get(1);
+    assertFalse(retry.contains("GET http://example.com/a"));
+    assertTrue(retry.contains("POST http://example.com/c HTTP/1.1\r\n"));
+  }
+
+  public void testExecute_missingResponse() throws Exception {
+    BatchTransport transport = new BatchTransport();
+    transport.responses.add(part("HTTP/1.1 200 OK\r\n\r\nonly") + "--" + BOUNDARY + "--\r\n");
+    HttpRequestFactory requestFactory = transport.createRequestFactory();
+    BatchRequest batch =
+        requestFactory.buildBatchRequest(new GenericUrl("http://example.com/batch"));
+    RecordingCallback first = new RecordingCallback();
+    RecordingCallback second = new RecordingCallback();
+    batch.queue(requestFactory.buildGetRequest(new GenericUrl("http://example.com/a")), first);
+    batch.queue(requestFactory.buildGetRequest(new GenericUrl("http://example.com/b")), second);
+    batch.execute();
+    assertEquals("only", first.content);
+    assertTrue(second.failure instanceof IOException);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ByteBufferContent}.
+ */
+public class ByteBufferContentTest extends TestCase {
+
+  private static ByteBuffer direct(String value) {
+    byte[] bytes = StringUtils.getBytesUtf8(value);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes).flip();
+    return buffer;
+  }
+
+  private static String write(ByteBufferContent content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(out);
+    return StringUtils.newStringUtf8(out.toByteArray());
+  }
+
+  public void testComposite() throws IOException {
+    ByteBuffer heap = ByteBuffer.wrap(StringUtils.getBytesUtf8("xxheapxx"), 2, 4).slice();
+    ByteBuffer direct = direct("direct");
+    ByteBufferContent content =
+        new ByteBufferContent("text/plain", heap, ByteBuffer.allocate(0), direct);
+    assertEquals(10, content.getLength());
+    assertTrue(content.retrySupported());
+    assertEquals("text/plain", content.getType());
+    assertEquals("heapdirect", write(content));
+    // may be written again
+    assertEquals("heapdirect", write(content));
+    assertEquals(0, heap.position());
+    assertEquals(0, direct.position());
+    assertEquals(3, content.getBuffers().length);
+  }
+
+  public void testWriteToChannel() throws IOException {
+    ByteBufferContent content = new ByteBufferContent(null, direct("a"), direct("bc"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(Channels.newChannel(out));
+    assertEquals("abc", StringUtils.newStringUtf8(out.toByteArray()));
+  }
+
+  public void testReadableByteChannelContent() throws IOException {
+    byte[] bytes = new byte[20000];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) i;
+    }
+    ReadableByteChannelContent content = new ReadableByteChannelContent(null,
+        Channels.newChannel(new ByteArrayInputStream(bytes)));
+    assertFalse(content.retrySupported());
+    assertEquals(-1, content.getLength());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(out);
+    assertTrue(Arrays.equals(bytes, out.toByteArray()));
+    assertFalse(content.getChannel().isOpen());
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.util.NanoClock;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CachingDnsResolver}.
+ */
+public class CachingDnsResolverTest extends TestCase {
+
+  static class FakeNanoClock implements NanoClock {
+
+    long nanos;
+
+    public long nanoTime() {
+      return nanos;
+    }
+
+    void advanceMillis(long millis) {
+      nanos += millis * 1000000L;
+    }
+  }
+
+  static class FakeDnsResolver implements DnsResolver {
+
+    InetAddress[] addresses;
+    int count;
+
+    FakeDnsResolver(InetAddress... addresses) {
+      this.addresses = addresses;
+    }
+
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      count++;
+      if (addresses == null) {
+        throw new UnknownHostException(host);
+      }
+      return addresses;
+    }
+  }
+
+  /** Executor of tasks queued until {@link #runAll()}. */
+  static class QueueExecutor implements Executor {
+
+    final List<Runnable> tasks = new ArrayList<Runnable>();
+
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      for (Runnable task : tasks) {
+        task.run();
+      }
+      tasks.clear();
+    }
+  }
+
+  private final FakeNanoClock clock = new FakeNanoClock();
+  private final QueueExecutor executor = new QueueExecutor();
+
+  private CachingDnsResolver.Builder newBuilder(DnsResolver delegate) {
+    return new CachingDnsResolver.Builder().setDelegate(delegate)
+        .setTimeToLive(60000)
+        .setRefreshAheadTime(10000)
+        .setExecutor(executor)
+        .setNanoClock(clock);
+  }
+
+  private static InetAddress address(int lastByte) throws UnknownHostException {
+    return InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) lastByte});
+  }
+
+  public void testResolve_cached() throws Exception {
+    FakeDnsResolver delegate = new FakeDnsResolver(address(1));
+    CachingDnsResolver resolver = newBuilder(delegate).build();
+    assertEquals(address(1), resolver.resolve("example.com")[0]);
+    assertEquals(address(1), resolver.resolve("EXAMPLE.com")[0]);
+    assertEquals(1, delegate.count);
+    CachingDnsResolver.Stats stats = resolver.getStats();
+    assertEquals(1, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+    assertEquals(1, stats.getResolutionCount());
+    assertEquals(1, stats.getCachedHostCount());
+  }
+
+  public void testResolve_expired() throws Exception {
+    FakeDnsResolver delegate = new FakeDnsResolver(address(1));
+    CachingDnsResolver resolver = newBuilder(delegate).setRefreshAheadTime(0).build();
+    resolver.resolve("example.com");
+    clock.advanceMillis(60000);
+    delegate.addresses = new InetAddress[] {address(2)};
+    assertEquals(address(2), resolver.resolve("example.com")[0]);
+    assertEquals(2, delegate.count);
+    assertEquals(2, resolver.getStats().getMissCount());
+    assertTrue(executor.tasks.isEmpty());
+  }
+
+  public void testResolve_refreshAhead() throws Exception {
+    FakeDnsResolver delegate = new FakeDnsResolver(address(1));
+    CachingDnsResolver resolver = newBuilder(delegate).build();
+    resolver.resolve("example.com");
+    clock.advanceMillis(49999);
+    resolver.resolve("example.com");
+    assertTrue(executor.tasks.isEmpty());
+    clock.advanceMillis(1);
+    delegate.addresses = new InetAddress[] {address(2)};
+    // served from the cache while the refresh is pending, which is only started once
+    assertEquals(address(1), resolver.resolve("example.com")[0]);
+    assertEquals(address(1), resolver.resolve("example.com")[0]);
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    assertEquals(address(2), resolver.resolve("example.com")[0]);
+    assertEquals(2, delegate.count);
+    CachingDnsResolver.Stats stats = resolver.getStats();
+    assertEquals(1, stats.getRefreshCount());
+    assertEquals(1, stats.getMissCount());
+  }
+
+  public void testResolve_refreshFailure() throws Exception {
+    FakeDnsResolver delegate = new FakeDnsResolver(address(1));
+    CachingDnsResolver resolver = newBuilder(delegate).build();
+    resolver.resolve("example.com");
+    clock.advanceMillis(55000);
+    delegate.addresses = null;
+    resolver.resolve("example.com");
+    executor.runAll();
+    assertEquals(address(1), resolver.resolve("example.com")[0]);
+    assertEquals(1, resolver.getStats().getFailureCount());
+    // refresh is tried again on the next hit
+    assertEquals(1, executor.tasks.size());
+  }
+
+  public void testResolve_failure() throws Exception {
+    CachingDnsResolver resolver = newBuilder(new FakeDnsResolver()).build();
+    try {
+      resolver.resolve("example.com");
+      fail("expected " + UnknownHostException.class);
+    } catch (UnknownHostException e) {
+      // expected
+    }
+    assertEquals(1, resolver.getStats().getFailureCount());
+    assertEquals(0, resolver.getStats().getCachedHostCount());
+  }
+
+  public void testConnect_roundRobin() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("0.0.0.0"));
+    try {
+      CachingDnsResolver resolver =
+          newBuilder(new FakeDnsResolver(address(1), address(2))).build();
+      int port = serverSocket.getLocalPort();
+      List<InetAddress> connected = new ArrayList<InetAddress>();
+      Socket open = null;
+      for (int i = 0; i < 4; i++) {
+        Socket socket = resolver.connect("example.com", port, 1000);
+        connected.add(socket.getInetAddress());
+        if (i == 0) {
+          open = socket;
+        } else {
+          socket.close();
+        }
+      }
+      // open connections are only tracked for the least connections policy
+      assertTrue(resolver.getStats().getOpenConnectionsByAddress().isEmpty());
+      open.close();
+      assertEquals(address(1), connected.get(0));
+      assertEquals(address(2), connected.get(1));
+      assertEquals(address(1), connected.get(2));
+      assertEquals(address(2), connected.get(3));
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  public void testConnect_leastConnections() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("0.0.0.0"));
+    try {
+      CachingDnsResolver resolver = newBuilder(new FakeDnsResolver(address(1), address(2)))
+          .setSpreadingPolicy(CachingDnsResolver.SpreadingPolicy.LEAST_CONNECTIONS)
+          .build();
+      int port = serverSocket.getLocalPort();
+      Socket first = resolver.connect("example.com", port, 1000);
+      Socket second = resolver.connect("example.com", port, 1000);
+      assertEquals(address(1), first.getInetAddress());
+      assertEquals(address(2), second.getInetAddress());
+      second.close();
+      // round robin would pick the first address, but it has more open connections
+      Socket third = resolver.connect("example.com", port, 1000);
+      assertEquals(address(2), third.getInetAddress());
+      assertEquals(Integer.valueOf(1),
+          resolver.getStats().getOpenConnectionsByAddress().get("127.0.0.1"));
+      first.close();
+      third.close();
+      assertTrue(resolver.getStats().getOpenConnectionsByAddress().isEmpty());
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  public void testConnect_fallback() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 50, address(2));
+    try {
+      CachingDnsResolver resolver =
+          newBuilder(new FakeDnsResolver(address(1), address(2))).build();
+      Socket socket = resolver.connect("example.com", serverSocket.getLocalPort(), 1000);
+      assertEquals(address(2), socket.getInetAddress());
+      socket.close();
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  public void testConnect_otherResolver() throws Exception {
+    ServerSocket serverSocket = new ServerSocket(0, 50, address(2));
+    try {
+      FakeDnsResolver resolver = new FakeDnsResolver(address(1), address(2));
+      Socket socket = CachingDnsResolver.connect(
+          resolver, "example.com", serverSocket.getLocalPort(), 1000);
+      assertEquals(address(2), socket.getInetAddress());
+      socket.close();
+      assertEquals(1, resolver.count);
+    } finally {
+      serverSocket.close();
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Clock;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.MemoryDataStoreFactory;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CachingHttpTransport}.
+ */
+public class CachingHttpTransportTest extends TestCase {
+
+  static class FakeClock implements Clock {
+
+    long millis = 784111777000L;
+
+    public long currentTimeMillis() {
+      return millis;
+    }
+  }
+
+  /** Transport which answers every request with the same status, headers and content. */
+  static class ServerTransport extends MockHttpTransport {
+
+    int requestCount;
+    MockLowLevelHttpRequest lastRequest;
+    int statusCode = 200;
+    String content = "content";
+    String[] headers = {};
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          requestCount++;
+          lastRequest = this;
+          MockLowLevelHttpResponse response =
+              new MockLowLevelHttpResponse().setStatusCode(statusCode).setContent(content);
+          for (int i = 0; i < headers.length; i += 2) {
+            response.addHeader(headers[i], headers[i + 1]);
+          }
+          return response;
+        }
+      };
+    }
+  }
+
+  private final FakeClock clock = new FakeClock();
+  private final ServerTransport server = new ServerTransport();
+
+  private String get(HttpTransport transport, String... requestHeaders) throws IOException {
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setThrowExceptionOnExecuteError(false);
+    for (int i = 0; i < requestHeaders.length; i += 2) {
+      request.getHeaders().set(requestHeaders[i], Arrays.asList(requestHeaders[i + 1]));
+    }
+    return request.execute().parseAsString();
+  }
+
+  public void testFreshAndRevalidated() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60", "ETag", "\"v1\""};
+    assertEquals("content", get(transport));
+    server.content = "changed";
+    assertEquals("content", get(transport));
+    assertEquals(1, server.requestCount);
+    // stale
+    clock.millis += 60000;
+    server.statusCode = 304;
+    server.content = "";
+    assertEquals("content", get(transport));
+    assertEquals(2, server.requestCount);
+    assertEquals("\"v1\"", server.lastRequest.getFirstHeaderValue("If-None-Match"));
+    // fresh again after the revalidation
+    assertEquals("content", get(transport));
+    assertEquals(2, server.requestCount);
+    CachingHttpTransport.Stats stats = transport.getStats();
+    assertEquals(2, stats.getHitCount());
+    assertEquals(1, stats.getMissCount());
+    assertEquals(1, stats.getRevalidationCount());
+    assertEquals(1, stats.getEntryCount());
+  }
+
+  public void testNotCacheable() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "no-store, max-age=60"};
+    get(transport);
+    get(transport);
+    server.headers = new String[] {"Cache-Control", "private"};
+    get(transport);
+    get(transport);
+    assertEquals(4, server.requestCount);
+    assertEquals(0, transport.getStats().getEntryCount());
+  }
+
+  public void testRequestDirectives() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60", "Last-Modified",
+        "Sun, 06 Nov 1994 08:00:00 GMT"};
+    get(transport);
+    get(transport, "Cache-Control", "no-cache");
+    assertEquals(2, server.requestCount);
+    assertEquals("Sun, 06 Nov 1994 08:00:00 GMT",
+        server.lastRequest.getFirstHeaderValue("If-Modified-Since"));
+    get(transport, "Cache-Control", "no-store");
+    assertEquals(3, server.requestCount);
+    get(transport);
+    assertEquals(3, server.requestCount);
+  }
+
+  public void testVary() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60", "Vary", "Accept-Language"};
+    get(transport, "Accept-Language", "en");
+    get(transport, "Accept-Language", "en");
+    assertEquals(1, server.requestCount);
+    get(transport, "Accept-Language", "fr");
+    assertEquals(2, server.requestCount);
+  }
+
+  public void testAuthorization() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60"};
+    server.content = "alice";
+    assertEquals("alice", get(transport, "Authorization", "Bearer alice"));
+    server.content = "bob";
+    assertEquals("bob", get(transport, "Authorization", "Bearer bob"));
+    server.content = "anonymous";
+    assertEquals("anonymous", get(transport));
+    assertEquals(3, server.requestCount);
+    // explicitly shareable
+    transport = new CachingHttpTransport.Builder(server).setClock(clock).build();
+    server.headers = new String[] {"Cache-Control", "public, max-age=60"};
+    server.content = "shared";
+    assertEquals("shared", get(transport, "Authorization", "Bearer alice"));
+    assertEquals("shared", get(transport, "Authorization", "Bearer bob"));
+    assertEquals(4, server.requestCount);
+  }
+
+  public void testUnsafeMethodInvalidates() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60"};
+    get(transport);
+    transport.createRequestFactory()
+        .buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL, null)
+        .execute();
+    get(transport);
+    assertEquals(3, server.requestCount);
+  }
+
+  public void testMaxMemoryBytes() throws Exception {
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .setMaxMemoryBytes(100)
+        .setMaxEntryBytes(50)
+        .build();
+    server.headers = new String[] {"Cache-Control", "max-age=60"};
+    server.content = "0123456789012345678901234567890123456789012345678901234567890";
+    assertEquals(server.content, get(transport));
+    assertEquals(0, transport.getStats().getEntryCount());
+    server.content = "short";
+    get(transport);
+    assertEquals(1, transport.getStats().getEntryCount());
+  }
+
+  public void testDataStore() throws Exception {
+    MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+    server.headers = new String[] {"Cache-Control", "max-age=60"};
+    get(new CachingHttpTransport.Builder(server).setClock(clock)
+        .setDataStoreFactory(dataStoreFactory)
+        .build());
+    server.content = "changed";
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .setDataStoreFactory(dataStoreFactory)
+        .build();
+    assertEquals("content", get(transport));
+    assertEquals(1, server.requestCount);
+    assertEquals(1, transport.getStats().getHitCount());
+  }
+
+  public void testMaxStoredBytes() throws Exception {
+    MemoryDataStoreFactory dataStoreFactory = new MemoryDataStoreFactory();
+    server.headers = new String[] {"Cache-Control", "max-age=60"};
+    CachingHttpTransport transport = new CachingHttpTransport.Builder(server).setClock(clock)
+        .setDataStoreFactory(dataStoreFactory)
+        .setMaxStoredBytes(120)
+        .build();
+    HttpRequestFactory requestFactory = transport.createRequestFactory();
+    for (int i = 0; i < 3; i++) {
+      requestFactory.buildGetRequest(new GenericUrl(HttpTesting.SIMPLE_URL + "?" + i)).execute()
+          .parseAsString();
+    }
+    DataStore<Serializable> dataStore =
+        dataStoreFactory.getDataStore(CachingHttpTransport.DATA_STORE_ID);
+    // each response takes about 50 bytes, so the least recently used one has been evicted
+    assertEquals(2, dataStore.size());
+    assertFalse(dataStore.containsKey(HttpTesting.SIMPLE_URL + "?0"));
+    // a new instance with a lower maximum evicts the responses persisted by the previous one
+    new CachingHttpTransport.Builder(server).setClock(clock)
+        .setDataStoreFactory(dataStoreFactory)
+        .setMaxStoredBytes(60)
+        .build();
+    assertEquals(1, dataStore.size());
+  }
+
+  public void testParseCacheControl() {
+    Map<String, String> directives =
+        CachingHttpTransport.parseCacheControl("No-Cache, max-age=\"10\" ,private");
+    assertEquals(3, directives.size());
+    assertTrue(directives.containsKey("no-cache"));
+    assertNull(directives.get("no-cache"));
+    assertEquals("10", directives.get("max-age"));
+    assertTrue(directives.containsKey("private"));
+  }
+}
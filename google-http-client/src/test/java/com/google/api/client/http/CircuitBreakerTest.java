@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.http.CachingDnsResolverTest.FakeNanoClock;
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  static class RecordingListener implements CircuitBreaker.Listener {
+
+    final List<String> transitions = new ArrayList<String>();
+
+    public void onStateChange(String host, CircuitBreaker.State from, CircuitBreaker.State to) {
+      transitions.add(host + ": " + from + " -> " + to);
+    }
+  }
+
+  private final FakeNanoClock clock = new FakeNanoClock();
+  private final RecordingListener listener = new RecordingListener();
+
+  private CircuitBreaker.Builder newBuilder() {
+    return new CircuitBreaker.Builder().setWindowSize(10)
+        .setMinimumCalls(4)
+        .setFailureRateThreshold(0.5)
+        .setOpenDuration(1000)
+        .setHalfOpenCalls(2)
+        .setListener(listener)
+        .setNanoClock(clock);
+  }
+
+  private static void assertRejected(CircuitBreaker circuitBreaker, long retryAfterMillis) {
+    try {
+      circuitBreaker.acquire("example.com");
+      fail("expected " + CircuitBreakerOpenException.class);
+    } catch (CircuitBreakerOpenException e) {
+      assertEquals("example.com", e.getHost());
+      assertEquals(retryAfterMillis, e.getRetryAfterMillis());
+    }
+  }
+
+  public void testFailureRate() throws Exception {
+    CircuitBreaker circuitBreaker = newBuilder().build();
+    circuitBreaker.acquire("example.com").record(200, null);
+    circuitBreaker.acquire("example.com").record(500, null);
+    circuitBreaker.acquire("example.com").record(404, null);
+    // below the minimum number of calls
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("example.com"));
+    circuitBreaker.acquire("EXAMPLE.com").record(-1, new IOException());
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("example.com"));
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("other.com"));
+    clock.advanceMillis(400);
+    assertRejected(circuitBreaker, 600);
+    assertEquals(1, circuitBreaker.getStats().getRejectedCount());
+    assertEquals(1, circuitBreaker.getStats().getOpenedCount());
+  }
+
+  public void testSlowCallRate() throws Exception {
+    CircuitBreaker circuitBreaker =
+        newBuilder().setSlowCallDuration(100).setSlowCallRateThreshold(0.5).build();
+    for (int i = 0; i < 4; i++) {
+      CircuitBreaker.Call call = circuitBreaker.acquire("example.com");
+      clock.advanceMillis(i * 100);
+      call.record(200, null);
+    }
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("example.com"));
+  }
+
+  public void testHalfOpen() throws Exception {
+    CircuitBreaker circuitBreaker = newBuilder().setMinimumCalls(1).build();
+    circuitBreaker.acquire("example.com").record(503, null);
+    clock.advanceMillis(1000);
+    CircuitBreaker.Call first = circuitBreaker.acquire("example.com");
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState("example.com"));
+    CircuitBreaker.Call second = circuitBreaker.acquire("example.com");
+    // all trial calls are in flight
+    assertRejected(circuitBreaker, 0);
+    first.record(200, null);
+    second.record(200, null);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("example.com"));
+    circuitBreaker.acquire("example.com").record(503, null);
+    clock.advanceMillis(1000);
+    circuitBreaker.acquire("example.com").record(503, null);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState("example.com"));
+    assertEquals(3, circuitBreaker.getStats().getOpenedCount());
+    assertEquals("[example.com: CLOSED -> OPEN, example.com: OPEN -> HALF_OPEN, "
+        + "example.com: HALF_OPEN -> CLOSED, example.com: CLOSED -> OPEN, "
+        + "example.com: OPEN -> HALF_OPEN, example.com: HALF_OPEN -> OPEN]",
+        listener.transitions.toString());
+  }
+
+  public void testCancel() throws Exception {
+    CircuitBreaker circuitBreaker = newBuilder().setMinimumCalls(1).setHalfOpenCalls(1).build();
+    circuitBreaker.acquire("example.com").record(503, null);
+    clock.advanceMillis(1000);
+    circuitBreaker.acquire("example.com").cancel();
+    circuitBreaker.acquire("example.com").record(200, null);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState("example.com"));
+  }
+
+  public void testExecute() throws Exception {
+    CircuitBreaker circuitBreaker = newBuilder().setMinimumCalls(1).build();
+    MockHttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(500))
+        .build();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setCircuitBreaker(circuitBreaker)
+        .setThrowExceptionOnExecuteError(false);
+    assertEquals(500, request.execute().getStatusCode());
+    try {
+      request.execute();
+      fail("expected " + CircuitBreakerOpenException.class);
+    } catch (CircuitBreakerOpenException e) {
+      assertEquals(HttpTesting.SIMPLE_GENERIC_URL.getHost(), e.getHost());
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ConcurrencyLimiter}.
+ */
+public class ConcurrencyLimiterTest extends TestCase {
+
+  public void testAimd() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(4).build();
+    ConcurrencyLimiter.Permit first = limiter.acquire("example.com");
+    ConcurrencyLimiter.Permit second = limiter.acquire("EXAMPLE.com");
+    assertEquals(2, limiter.getInFlight("example.com"));
+    // at least half of the slots are in use
+    first.release(200, null);
+    assertEquals(5, limiter.getLimit("example.com"));
+    // not increased when less than half of the slots are in use
+    second.release(200, null);
+    assertEquals(5, limiter.getLimit("example.com"));
+    limiter.acquire("example.com").release(503, null);
+    assertEquals(4, limiter.getLimit("example.com"));
+    limiter.acquire("example.com").release(-1, new SocketTimeoutException());
+    assertEquals(4, limiter.getLimit("example.com"));
+    assertEquals(2, limiter.getStats().getDroppedCount());
+    assertEquals(0, limiter.getInFlight("example.com"));
+  }
+
+  public void testGradient() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder()
+        .setAlgorithm(ConcurrencyLimiter.Algorithm.GRADIENT)
+        .setInitialLimit(20)
+        .build();
+    ConcurrencyLimiter.HostLimit hostLimit = limiter.getHostLimit("example.com");
+    hostLimit.inFlight = 10;
+    for (int i = 0; i < 10; i++) {
+      limiter.update(hostLimit, 10000000L, false);
+    }
+    double stableLimit = hostLimit.limit;
+    assertTrue(stableLimit > 20);
+    // latency far above the long term average
+    limiter.update(hostLimit, 100000000L, false);
+    assertTrue(hostLimit.limit < stableLimit);
+    assertEquals(0, limiter.getStats().getDroppedCount());
+  }
+
+  public void testAcquire_failFast() throws Exception {
+    ConcurrencyLimiter limiter =
+        new ConcurrencyLimiter.Builder().setInitialLimit(1).setMaxQueueSize(0).build();
+    ConcurrencyLimiter.Permit permit = limiter.acquire("example.com");
+    try {
+      limiter.acquire("example.com");
+      fail("expected " + ConcurrencyLimitExceededException.class);
+    } catch (ConcurrencyLimitExceededException e) {
+      assertEquals("example.com", e.getHost());
+      assertEquals(1, e.getLimit());
+    }
+    // other hosts have their own limit
+    limiter.acquire("other.com").release(200, null);
+    permit.release(200, null);
+    limiter.acquire("example.com");
+    assertEquals(1, limiter.getStats().getRejectedCount());
+  }
+
+  public void testAcquire_queued() throws Exception {
+    final ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(1)
+        .setMaxQueueSize(1)
+        .setMaxQueueTime(5000)
+        .build();
+    final ConcurrencyLimiter.Permit permit = limiter.acquire("example.com");
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          // ignore
+        }
+        permit.release(-1, null);
+      }
+    }.start();
+    limiter.acquire("example.com");
+    assertEquals(1, limiter.getStats().getQueuedCount());
+    assertEquals(Integer.valueOf(1), limiter.getStats().getInFlightByHost().get("example.com"));
+  }
+
+  public void testAcquire_queueTimeout() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(1)
+        .setMaxQueueSize(1)
+        .setMaxQueueTime(10)
+        .build();
+    limiter.acquire("example.com");
+    try {
+      limiter.acquire("example.com");
+      fail("expected " + ConcurrencyLimitExceededException.class);
+    } catch (ConcurrencyLimitExceededException e) {
+      // expected
+    }
+    assertEquals(1, limiter.getStats().getQueuedCount());
+    assertEquals(1, limiter.getStats().getRejectedCount());
+  }
+
+  public void testAcquire_noWait() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(1)
+        .setMaxQueueSize(10)
+        .setMaxQueueTime(5000)
+        .build();
+    limiter.acquire("example.com", false);
+    long start = System.nanoTime();
+    try {
+      limiter.acquire("example.com", false);
+      fail("expected " + ConcurrencyLimitExceededException.class);
+    } catch (ConcurrencyLimitExceededException e) {
+      // expected
+    }
+    assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    assertEquals(0, limiter.getStats().getQueuedCount());
+  }
+
+  public void testExecuteAsync_runtimeException() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(1).build();
+    final RuntimeException failure = new IllegalStateException("broken");
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public void executeAsync(LowLevelHttpResponseCallback callback) {
+            throw failure;
+          }
+        };
+      }
+    };
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Throwable[] result = new Throwable[1];
+    transport.createRequestFactory()
+        .withConcurrencyLimiter(limiter)
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .executeAsync(new HttpResponseCallback() {
+          public void onResponse(HttpResponse response) {
+            latch.countDown();
+          }
+
+          public void onFailure(Throwable cause) {
+            result[0] = cause;
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(5, TimeUnit.SECONDS));
+    assertSame(failure, result[0]);
+    assertEquals(0, limiter.getInFlight(HttpTesting.SIMPLE_GENERIC_URL.getHost()));
+  }
+
+  public void testExecute() throws Exception {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter.Builder().setInitialLimit(1).build();
+    MockHttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(503))
+        .build();
+    HttpRequestFactory requestFactory =
+        transport.createRequestFactory().withConcurrencyLimiter(limiter);
+    assertSame(limiter, requestFactory.getConcurrencyLimiter());
+    HttpRequest request = requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    assertSame(limiter, request.getConcurrencyLimiter());
+    request.setThrowExceptionOnExecuteError(false);
+    assertEquals(503, request.execute().getStatusCode());
+    String host = HttpTesting.SIMPLE_GENERIC_URL.getHost();
+    assertEquals(0, limiter.getInFlight(host));
+    assertEquals(1, limiter.getStats().getDroppedCount());
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ContentCodingRegistry}.
+ */
+public class ContentCodingRegistryTest extends TestCase {
+
+  /** Decoding which upper-cases ASCII content. */
+  static class UpperCaseDecoding implements HttpDecoding {
+
+    public String getName() {
+      return "upper";
+    }
+
+    public InputStream decode(InputStream content) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      IOUtils.copy(content, out);
+      return new ByteArrayInputStream(
+          StringUtils.getBytesUtf8(StringUtils.newStringUtf8(out.toByteArray()).toUpperCase()));
+    }
+  }
+
+  private static byte[] encode(HttpEncoding encoding, String value) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoding.encode(new ByteArrayContent(null, StringUtils.getBytesUtf8(value)), out);
+    return out.toByteArray();
+  }
+
+  private static String decode(ContentCodingRegistry registry, String contentEncoding,
+      byte[] content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copy(registry.decode(contentEncoding, new ByteArrayInputStream(content)), out);
+    return StringUtils.newStringUtf8(out.toByteArray());
+  }
+
+  public void testDefault() throws IOException {
+    ContentCodingRegistry registry = ContentCodingRegistry.getDefault();
+    assertEquals("gzip, deflate", registry.getAcceptEncoding());
+    assertEquals("abc", decode(registry, "gzip", encode(new GZipEncoding(), "abc")));
+    assertEquals("abc", decode(registry, "X-GZIP", encode(new GZipEncoding(), "abc")));
+    assertEquals("abc", decode(registry, "deflate", encode(new DeflateEncoding(), "abc")));
+    assertEquals("abc", decode(registry, "identity", StringUtils.getBytesUtf8("abc")));
+    assertEquals("abc", decode(registry, null, StringUtils.getBytesUtf8("abc")));
+    assertTrue(registry.getEncoding("Deflate") instanceof DeflateEncoding);
+  }
+
+  public void testRawDeflate() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    DeflaterOutputStream deflater =
+        new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    deflater.write(StringUtils.getBytesUtf8("raw deflate"));
+    deflater.close();
+    assertEquals("raw deflate",
+        decode(ContentCodingRegistry.getDefault(), "deflate", out.toByteArray()));
+    assertEquals("", decode(ContentCodingRegistry.getDefault(), "deflate", new byte[0]));
+  }
+
+  public void testRegisterDecoding() throws IOException {
+    ContentCodingRegistry registry = new ContentCodingRegistry();
+    assertEquals("identity", registry.getAcceptEncoding());
+    registry.registerDecoding(new GZipEncoding()).registerDecoding(new UpperCaseDecoding());
+    assertEquals("gzip, upper", registry.getAcceptEncoding());
+    // decoded in reverse order of application
+    assertEquals("ABC", decode(registry, "upper, gzip", encode(new GZipEncoding(), "abc")));
+    // decoding stops at unknown codings
+    assertEquals("abc", decode(registry, "upper, br", StringUtils.getBytesUtf8("abc")));
+  }
+
+  public void testAcceptEncodingNegotiation() throws Exception {
+    final MockLowLevelHttpRequest lowLevelRequest = new MockLowLevelHttpRequest() {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        return new MockLowLevelHttpResponse().setContentEncoding("deflate")
+            .setContent(encode(new DeflateEncoding(), "content"));
+      }
+    };
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpRequest(lowLevelRequest).build();
+    HttpRequest request =
+        transport.createRequestFactory().buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    assertEquals("content", request.execute().parseAsString());
+    assertEquals("gzip, deflate", lowLevelRequest.getFirstHeaderValue("Accept-Encoding"));
+    assertEquals("gzip", request.getHeaders().getAcceptEncoding());
+    // explicitly set header is not negotiated
+    request.getHeaders().setAcceptEncoding("identity");
+    request.execute();
+    assertEquals(Arrays.asList("gzip, deflate", "identity"),
+        lowLevelRequest.getHeaderValues("Accept-Encoding"));
+  }
+}
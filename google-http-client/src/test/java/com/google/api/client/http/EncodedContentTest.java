@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.StreamingContent;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link EncodedContent}.
+ */
+public class EncodedContentTest extends TestCase {
+
+  /** Content which counts how many times it was written. */
+  static class CountingContent implements HttpContent {
+
+    final byte[] bytes;
+    int writeCount;
+
+    CountingContent(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    public long getLength() {
+      return bytes.length;
+    }
+
+    public String getType() {
+      return "text/plain";
+    }
+
+    public boolean retrySupported() {
+      return true;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+      writeCount++;
+      out.write(bytes);
+    }
+  }
+
+  private static byte[] encodeDirectly(HttpEncoding encoding, byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoding.encode(new ByteArrayContent(null, bytes), out);
+    return out.toByteArray();
+  }
+
+  private static byte[] write(EncodedContent content) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    content.writeTo(out);
+    return out.toByteArray();
+  }
+
+  public void testInMemory() throws IOException {
+    byte[] bytes = StringUtils.getBytesUtf8("abcdefghijklmnopqrstuvwxyz");
+    CountingContent content = new CountingContent(bytes);
+    EncodedContent encoded = EncodedContent.encode(content, new GZipEncoding());
+    byte[] expected = encodeDirectly(new GZipEncoding(), bytes);
+    assertFalse(encoded.isOnDisk());
+    assertEquals(expected.length, encoded.getLength());
+    assertTrue(Arrays.equals(expected, write(encoded)));
+    assertTrue(Arrays.equals(expected, write(encoded)));
+    assertEquals(1, content.writeCount);
+    encoded.release();
+    assertEquals(0, encoded.getLength());
+  }
+
+  public void testSpillToDisk() throws IOException {
+    // random bytes do not compress
+    byte[] bytes = new byte[EncodedContent.MAX_MEMORY_BYTES + 1000];
+    new Random(1).nextBytes(bytes);
+    EncodedContent encoded =
+        EncodedContent.encode(new ByteArrayContent(null, bytes), new GZipEncoding());
+    byte[] expected = encodeDirectly(new GZipEncoding(), bytes);
+    assertTrue(encoded.isOnDisk());
+    assertEquals(expected.length, encoded.getLength());
+    assertTrue(Arrays.equals(expected, write(encoded)));
+    encoded.release();
+    assertFalse(encoded.isOnDisk());
+  }
+
+  public void testEncodedOnceAcrossRetries() throws Exception {
+    final int[] attempts = new int[1];
+    final long[] contentLengths = new long[2];
+    HttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            contentLengths[attempts[0]] = getContentLength();
+            // consume the content like a real transport
+            getStreamingContent().writeTo(new ByteArrayOutputStream());
+            return new MockLowLevelHttpResponse().setStatusCode(attempts[0]++ == 0 ? 500 : 200);
+          }
+        };
+      }
+    };
+    CountingContent content = new CountingContent(StringUtils.getBytesUtf8("content"));
+    HttpRequest request = transport.createRequestFactory()
+        .buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL, content)
+        .setEncoding(new GZipEncoding())
+        // content logging would require a second encoding pass
+        .setLoggingEnabled(false)
+        .setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+          public boolean handleResponse(
+              HttpRequest request, HttpResponse response, boolean supportsRetry) {
+            return true;
+          }
+        });
+    request.execute();
+    assertEquals(2, attempts[0]);
+    assertEquals(1, content.writeCount);
+    long expectedLength =
+        encodeDirectly(new GZipEncoding(), StringUtils.getBytesUtf8("content")).length;
+    assertEquals(expectedLength, contentLengths[0]);
+    assertEquals(expectedLength, contentLengths[1]);
+  }
+
+  public void testMinimumLength() throws Exception {
+    MockLowLevelHttpRequest lowLevelRequest = new MockLowLevelHttpRequest();
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpRequest(lowLevelRequest).build();
+    transport.createRequestFactory()
+        .buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL,
+            new ByteArrayContent(null, StringUtils.getBytesUtf8("short")))
+        .setEncoding(new GZipEncoding().setMinimumLength(6))
+        .execute();
+    assertNull(lowLevelRequest.getContentEncoding());
+    assertEquals(5, lowLevelRequest.getContentLength());
+    transport.createRequestFactory()
+        .buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL,
+            new ByteArrayContent(null, StringUtils.getBytesUtf8("longer")))
+        .setEncoding(new GZipEncoding().setMinimumLength(6))
+        .execute();
+    assertEquals("gzip", lowLevelRequest.getContentEncoding());
+  }
+
+  public void testMinimumLength_otherEncoding() throws Exception {
+    MockLowLevelHttpRequest lowLevelRequest = new MockLowLevelHttpRequest();
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpRequest(lowLevelRequest).build();
+    transport.createRequestFactory()
+        .buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL,
+            new ByteArrayContent(null, StringUtils.getBytesUtf8("short")))
+        .setEncoding(new MinimumLengthEncoding() {
+          public String getName() {
+            return "identity-test";
+          }
+
+          public void encode(StreamingContent content, OutputStream out) throws IOException {
+            content.writeTo(out);
+          }
+
+          public long getMinimumLength() {
+            return 100;
+          }
+        })
+        .execute();
+    assertNull(lowLevelRequest.getContentEncoding());
+  }
+
+  public void testCompressionLevel() throws IOException {
+    byte[] bytes = new byte[10000];
+    byte[] stored = encodeDirectly(new GZipEncoding().setCompressionLevel(0), bytes);
+    byte[] best = encodeDirectly(new GZipEncoding().setCompressionLevel(9), bytes);
+    assertTrue(stored.length > bytes.length);
+    assertTrue(best.length < 100);
+    try {
+      new GZipEncoding().setCompressionLevel(10);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.http.HttpHeadersTest.MyHeaders;
+import com.google.api.client.http.HttpRequestTest.E;
+import com.google.api.client.util.Data;
+import com.google.api.client.util.Key;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link HeaderWriter}.
+ */
+public class HeaderWriterTest extends TestCase {
+
+  /** Low-level HTTP request which records the added headers in order. */
+  static class RecordingRequest extends LowLevelHttpRequest {
+
+    final List<String> headers = new ArrayList<String>();
+
+    @Override
+    public void addHeader(String name, String value) {
+      headers.add(name + ": " + value);
+    }
+
+    @Override
+    public LowLevelHttpResponse execute() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  public static class SubHeaders extends MyHeaders {
+
+    @Key("X-Linked")
+    LinkedList<String> linked;
+
+    @Key
+    Long count;
+  }
+
+  public static class DuplicateHeaders extends HttpHeaders {
+
+    @Key("X-ID")
+    String upper;
+
+    @Key("x-id")
+    String lower;
+  }
+
+  /** Returns the headers added by the writer of the given headers. */
+  private static List<String> write(HttpHeaders headers) throws Exception {
+    RecordingRequest request = new RecordingRequest();
+    HeaderWriter.of(headers).write(headers, request);
+    return request.headers;
+  }
+
+  /** Returns the headers added by the generic serialization, used when logging. */
+  private static List<String> serializeGeneric(HttpHeaders headers) throws Exception {
+    RecordingRequest request = new RecordingRequest();
+    HttpHeaders.serializeHeaders(headers, null, new StringBuilder(), null, request, null);
+    return request.headers;
+  }
+
+  public void testWrite() throws Exception {
+    SubHeaders headers = new SubHeaders();
+    headers.foo = "bar";
+    headers.objNum = 5;
+    headers.list = Arrays.asList("a", null, "c");
+    headers.objList = Arrays.asList("a2", "b2");
+    headers.r = new String[] {"a1", "a2"};
+    headers.value = E.VALUE;
+    headers.linked = new LinkedList<String>(Arrays.asList("l1", "l2"));
+    headers.count = 7L;
+    headers.setContentLength(Long.MAX_VALUE);
+    headers.setUserAgent(Data.NULL_STRING);
+    headers.setAuthorization("auth");
+    headers.set("unknown", Arrays.asList("u1", "u2"));
+    headers.set("single", 3);
+    List<String> written = write(headers);
+    assertEquals(serializeGeneric(headers), written);
+    assertTrue(written.contains("X-Linked: l2"));
+    assertTrue(written.contains("count: 7"));
+    assertTrue(written.contains("value: VALUE"));
+    assertTrue(written.contains("Content-Length: " + Long.MAX_VALUE));
+    assertTrue(written.contains("unknown: u2"));
+    assertFalse(written.toString().contains("User-Agent"));
+    assertFalse(written.toString().contains("null"));
+  }
+
+  public void testDefaultHeaders() throws Exception {
+    HttpHeaders headers = new HttpHeaders();
+    assertEquals(Arrays.asList("Accept-Encoding: gzip"), write(headers));
+    headers.setAcceptEncoding(null).setContentType("text/plain").set("X-Custom", "v");
+    assertEquals(Arrays.asList("Content-Type: text/plain", "x-custom: v"), write(headers));
+    assertEquals(serializeGeneric(headers), write(headers));
+  }
+
+  public void testCached() {
+    assertSame(HeaderWriter.of(new HttpHeaders()), HeaderWriter.of(new HttpHeaders()));
+    assertSame(HeaderWriter.of(new SubHeaders()), HeaderWriter.of(new SubHeaders()));
+  }
+
+  public void testDuplicateHeaderNames() {
+    // in the Turkish locale the field names differ once lower cased, but not the header names
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      HeaderWriter.of(new DuplicateHeaders());
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+}
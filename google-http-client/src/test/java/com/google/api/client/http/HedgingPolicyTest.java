@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link HedgingPolicy}.
+ */
+public class HedgingPolicyTest extends TestCase {
+
+  /** Transport whose first request blocks until released and whose other requests are fast. */
+  static class SlowFirstTransport extends MockHttpTransport {
+
+    final AtomicInteger requestCount = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch slowDisconnected = new CountDownLatch(1);
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      final int index = requestCount.getAndIncrement();
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          if (index != 0) {
+            return new MockLowLevelHttpResponse().setContent("fast")
+                .addHeader("server", "fast");
+          }
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            throw new IOException(e.getMessage());
+          }
+          return new MockLowLevelHttpResponse() {
+            @Override
+            public void disconnect() {
+              slowDisconnected.countDown();
+            }
+          }.setContent("slow").addHeader("server", "slow");
+        }
+      };
+    }
+  }
+
+  public void testIsHedgeable() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy();
+    HttpRequestFactory requestFactory = new MockHttpTransport().createRequestFactory();
+    assertTrue(policy.isHedgeable(requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)));
+    assertTrue(
+        policy.isHedgeable(requestFactory.buildHeadRequest(HttpTesting.SIMPLE_GENERIC_URL)));
+    HttpRequest put = requestFactory.buildPutRequest(HttpTesting.SIMPLE_GENERIC_URL,
+        ByteArrayContent.fromString(null, "content"));
+    assertFalse(policy.isHedgeable(put));
+    assertTrue(policy.isHedgeable(put.setIdempotent(true)));
+    assertFalse(policy.isHedgeable(requestFactory.buildPostRequest(
+        HttpTesting.SIMPLE_GENERIC_URL, new EmptyContent()).setIdempotent(true)));
+  }
+
+  public void testGetDelayMillis() {
+    HedgingPolicy policy =
+        new HedgingPolicy.Builder().setDelay(500).setPercentile(0.95).setMinSamples(20).build();
+    for (int i = 1; i < 20; i++) {
+      policy.recordLatency("example.com", i * 1000000L);
+    }
+    assertEquals(500, policy.getDelayMillis("example.com"));
+    for (int i = 20; i <= 100; i++) {
+      policy.recordLatency("EXAMPLE.com", i * 1000000L);
+    }
+    assertEquals(95, policy.getDelayMillis("example.com"));
+    assertEquals(500, policy.getDelayMillis("other.com"));
+    assertEquals(500, new HedgingPolicy.Builder().setDelay(500).setPercentile(0).build()
+        .getDelayMillis("example.com"));
+  }
+
+  public void testExecute_fast() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy.Builder().setDelay(10000).build();
+    MockHttpTransport transport = new MockHttpTransport();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).setHedgingPolicy(policy);
+    HttpResponse response = request.execute();
+    assertEquals(200, response.getStatusCode());
+    assertEquals(1, policy.getStats().getRequestCount());
+    assertEquals(0, policy.getStats().getHedgeCount());
+  }
+
+  public void testExecute_hedged() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy.Builder().setDelay(10).build();
+    SlowFirstTransport transport = new SlowFirstTransport();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).setHedgingPolicy(policy);
+    HttpResponse response = request.execute();
+    assertEquals("fast", response.parseAsString());
+    assertEquals("fast", request.getResponseHeaders().getFirstHeaderStringValue("server"));
+    assertEquals(2, transport.requestCount.get());
+    HedgingPolicy.Stats stats = policy.getStats();
+    assertEquals(1, stats.getHedgeCount());
+    assertEquals(1, stats.getHedgeWinCount());
+    // the slow response is disconnected once it arrives
+    transport.release.countDown();
+    assertTrue(transport.slowDisconnected.await(5, TimeUnit.SECONDS));
+  }
+
+  public void testExecute_budgetExhausted() throws Exception {
+    HedgingPolicy policy =
+        new HedgingPolicy.Builder().setDelay(10).setMaxBudget(0.5).setBudgetRatio(0).build();
+    final SlowFirstTransport transport = new SlowFirstTransport();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).setHedgingPolicy(policy);
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          // ignore
+        }
+        transport.release.countDown();
+      }
+    }.start();
+    assertEquals("slow", request.execute().parseAsString());
+    assertEquals(1, transport.requestCount.get());
+    assertEquals(0, policy.getStats().getHedgeCount());
+    assertEquals(1, policy.getStats().getBudgetExhaustedCount());
+  }
+
+  public void testExecute_latencyOfSuccessfulAttempt() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy.Builder()
+        .setDelay(10000).setPercentile(1).setMinSamples(1).build();
+    final AtomicInteger requestCount = new AtomicInteger();
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        final int index = requestCount.getAndIncrement();
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() {
+            return new MockLowLevelHttpResponse().setStatusCode(index == 0 ? 503 : 200);
+          }
+        };
+      }
+    };
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setHedgingPolicy(policy)
+        .setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+          public boolean handleResponse(
+              HttpRequest request, HttpResponse response, boolean supportsRetry) {
+            try {
+              Thread.sleep(500);
+            } catch (InterruptedException e) {
+              return false;
+            }
+            return true;
+          }
+        });
+    assertEquals(200, request.execute().getStatusCode());
+    assertEquals(2, requestCount.get());
+    // the back-off before the successful attempt is not part of its latency
+    assertTrue(policy.getDelayMillis(HttpTesting.SIMPLE_GENERIC_URL.getHost()) < 500);
+  }
+
+  public void testExecute_unsuccessfulLatencyNotRecorded() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy.Builder()
+        .setDelay(10000).setPercentile(1).setMinSamples(1).build();
+    MockHttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(404))
+        .build();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setHedgingPolicy(policy)
+        .setThrowExceptionOnExecuteError(false);
+    assertEquals(404, request.execute().getStatusCode());
+    assertEquals(10000, policy.getDelayMillis(HttpTesting.SIMPLE_GENERIC_URL.getHost()));
+  }
+
+  public void testExecute_loserStopsRetrying() throws Exception {
+    HedgingPolicy policy = new HedgingPolicy.Builder().setDelay(10).build();
+    final AtomicInteger requestCount = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch primaryDone = new CountDownLatch(1);
+    MockHttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        final int index = requestCount.getAndIncrement();
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            if (index == 1) {
+              // the hedge
+              return new MockLowLevelHttpResponse().setContent("fast");
+            }
+            if (index == 0) {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+              }
+            }
+            return new MockLowLevelHttpResponse().setStatusCode(503);
+          }
+        };
+      }
+    };
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setHedgingPolicy(policy)
+        .setNumberOfRetries(10)
+        .setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+          public boolean handleResponse(
+              HttpRequest request, HttpResponse response, boolean supportsRetry) {
+            return supportsRetry;
+          }
+        })
+        .setResponseInterceptor(new HttpResponseInterceptor() {
+          public void interceptResponse(HttpResponse response) {
+            if (response.getStatusCode() == 503) {
+              primaryDone.countDown();
+            }
+          }
+        });
+    assertEquals("fast", request.execute().parseAsString());
+    release.countDown();
+    assertTrue(primaryDone.await(5, TimeUnit.SECONDS));
+    // the primary request lost the race and made no retry
+    assertEquals(2, requestCount.get());
+  }
+}
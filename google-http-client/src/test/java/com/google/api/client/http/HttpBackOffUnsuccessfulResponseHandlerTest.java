@@ -15,9 +15,13 @@
 package com.google.api.client.http;
 
 import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler.BackOffRequired;
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.client.testing.util.MockBackOff;
 import com.google.api.client.testing.util.MockSleeper;
 import com.google.api.client.util.BackOff;
+import com.google.api.client.util.Clock;
 import java.io.IOException;
 import junit.framework.TestCase;
 
@@ -60,4 +64,89 @@ public class HttpBackOffUnsuccessfulResponseHandlerTest extends TestCase {
     }
     assertEquals(count, sleeper.getCount());
   }
+
+  private static HttpResponse executeWithRetryAfter(String retryAfter, String date)
+      throws IOException {
+    MockLowLevelHttpResponse lowLevelResponse = new MockLowLevelHttpResponse().setStatusCode(503);
+    lowLevelResponse.addHeader("Retry-After", retryAfter);
+    if (date != null) {
+      lowLevelResponse.addHeader("Date", date);
+    }
+    return new MockHttpTransport.Builder().setLowLevelHttpResponse(lowLevelResponse)
+        .build()
+        .createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setThrowExceptionOnExecuteError(false)
+        .execute();
+  }
+
+  public void testGetRetryAfterMillis() throws IOException {
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    long now = 784111777000L;
+    assertEquals(120000, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("120", null), now));
+    assertEquals(30000, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("Sun, 06 Nov 1994 08:50:07 GMT", null), now));
+    assertEquals(30000, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("Sunday, 06-Nov-94 08:50:07 GMT", null), now));
+    assertEquals(30000, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("Sun Nov  6 08:50:07 1994", null), now));
+    // resolved against the date of the server
+    assertEquals(10000, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("Sun, 06 Nov 1994 08:50:07 GMT", "Sun, 06 Nov 1994 08:49:57 GMT"),
+        now));
+    // in the past
+    assertEquals(0, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("Sun, 06 Nov 1994 08:49:07 GMT", null), now));
+    // huge delta-seconds saturate instead of overflowing
+    assertEquals(Long.MAX_VALUE, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter(String.valueOf(Long.MAX_VALUE / 100), null), now));
+    assertEquals(Long.MAX_VALUE, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("99999999999999999999999", null), now));
+    assertEquals(-1, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(
+        executeWithRetryAfter("soon", null), now));
+    assertEquals(-1, HttpBackOffUnsuccessfulResponseHandler.getRetryAfterMillis(null, now));
+  }
+
+  public void testHandleResponse_retryAfter() throws IOException {
+    MockSleeper sleeper = new MockSleeper();
+    HttpBackOffUnsuccessfulResponseHandler handler = new HttpBackOffUnsuccessfulResponseHandler(
+        new MockBackOff().setBackOffMillis(4000).setMaxTries(10)).setSleeper(sleeper)
+        .setClock(new Clock() {
+          public long currentTimeMillis() {
+            return 784111777000L;
+          }
+        });
+    assertTrue(handler.handleResponse(null, executeWithRetryAfter("10", null), true));
+    assertEquals(10000, sleeper.getLastMillis());
+    // the back-off period is longer
+    assertTrue(handler.handleResponse(null, executeWithRetryAfter("2", null), true));
+    assertEquals(4000, sleeper.getLastMillis());
+    assertTrue(handler.handleResponse(
+        null, executeWithRetryAfter("Sun, 06 Nov 1994 08:50:07 GMT", null), true));
+    assertEquals(30000, sleeper.getLastMillis());
+    // longer than the maximum
+    assertFalse(handler.handleResponse(null, executeWithRetryAfter("61", null), true));
+    handler.setMaxRetryAfterMillis(120000);
+    assertTrue(handler.handleResponse(null, executeWithRetryAfter("61", null), true));
+    assertEquals(61000, sleeper.getLastMillis());
+    // a huge period is longer than the maximum rather than an immediate retry
+    assertFalse(handler.handleResponse(
+        null, executeWithRetryAfter(String.valueOf(Long.MAX_VALUE / 100), null), true));
+    assertEquals(4, sleeper.getCount());
+  }
+
+  public void testOnServerErrorOrTooManyRequests() throws IOException {
+    BackOffRequired backOffRequired = BackOffRequired.ON_SERVER_ERROR_OR_TOO_MANY_REQUESTS;
+    assertTrue(backOffRequired.isRequired(executeWithRetryAfter("1", null)));
+    HttpResponse response = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(429))
+        .build()
+        .createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setThrowExceptionOnExecuteError(false)
+        .execute();
+    assertTrue(backOffRequired.isRequired(response));
+    assertFalse(BackOffRequired.ON_SERVER_ERROR.isRequired(response));
+  }
 }
@@ -23,6 +23,7 @@ import com.google.api.client.testing.util.LogRecordingHandler;
 import com.google.api.client.testing.util.MockBackOff;
 import com.google.api.client.testing.util.MockSleeper;
 import com.google.api.client.util.BackOff;
+import com.google.api.client.util.GenericData;
 import com.google.api.client.util.Key;
 import com.google.api.client.util.LoggingStreamingContent;
 import com.google.api.client.util.StringUtils;
@@ -35,9 +36,13 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -977,7 +982,7 @@ public class HttpRequestTest extends TestCase {
           @Override
           public LowLevelHttpResponse execute() throws IOException {
             if (expectGZip) {
-              assertEquals(HttpEncodingStreamingContent.class, getStreamingContent().getClass());
+              assertEquals(EncodedContent.class, getStreamingContent().getClass());
               assertEquals("gzip", getContentEncoding());
               assertEquals(25, getContentLength());
             } else {
@@ -1142,6 +1147,172 @@ public class HttpRequestTest extends TestCase {
     assertNotNull(futureResponse.get(10, TimeUnit.MILLISECONDS));
   }
 
+  public void testExecuteAsync_callbackWithRetries() throws Exception {
+    FailThenSuccessConnectionErrorTransport fakeTransport =
+        new FailThenSuccessConnectionErrorTransport(2);
+    HttpRequest req =
+        fakeTransport.createRequestFactory().buildGetRequest(new GenericUrl("http://not/used"));
+    req.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(BackOff.ZERO_BACKOFF));
+    final HttpResponse[] result = new HttpResponse[1];
+    req.executeAsync(new HttpResponseCallback() {
+
+      public void onResponse(HttpResponse response) {
+        result[0] = response;
+      }
+
+      public void onFailure(Throwable cause) {
+        fail(cause.toString());
+      }
+    });
+    Assert.assertEquals(200, result[0].getStatusCode());
+    Assert.assertEquals(3, fakeTransport.lowLevelExecCalls);
+  }
+
+  public void testExecuteAsync_scheduledBackOff() throws Exception {
+    FailThenSuccessConnectionErrorTransport fakeTransport =
+        new FailThenSuccessConnectionErrorTransport(2);
+    final List<Long> delays = Lists.newArrayList();
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1) {
+      @Override
+      public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        delays.add(unit.toMillis(delay));
+        return super.schedule(command, delay, unit);
+      }
+    };
+    MockSleeper sleeper = new MockSleeper();
+    HttpRequest req =
+        fakeTransport.createRequestFactory().buildGetRequest(new GenericUrl("http://not/used"));
+    req.setIOExceptionHandler(new HttpBackOffIOExceptionHandler(
+        new MockBackOff().setBackOffMillis(10)).setSleeper(sleeper));
+    req.setRetryScheduler(scheduler).setExecutor(DIRECT_EXECUTOR);
+    final HttpResponse[] result = new HttpResponse[1];
+    final CountDownLatch latch = new CountDownLatch(1);
+    req.executeAsync(new HttpResponseCallback() {
+
+      public void onResponse(HttpResponse response) {
+        result[0] = response;
+        latch.countDown();
+      }
+
+      public void onFailure(Throwable cause) {
+        latch.countDown();
+      }
+    });
+    Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(200, result[0].getStatusCode());
+    Assert.assertEquals(3, fakeTransport.lowLevelExecCalls);
+    Assert.assertEquals(Arrays.asList(10L, 10L), delays);
+    // no thread slept during the back-off
+    Assert.assertEquals(0, sleeper.getCount());
+    scheduler.shutdown();
+  }
+
+  public void testExecuteAsync_callbackFailure() throws Exception {
+    FailThenSuccessConnectionErrorTransport fakeTransport =
+        new FailThenSuccessConnectionErrorTransport(2);
+    HttpRequest req =
+        fakeTransport.createRequestFactory().buildGetRequest(new GenericUrl("http://not/used"));
+    final Throwable[] result = new Throwable[1];
+    req.executeAsync(new HttpResponseCallback() {
+
+      public void onResponse(HttpResponse response) {
+        fail();
+      }
+
+      public void onFailure(Throwable cause) {
+        result[0] = cause;
+      }
+    });
+    Assert.assertTrue(result[0] instanceof IOException);
+    Assert.assertEquals(1, fakeTransport.lowLevelExecCalls);
+  }
+
+  static final Executor DIRECT_EXECUTOR = new Executor() {
+
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  public void testExecuteFuture() throws Exception {
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent("content"))
+        .build();
+    HttpRequest request =
+        transport.createRequestFactory().buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    assertNull(request.getExecutor());
+    HttpFuture<HttpResponse> future = request.executeFuture();
+    assertEquals("content", future.get(10, TimeUnit.SECONDS).parseAsString());
+    assertTrue(future.isDone());
+    assertFalse(future.isCancelled());
+  }
+
+  public void testExecuteFuture_callback() throws Exception {
+    FailThenSuccessConnectionErrorTransport fakeTransport =
+        new FailThenSuccessConnectionErrorTransport(2);
+    HttpRequest request = fakeTransport.createRequestFactory()
+        .buildGetRequest(new GenericUrl("http://not/used"))
+        .setExecutor(DIRECT_EXECUTOR);
+    final Throwable[] result = new Throwable[1];
+    HttpFuture<HttpResponse> future = request.executeFuture().addCallback(
+        new HttpFuture.Callback<HttpResponse>() {
+
+          public void onSuccess(HttpResponse response) {
+            fail();
+          }
+
+          public void onFailure(Throwable exception) {
+            result[0] = exception;
+          }
+        });
+    assertTrue(result[0] instanceof IOException);
+    try {
+      future.get();
+      fail("expected " + ExecutionException.class);
+    } catch (ExecutionException e) {
+      assertSame(result[0], e.getCause());
+    }
+  }
+
+  public void testParseAsAsync() throws Exception {
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse()
+            .setContentType(UrlEncodedParser.MEDIA_TYPE).setContent("a=b&c=d"))
+        .build();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setParser(new UrlEncodedParser())
+        .setExecutor(DIRECT_EXECUTOR);
+    GenericData data = request.parseAsAsync(GenericData.class).get();
+    assertEquals(Arrays.asList("b"), data.get("a"));
+    assertEquals(Arrays.asList("d"), data.get("c"));
+  }
+
+  public void testExecuteFuture_cancel() throws Exception {
+    final List<Runnable> tasks = Lists.newArrayList();
+    HttpTransport transport = new MockHttpTransport();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setExecutor(new Executor() {
+
+          public void execute(Runnable command) {
+            tasks.add(command);
+          }
+        });
+    HttpFuture<HttpResponse> future = request.executeFuture();
+    assertEquals(1, tasks.size());
+    assertTrue(future.cancel(false));
+    assertTrue(future.isCancelled());
+    assertFalse(future.cancel(false));
+    tasks.get(0).run();
+    try {
+      future.get();
+      fail("expected " + CancellationException.class);
+    } catch (CancellationException e) {
+      // expected
+    }
+  }
+
   public void testExecute_redirects() throws Exception {
     class MyTransport extends MockHttpTransport {
       int count = 1;
@@ -1196,7 +1367,7 @@ public class HttpRequestTest extends TestCase {
     for (String message : recorder.messages()) {
       if (message.startsWith("curl")) {
         found = true;
-        assertEquals("curl -v --compressed -H 'Accept-Encoding: gzip' -H 'User-Agent: "
+        assertEquals("curl -v --compressed -H 'Accept-Encoding: gzip, deflate' -H 'User-Agent: "
             + HttpRequest.USER_AGENT_SUFFIX + "' -- 'http://google.com/#q=a'\"'\"'b'\"'\"'c'",
             message);
       }
@@ -1220,8 +1391,8 @@ public class HttpRequestTest extends TestCase {
         .setEncoding(new GZipEncoding()).execute();
 
     boolean found = false;
-    final String expectedCurlLog = "curl -v --compressed -X POST -H 'Accept-Encoding: gzip' "
-        + "-H 'User-Agent: " + HttpRequest.USER_AGENT_SUFFIX
+    final String expectedCurlLog = "curl -v --compressed -X POST "
+        + "-H 'Accept-Encoding: gzip, deflate' -H 'User-Agent: " + HttpRequest.USER_AGENT_SUFFIX
         + "' -H 'Content-Type: text/plain; charset=UTF-8' -H 'Content-Encoding: gzip' "
         + "-d '@-' -- 'http://google.com/#q=a'\"'\"'b'\"'\"'c' << $$$";
     for (String message : recorder.messages()) {
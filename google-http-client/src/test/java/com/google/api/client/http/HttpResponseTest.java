@@ -26,6 +26,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.logging.Level;
 import junit.framework.TestCase;
@@ -398,4 +399,22 @@ public class HttpResponseTest extends TestCase {
         transport.createRequestFactory().buildHeadRequest(HttpTesting.SIMPLE_GENERIC_URL);
     request.execute().getContent();
   }
+
+  public void testReadContent() throws IOException {
+    HttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setContent("abcdef"))
+        .build();
+    HttpResponse response = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).execute();
+    ByteBuffer heap = ByteBuffer.allocate(2);
+    ByteBuffer direct = ByteBuffer.allocateDirect(3);
+    assertEquals(5, response.readContent(heap, direct));
+    assertEquals('a', heap.get(0));
+    assertEquals('e', direct.get(2));
+    ByteBuffer rest = ByteBuffer.allocate(4);
+    assertEquals(1, response.readContent(rest));
+    assertEquals('f', rest.get(0));
+    assertEquals(-1, response.readContent(ByteBuffer.allocate(1)));
+    assertSame(response.getContentChannel(), response.getContentChannel());
+  }
 }
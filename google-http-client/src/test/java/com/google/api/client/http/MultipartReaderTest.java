@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.IOUtils;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link MultipartReader}.
+ */
+public class MultipartReaderTest extends TestCase {
+
+  static final String BOUNDARY = "__END_OF_PART__";
+
+  /** Input stream returning at most one byte per read. */
+  static class TrickleInputStream extends FilterInputStream {
+
+    TrickleInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return super.read(b, off, Math.min(len, 1));
+    }
+  }
+
+  /** Input stream of the given number of bytes that counts how many bytes have been read. */
+  static class LargeInputStream extends InputStream {
+
+    final long size;
+    long read;
+
+    LargeInputStream(long size) {
+      this.size = size;
+    }
+
+    @Override
+    public int read() {
+      if (read == size) {
+        return -1;
+      }
+      return (int) (read++ % 26) + 'a';
+    }
+  }
+
+  static InputStream stream(String content) {
+    return new ByteArrayInputStream(StringUtils.getBytesUtf8(content));
+  }
+
+  static String readString(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copy(in, out);
+    return StringUtils.newStringUtf8(out.toByteArray());
+  }
+
+  public void testNextPart() throws Exception {
+    String content = "preamble\r\n--" + BOUNDARY + "  \r\n"
+        + "Content-Type: text/plain\r\nX-Folded: a\r\n  b\r\n\r\n"
+        + "first\r\n-- line\r\n--" + BOUNDARY + "\r\n"
+        + "\r\n"
+        + "\r\n--" + BOUNDARY + "\n"
+        + "Content-Type: text/html\n\nbare\nline feeds\n--" + BOUNDARY + "--\r\nepilogue";
+    for (InputStream in : new InputStream[] {
+        stream(content), new TrickleInputStream(stream(content))}) {
+      MultipartReader reader = new MultipartReader(in, BOUNDARY);
+      MultipartReader.Part part = reader.nextPart();
+      assertEquals("text/plain", part.getHeaders().getContentType());
+      assertEquals("a b", part.getHeaders().getFirstHeaderStringValue("X-Folded"));
+      assertEquals("first\r\n-- line", readString(part.getContent()));
+      part = reader.nextPart();
+      assertNull(part.getHeaders().getContentType());
+      assertEquals("", readString(part.getContent()));
+      part = reader.nextPart();
+      assertEquals("text/html", part.getHeaders().getContentType());
+      assertEquals("bare\nline feeds", readString(part.getContent()));
+      assertNull(reader.nextPart());
+      assertNull(reader.nextPart());
+    }
+  }
+
+  public void testNextPart_skipUnreadContent() throws Exception {
+    MultipartReader reader = new MultipartReader(stream("--" + BOUNDARY + "\r\n\r\n"
+        + "skipped content\r\n--" + BOUNDARY + "\r\n\r\nread\r\n--" + BOUNDARY + "--"), BOUNDARY);
+    MultipartReader.Part first = reader.nextPart();
+    assertEquals('s', first.getContent().read());
+    MultipartReader.Part second = reader.nextPart();
+    assertEquals(-1, first.getContent().read());
+    assertEquals("read", readString(second.getContent()));
+    assertNull(reader.nextPart());
+  }
+
+  public void testNextPart_largePart() throws Exception {
+    long size = 10 * 1024 * 1024;
+    LargeInputStream largeContent = new LargeInputStream(size);
+    InputStream in = new SequenceInputStream(
+        stream("--" + BOUNDARY + "\r\n\r\n"),
+        new SequenceInputStream(largeContent, stream("\r\n--" + BOUNDARY + "--")));
+    MultipartReader reader = new MultipartReader(in, BOUNDARY);
+    InputStream partContent = reader.nextPart().getContent();
+    assertEquals('a', partContent.read());
+    // content is streamed instead of being buffered
+    assertTrue(largeContent.read < 64 * 1024);
+    long count = 1;
+    byte[] buffer = new byte[4096];
+    int read;
+    while ((read = partContent.read(buffer)) != -1) {
+      count += read;
+    }
+    assertEquals(size, count);
+    assertNull(reader.nextPart());
+  }
+
+  public void testNextPart_noParts() throws Exception {
+    assertNull(new MultipartReader(stream("no delimiter"), BOUNDARY).nextPart());
+    assertNull(new MultipartReader(stream("--" + BOUNDARY + "--"), BOUNDARY).nextPart());
+  }
+
+  public void testNextPart_truncated() throws Exception {
+    MultipartReader reader =
+        new MultipartReader(stream("--" + BOUNDARY + "\r\n\r\ntruncated"), BOUNDARY);
+    InputStream partContent = reader.nextPart().getContent();
+    try {
+      readString(partContent);
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testHttpResponse() throws Exception {
+    HttpTransport transport = new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, String url) {
+        return new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() {
+            return new MockLowLevelHttpResponse()
+                .setContentType("multipart/related; boundary=\"" + BOUNDARY + "\"")
+                .setContent("--" + BOUNDARY + "\r\nContent-ID: 1\r\n\r\none\r\n--" + BOUNDARY
+                    + "--\r\n");
+          }
+        };
+      }
+    };
+    HttpResponse response = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).execute();
+    MultipartReader reader = new MultipartReader(response);
+    MultipartReader.Part part = reader.nextPart();
+    assertEquals("1", part.getHeaders().getFirstHeaderStringValue("Content-ID"));
+    assertEquals("one", readString(part.getContent()));
+    assertNull(reader.nextPart());
+    reader.close();
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ParallelDownloader}.
+ */
+public class ParallelDownloaderTest extends TestCase {
+
+  /** Transport which serves ranges of the same content. */
+  static class RangeTransport extends MockHttpTransport {
+
+    static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    final byte[] content;
+    final AtomicInteger requestCount = new AtomicInteger();
+    final AtomicInteger rangeCount = new AtomicInteger();
+    volatile boolean ignoreRange;
+    volatile boolean unknownTotal;
+    volatile String etag = "\"v1\"";
+
+    RangeTransport(byte[] content) {
+      this.content = content;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          int count = requestCount.getAndIncrement();
+          assertEquals("identity", getFirstHeaderValue("Accept-Encoding"));
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          if (etag != null) {
+            response.addHeader("ETag", etag);
+          }
+          // the content changes after the first request if the entity tag changed
+          String ifRange = getFirstHeaderValue("If-Range");
+          Matcher matcher = RANGE_PATTERN.matcher(String.valueOf(getFirstHeaderValue("Range")));
+          if (ignoreRange || !matcher.matches() || ifRange != null && !ifRange.equals(etag)) {
+            return response.setContent(content);
+          }
+          rangeCount.incrementAndGet();
+          if (content.length == 0) {
+            return response.setStatusCode(416).addHeader("Content-Range", "bytes */0");
+          }
+          int first = Integer.parseInt(matcher.group(1));
+          int last = matcher.group(2).length() == 0
+              ? content.length - 1 : Math.min(Integer.parseInt(matcher.group(2)),
+                  content.length - 1);
+          if (count == 0) {
+            assertNull(ifRange);
+          }
+          byte[] range = new byte[last - first + 1];
+          System.arraycopy(content, first, range, 0, range.length);
+          return response.setStatusCode(206)
+              .addHeader("Content-Range", "bytes " + first + "-" + last + "/"
+                  + (unknownTotal ? "*" : String.valueOf(content.length)))
+              .setContent(range);
+        }
+      };
+    }
+  }
+
+  private static byte[] newContent(int length) {
+    byte[] content = new byte[length];
+    new Random(length).nextBytes(content);
+    return content;
+  }
+
+  private static byte[] download(ParallelDownloader downloader, HttpTransport transport,
+      long expectedLength) throws IOException {
+    File file = File.createTempFile("ParallelDownloaderTest", ".tmp");
+    try {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = randomAccessFile.getChannel();
+        HttpRequest request =
+            transport.createRequestFactory().buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+        assertEquals(expectedLength, downloader.download(request, channel));
+        ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        channel.read(buffer, 0);
+        return buffer.array();
+      } finally {
+        randomAccessFile.close();
+      }
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testParallel() throws IOException {
+    byte[] content = newContent(10000);
+    RangeTransport transport = new RangeTransport(content);
+    ParallelDownloader downloader =
+        new ParallelDownloader.Builder().setChunkSize(999).setParallelism(3).build();
+    assertTrue(Arrays.equals(content, download(downloader, transport, content.length)));
+    assertEquals(11, transport.requestCount.get());
+  }
+
+  public void testSingleChunk() throws IOException {
+    byte[] content = newContent(100);
+    RangeTransport transport = new RangeTransport(content);
+    assertTrue(Arrays.equals(content,
+        download(new ParallelDownloader.Builder().build(), transport, content.length)));
+    assertEquals(1, transport.requestCount.get());
+  }
+
+  public void testEmpty() throws IOException {
+    RangeTransport transport = new RangeTransport(new byte[0]);
+    assertEquals(0, download(new ParallelDownloader.Builder().build(), transport, 0).length);
+  }
+
+  public void testRangeIgnored() throws IOException {
+    byte[] content = newContent(5000);
+    RangeTransport transport = new RangeTransport(content);
+    transport.ignoreRange = true;
+    ParallelDownloader downloader = new ParallelDownloader.Builder().setChunkSize(1000).build();
+    assertTrue(Arrays.equals(content, download(downloader, transport, content.length)));
+    assertEquals(1, transport.requestCount.get());
+  }
+
+  public void testUnknownTotal() throws IOException {
+    byte[] content = newContent(5000);
+    RangeTransport transport = new RangeTransport(content);
+    transport.unknownTotal = true;
+    ParallelDownloader downloader = new ParallelDownloader.Builder().setChunkSize(1000).build();
+    assertTrue(Arrays.equals(content, download(downloader, transport, content.length)));
+    assertEquals(2, transport.requestCount.get());
+  }
+
+  public void testNoValidator() throws IOException {
+    byte[] content = newContent(5000);
+    RangeTransport transport = new RangeTransport(content);
+    transport.etag = null;
+    ParallelDownloader downloader = new ParallelDownloader.Builder().setChunkSize(1000).build();
+    assertTrue(Arrays.equals(content, download(downloader, transport, content.length)));
+    // the first range is followed by a single request of the whole content
+    assertEquals(2, transport.requestCount.get());
+    assertEquals(1, transport.rangeCount.get());
+  }
+
+  public void testNoValidator_singleChunk() throws IOException {
+    byte[] content = newContent(100);
+    RangeTransport transport = new RangeTransport(content);
+    transport.etag = null;
+    assertTrue(Arrays.equals(content,
+        download(new ParallelDownloader.Builder().build(), transport, content.length)));
+    assertEquals(1, transport.requestCount.get());
+  }
+
+  public void testSaturatedExecutor() throws Exception {
+    final byte[] content = newContent(10000);
+    final RangeTransport transport = new RangeTransport(content);
+    final ParallelDownloader downloader =
+        new ParallelDownloader.Builder().setChunkSize(999).setParallelism(3).build();
+    // the chunk workers are queued behind the download on the only thread of the executor
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> future = executor.submit(new Callable<Long>() {
+        public Long call() throws IOException {
+          File file = File.createTempFile("ParallelDownloaderTest", ".tmp");
+          RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+          try {
+            HttpRequest request = transport.createRequestFactory()
+                .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+                .setExecutor(executor);
+            return downloader.download(request, randomAccessFile.getChannel());
+          } finally {
+            randomAccessFile.close();
+            file.delete();
+          }
+        }
+      });
+      assertEquals(content.length, future.get(10, TimeUnit.SECONDS).longValue());
+      assertEquals(11, transport.requestCount.get());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public void testContentChanged() throws IOException {
+    byte[] content = newContent(5000);
+    final RangeTransport transport = new RangeTransport(content);
+    ParallelDownloader downloader = new ParallelDownloader.Builder().setChunkSize(1000).build();
+    HttpRequest request = transport.createRequestFactory(new HttpRequestInitializer() {
+      public void initialize(HttpRequest request) {
+        request.setResponseInterceptor(new HttpResponseInterceptor() {
+          public void interceptResponse(HttpResponse response) {
+            transport.etag = "\"v2\"";
+          }
+        });
+      }
+    }).buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    File file = File.createTempFile("ParallelDownloaderTest", ".tmp");
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    try {
+      downloader.download(request, randomAccessFile.getChannel());
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Content changed during download"));
+    } finally {
+      randomAccessFile.close();
+      file.delete();
+    }
+  }
+
+  public void testParseContentRange() {
+    assertTrue(Arrays.equals(new long[] {0, 99, 1000},
+        ParallelDownloader.parseContentRange("bytes 0-99/1000")));
+    assertTrue(Arrays.equals(new long[] {5, 9, -1},
+        ParallelDownloader.parseContentRange("bytes 5-9/*")));
+    assertNull(ParallelDownloader.parseContentRange(null));
+    assertNull(ParallelDownloader.parseContentRange("bytes */1000"));
+    assertNull(ParallelDownloader.parseContentRange("bytes 9-5/1000"));
+    assertNull(ParallelDownloader.parseContentRange("bytes 0-1000/1000"));
+  }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link RequestCoalescer}.
+ */
+public class RequestCoalescerTest extends TestCase {
+
+  /** Transport whose requests block until released. */
+  static class BlockingTransport extends MockHttpTransport {
+
+    final AtomicInteger requestCount = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    volatile boolean fail;
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          requestCount.incrementAndGet();
+          try {
+            release.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new IOException();
+          }
+          if (fail) {
+            throw new IOException("failed");
+          }
+          return new MockLowLevelHttpResponse().setContent("content");
+        }
+      };
+    }
+  }
+
+  private final BlockingTransport transport = new BlockingTransport();
+  private final RequestCoalescer coalescer = new RequestCoalescer();
+  private final HttpRequestFactory requestFactory =
+      transport.createRequestFactory().withRequestCoalescer(coalescer);
+
+  /** Executes the given requests concurrently and returns their contents or exceptions. */
+  private List<Object> executeConcurrently(final List<HttpRequest> requests, int expectedFlights)
+      throws Exception {
+    final List<Object> results = new ArrayList<Object>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (final HttpRequest request : requests) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          Object result;
+          try {
+            result = request.execute().parseAsString();
+          } catch (IOException e) {
+            result = e;
+          }
+          synchronized (results) {
+            results.add(result);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+    }
+    // wait until all of the requests either reached the server or joined a flight
+    long deadline = System.currentTimeMillis() + 10000;
+    while (transport.requestCount.get() + coalescer.getStats().getCoalescedCount()
+        < requests.size() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(expectedFlights, transport.requestCount.get());
+    transport.release.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return results;
+  }
+
+  public void testCoalesced() throws Exception {
+    List<HttpRequest> requests = new ArrayList<HttpRequest>();
+    for (int i = 0; i < 5; i++) {
+      requests.add(requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL));
+    }
+    List<Object> results = executeConcurrently(requests, 1);
+    assertEquals(5, results.size());
+    for (Object result : results) {
+      assertEquals("content", result);
+    }
+    RequestCoalescer.Stats stats = coalescer.getStats();
+    assertEquals(1, stats.getFlightCount());
+    assertEquals(4, stats.getCoalescedCount());
+    assertEquals(0, stats.getInFlightCount());
+  }
+
+  public void testDifferentHeaders() throws Exception {
+    List<HttpRequest> requests = new ArrayList<HttpRequest>();
+    requests.add(requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL));
+    HttpRequest other = requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL);
+    other.getHeaders().setAuthorization("other");
+    requests.add(other);
+    requests.add(requestFactory.buildPostRequest(HttpTesting.SIMPLE_GENERIC_URL, null));
+    executeConcurrently(requests, 3);
+    assertEquals(0, coalescer.getStats().getCoalescedCount());
+  }
+
+  public void testFailure() throws Exception {
+    transport.fail = true;
+    List<HttpRequest> requests = new ArrayList<HttpRequest>();
+    for (int i = 0; i < 3; i++) {
+      requests.add(requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL));
+    }
+    for (Object result : executeConcurrently(requests, 1)) {
+      assertEquals("failed", ((IOException) result).getMessage());
+    }
+  }
+
+  public void testSequential() throws Exception {
+    transport.release.countDown();
+    assertEquals("content",
+        requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).execute().parseAsString());
+    assertEquals("content",
+        requestFactory.buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL).execute().parseAsString());
+    assertEquals(2, transport.requestCount.get());
+    assertEquals(0, coalescer.getStats().getCoalescedCount());
+  }
+
+  public void testExecuteAsync_throws() throws Exception {
+    final String key = "GET " + HttpTesting.SIMPLE_URL;
+    final List<Object> results = new ArrayList<Object>();
+    final LowLevelHttpResponseCallback joined = new LowLevelHttpResponseCallback() {
+
+      public void onResponse(LowLevelHttpResponse response) {
+        results.add(response);
+      }
+
+      public void onFailure(IOException exception) {
+        results.add(exception);
+      }
+    };
+    MockLowLevelHttpRequest throwing = new MockLowLevelHttpRequest() {
+      @Override
+      public void executeAsync(LowLevelHttpResponseCallback callback) {
+        // an identical request joins the flight before it fails to start
+        coalescer.executeAsync(key, new MockLowLevelHttpRequest(), joined);
+        throw new IllegalStateException("closed");
+      }
+    };
+    LowLevelHttpResponseCallback own = new LowLevelHttpResponseCallback() {
+
+      public void onResponse(LowLevelHttpResponse response) {
+        fail();
+      }
+
+      public void onFailure(IOException exception) {
+        fail();
+      }
+    };
+    try {
+      coalescer.executeAsync(key, throwing, own);
+      fail("expected " + IllegalStateException.class);
+    } catch (IllegalStateException e) {
+      assertEquals("closed", e.getMessage());
+    }
+    assertEquals(1, results.size());
+    assertTrue(results.get(0) instanceof IOException);
+    assertEquals(0, coalescer.getStats().getInFlightCount());
+    // the next identical request starts a new flight
+    coalescer.executeAsync(key, new MockLowLevelHttpRequest(), joined);
+    assertEquals(2, results.size());
+    assertTrue(results.get(1) instanceof LowLevelHttpResponse);
+    assertEquals(2, coalescer.getStats().getFlightCount());
+  }
+}
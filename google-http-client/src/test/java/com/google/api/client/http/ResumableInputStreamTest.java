@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.StringUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link ResumableInputStream}.
+ */
+public class ResumableInputStreamTest extends TestCase {
+
+  static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+  /** Stream which fails or ends after a number of bytes. */
+  static class BreakingInputStream extends InputStream {
+
+    private final byte[] bytes;
+    private final int limit;
+    private final boolean fail;
+    private int position;
+
+    BreakingInputStream(byte[] bytes, int limit, boolean fail) {
+      this.bytes = bytes;
+      this.limit = Math.min(limit, bytes.length);
+      this.fail = fail && limit < bytes.length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position == limit) {
+        if (fail) {
+          throw new IOException("connection reset");
+        }
+        return -1;
+      }
+      return bytes[position++] & 0xff;
+    }
+  }
+
+  /** Transport whose responses break after a number of bytes. */
+  static class BreakingTransport extends MockHttpTransport {
+
+    final List<String> ranges = new ArrayList<String>();
+    final List<String> ifRanges = new ArrayList<String>();
+    int breakAfter = 10;
+    boolean fail = true;
+    String etag = "\"v1\"";
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          String range = getFirstHeaderValue("Range");
+          String ifRange = getFirstHeaderValue("If-Range");
+          ranges.add(range);
+          ifRanges.add(ifRange);
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+          if (etag != null) {
+            response.addHeader("ETag", etag);
+          }
+          int start = 0;
+          int end = CONTENT.length() - 1;
+          if (range != null && (ifRange == null || ifRange.equals(etag))) {
+            int dash = range.indexOf('-');
+            start = Integer.parseInt(range.substring("bytes=".length(), dash));
+            if (dash < range.length() - 1) {
+              end = Integer.parseInt(range.substring(dash + 1));
+            }
+            response.setStatusCode(206).addHeader("Content-Range",
+                "bytes " + start + "-" + end + "/" + CONTENT.length());
+          }
+          response.addHeader("Content-Length", String.valueOf(end + 1 - start));
+          return response.setContent(new BreakingInputStream(
+              StringUtils.getBytesUtf8(CONTENT.substring(start, end + 1)), breakAfter, fail));
+        }
+      };
+    }
+  }
+
+  private final BreakingTransport transport = new BreakingTransport();
+
+  private HttpRequest newRequest() throws IOException {
+    return transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setResumeContentOnIOException(true)
+        .setIOExceptionHandler(new HttpBackOffIOExceptionHandler(BackOff.ZERO_BACKOFF));
+  }
+
+  public void testResume() throws Exception {
+    assertEquals(CONTENT, newRequest().execute().parseAsString());
+    assertEquals(4, transport.ranges.size());
+    assertNull(transport.ranges.get(0));
+    assertEquals("bytes=10-", transport.ranges.get(1));
+    assertEquals("bytes=20-", transport.ranges.get(2));
+    assertEquals("bytes=30-", transport.ranges.get(3));
+    assertNull(transport.ifRanges.get(0));
+    assertEquals("\"v1\"", transport.ifRanges.get(1));
+  }
+
+  public void testResumeRange() throws Exception {
+    HttpRequest request = newRequest();
+    request.getHeaders().setRange("bytes=5-29");
+    assertEquals(CONTENT.substring(5, 30), request.execute().parseAsString());
+    assertEquals(3, transport.ranges.size());
+    assertEquals("bytes=5-29", transport.ranges.get(0));
+    assertEquals("bytes=15-29", transport.ranges.get(1));
+    assertEquals("bytes=25-29", transport.ranges.get(2));
+  }
+
+  public void testResumeAfterPrematureEnd() throws Exception {
+    transport.fail = false;
+    assertEquals(CONTENT, newRequest().execute().parseAsString());
+    assertEquals(4, transport.ranges.size());
+  }
+
+  public void testNumberOfRetries() throws Exception {
+    HttpResponse response = newRequest().setNumberOfRetries(2).execute();
+    try {
+      response.parseAsString();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    assertEquals(3, transport.ranges.size());
+  }
+
+  public void testContentChanged() throws Exception {
+    HttpResponse response = newRequest().execute();
+    transport.etag = "\"v2\"";
+    try {
+      response.parseAsString();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertTrue(e.getMessage().startsWith("Cannot resume content: content changed"));
+      assertEquals("connection reset", e.getCause().getMessage());
+    }
+  }
+
+  public void testNotResumable() throws Exception {
+    // no validator
+    transport.etag = null;
+    try {
+      newRequest().execute().parseAsString();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    // not enabled
+    transport.etag = "\"v1\"";
+    try {
+      newRequest().setResumeContentOnIOException(false).execute().parseAsString();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("connection reset", e.getMessage());
+    }
+    assertEquals(2, transport.ranges.size());
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http;
+
+import com.google.api.client.http.CachingDnsResolverTest.FakeNanoClock;
+import com.google.api.client.testing.http.HttpTesting;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.testing.util.MockBackOff;
+import com.google.api.client.testing.util.MockSleeper;
+import com.google.api.client.util.Sleeper;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link RetryBudget}.
+ */
+public class RetryBudgetTest extends TestCase {
+
+  private final FakeNanoClock clock = new FakeNanoClock();
+
+  public void testTryRetry() {
+    RetryBudget retryBudget = new RetryBudget.Builder().setRetryRatio(0.5)
+        .setMinRetriesPerSecond(0)
+        .setMaxRetries(2)
+        .setNanoClock(clock)
+        .build();
+    assertTrue(retryBudget.tryRetry());
+    assertTrue(retryBudget.tryRetry());
+    assertFalse(retryBudget.tryRetry());
+    retryBudget.recordRequest();
+    assertFalse(retryBudget.tryRetry());
+    retryBudget.recordRequest();
+    assertTrue(retryBudget.tryRetry());
+    RetryBudget.Stats stats = retryBudget.getStats();
+    assertEquals(2, stats.getRequestCount());
+    assertEquals(3, stats.getRetryCount());
+    assertEquals(2, stats.getExhaustedCount());
+    assertEquals(0, stats.getAvailableRetries());
+  }
+
+  public void testMinRetriesPerSecond() {
+    RetryBudget retryBudget = new RetryBudget.Builder().setRetryRatio(0)
+        .setMinRetriesPerSecond(2)
+        .setMaxRetries(3)
+        .setNanoClock(clock)
+        .build();
+    for (int i = 0; i < 3; i++) {
+      assertTrue(retryBudget.tryRetry());
+    }
+    assertFalse(retryBudget.tryRetry());
+    clock.advanceMillis(500);
+    assertTrue(retryBudget.tryRetry());
+    assertFalse(retryBudget.tryRetry());
+    // capped to the maximum
+    clock.advanceMillis(10000);
+    assertEquals(3, retryBudget.getStats().getAvailableRetries());
+  }
+
+  public void testIOExceptionHandler() throws Exception {
+    HttpRequest request = new MockHttpTransport().createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setRetryBudget(new RetryBudget.Builder().setMaxRetries(1).setNanoClock(clock).build());
+    MockSleeper sleeper = new MockSleeper();
+    HttpBackOffIOExceptionHandler handler =
+        new HttpBackOffIOExceptionHandler(new MockBackOff()).setSleeper(sleeper);
+    assertTrue(handler.handleIOException(request, true));
+    assertFalse(handler.handleIOException(request, true));
+    assertEquals(1, sleeper.getCount());
+    assertEquals(1, request.getRetryBudget().getStats().getExhaustedCount());
+  }
+
+  public void testIOExceptionHandler_noRetry() throws Exception {
+    HttpRequest request = new MockHttpTransport().createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setRetryBudget(new RetryBudget.Builder().setMaxRetries(1).setNanoClock(clock).build());
+    // back-off stopped
+    assertFalse(new HttpBackOffIOExceptionHandler(new MockBackOff().setMaxTries(0))
+        .handleIOException(request, true));
+    // sleep interrupted
+    assertFalse(new HttpBackOffIOExceptionHandler(new MockBackOff()).setSleeper(new Sleeper() {
+      public void sleep(long millis) throws InterruptedException {
+        throw new InterruptedException();
+      }
+    }).handleIOException(request, true));
+    RetryBudget.Stats stats = request.getRetryBudget().getStats();
+    assertEquals(0, stats.getRetryCount());
+    assertEquals(1, stats.getAvailableRetries());
+  }
+
+  public void testExecute() throws Exception {
+    RetryBudget retryBudget = new RetryBudget.Builder().setRetryRatio(0)
+        .setMaxRetries(2)
+        .setNanoClock(clock)
+        .build();
+    MockHttpTransport transport = new MockHttpTransport.Builder()
+        .setLowLevelHttpResponse(new MockLowLevelHttpResponse().setStatusCode(500))
+        .build();
+    MockSleeper sleeper = new MockSleeper();
+    HttpRequest request = transport.createRequestFactory()
+        .buildGetRequest(HttpTesting.SIMPLE_GENERIC_URL)
+        .setRetryBudget(retryBudget)
+        .setThrowExceptionOnExecuteError(false)
+        .setUnsuccessfulResponseHandler(
+            new HttpBackOffUnsuccessfulResponseHandler(new MockBackOff().setMaxTries(10))
+                .setSleeper(sleeper));
+    assertEquals(500, request.execute().getStatusCode());
+    assertEquals(2, sleeper.getCount());
+    RetryBudget.Stats stats = retryBudget.getStats();
+    assertEquals(1, stats.getRequestCount());
+    assertEquals(2, stats.getRetryCount());
+    assertEquals(1, stats.getExhaustedCount());
+  }
+}
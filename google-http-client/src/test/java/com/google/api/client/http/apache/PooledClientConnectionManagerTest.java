@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.apache;
+
+import com.google.api.client.http.CachingDnsResolver;
+import com.google.api.client.http.DnsResolver;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * Tests {@link PooledClientConnectionManager}.
+ */
+public class PooledClientConnectionManagerTest extends TestCase {
+
+  /**
+   * Minimal keep-alive HTTP/1.1 server replying {@code "ok"} to each request, closing the
+   * connection after the response if {@link #closeAfterResponse} is set.
+   */
+  static class Server implements Runnable {
+
+    final ServerSocket serverSocket;
+    final AtomicInteger connections = new AtomicInteger();
+    volatile boolean closeAfterResponse;
+
+    Server() throws IOException {
+      serverSocket = new ServerSocket(0);
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String url() {
+      return "http://localhost:" + serverSocket.getLocalPort() + "/";
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread(new Runnable() {
+            public void run() {
+              serve(socket);
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    void serve(Socket socket) {
+      try {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (readHead(in)) {
+          out.write(StringUtils.getBytesUtf8("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"));
+          out.flush();
+          if (closeAfterResponse) {
+            break;
+          }
+        }
+        socket.close();
+      } catch (IOException e) {
+        // connection closed
+      }
+    }
+
+    static boolean readHead(InputStream in) throws IOException {
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      int state = 0;
+      while (state < 4) {
+        int b = in.read();
+        if (b == -1) {
+          return false;
+        }
+        head.write(b);
+        state = (b == '\r' && state % 2 == 0 || b == '\n' && state % 2 == 1) ? state + 1 : 0;
+      }
+      return true;
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+
+  private Server server;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Server();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  private static String get(ApacheHttpTransport transport, String url) throws IOException {
+    HttpResponse response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(url)).execute();
+    return response.parseAsString();
+  }
+
+  private static PooledClientConnectionManager getConnectionManager(
+      ApacheHttpTransport transport) {
+    return (PooledClientConnectionManager) transport.getHttpClient().getConnectionManager();
+  }
+
+  public void testBuild() {
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+        .setMaxConnectionsTotal(50)
+        .setMaxConnectionsPerRoute(5)
+        .build();
+    PooledClientConnectionManager connectionManager = getConnectionManager(transport);
+    assertEquals(50, connectionManager.getTotalStats().getMax());
+    HttpRoute route = new HttpRoute(new HttpHost("localhost", 80));
+    assertEquals(5, connectionManager.getStats(route).getMax());
+    assertEquals(0, connectionManager.getStats(route).getLeased());
+    assertEquals(0, connectionManager.getStats(route).getAvailable());
+    assertEquals(0, connectionManager.getStats(route).getPending());
+    transport.shutdown();
+  }
+
+  public void testStats() throws Exception {
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder().setProxy(null).build();
+    PooledClientConnectionManager connectionManager = getConnectionManager(transport);
+    HttpResponse response = transport.createRequestFactory()
+        .buildGetRequest(new GenericUrl(server.url())).execute();
+    assertEquals(1, connectionManager.getRoutes().size());
+    HttpRoute route = connectionManager.getRoutes().get(0);
+    assertEquals(1, connectionManager.getStats(route).getLeased());
+    assertEquals(0, connectionManager.getStats(route).getAvailable());
+    assertEquals("ok", response.parseAsString());
+    assertEquals(0, connectionManager.getStats(route).getLeased());
+    assertEquals(1, connectionManager.getStats(route).getAvailable());
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals(1, server.connections.get());
+    transport.shutdown();
+  }
+
+  public void testValidateAfterInactivity() throws Exception {
+    server.closeAfterResponse = true;
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+        .setValidateAfterInactivity(0)
+        .build();
+    assertEquals("ok", get(transport, server.url()));
+    // give the server time to close the pooled connection
+    Thread.sleep(100);
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals(2, server.connections.get());
+    transport.shutdown();
+  }
+
+  public void testConnectionTimeToLive() throws Exception {
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+        .setConnectionTimeToLive(50)
+        .build();
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals(1, server.connections.get());
+    Thread.sleep(100);
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals(2, server.connections.get());
+    transport.shutdown();
+  }
+
+  public void testIdleConnectionTimeout() throws Exception {
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+        .setIdleConnectionTimeout(100)
+        .build();
+    PooledClientConnectionManager connectionManager = getConnectionManager(transport);
+    assertEquals("ok", get(transport, server.url()));
+    assertEquals(1, connectionManager.getTotalStats().getAvailable());
+    // the reaper runs every second at most
+    Thread.sleep(1500);
+    assertEquals(0, connectionManager.getTotalStats().getAvailable());
+    transport.shutdown();
+  }
+
+  public void testDnsResolver() throws Exception {
+    CachingDnsResolver dnsResolver = new CachingDnsResolver.Builder()
+        .setDelegate(new DnsResolver() {
+          public InetAddress[] resolve(String host) throws UnknownHostException {
+            return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {127, 0, 0, 1})};
+          }
+        })
+        .setSpreadingPolicy(CachingDnsResolver.SpreadingPolicy.LEAST_CONNECTIONS)
+        .build();
+    ApacheHttpTransport transport = new ApacheHttpTransport.Builder()
+        .setProxy(null)
+        .setDnsResolver(dnsResolver)
+        .build();
+    String url = "http://example.invalid:" + server.serverSocket.getLocalPort() + "/";
+    assertEquals("ok", get(transport, url));
+    assertEquals("ok", get(transport, url));
+    assertEquals(1, server.connections.get());
+    CachingDnsResolver.Stats stats = dnsResolver.getStats();
+    assertEquals(1, stats.getMissCount());
+    assertEquals(Integer.valueOf(1), stats.getOpenConnectionsByAddress().get("127.0.0.1"));
+    transport.shutdown();
+    assertTrue(dnsResolver.getStats().getOpenConnectionsByAddress().isEmpty());
+  }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.javanet;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.CachingDnsResolver;
+import com.google.api.client.http.DnsResolver;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link PooledConnectionFactory}.
+ */
+public class PooledConnectionFactoryTest extends TestCase {
+
+  /**
+   * Minimal HTTP/1.1 server replying to each request with the next canned response, closing the
+   * connection afterwards if the response starts with {@code "!"}.
+   */
+  static class Server implements Runnable {
+
+    final ServerSocket serverSocket;
+    final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+    final List<String> requests = new ArrayList<String>();
+    final AtomicInteger connections = new AtomicInteger();
+
+    Server() throws IOException {
+      serverSocket = new ServerSocket(0);
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String url(String path) {
+      return "http://localhost:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread(new Runnable() {
+            public void run() {
+              serve(socket);
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    void serve(Socket socket) {
+      try {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+          String head = readHead(in);
+          if (head == null) {
+            break;
+          }
+          String body = "";
+          if (head.contains("Transfer-Encoding: chunked")) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            while (true) {
+              int size = Integer.parseInt(readLine(in), 16);
+              for (int i = 0; i < size; i++) {
+                content.write(in.read());
+              }
+              readLine(in);
+              if (size == 0) {
+                break;
+              }
+            }
+            body = StringUtils.newStringUtf8(content.toByteArray());
+          } else {
+            int contentLength = 0;
+            for (String line : head.split("\r\n")) {
+              if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+              }
+            }
+            byte[] content = new byte[contentLength];
+            for (int n = 0; n < contentLength;) {
+              n += in.read(content, n, contentLength - n);
+            }
+            body = StringUtils.newStringUtf8(content);
+          }
+          synchronized (requests) {
+            requests.add(head + body);
+          }
+          String response = responses.take();
+          boolean close = response.startsWith("!");
+          out.write(StringUtils.getBytesUtf8(close ? response.substring(1) : response));
+          out.flush();
+          if (close) {
+            break;
+          }
+        }
+        socket.close();
+      } catch (Exception e) {
+        // connection closed
+      }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b != '\r') {
+          line.append((char) b);
+        }
+      }
+      return line.toString();
+    }
+
+    static String readHead(InputStream in) throws IOException {
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      int state = 0;
+      while (state < 4) {
+        int b = in.read();
+        if (b == -1) {
+          return null;
+        }
+        head.write(b);
+        state = (b == '\r' && state % 2 == 0 || b == '\n' && state % 2 == 1) ? state + 1 : 0;
+      }
+      return StringUtils.newStringUtf8(head.toByteArray());
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+
+  private Server server;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Server();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    server.close();
+  }
+
+  private static HttpResponse get(NetHttpTransport transport, String url) throws IOException {
+    return transport.createRequestFactory().buildGetRequest(new GenericUrl(url)).execute();
+  }
+
+  public void testKeepAlive() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(2)
+        .build();
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\n"
+        + "hello");
+    server.responses.add("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3;ext=1\r\nwor\r\n2\r\nld\r\n0\r\n\r\n");
+    HttpResponse response = get(transport, server.url("/a?b=c"));
+    assertEquals(200, response.getStatusCode());
+    assertEquals("OK", response.getStatusMessage());
+    assertEquals("text/plain", response.getContentType());
+    assertEquals(1, transport.getConnectionPoolStats().getLeasedCount());
+    assertEquals("hello", response.parseAsString());
+    PooledConnectionFactory.PoolStats stats = transport.getConnectionPoolStats();
+    assertEquals(0, stats.getLeasedCount());
+    assertEquals(1, stats.getIdleCount());
+    assertEquals(Integer.valueOf(1),
+        stats.getIdleCountByHost().get("localhost:" + server.serverSocket.getLocalPort()));
+    assertEquals("world", get(transport, server.url("/b")).parseAsString());
+    stats = transport.getConnectionPoolStats();
+    assertEquals(1, stats.getConnectCount());
+    assertEquals(1, stats.getReuseCount());
+    assertEquals(1, server.connections.get());
+    assertTrue(server.requests.get(0).startsWith("GET /a?b=c HTTP/1.1\r\n"));
+    assertTrue(server.requests.get(0).contains(
+        "\r\nHost: localhost:" + server.serverSocket.getLocalPort() + "\r\n"));
+    transport.shutdown();
+    assertEquals(0, transport.getConnectionPoolStats().getIdleCount());
+  }
+
+  public void testPost() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(2)
+        .build();
+    server.responses.add("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+    server.responses.add("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n");
+    HttpRequest request = transport.createRequestFactory().buildPostRequest(
+        new GenericUrl(server.url("/")), ByteArrayContent.fromString("text/plain", "content"));
+    assertEquals(201, request.execute().getStatusCode());
+    request.setContent(
+        new InputStreamContent("text/plain", new ByteArrayInputStream(new byte[] {'a', 'b'})));
+    assertEquals(201, request.execute().getStatusCode());
+    assertEquals(1, server.connections.get());
+    String first = server.requests.get(0);
+    assertTrue(first.contains("\r\nContent-Length: 7\r\n"));
+    assertTrue(first.endsWith("\r\n\r\ncontent"));
+    String second = server.requests.get(1);
+    assertTrue(second.contains("\r\nTransfer-Encoding: chunked\r\n"));
+    assertTrue(second.endsWith("\r\n\r\nab"));
+  }
+
+  public void testErrorResponse() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(2)
+        .build();
+    server.responses.add("HTTP/1.1 404 Not Found\r\nContent-Length: 7\r\n\r\nmissing");
+    HttpRequest request =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/")));
+    request.setThrowExceptionOnExecuteError(false);
+    HttpResponse response = request.execute();
+    assertEquals(404, response.getStatusCode());
+    assertEquals("missing", response.parseAsString());
+    assertEquals(1, transport.getConnectionPoolStats().getIdleCount());
+  }
+
+  public void testConnectionClose() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(2)
+        .build();
+    server.responses.add("!HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nuntil close");
+    assertEquals("until close", get(transport, server.url("/")).parseAsString());
+    assertEquals(0, transport.getConnectionPoolStats().getIdleCount());
+    assertEquals(0, transport.getConnectionPoolStats().getLeasedCount());
+  }
+
+  public void testRetryOnStaleConnection() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(2)
+        .build();
+    // the server closes the connection after the response although it has been kept alive
+    server.responses.add("!HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+    assertEquals("a", get(transport, server.url("/")).parseAsString());
+    Thread.sleep(100);
+    assertEquals("b", get(transport, server.url("/")).parseAsString());
+    assertEquals(2, server.connections.get());
+    assertEquals(1, transport.getConnectionPoolStats().getIdleCount());
+  }
+
+  public void testMaxIdleConnectionsPerHost() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setMaxIdleConnectionsPerHost(1)
+        .build();
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+    HttpResponse first = get(transport, server.url("/"));
+    HttpResponse second = get(transport, server.url("/"));
+    assertEquals(2, transport.getConnectionPoolStats().getLeasedCount());
+    assertEquals("a", first.parseAsString());
+    assertEquals("b", second.parseAsString());
+    PooledConnectionFactory.PoolStats stats = transport.getConnectionPoolStats();
+    assertEquals(1, stats.getIdleCount());
+    assertEquals(1, stats.getEvictionCount());
+  }
+
+  public void testIdleConnectionTimeout() throws Exception {
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setIdleConnectionTimeout(50)
+        .build();
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+    assertEquals("a", get(transport, server.url("/")).parseAsString());
+    Thread.sleep(100);
+    assertEquals(0, transport.getConnectionPoolStats().getIdleCount());
+    assertEquals("b", get(transport, server.url("/")).parseAsString());
+    assertEquals(2, server.connections.get());
+    assertEquals(1, transport.getConnectionPoolStats().getEvictionCount());
+  }
+
+  public void testDnsResolver() throws Exception {
+    CachingDnsResolver dnsResolver = new CachingDnsResolver.Builder()
+        .setDelegate(new DnsResolver() {
+          public InetAddress[] resolve(String host) throws UnknownHostException {
+            return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {127, 0, 0, 1})};
+          }
+        })
+        .setSpreadingPolicy(CachingDnsResolver.SpreadingPolicy.LEAST_CONNECTIONS)
+        .build();
+    NetHttpTransport transport = new NetHttpTransport.Builder()
+        .setDnsResolver(dnsResolver)
+        .build();
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+    String url = "http://example.invalid:" + server.serverSocket.getLocalPort() + "/";
+    assertEquals("a", get(transport, url).parseAsString());
+    assertEquals("b", get(transport, url).parseAsString());
+    assertEquals(1, server.connections.get());
+    assertTrue(server.requests.get(0).contains(
+        "\r\nHost: example.invalid:" + server.serverSocket.getLocalPort() + "\r\n"));
+    CachingDnsResolver.Stats stats = dnsResolver.getStats();
+    assertEquals(1, stats.getMissCount());
+    assertEquals(Integer.valueOf(1), stats.getOpenConnectionsByAddress().get("127.0.0.1"));
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Hpack} with the examples of RFC 7541 Appendix C.
+ */
+public class HpackTest extends TestCase {
+
+  private static byte[] hex(String hex) {
+    hex = hex.replace(" ", "");
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return result;
+  }
+
+  public void testIntegers() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Hpack.writeInt(out, 10, 5, 0);
+    Hpack.writeInt(out, 1337, 5, 0);
+    Hpack.writeInt(out, 42, 8, 0);
+    ByteBuffer in = ByteBuffer.wrap(out.toByteArray());
+    assertEquals("0a1f9a0a2a", toHex(out.toByteArray()));
+    assertEquals(10, Hpack.readInt(in, 5));
+    assertEquals(1337, Hpack.readInt(in, 5));
+    assertEquals(42, Hpack.readInt(in, 8));
+  }
+
+  public void testDecode_requestsWithoutHuffman() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+    assertHeaders(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d",
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    assertHeaders(decoder, "8286 84be 5808 6e6f 2d63 6163 6865", ":method", "GET", ":scheme",
+        "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+    assertHeaders(decoder,
+        "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65",
+        ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority",
+        "www.example.com", "custom-key", "custom-value");
+  }
+
+  public void testDecode_requestsWithHuffman() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+    assertHeaders(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff",
+        ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+    assertHeaders(decoder, "8286 84be 5886 a8eb 1064 9cbf", ":method", "GET", ":scheme",
+        "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+  }
+
+  public void testDecode_invalidIndex() throws Exception {
+    Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+    try {
+      decoder.decode(ByteBuffer.wrap(hex("be")), new ArrayList<String>(),
+          new ArrayList<String>());
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  public void testEncode() throws Exception {
+    Hpack.Encoder encoder = new Hpack.Encoder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    encoder.encode(out, ":method", "GET");
+    encoder.encode(out, ":authority", "www.example.com");
+    // indexed static entry, then literal without indexing with indexed name and Huffman value
+    assertEquals("82018cf1e3c2e5f23a6ba0ab90f4ff", toHex(out.toByteArray()));
+  }
+
+  public void testRoundTrip() throws Exception {
+    Hpack.Encoder encoder = new Hpack.Encoder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    String[] headers = {":status", "200", "content-type", "text/plain", "x-custom", "a b \u00e9",
+        "empty", ""};
+    for (int i = 0; i < headers.length; i += 2) {
+      encoder.encode(out, headers[i], headers[i + 1]);
+    }
+    List<String> names = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+    new Hpack.Decoder(4096, 65536).decode(ByteBuffer.wrap(out.toByteArray()), names, values);
+    assertEquals(4, names.size());
+    assertEquals("text/plain", values.get(1));
+    assertEquals("x-custom", names.get(2));
+    // non-ASCII characters are sent as UTF-8 and read back byte by byte
+    assertEquals("a b \u00c3\u00a9", values.get(2));
+    assertEquals("", values.get(3));
+  }
+
+  private static void assertHeaders(Hpack.Decoder decoder, String block, String... expected)
+      throws IOException {
+    List<String> names = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+    decoder.decode(ByteBuffer.wrap(hex(block)), names, values);
+    assertEquals(expected.length / 2, names.size());
+    for (int i = 0; i < names.size(); i++) {
+      assertEquals(expected[2 * i], names.get(i));
+      assertEquals(expected[2 * i + 1], values.get(i));
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder();
+    for (byte b : bytes) {
+      result.append(String.format("%02x", b & 0xff));
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.ByteBufferContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseCallback;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link Http2Connection} through {@link NioHttpTransport} against a local h2c server.
+ */
+public class Http2ConnectionTest extends TestCase {
+
+  /**
+   * Minimal h2c server replying to each request after a short delay with the request path and
+   * content, granting flow control credit for all received data.
+   */
+  static class H2cServer implements Runnable {
+
+    /** Frame sent by a misbehaving server. */
+    static class Frame {
+
+      final int type;
+      final int flags;
+      final boolean onStream;
+      final byte[] payload;
+
+      Frame(int type, int flags, boolean onStream, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.onStream = onStream;
+        this.payload = payload;
+      }
+    }
+
+    final ServerSocket serverSocket;
+    final int maxConcurrentStreams;
+    final int initialWindowSize;
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger openStreams = new AtomicInteger();
+    final AtomicInteger maxOpenStreams = new AtomicInteger();
+    final List<List<String>> requestHeaders = new ArrayList<List<String>>();
+    final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    /** Frames sent in reply to each request instead of a response or {@code null}. */
+    volatile List<Frame> misbehavior;
+    /** Type and error code of the first {@code GOAWAY} or {@code RST_STREAM} frame received. */
+    volatile int[] error;
+    final CountDownLatch errorLatch = new CountDownLatch(1);
+
+    H2cServer(int maxConcurrentStreams, int initialWindowSize) throws IOException {
+      this.maxConcurrentStreams = maxConcurrentStreams;
+      this.initialWindowSize = initialWindowSize;
+      serverSocket = new ServerSocket(0);
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String url(String path) {
+      return "http://localhost:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread(new Runnable() {
+            public void run() {
+              try {
+                serve(socket);
+              } catch (IOException e) {
+                // connection closed
+              }
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    void serve(Socket socket) throws IOException {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      final OutputStream out = socket.getOutputStream();
+      byte[] preface = new byte[Http2Connection.PREFACE.length];
+      in.readFully(preface);
+      assertTrue(Arrays.equals(Http2Connection.PREFACE, preface));
+      ByteBuffer settings = ByteBuffer.allocate(12);
+      settings.putShort((short) Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS)
+          .putInt(maxConcurrentStreams);
+      settings.putShort((short) Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE)
+          .putInt(initialWindowSize);
+      writeFrame(out, Http2Connection.TYPE_SETTINGS, 0, 0, settings.array());
+      Hpack.Decoder decoder = new Hpack.Decoder(4096, 65536);
+      Map<Integer, List<String>> headers = new HashMap<Integer, List<String>>();
+      Map<Integer, ByteArrayOutputStream> contents =
+          new HashMap<Integer, ByteArrayOutputStream>();
+      while (true) {
+        int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int streamId = in.readInt() & 0x7fffffff;
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        boolean endStream = (flags & Http2Connection.FLAG_END_STREAM) != 0
+            && (type == Http2Connection.TYPE_HEADERS || type == Http2Connection.TYPE_DATA);
+        if (type == Http2Connection.TYPE_SETTINGS && (flags & Http2Connection.FLAG_ACK) == 0) {
+          writeFrame(out, Http2Connection.TYPE_SETTINGS, Http2Connection.FLAG_ACK, 0,
+              new byte[0]);
+        } else if ((type == Http2Connection.TYPE_GOAWAY
+            || type == Http2Connection.TYPE_RST_STREAM) && error == null) {
+          ByteBuffer buffer = ByteBuffer.wrap(payload);
+          if (type == Http2Connection.TYPE_GOAWAY) {
+            buffer.getInt();
+          }
+          error = new int[] {type, buffer.getInt()};
+          errorLatch.countDown();
+        } else if (type == Http2Connection.TYPE_HEADERS) {
+          assertTrue((flags & Http2Connection.FLAG_END_HEADERS) != 0);
+          List<String> names = new ArrayList<String>();
+          List<String> values = new ArrayList<String>();
+          decoder.decode(ByteBuffer.wrap(payload), names, values);
+          List<String> list = new ArrayList<String>();
+          for (int i = 0; i < names.size(); i++) {
+            list.add(names.get(i) + "=" + values.get(i));
+          }
+          synchronized (requestHeaders) {
+            requestHeaders.add(list);
+          }
+          headers.put(streamId, list);
+          contents.put(streamId, new ByteArrayOutputStream());
+          int open = openStreams.incrementAndGet();
+          while (maxOpenStreams.get() < open) {
+            maxOpenStreams.set(open);
+          }
+          List<Frame> frames = misbehavior;
+          if (frames != null) {
+            for (Frame frame : frames) {
+              writeFrame(out, frame.type, frame.flags, frame.onStream ? streamId : 0,
+                  frame.payload);
+            }
+            continue;
+          }
+        } else if (type == Http2Connection.TYPE_DATA) {
+          contents.get(streamId).write(payload);
+          ByteBuffer increment = ByteBuffer.allocate(4);
+          increment.putInt(length);
+          writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, 0, increment.array());
+          if (!endStream) {
+            writeFrame(out, Http2Connection.TYPE_WINDOW_UPDATE, 0, streamId, increment.array());
+          }
+        }
+        if (endStream) {
+          final int id = streamId;
+          String path = "";
+          for (String header : headers.get(streamId)) {
+            if (header.startsWith(":path=")) {
+              path = header.substring(6);
+            }
+          }
+          final byte[] body =
+              StringUtils.getBytesUtf8(path + ":" + contents.get(streamId).toString("UTF-8"));
+          scheduler.schedule(new Runnable() {
+            public void run() {
+              try {
+                respond(out, id, body);
+              } catch (IOException e) {
+                // connection closed
+              }
+            }
+          }, 50, TimeUnit.MILLISECONDS);
+        }
+      }
+    }
+
+    void respond(OutputStream out, int streamId, byte[] body) throws IOException {
+      openStreams.decrementAndGet();
+      ByteArrayOutputStream block = new ByteArrayOutputStream();
+      Hpack.Encoder encoder = new Hpack.Encoder();
+      encoder.encode(block, ":status", "200");
+      encoder.encode(block, "content-type", "text/plain");
+      encoder.encode(block, "content-length", Integer.toString(body.length));
+      synchronized (out) {
+        writeFrame(out, Http2Connection.TYPE_HEADERS, Http2Connection.FLAG_END_HEADERS, streamId,
+            block.toByteArray());
+        for (int offset = 0; offset < body.length; offset += 16384) {
+          int length = Math.min(16384, body.length - offset);
+          int flags = offset + length == body.length ? Http2Connection.FLAG_END_STREAM : 0;
+          writeFrame(out, Http2Connection.TYPE_DATA, flags, streamId,
+              Arrays.copyOfRange(body, offset, offset + length));
+        }
+      }
+    }
+
+    static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+        throws IOException {
+      synchronized (out) {
+        ByteBuffer frame = ByteBuffer.allocate(9 + payload.length);
+        frame.put((byte) (payload.length >>> 16)).putShort((short) payload.length);
+        frame.put((byte) type).put((byte) flags).putInt(streamId).put(payload);
+        out.write(frame.array());
+        out.flush();
+      }
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+      scheduler.shutdownNow();
+    }
+  }
+
+  private H2cServer server;
+  private NioHttpTransport transport;
+
+  @Override
+  protected void tearDown() throws Exception {
+    transport.shutdown();
+    server.close();
+  }
+
+  public void testExecute() throws Exception {
+    server = new H2cServer(100, 65535);
+    transport = new NioHttpTransport.Builder().setHttp2PriorKnowledge(true).build();
+    HttpResponse response = transport.createRequestFactory()
+        .buildGetRequest(new GenericUrl(server.url("/path?q=1"))).execute();
+    assertEquals(200, response.getStatusCode());
+    assertEquals("text/plain", response.getContentType());
+    assertEquals("/path?q=1:", response.parseAsString());
+    List<String> headers = server.requestHeaders.get(0);
+    assertEquals(":method=GET", headers.get(0));
+    assertEquals(":scheme=http", headers.get(1));
+    assertEquals(":authority=localhost:" + server.serverSocket.getLocalPort(), headers.get(2));
+    assertEquals(":path=/path?q=1", headers.get(3));
+  }
+
+  public void testExecute_flowControlledContent() throws Exception {
+    // the small window forces the request content to wait for window updates
+    server = new H2cServer(100, 1000);
+    transport = new NioHttpTransport.Builder().setHttp2PriorKnowledge(true).build();
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      content.append((char) ('a' + i % 26));
+    }
+    HttpResponse response = transport.createRequestFactory()
+        .buildPostRequest(new GenericUrl(server.url("/upload")),
+            ByteArrayContent.fromString("text/plain", content.toString()))
+        .execute();
+    assertEquals("/upload:" + content, response.parseAsString());
+  }
+
+  public void testExecute_byteBufferContent() throws Exception {
+    // buffers of uneven sizes, including an empty one, split across frames and windows
+    server = new H2cServer(100, 1000);
+    transport = new NioHttpTransport.Builder().setHttp2PriorKnowledge(true).build();
+    StringBuilder content = new StringBuilder();
+    List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    for (int size : new int[] {1, 0, 2500, 70000, 3}) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+      for (int i = 0; i < size; i++) {
+        char c = (char) ('a' + (content.length() % 26));
+        content.append(c);
+        buffer.put((byte) c);
+      }
+      buffer.flip();
+      buffers.add(buffer);
+    }
+    HttpResponse response = transport.createRequestFactory()
+        .buildPostRequest(new GenericUrl(server.url("/upload")),
+            new ByteBufferContent("text/plain", buffers))
+        .execute();
+    assertEquals("/upload:" + content, response.parseAsString());
+  }
+
+  public void testExecuteAsync_multiplexed() throws Exception {
+    server = new H2cServer(100, 65535);
+    transport = new NioHttpTransport.Builder()
+        .setHttp2PriorKnowledge(true)
+        .setMaxConcurrentStreams(2)
+        .build();
+    int count = 6;
+    final CountDownLatch latch = new CountDownLatch(count);
+    final List<String> results = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/" + i)))
+          .executeAsync(new HttpResponseCallback() {
+
+            public void onResponse(HttpResponse response) {
+              try {
+                String result = response.parseAsString();
+                synchronized (results) {
+                  results.add(result);
+                }
+              } catch (IOException e) {
+                // missing result fails the test
+              }
+              latch.countDown();
+            }
+
+            public void onFailure(Throwable cause) {
+              latch.countDown();
+            }
+          });
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals(count, results.size());
+    for (int i = 0; i < count; i++) {
+      assertTrue(results.contains("/" + i + ":"));
+    }
+    assertEquals(1, server.connections.get());
+    assertTrue(server.maxOpenStreams.get() <= 2);
+  }
+
+  public void testGoAway_truncated() throws Exception {
+    assertProtocolViolation(Http2Connection.TYPE_GOAWAY, Http2Connection.FRAME_SIZE_ERROR,
+        new H2cServer.Frame(Http2Connection.TYPE_GOAWAY, 0, false, new byte[4]));
+  }
+
+  public void testWindowUpdate_zeroIncrement() throws Exception {
+    assertProtocolViolation(Http2Connection.TYPE_GOAWAY, Http2Connection.PROTOCOL_ERROR,
+        new H2cServer.Frame(Http2Connection.TYPE_WINDOW_UPDATE, 0, false, new byte[4]));
+  }
+
+  public void testWindowUpdate_zeroStreamIncrement() throws Exception {
+    assertProtocolViolation(Http2Connection.TYPE_RST_STREAM, Http2Connection.PROTOCOL_ERROR,
+        new H2cServer.Frame(Http2Connection.TYPE_WINDOW_UPDATE, 0, true, new byte[4]));
+  }
+
+  public void testWindowUpdate_overflow() throws Exception {
+    byte[] increment = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array();
+    assertProtocolViolation(Http2Connection.TYPE_GOAWAY, Http2Connection.FLOW_CONTROL_ERROR,
+        new H2cServer.Frame(Http2Connection.TYPE_WINDOW_UPDATE, 0, false, increment));
+  }
+
+  public void testWindowUpdate_streamOverflow() throws Exception {
+    byte[] increment = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array();
+    assertProtocolViolation(Http2Connection.TYPE_RST_STREAM, Http2Connection.FLOW_CONTROL_ERROR,
+        new H2cServer.Frame(Http2Connection.TYPE_WINDOW_UPDATE, 0, true, increment));
+  }
+
+  public void testHeaders_tooLarge() throws Exception {
+    // the header block is never completed, so it is rejected while it is still being buffered
+    H2cServer.Frame[] frames =
+        new H2cServer.Frame[Http2Connection.MAX_HEADER_LIST_SIZE / 16384 + 2];
+    frames[0] = new H2cServer.Frame(Http2Connection.TYPE_HEADERS, 0, true, new byte[16384]);
+    for (int i = 1; i < frames.length; i++) {
+      frames[i] =
+          new H2cServer.Frame(Http2Connection.TYPE_CONTINUATION, 0, true, new byte[16384]);
+    }
+    assertProtocolViolation(Http2Connection.TYPE_GOAWAY, Http2Connection.PROTOCOL_ERROR, frames);
+  }
+
+  private void assertProtocolViolation(int type, int errorCode, H2cServer.Frame... frames)
+      throws Exception {
+    server = new H2cServer(100, 65535);
+    server.misbehavior = Arrays.asList(frames);
+    transport = new NioHttpTransport.Builder().setHttp2PriorKnowledge(true).build();
+    try {
+      transport.createRequestFactory()
+          .buildGetRequest(new GenericUrl(server.url("/")))
+          .setNumberOfRetries(0)
+          .execute();
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      // expected
+    }
+    assertTrue(server.errorLatch.await(10, TimeUnit.SECONDS));
+    assertEquals(type, server.error[0]);
+    assertEquals(errorCode, server.error[1]);
+  }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.http.nio;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.ByteBufferContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpFuture;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseCallback;
+import com.google.api.client.util.StringUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link NioHttpTransport} against a local HTTP/1.1 server.
+ */
+public class NioHttpTransportTest extends TestCase {
+
+  /**
+   * Minimal HTTP/1.1 server replying to each request with the next canned response, closing the
+   * connection afterwards if the response starts with {@code "!"}.
+   */
+  static class Server implements Runnable {
+
+    final ServerSocket serverSocket;
+    final BlockingQueue<String> responses = new LinkedBlockingQueue<String>();
+    final List<String> requests = new ArrayList<String>();
+    final AtomicInteger connections = new AtomicInteger();
+
+    Server() throws IOException {
+      serverSocket = new ServerSocket(0);
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    String url(String path) {
+      return "http://localhost:" + serverSocket.getLocalPort() + path;
+    }
+
+    public void run() {
+      try {
+        while (true) {
+          final Socket socket = serverSocket.accept();
+          connections.incrementAndGet();
+          Thread thread = new Thread(new Runnable() {
+            public void run() {
+              serve(socket);
+            }
+          });
+          thread.setDaemon(true);
+          thread.start();
+        }
+      } catch (IOException e) {
+        // closed
+      }
+    }
+
+    void serve(Socket socket) {
+      try {
+        InputStream in = socket.getInputStream();
+        OutputStream out = socket.getOutputStream();
+        while (true) {
+          String head = readHead(in);
+          if (head == null) {
+            break;
+          }
+          int contentLength = 0;
+          for (String line : head.split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+              contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+          }
+          byte[] content = new byte[contentLength];
+          for (int n = 0; n < contentLength;) {
+            n += in.read(content, n, contentLength - n);
+          }
+          synchronized (requests) {
+            requests.add(head + StringUtils.newStringUtf8(content));
+          }
+          String response = responses.take();
+          boolean close = response.startsWith("!");
+          out.write(StringUtils.getBytesUtf8(close ? response.substring(1) : response));
+          out.flush();
+          if (close || response.contains("Connection: close")) {
+            break;
+          }
+        }
+        socket.close();
+      } catch (Exception e) {
+        // connection closed
+      }
+    }
+
+    static String readHead(InputStream in) throws IOException {
+      ByteArrayOutputStream head = new ByteArrayOutputStream();
+      int state = 0;
+      while (state < 4) {
+        int b = in.read();
+        if (b == -1) {
+          return null;
+        }
+        head.write(b);
+        state = (b == '\r' && state % 2 == 0 || b == '\n' && state % 2 == 1) ? state + 1 : 0;
+      }
+      return StringUtils.newStringUtf8(head.toByteArray());
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+
+  private Server server;
+  private NioHttpTransport transport;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new Server();
+    transport = new NioHttpTransport();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    transport.shutdown();
+    server.close();
+  }
+
+  public void testExecute_keepAlive() throws Exception {
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\nContent-Type: text/plain\r\n\r\nhello");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nworld");
+    HttpResponse response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/a"))).execute();
+    assertEquals(200, response.getStatusCode());
+    assertEquals("text/plain", response.getContentType());
+    assertEquals("hello", response.parseAsString());
+    response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/b"))).execute();
+    assertEquals("world", response.parseAsString());
+    assertEquals(1, server.connections.get());
+    assertTrue(server.requests.get(0).startsWith("GET /a HTTP/1.1\r\n"));
+    assertTrue(server.requests.get(1).startsWith("GET /b HTTP/1.1\r\n"));
+  }
+
+  public void testExecute_chunkedPost() throws Exception {
+    server.responses.add("HTTP/1.1 201 Created\r\nTransfer-Encoding: chunked\r\n\r\n"
+        + "3;ext=1\r\nabc\r\n4\r\ndefg\r\n0\r\nTrailer: x\r\n\r\n");
+    HttpRequest request = transport.createRequestFactory().buildPostRequest(
+        new GenericUrl(server.url("/post?x=1")),
+        ByteArrayContent.fromString("text/plain", "content"));
+    HttpResponse response = request.execute();
+    assertEquals(201, response.getStatusCode());
+    assertEquals("abcdefg", response.parseAsString());
+    String received = server.requests.get(0);
+    assertTrue(received.startsWith("POST /post?x=1 HTTP/1.1\r\n"));
+    assertTrue(received.contains("Content-Length: 7\r\n"));
+    assertTrue(received.endsWith("\r\n\r\ncontent"));
+  }
+
+  public void testExecute_fileContent() throws Exception {
+    // larger than the socket buffers, so that the transfer needs several writable selections
+    StringBuilder expected = new StringBuilder();
+    while (expected.length() < 1000000) {
+      expected.append(expected.length()).append(',');
+    }
+    File file = File.createTempFile("NioHttpTransportTest", ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(file);
+      try {
+        out.write(StringUtils.getBytesUtf8(expected.toString()));
+      } finally {
+        out.close();
+      }
+      server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+      server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+      for (int i = 0; i < 2; i++) {
+        HttpResponse response = transport.createRequestFactory()
+            .buildPutRequest(new GenericUrl(server.url("/file")),
+                new FileContent("text/plain", file))
+            .execute();
+        assertEquals("ok", response.parseAsString());
+        String received = server.requests.get(i);
+        assertTrue(received.contains("Content-Length: " + expected.length() + "\r\n"));
+        assertTrue(received.endsWith("\r\n\r\n" + expected));
+      }
+      assertEquals(1, server.connections.get());
+    } finally {
+      file.delete();
+    }
+  }
+
+  public void testExecute_byteBuffers() throws Exception {
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+    ByteBuffer direct = ByteBuffer.allocateDirect(3);
+    direct.put(StringUtils.getBytesUtf8("def")).flip();
+    HttpResponse response = transport.createRequestFactory()
+        .buildPostRequest(new GenericUrl(server.url("/")), new ByteBufferContent("text/plain",
+            ByteBuffer.wrap(StringUtils.getBytesUtf8("abc")), direct))
+        .setLoggingEnabled(false)
+        .execute();
+    assertEquals(ResponseBodyStream.class, response.getContentChannel().getClass());
+    ByteBuffer body = ByteBuffer.allocateDirect(10);
+    assertEquals(5, response.readContent(body));
+    body.flip();
+    byte[] bytes = new byte[5];
+    body.get(bytes);
+    assertEquals("hello", StringUtils.newStringUtf8(bytes));
+    assertTrue(server.requests.get(0).endsWith("\r\n\r\nabcdef"));
+  }
+
+  public void testExecute_headAndConnectionClose() throws Exception {
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n");
+    server.responses.add("HTTP/1.1 200 OK\r\nConnection: close\r\n\r\nuntil close");
+    HttpResponse response = transport.createRequestFactory()
+        .buildHeadRequest(new GenericUrl(server.url("/"))).execute();
+    assertEquals("", response.parseAsString());
+    response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/"))).execute();
+    assertEquals("until close", response.parseAsString());
+    assertEquals(0, transport.getIdleConnectionCount());
+  }
+
+  public void testExecute_retryOnStaleConnection() throws Exception {
+    // the server closes the connection after the response although it has been kept alive
+    server.responses.add("!HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\na");
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 1\r\n\r\nb");
+    HttpResponse response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/"))).execute();
+    assertEquals("a", response.parseAsString());
+    response =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/"))).execute();
+    assertEquals("b", response.parseAsString());
+    assertEquals(2, server.connections.get());
+  }
+
+  public void testExecute_readTimeout() throws Exception {
+    HttpRequest request =
+        transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/")));
+    request.setReadTimeout(100);
+    request.setNumberOfRetries(0);
+    try {
+      request.execute();
+      fail("expected " + SocketTimeoutException.class);
+    } catch (SocketTimeoutException e) {
+      // expected
+    }
+  }
+
+  public void testExecuteAsync() throws Exception {
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nasync");
+    final CountDownLatch latch = new CountDownLatch(1);
+    final String[] result = new String[1];
+    transport.createRequestFactory().buildGetRequest(new GenericUrl(server.url("/")))
+        .executeAsync(new HttpResponseCallback() {
+
+          public void onResponse(HttpResponse response) {
+            try {
+              result[0] = response.parseAsString();
+            } catch (IOException e) {
+              result[0] = e.toString();
+            }
+            latch.countDown();
+          }
+
+          public void onFailure(Throwable cause) {
+            result[0] = cause.toString();
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertEquals("async", result[0]);
+  }
+
+  public void testExecuteAsync_failure() throws Exception {
+    int port = server.serverSocket.getLocalPort();
+    server.close();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final Throwable[] result = new Throwable[1];
+    transport.createRequestFactory()
+        .buildGetRequest(new GenericUrl("http://localhost:" + port + "/"))
+        .setNumberOfRetries(0)
+        .executeAsync(new HttpResponseCallback() {
+
+          public void onResponse(HttpResponse response) {
+            latch.countDown();
+          }
+
+          public void onFailure(Throwable cause) {
+            result[0] = cause;
+            latch.countDown();
+          }
+        });
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    assertTrue(result[0] instanceof IOException);
+  }
+
+  public void testExecuteFuture_transform() throws Exception {
+    server.responses.add("HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\nfuture");
+    HttpFuture<String> future = transport.createRequestFactory()
+        .buildGetRequest(new GenericUrl(server.url("/")))
+        .executeFuture()
+        .transform(new HttpFuture.Transformer<HttpResponse, String>() {
+
+          public String apply(HttpResponse response) throws IOException {
+            return response.parseAsString();
+          }
+        });
+    assertEquals("future", future.get(10, TimeUnit.SECONDS));
+  }
+}
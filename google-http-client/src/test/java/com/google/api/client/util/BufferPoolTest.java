@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link BufferPool}.
+ */
+public class BufferPoolTest extends TestCase {
+
+  public void testAcquireAndRelease() {
+    BufferPool pool = new BufferPool(16, 2);
+    byte[] first = pool.acquire();
+    byte[] second = pool.acquire();
+    byte[] third = pool.acquire();
+    assertEquals(16, first.length);
+    assertEquals(0, pool.getPooledCount());
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+    assertEquals(2, pool.getPooledCount());
+    // wrong size and null are ignored
+    pool.release(new byte[8]);
+    pool.release(null);
+    assertEquals(2, pool.getPooledCount());
+    assertSame(first, pool.acquire());
+    assertSame(second, pool.acquire());
+    assertEquals(0, pool.getPooledCount());
+  }
+
+  public void testNoPooling() {
+    BufferPool pool = new BufferPool(16, 0);
+    byte[] buffer = pool.acquire();
+    pool.release(buffer);
+    assertEquals(0, pool.getPooledCount());
+    assertNotSame(buffer, pool.acquire());
+  }
+
+  public void testInvalidArguments() {
+    try {
+      new BufferPool(0, 1);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new BufferPool(1, -1);
+      fail("expected " + IllegalArgumentException.class);
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  public void testDefaultAndBulk() {
+    assertEquals(BufferPool.DEFAULT_BUFFER_SIZE, BufferPool.getDefault().getBufferSize());
+    assertEquals(BufferPool.BULK_BUFFER_SIZE, BufferPool.getBulk().getBufferSize());
+  }
+
+  public void testCopy() throws IOException {
+    byte[] content = new byte[100000];
+    new Random(1).nextBytes(content);
+    BufferPool pool = new BufferPool(1000, 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(content.length, ByteStreams.copy(new ByteArrayInputStream(content), out, pool));
+    assertTrue(Arrays.equals(content, out.toByteArray()));
+    assertEquals(1, pool.getPooledCount());
+  }
+
+  public void testCopy_failure() {
+    BufferPool pool = new BufferPool(1000, 1);
+    final boolean[] closed = new boolean[1];
+    InputStream in = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("broken");
+      }
+
+      @Override
+      public void close() {
+        closed[0] = true;
+      }
+    };
+    try {
+      IOUtils.copy(in, new ByteArrayOutputStream(), true, pool);
+      fail("expected " + IOException.class);
+    } catch (IOException e) {
+      assertEquals("broken", e.getMessage());
+    }
+    assertTrue(closed[0]);
+    // the buffer is returned to the pool despite the failure
+    assertEquals(1, pool.getPooledCount());
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import com.google.api.client.util.ExponentialBackOffTest.MyNanoClock;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link DecorrelatedJitterBackOff}.
+ */
+public class DecorrelatedJitterBackOffTest extends TestCase {
+
+  public void testConstructor() {
+    DecorrelatedJitterBackOff backOff = new DecorrelatedJitterBackOff();
+    assertEquals(DecorrelatedJitterBackOff.DEFAULT_BASE_INTERVAL_MILLIS,
+        backOff.getBaseIntervalMillis());
+    assertEquals(
+        DecorrelatedJitterBackOff.DEFAULT_MAX_INTERVAL_MILLIS, backOff.getMaxIntervalMillis());
+    assertEquals(DecorrelatedJitterBackOff.DEFAULT_MAX_ELAPSED_TIME_MILLIS,
+        backOff.getMaxElapsedTimeMillis());
+  }
+
+  public void testBackOff() throws Exception {
+    DecorrelatedJitterBackOff backOff = new DecorrelatedJitterBackOff.Builder()
+        .setBaseIntervalMillis(100)
+        .setMaxIntervalMillis(5000)
+        .build();
+    long previous = 100;
+    for (int i = 0; i < 20; i++) {
+      long interval = backOff.nextBackOffMillis();
+      assertTrue(interval >= 100);
+      assertTrue(interval <= Math.min(5000, 3 * previous));
+      previous = interval;
+    }
+  }
+
+  public void testGetNextInterval() {
+    assertEquals(100, DecorrelatedJitterBackOff.getNextInterval(100, 100, 5000, 0));
+    assertEquals(300, DecorrelatedJitterBackOff.getNextInterval(100, 100, 5000, 0.9999));
+    assertEquals(200, DecorrelatedJitterBackOff.getNextInterval(100, 100, 5000, 0.5));
+    // capped to the maximum interval
+    assertEquals(5000, DecorrelatedJitterBackOff.getNextInterval(100, 4000, 5000, 0.5));
+  }
+
+  public void testMaxElapsedTime() throws Exception {
+    DecorrelatedJitterBackOff backOff = new DecorrelatedJitterBackOff.Builder()
+        .setMaxElapsedTimeMillis(1500)
+        .setNanoClock(new MyNanoClock())
+        .build();
+    assertTrue(backOff.nextBackOffMillis() != BackOff.STOP);
+    assertEquals(BackOff.STOP, backOff.nextBackOffMillis());
+    backOff.reset();
+    assertTrue(backOff.nextBackOffMillis() != BackOff.STOP);
+  }
+}
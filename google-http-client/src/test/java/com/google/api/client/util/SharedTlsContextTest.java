@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.client.util;
+
+import com.google.api.client.testing.json.webtoken.TestCertificates;
+import java.io.StringReader;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Arrays;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link SharedTlsContext}.
+ */
+public class SharedTlsContextTest extends TestCase {
+
+  private static KeyStore newTrustStore(TestCertificates.CertData... certs) throws Exception {
+    KeyStore trustStore = SecurityUtils.getJavaKeyStore();
+    trustStore.load(null, null);
+    for (int i = 0; i < certs.length; i++) {
+      trustStore.setCertificateEntry("cert" + i, certs[i].getCertfificate());
+    }
+    return trustStore;
+  }
+
+  /** Returns a key store with the key and certificate chain of foo.bar.com. */
+  private static KeyStore newKeyStore() throws Exception {
+    byte[] encodedKey = PemReader.readFirstSectionAndClose(
+        new StringReader(TestCertificates.FOO_BAR_COM_KEY), "PRIVATE KEY").getBase64DecodedBytes();
+    PrivateKey privateKey =
+        SecurityUtils.getRsaKeyFactory().generatePrivate(new PKCS8EncodedKeySpec(encodedKey));
+    KeyStore keyStore = SecurityUtils.getJavaKeyStore();
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("key", privateKey, "password".toCharArray(), new Certificate[] {
+        TestCertificates.FOO_BAR_COM_CERT.getCertfificate(),
+        TestCertificates.CA_CERT.getCertfificate()});
+    return keyStore;
+  }
+
+  public void testGetSharedTlsContext() throws Exception {
+    SharedTlsContext context = SslUtils.getSharedTlsContext(
+        newTrustStore(TestCertificates.CA_CERT, TestCertificates.FOO_BAR_COM_CERT));
+    // same certificates in another order
+    assertSame(context, SslUtils.getSharedTlsContext(
+        newTrustStore(TestCertificates.FOO_BAR_COM_CERT, TestCertificates.CA_CERT)));
+    assertNotSame(context, SslUtils.getSharedTlsContext(newTrustStore(TestCertificates.CA_CERT)));
+    assertNotSame(context, SslUtils.getSharedTlsContext(null));
+    assertSame(SslUtils.getSharedTlsContext(null), SslUtils.getSharedTlsContext(null));
+    assertEquals(SharedTlsContext.DEFAULT_SESSION_CACHE_SIZE, context.getSessionCacheSize());
+    assertEquals(SharedTlsContext.DEFAULT_SESSION_TIMEOUT, context.getSessionTimeout());
+  }
+
+  public void testGetSharedTlsContext_keyEntries() throws Exception {
+    KeyStore keyStore = newKeyStore();
+    // the certificate of the key entry is trusted, unlike in an empty trust store
+    SharedTlsContext context = SslUtils.getSharedTlsContext(keyStore);
+    assertNotSame(context, SslUtils.getSharedTlsContext(newTrustStore()));
+    assertSame(context, SslUtils.getSharedTlsContext(newKeyStore()));
+    // a trusted certificate entry is not the same as a key entry with the same certificate
+    assertNotSame(context,
+        SslUtils.getSharedTlsContext(newTrustStore(TestCertificates.FOO_BAR_COM_CERT)));
+  }
+
+  public void testGetSharedTlsContext_keyManagers() throws Exception {
+    KeyStore trustStore = newTrustStore(TestCertificates.CA_CERT);
+    KeyManagerFactory keyManagerFactory = SslUtils.getDefaultKeyManagerFactory();
+    keyManagerFactory.init(newKeyStore(), "password".toCharArray());
+    KeyManager[] keyManagers = keyManagerFactory.getKeyManagers();
+    SharedTlsContext context = SslUtils.getSharedTlsContext(trustStore, keyManagers);
+    assertSame(context, SslUtils.getSharedTlsContext(trustStore, keyManagers.clone()));
+    assertNotSame(context, SslUtils.getSharedTlsContext(trustStore));
+    keyManagerFactory.init(newKeyStore(), "password".toCharArray());
+    assertNotSame(
+        context, SslUtils.getSharedTlsContext(trustStore, keyManagerFactory.getKeyManagers()));
+  }
+
+  public void testGetSharedTlsContext_bounded() throws Exception {
+    KeyStore trustStore = newTrustStore(TestCertificates.CA_CERT);
+    SharedTlsContext context = SslUtils.getSharedTlsContext(trustStore);
+    for (int i = 0; i < SslUtils.MAX_SHARED_TLS_CONTEXTS; i++) {
+      SslUtils.getSharedTlsContext(trustStore, new KeyManager[] {new X509ExtendedKeyManager() {
+
+        public String[] getClientAliases(String keyType, Principal[] issuers) {
+          return null;
+        }
+
+        public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+          return null;
+        }
+
+        public String[] getServerAliases(String keyType, Principal[] issuers) {
+          return null;
+        }
+
+        public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+          return null;
+        }
+
+        public X509Certificate[] getCertificateChain(String alias) {
+          return null;
+        }
+
+        public PrivateKey getPrivateKey(String alias) {
+          return null;
+        }
+      }});
+    }
+    // the least recently used context has been evicted
+    assertNotSame(context, SslUtils.getSharedTlsContext(trustStore));
+  }
+
+  public void testResumption_tls12() throws Exception {
+    subtestResumption("TLSv1.2");
+  }
+
+  public void testResumption_tls13() throws Exception {
+    // TLS 1.3 resumes with a pre-shared key into a new session object, which must keep the creation
+    // time of the original session for the resumption to be detected
+    subtestResumption("TLSv1.3");
+  }
+
+  private void subtestResumption(String protocol) throws Exception {
+    KeyManagerFactory keyManagerFactory = SslUtils.getDefaultKeyManagerFactory();
+    keyManagerFactory.init(newKeyStore(), "password".toCharArray());
+    SSLContext serverContext = SslUtils.getTlsSslContext();
+    serverContext.init(keyManagerFactory.getKeyManagers(), null, null);
+    final SSLServerSocket serverSocket =
+        (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          while (true) {
+            Socket socket = serverSocket.accept();
+            socket.getOutputStream().write(socket.getInputStream().read());
+            socket.close();
+          }
+        } catch (Exception e) {
+          // closed
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+    try {
+      SharedTlsContext context =
+          SslUtils.getSharedTlsContext(newTrustStore(TestCertificates.CA_CERT));
+      SSLSocket unconnected = (SSLSocket) context.getSslContext().getSocketFactory().createSocket();
+      boolean supported = Arrays.asList(unconnected.getSupportedProtocols()).contains(protocol);
+      unconnected.close();
+      if (!supported) {
+        // not supported by this JDK
+        return;
+      }
+      long handshakes = context.getStats().getHandshakeCount();
+      long resumed = context.getStats().getResumedCount();
+      for (int i = 0; i < 3; i++) {
+        Socket rawSocket = new Socket("localhost", serverSocket.getLocalPort());
+        SSLSocket socket = (SSLSocket) context.getSocketFactory()
+            .createSocket(rawSocket, "foo.bar.com", serverSocket.getLocalPort(), true);
+        socket.setEnabledProtocols(new String[] {protocol});
+        socket.startHandshake();
+        assertEquals(protocol, socket.getSession().getProtocol());
+        // reads the session ticket sent after the handshake
+        socket.getOutputStream().write(1);
+        assertEquals(1, socket.getInputStream().read());
+        socket.close();
+      }
+      // listeners are notified on another thread
+      for (int i = 0; i < 100 && context.getStats().getHandshakeCount() < handshakes + 3; i++) {
+        Thread.sleep(10);
+      }
+      SharedTlsContext.Stats stats = context.getStats();
+      assertEquals(handshakes + 3, stats.getHandshakeCount());
+      assertEquals(resumed + 2, stats.getResumedCount());
+      assertTrue(stats.getMaxSetupNanos() > 0);
+    } finally {
+      serverSocket.close();
+    }
+  }
+}